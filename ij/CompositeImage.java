@@ -36,6 +36,10 @@ public class CompositeImage extends ImagePlus {
 	byte[][] channelLuts;
 	boolean customLuts;
 	boolean syncChannels;
+	ChannelCompositor compositor;
+	Rectangle compositedRect;   // part of rgbPixels that is up to date, in COMPOSITE mode
+	int projectionMode;
+	static final int MIN_REGION_PIXELS = 2048*2048;  // larger images are composited where displayed
 
 	public CompositeImage(ImagePlus imp) {
 		this(imp, COLOR);
@@ -98,14 +102,46 @@ public class CompositeImage extends ImagePlus {
 
 	@Override
 	public Image getImage() {
+		return getImage(new Rectangle(0, 0, width, height));
+	}
+
+	/** Returns the RGB image, which is up to date at least inside 'r'.
+		In COMPOSITE mode, ImageCanvas only has large images composited
+		where they are displayed. */
+	public Image getImage(Rectangle r) {
 		if (img==null)
 			updateImage();
+		else if (compositedRect!=null && !compositedRect.contains(r))
+			compositeRegion(r);
 		return img;
 	}
+
+	private synchronized void compositeRegion(Rectangle r) {
+		r = r.intersection(new Rectangle(0, 0, width, height));
+		if (compositedRect==null || compositedRect.contains(r) || r.isEmpty())
+			return;
+		int nChannels = getNChannels();
+		if (cip==null || rgbPixels==null || cip.length!=nChannels || rgbPixels.length!=width*height) {
+			updateImage();
+			return;
+		}
+		compositor.composite(cip, active, projectionMode, rgbPixels, r);
+		compositedRect = r;
+	}
+
+	/* Returns the region of the image that updateImage() composites. */
+	private Rectangle getCompositeRegion() {
+		Rectangle r = new Rectangle(0, 0, width, height);
+		ImageCanvas ic = getCanvas();
+		if (ic==null || (long)width*height<MIN_REGION_PIXELS)
+			return r;
+		Rectangle r2 = ic.getSrcRect().intersection(r);
+		return r2.isEmpty() ? r : r2;
+	}
 	
 	@Override
 	public void updateChannelAndDraw() {
-		if (!customLuts) singleChannel = true;
+		singleChannel = true;
 		updateAndDraw();
 	}
 	
@@ -193,6 +229,7 @@ public class CompositeImage extends ImagePlus {
 	public void updateAndDraw() {
 		if (win==null) {
 			img = null;
+			singleChannel = false;
 			return;
 		}
 		updateImage();
@@ -240,6 +277,8 @@ public class CompositeImage extends ImagePlus {
 			}
 			if (ip!=null)
 				img = ip.createImage();
+			compositedRect = null;
+			singleChannel = false;
 			return;
 		}
 
@@ -247,6 +286,8 @@ public class CompositeImage extends ImagePlus {
 			cip = null;
 			rgbPixels = null;
 			awtImage = null;
+			compositedRect = null;
+			singleChannel = false;
 			if (ip!=null)
 				img = ip.createImage();
 			return;
@@ -287,7 +328,7 @@ public class CompositeImage extends ImagePlus {
 			rgbImage = null;
 		}
 		cip[currentChannel].setMinAndMax(ip.getMin(),ip.getMax());
-		int projectionMode = ImageProcessor.SUM_PROJECTION;
+		projectionMode = ImageProcessor.SUM_PROJECTION;
 		String prop = getProp("CompositeProjection");
 		if (prop!=null) {
 			if (prop.contains("Max")||prop.contains("max"))
@@ -298,13 +339,13 @@ public class CompositeImage extends ImagePlus {
 				projectionMode = ImageProcessor.INVERT_PROJECTION;
 		}
 		long t0 = IJ.debugMode?System.nanoTime():0L;
-		if (singleChannel && nChannels<=3) {
-			switch (currentChannel) {
-				case 0: cip[0].updateComposite(rgbPixels, ImageProcessor.UPDATE_RED); break;
-				case 1: cip[1].updateComposite(rgbPixels, ImageProcessor.UPDATE_GREEN); break;
-				case 2: cip[2].updateComposite(rgbPixels, ImageProcessor.UPDATE_BLUE); break;
-			}
-		} else if (projectionMode==ImageProcessor.INVERT_PROJECTION){
+		// the 8-bit versions of the channels are cached; after updateChannelAndDraw(),
+		// e.g., by the "B&C" dialog, the pixels of the other channels have not changed
+		if (compositor==null)
+			compositor = new ChannelCompositor();
+		compositor.invalidate(singleChannel?currentChannel:-1);
+		compositedRect = null;
+		if (projectionMode==ImageProcessor.INVERT_PROJECTION){
 			makeInvertedComposite(active);
 		} else {
 			if (cip==null) return;
@@ -318,17 +359,11 @@ public class CompositeImage extends ImagePlus {
 				}
 				syncChannels = false;
 			}
-			if (active[0])
-				cip[0].updateComposite(rgbPixels, ImageProcessor.SET_FIRST_CHANNEL);
-			else {
-				int fill = projectionMode==ImageProcessor.MIN_PROJECTION?0xffffff:0;
-				for (int i=1; i<imageSize; i++)
-					rgbPixels[i] = fill;
-			}
-			if (cip==null || nChannels>cip.length)
+			if (cip==null || nChannels!=cip.length)
 				return;
-			for (int i=1; i<nChannels; i++)
-				if (active[i]) cip[i].updateComposite(rgbPixels, projectionMode);
+			Rectangle r = getCompositeRegion();
+			compositor.composite(cip, active, projectionMode, rgbPixels, r);
+			compositedRect = r;
 		}
 		if (IJ.debugMode) IJ.log(""+(System.nanoTime()-t0)/1000L);
 		createBufferedImage();
@@ -738,6 +773,8 @@ public class CompositeImage extends ImagePlus {
 		rgbSampleModel = null;
 		rgbImage = null;
 		rgbCM = null;
+		compositor = null;
+		compositedRect = null;
 		if (cip!=null) {
 			for (int i=0; i<cip.length; i++)
 				cip[i] = null;
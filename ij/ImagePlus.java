@@ -448,8 +448,13 @@ public class ImagePlus implements ImageObserver, Measurements, Cloneable {
 			img = null;
 			return;
 		}
-		if (ip!=null)
-			img = ip.createImage();
+		if (ip!=null) {
+			ImageCanvas ic = win.getCanvas();
+			if (ic!=null && ic.isTiled())
+				img = null;  // the canvas converts the visible tiles; getImage() converts the whole image
+			else
+				img = ip.createImage();
+		}
 	}
 
 	/** Closes the window, if any, that is displaying this image. */
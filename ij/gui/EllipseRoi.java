@@ -78,6 +78,7 @@ public class EllipseRoi extends PolygonRoi {
 		}
 		makePolygonRelative();
 		cachedMask = null;
+		cachedSpanMask = null;
 	}
 	
 	public void showStatus() {
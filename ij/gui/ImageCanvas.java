@@ -32,6 +32,9 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 
 	protected ImagePlus imp;
 	protected boolean imageUpdated;
+	private TileRenderer tileRenderer;
+	private ImagePyramid pyramid;
+	private TileRenderer[] levelRenderers;
 	protected Rectangle srcRect;
 	protected int imageWidth, imageHeight;
 	protected int xMouse; // current cursor offscreen x location 
@@ -225,15 +228,8 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 			}
 		}
 		try {
-			if (imageUpdated) {
-				imageUpdated = false;
-				imp.updateImage();
-			}
 			setInterpolation(g, Prefs.interpolateScaledImages);
-			Image img = imp.getImage();
-			if (img!=null)
- 				g.drawImage(img, 0, 0, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5),
-				srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+			drawImage(g, (int)(srcRect.width*magnification+0.5), (int)(srcRect.height*magnification+0.5));
 			if (overlay!=null)
 				drawOverlay(overlay, g);
 			if (showAllOverlay!=null)
@@ -246,6 +242,74 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		setPaintPending(false);
     }
     
+	// Draws the image inside srcRect; large 16 and 32-bit images are
+	// converted for display only where visible, in tiles, and large
+	// composite images are only composited where visible. Large images
+	// are drawn from a downsampled copy at low magnification.
+	private void drawImage(Graphics g, int dstWidth, int dstHeight) {
+		boolean updated = imageUpdated;
+		if (updated) {
+			imageUpdated = false;
+			imp.updateImage();
+		}
+		if (TileRenderer.isLarge(imp)) {
+			if (drawPyramidLevel(g, dstWidth, dstHeight, updated))
+				return;
+		} else
+			pyramid = null;
+		if (isTiled()) {
+			if (tileRenderer==null)
+				tileRenderer = new TileRenderer();
+			else if (updated)
+				tileRenderer.invalidate();
+			tileRenderer.draw(g, imp.getProcessor(), srcRect, dstWidth, dstHeight);
+			return;
+		}
+		tileRenderer = null;
+		Image img = imp.isComposite() ? ((CompositeImage)imp).getImage(srcRect) : imp.getImage();
+		if (img!=null)
+			g.drawImage(img, 0, 0, dstWidth, dstHeight,
+				srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+	}
+
+	// Draws the best level of the image pyramid available for the current
+	// magnification; returns false if the image itself should be drawn.
+	private boolean drawPyramidLevel(Graphics g, int dstWidth, int dstHeight, boolean updated) {
+		ImageProcessor ip = imp.getProcessor();
+		if (pyramid==null || !pyramid.isPyramidOf(ip)) {  // new image or other slice: drop the levels
+			pyramid = new ImagePyramid(ip);
+			levelRenderers = new TileRenderer[pyramid.getLevelCount()];
+		} else if (updated)
+			pyramid.invalidate();
+		int level = pyramid.getLevel(magnification);
+		if (level==0)
+			return false;
+		pyramid.build(level, new Runnable() {
+			public void run() {
+				repaint();
+			}
+		});
+		// until it is available, use a finer level, or else a coarser one
+		int n = pyramid.getLevelCount();
+		for (int i=0; i<n; i++) {
+			int level2 = i<level ? level-i : i;
+			ImageProcessor ip2 = level2>0 ? pyramid.getLevelProcessor(level2) : null;
+			if (ip2!=null) {
+				if (levelRenderers[level2]==null)
+					levelRenderers[level2] = new TileRenderer();
+				levelRenderers[level2].draw(g, ip2, level2, srcRect, dstWidth, dstHeight);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns 'true' if the image is a large 16 or 32-bit image that is
+		converted for display in tiles, only where it is visible. */
+	public boolean isTiled() {
+		return imp!=null && TileRenderer.isTiled(imp);
+	}
+
 	private void setInterpolation(Graphics g, boolean interpolate) {
 		if (magnification==1)
 			return;
@@ -279,6 +343,10 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
     }
            
 	public int getSliceNumber(String label) {
+		return sliceNumber(label);
+	}
+
+	static int sliceNumber(String label) {
 		if (label==null) return 0;
 		int slice = 0;
 		if (label.length()>=14 && label.charAt(4)=='-' && label.charAt(9)=='-')
@@ -327,10 +395,14 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		}
 		Roi activeRoi = imp.getRoi();
 		boolean roiManagerShowAllMode = overlay==showAllOverlay && !Prefs.showAllSliceOnly;
-		for (int i=0; i<n; i++) {
-			if (overlay==null) break;
+		int[] visible = overlay.getIndexes(getOverlayViewport(drawLabels), roiManagerShowAllMode?null:imp);
+		int count = visible!=null?visible.length:n;
+		for (int k=0; k<count; k++) {
+			int i = visible!=null?visible[k]:k;
 			Roi roi = overlay.get(i);
-			if (roi==null) break;
+			if (roi==null) {
+				if (visible!=null) continue; else break;
+			}
 			int c = roi.getCPosition();
 			int z = roi.getZPosition();
 			int t = roi.getTPosition();
@@ -376,6 +448,16 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		drawNames = false;
 		font = null;
 	}
+
+	/* Returns the image area in which overlay ROIs may be visible; point
+		markers and labels are drawn at screen sizes that can extend
+		beyond the bounds of their ROIs. */
+	private Rectangle getOverlayViewport(boolean labels) {
+		int margin = (int)Math.ceil((labels?250:50)/magnification);
+		Rectangle r = new Rectangle(srcRect);
+		r.grow(margin, margin);
+		return r;
+	}
     	
 	void drawOverlay(Graphics g) {
 		drawOverlay(imp.getOverlay(), g);
@@ -545,16 +627,9 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		}
 		Roi roi = imp.getRoi();
 		try {
-			if (imageUpdated) {
-				imageUpdated = false;
-				imp.updateImage();
-			}
 			Graphics offScreenGraphics = offScreenImage.getGraphics();
 			setInterpolation(offScreenGraphics, Prefs.interpolateScaledImages);
-			Image img = imp.getImage();
-			if (img!=null)
-				offScreenGraphics.drawImage(img, 0, 0, srcRectWidthMag, srcRectHeightMag,
-					srcRect.x, srcRect.y, srcRect.x+srcRect.width, srcRect.y+srcRect.height, null);
+			drawImage(offScreenGraphics, srcRectWidthMag, srcRectHeightMag);
 			Overlay overlay = imp.getOverlay();
 			if (overlay!=null)
 				drawOverlay(overlay, offScreenGraphics);
@@ -1656,13 +1731,27 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		boolean labels = o.getDrawLabels();
 		int sx = screenX(ox);
 		int sy = screenY(oy);
-		for (int i=o.size()-1; i>=0; i--) {
+		double grabLineWidth = 1.1 + 5./magnification;
+		int pad = (int)Math.ceil(grabLineWidth/2.0) + 1;
+		int[] candidates = o.getIndexes(new Rectangle(ox-pad, oy-pad, 2*pad+1, 2*pad+1));
+		if (candidates!=null && labels && labelRects!=null) {
+			int count = candidates.length;
+			for (int i=0; i<labelRects.length; i++) {
+				if (labelRects[i]!=null && labelRects[i].contains(sx,sy)) {
+					candidates = Arrays.copyOf(candidates, count+1);
+					candidates[count++] = i;
+				}
+			}
+			Arrays.sort(candidates);
+		}
+		int count = candidates!=null?candidates.length:o.size();
+		for (int k=count-1; k>=0; k--) {
+			int i = candidates!=null?candidates[k]:k;
 			Roi roi = o.get(i);
 			if (roi==null)
 				continue;
 			boolean containsMousePoint = false;
 			if (roi instanceof Line) {	//grab line roi near its center
-				double grabLineWidth = 1.1 + 5./magnification;
 				containsMousePoint = (((Line)roi).getFloatPolygon(grabLineWidth)).contains(ox, oy);
 			} else
 				containsMousePoint = roi.contains(ox, oy);
@@ -1683,6 +1772,8 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 					return false;
 				//if (Toolbar.getToolId()==Toolbar.OVAL && Toolbar.getBrushSize()>0)
 				//	Toolbar.getInstance().setTool(Toolbar.RECTANGLE);
+				if (o==showAllOverlay)
+					roi = getRoiManagerRoi(roi);
 				roi.setImage(null);
 				imp.setRoi(roi);
 				roi.handleMouseDown(sx, sy);
@@ -1694,6 +1785,14 @@ public class ImageCanvas extends Canvas implements MouseListener, MouseMotionLis
 		return false;
 	}
 		
+	/* Returns the ROI Manager ROI that 'roi' shows in the Show All overlay,
+		which differs for ROIs of indexed sets that were not decoded yet. */
+	private Roi getRoiManagerRoi(Roi roi) {
+		RoiManager rm = RoiManager.getInstance();
+		int index = rm!=null?rm.getRoiIndex(roi):-1;
+		return index>=0?rm.getRoi(index):roi;
+	}
+
     public boolean roiManagerSelect(Roi roi, boolean delete) {
 		RoiManager rm=RoiManager.getInstance();
 		if (rm==null)
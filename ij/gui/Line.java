@@ -663,6 +663,7 @@ public class Line extends Roi {
 	/** Sets the x coordinate of the leftmost and y coordinate of the topmost end point */
 	public void setLocation(double x, double y) {
 		updateCoordinates(x+x1R, y+y1R, x+x2R, y+y2R);
+		changed();
 	}
 
 	public FloatPolygon getRotationCenter() {
@@ -242,6 +242,7 @@ public class OvalRoi extends Roi {
 		oldX=x; oldY=y;
 		oldWidth=width; oldHeight=height;
 		cachedMask = null;
+		cachedSpanMask = null;
 		bounds = null;
 	}
 
@@ -424,6 +425,51 @@ public class OvalRoi extends Roi {
 		return mask;
 	}
 
+	/** Returns the mask as a run-length encoded SpanMask, with the
+		same pixels as getMask(). */
+	public SpanMask getSpanMask() {
+		SpanMask spanMask = cachedSpanMask;
+		if (spanMask!=null && spanMask.getWidth()==width && spanMask.getHeight()==height)
+			return spanMask;
+		double a=width/2.0, b=height/2.0;
+		double a2=a*a, b2=b*b;
+		a -= 0.5; b -= 0.5;
+		int[] rows = new int[height+1];
+		int[] spans = new int[2*height];
+		int n = 0;
+		int xc = (width-1)/2;  // the pixel closest to the center
+		for (int y=0; y<height; y++) {
+			rows[y] = n;
+			double yy = y - b;
+			double yterm = yy*yy/b2;
+			if (width==0 || !insideOval(xc, a, a2, yterm))
+				continue;
+			// the inside pixels of a row are contiguous; find the ends by bisection
+			int lo=0, hi=xc;
+			while (lo<hi) {
+				int mid = (lo+hi)>>>1;
+				if (insideOval(mid, a, a2, yterm)) hi=mid; else lo=mid+1;
+			}
+			spans[n++] = lo;
+			lo=xc; hi=width-1;
+			while (lo<hi) {
+				int mid = (lo+hi+1)>>>1;
+				if (insideOval(mid, a, a2, yterm)) lo=mid; else hi=mid-1;
+			}
+			spans[n++] = lo+1;
+		}
+		rows[height] = n;
+		spanMask = new SpanMask(width, height, rows, spans);
+		cachedSpanMask = spanMask;
+		return spanMask;
+	}
+
+	/* Same test as in getMask(). */
+	private static boolean insideOval(int x, double a, double a2, double yterm) {
+		double xx = x - a;
+		return (xx*xx/a2+yterm)<=1.0;
+	}
+
 	/** Returns the perimeter length using Ramanujan's approximation for the circumference of an ellipse */
 	public double getLength() {
 		double pw=1.0, ph=1.0;
@@ -21,6 +21,7 @@ public class Overlay implements Iterable<Roi> {
     private boolean isCalibrationBar;
     private boolean selectable = true;
     private boolean draggable = true;
+    private OverlayIndex index;
     
     /** Constructs an empty Overlay. */
     public Overlay() {
@@ -63,19 +64,24 @@ public class Overlay implements Iterable<Roi> {
     public void set(Roi roi, int index) {
     	if (index<0 || index>=list.size())
     		throw new IllegalArgumentException("set: index out of range");
-    	if (roi!=null)
+    	if (roi!=null) {
     		list.set(index, roi);
+    		this.index = null;
+    	}
     }
 
     /** Removes the ROI with the specified index from this Overlay. */
     public void remove(int index) {
-    	if (index>=0)
+    	if (index>=0) {
     		list.remove(index);
+    		this.index = null;
+    	}
     }
     
     /** Removes the specified ROI from this Overlay. */
     public void remove(Roi roi) {
-    	list.remove(roi);
+    	if (list.remove(roi))
+    		index = null;
     }
 
     /** Removes all ROIs that have the specified name. */
@@ -90,6 +96,7 @@ public class Overlay implements Iterable<Roi> {
    /** Removes all the ROIs in this Overlay. */
     public void clear() {
     	list.clear();
+    	index = null;
     }
 
     /** Returns the ROI with the specified index or null if the index is invalid. */
@@ -124,6 +131,14 @@ public class Overlay implements Iterable<Roi> {
     /** Returns the index of the last ROI that contains the point (x,y)
     	or null if no ROI contains the point. */
     public int indexAt(int x, int y) {
+    	int[] indexes = getIndexes(new Rectangle(x-5, y-5, 11, 11));
+    	if (indexes!=null) {
+			for (int i=indexes.length-1; i>=0; i--) {
+				if (contains(get(indexes[i]),x,y))
+					return indexes[i];
+			}
+			return -1;
+    	}
      	Roi[] rois = toArray();
 		for (int i=rois.length-1; i>=0; i--) {
 			if (contains(rois[i],x,y))
@@ -131,6 +146,50 @@ public class Overlay implements Iterable<Roi> {
 		}
 		return -1;
     }
+
+	/** Returns, in ascending order, the indexes of the ROIs with bounds
+		that intersect 'r', or null if this overlay is too small to be
+		worth indexing, in which case all ROIs should be tested.
+		The index is rebuilt when ROIs are removed, replaced, moved or
+		resized; ROIs added since it was built are tested one by one
+		until there are too many of them.
+	*/
+	int[] getIndexes(Rectangle r) {
+		return getIndexes(r, null);
+	}
+
+	/** Returns, in ascending order, the indexes of the ROIs with bounds
+		that intersect 'r' and that may be displayed at the current stack
+		position of 'imp', or null if this overlay is not indexed. If 'imp'
+		is null, ROIs at all stack positions are returned.
+	*/
+	int[] getIndexes(Rectangle r, ImagePlus imp) {
+		Vector<Roi> list = this.list;
+		int n = list.size();
+		if (n<OverlayIndex.MIN_SIZE) {
+			index = null;
+			return null;
+		}
+		OverlayIndex idx = index;
+		if (idx==null || n-idx.size()>idx.size()/8 || !idx.isValid(list)) {
+			Roi[] rois = list.toArray(new Roi[0]);
+			idx = new OverlayIndex(rois);
+			index = idx;
+			n = rois.length;
+		}
+		int[] indexes = imp!=null?idx.query(r,imp):idx.query(r);
+		int n0 = idx.size();
+		if (n>n0) {
+			int count = indexes.length;
+			indexes = Arrays.copyOf(indexes, count+n-n0);
+			for (int i=n0; i<n; i++) {
+				if (OverlayIndex.intersects(get(i), r))
+					indexes[count++] = i;
+			}
+			indexes = Arrays.copyOf(indexes, count);
+		}
+		return indexes;
+	}
     
 	private boolean contains(Roi roi, int x, int y) {
 		if (roi==null) return false;
@@ -458,7 +517,7 @@ public class Overlay implements Iterable<Roi> {
 		imp.updateAndDraw();
     }
 
-    void setVector(Vector<Roi> v) {list = v;}
+    void setVector(Vector<Roi> v) {list=v; index=null;}
         
     Vector<Roi> getVector() {return list;}
     
@@ -0,0 +1,383 @@
+package ij.gui;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Vector;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+
+/** A uniform grid of ROI bounds used by Overlay and ImageCanvas to find
+	the ROIs near a point or inside the visible area without testing every
+	ROI. For stacks, ROIs are also grouped by the stack position at which
+	ImageCanvas.drawOverlay shows them, so that changing the slice only
+	visits the ROIs of the new position. The index is a snapshot; isValid()
+	tells whether the overlay ROIs it was built from are still unchanged,
+	which is only checked after some indexed ROI has been moved or edited
+	(Roi.changes, which only counts the changes of ROIs that have been
+	added to an index).
+*/
+class OverlayIndex {
+	/** Overlays with fewer ROIs than this are not indexed. */
+	static final int MIN_SIZE = 1000;
+	private static final int MAX_CELLS_PER_ROI = 64;
+
+	private Roi[] rois;
+	private int[] rx, ry, rw, rh;	// Roi fields, for validation
+	private float[] stroke;
+	private int[] rpos, rc, rz, rt;
+	private String[] rname;
+	private int[] x1, y1, x2, y2;	// padded bounds, x2 and y2 exclusive
+	private int gx, gy, cellSize, nx, ny;
+	private int[] cellStart, cellItems;
+	private int[] large;
+	private int changes;
+	private Buckets buckets;
+
+	OverlayIndex(Roi[] rois) {
+		this.rois = rois;
+		changes = Roi.changes.get();
+		int n = rois.length;
+		rx = new int[n]; ry = new int[n]; rw = new int[n]; rh = new int[n];
+		stroke = new float[n];
+		rpos = new int[n]; rc = new int[n]; rz = new int[n]; rt = new int[n];
+		rname = new String[n];
+		x1 = new int[n]; y1 = new int[n]; x2 = new int[n]; y2 = new int[n];
+		int xmin=Integer.MAX_VALUE, ymin=Integer.MAX_VALUE;
+		int xmax=Integer.MIN_VALUE, ymax=Integer.MIN_VALUE;
+		double sumSize = 0.0;
+		int count = 0;
+		for (int i=0; i<n; i++) {
+			Roi roi = rois[i];
+			if (roi==null)
+				continue;
+			roi.indexed = true;  // before its fields are read
+			rx[i]=roi.x; ry[i]=roi.y; rw[i]=roi.width; rh[i]=roi.height;
+			stroke[i] = roi.getStrokeWidth();
+			if (!(roi instanceof PointRoi)) {
+				rpos[i] = roi.getPosition();
+				rc[i]=roi.getCPosition(); rz[i]=roi.getZPosition(); rt[i]=roi.getTPosition();
+			}
+			rname[i] = roi.getName();
+			Rectangle r = padded(roi);
+			x1[i]=r.x; y1[i]=r.y; x2[i]=r.x+r.width; y2[i]=r.y+r.height;
+			if (x1[i]<xmin) xmin=x1[i];
+			if (y1[i]<ymin) ymin=y1[i];
+			if (x2[i]>xmax) xmax=x2[i];
+			if (y2[i]>ymax) ymax=y2[i];
+			sumSize += r.width + r.height;
+			count++;
+		}
+		if (count==0) {
+			nx = ny = 0;
+			cellStart = new int[1];
+			cellItems = large = new int[0];
+			return;
+		}
+		gx = xmin; gy = ymin;
+		double width = (double)xmax-xmin, height = (double)ymax-ymin;
+		double size = Math.max(Math.sqrt(width*height/count), sumSize/(2*count));
+		cellSize = (int)Math.max(4, Math.ceil(size));
+		while (cells(width)*(double)cells(height)>4.0*count+16)
+			cellSize *= 2;
+		nx = cells(width);
+		ny = cells(height);
+		int[] counts = new int[nx*ny+1];
+		int nLarge = 0;
+		for (int i=0; i<n; i++) {
+			if (rois[i]==null)
+				continue;
+			int cx1=cellX(x1[i]), cx2=cellX(x2[i]-1), cy1=cellY(y1[i]), cy2=cellY(y2[i]-1);
+			if ((long)(cx2-cx1+1)*(cy2-cy1+1)>MAX_CELLS_PER_ROI) {
+				nLarge++;
+				continue;
+			}
+			for (int cy=cy1; cy<=cy2; cy++)
+				for (int cx=cx1; cx<=cx2; cx++)
+					counts[cy*nx+cx+1]++;
+		}
+		for (int c=1; c<counts.length; c++)
+			counts[c] += counts[c-1];
+		cellStart = counts.clone();
+		cellItems = new int[counts[counts.length-1]];
+		large = new int[nLarge];
+		nLarge = 0;
+		for (int i=0; i<n; i++) {
+			if (rois[i]==null)
+				continue;
+			int cx1=cellX(x1[i]), cx2=cellX(x2[i]-1), cy1=cellY(y1[i]), cy2=cellY(y2[i]-1);
+			if ((long)(cx2-cx1+1)*(cy2-cy1+1)>MAX_CELLS_PER_ROI) {
+				large[nLarge++] = i;
+				continue;
+			}
+			for (int cy=cy1; cy<=cy2; cy++)
+				for (int cx=cx1; cx<=cx2; cx++)
+					cellItems[counts[cy*nx+cx]++] = i;
+		}
+	}
+
+	/** Returns the number of ROIs in this index. */
+	int size() {
+		return rois.length;
+	}
+
+	/** Returns 'true' if the first size() ROIs of 'list' are the ones this
+		index was built from and none of them was moved or resized. */
+	boolean isValid(Vector<Roi> list) {
+		int n = rois.length;
+		if (list.size()<n)
+			return false;
+		int changes2 = Roi.changes.get();
+		if (changes2==changes)
+			return true;
+		for (int i=0; i<n; i++) {
+			Roi roi = list.elementAt(i);
+			if (roi!=rois[i])
+				return false;
+			if (roi==null)
+				continue;
+			if (roi.x!=rx[i] || roi.y!=ry[i] || roi.width!=rw[i]
+			|| roi.height!=rh[i] || roi.getStrokeWidth()!=stroke[i])
+				return false;
+			if (roi.getName()!=rname[i])
+				return false;
+			if (!(roi instanceof PointRoi) && (roi.getPosition()!=rpos[i] || roi.getCPosition()!=rc[i]
+			|| roi.getZPosition()!=rz[i] || roi.getTPosition()!=rt[i]))
+				return false;
+		}
+		changes = changes2;
+		return true;
+	}
+
+	/** Returns, in ascending order, the indexes of the ROIs with
+		bounds that intersect 'r'. */
+	int[] query(Rectangle r) {
+		int[] result = new int[64];
+		int count = 0;
+		if (nx>0 && r.width>0 && r.height>0) {
+			int qx1=r.x, qy1=r.y, qx2=r.x+r.width, qy2=r.y+r.height;
+			int cx1=cellX(qx1), cx2=cellX(qx2-1), cy1=cellY(qy1), cy2=cellY(qy2-1);
+			boolean inside = qx2>gx && qy2>gy && qx1<gx+nx*cellSize && qy1<gy+ny*cellSize;
+			for (int cy=cy1; inside&&cy<=cy2; cy++) {
+				for (int cx=cx1; cx<=cx2; cx++) {
+					int cell = cy*nx + cx;
+					for (int k=cellStart[cell]; k<cellStart[cell+1]; k++) {
+						int i = cellItems[k];
+						if (x1[i]>=qx2 || x2[i]<=qx1 || y1[i]>=qy2 || y2[i]<=qy1)
+							continue;
+						// report each ROI only in the first cell it shares with 'r'
+						if (cx!=Math.max(cellX(x1[i]),cx1) || cy!=Math.max(cellY(y1[i]),cy1))
+							continue;
+						if (count==result.length)
+							result = Arrays.copyOf(result, count*2);
+						result[count++] = i;
+					}
+				}
+			}
+			for (int i: large) {
+				if (x1[i]>=qx2 || x2[i]<=qx1 || y1[i]>=qy2 || y2[i]<=qy1)
+					continue;
+				if (count==result.length)
+					result = Arrays.copyOf(result, count*2);
+				result[count++] = i;
+			}
+		}
+		result = Arrays.copyOf(result, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/** Returns, in ascending order, the indexes of the ROIs with bounds
+		that intersect 'r' that ImageCanvas.drawOverlay may show at the
+		current stack position of 'imp'. */
+	int[] query(Rectangle r, ImagePlus imp) {
+		int stackSize = imp.getStackSize();
+		if (stackSize==1)
+			return query(r);
+		boolean hyperstack = imp.isHyperStack() || imp.getNChannels()>1;
+		int[] layout = {hyperstack?1:0, stackSize, imp.getNChannels(), imp.getNSlices(), imp.getNFrames(),
+			imp.getCompositeMode()==IJ.COMPOSITE?1:0, Prefs.showAllPoints?1:0};
+		Buckets b = buckets;
+		if (b==null || !Arrays.equals(b.layout,layout)) {
+			b = new Buckets(layout);
+			buckets = b;
+		}
+		long[] keys;
+		if (hyperstack) {
+			int c=imp.getChannel(), z=imp.getSlice(), t=imp.getFrame();
+			keys = new long[8];
+			for (int mask=0; mask<8; mask++)
+				keys[mask] = key((mask&1)!=0?c:0, (mask&2)!=0?z:0, (mask&4)!=0?t:0);
+		} else
+			keys = new long[] {0L, key(0,imp.getCurrentSlice(),0)};
+		int[][] members = new int[keys.length][];
+		int count = 0;
+		for (int k=0; k<keys.length; k++) {
+			members[k] = b.map.get(keys[k]);
+			if (members[k]!=null && (k==0||keys[k]!=0L))
+				count += members[k].length;
+			else
+				members[k] = null;
+		}
+		if (count>estimate(r)) {
+			int[] indexes = query(r);
+			int n2 = 0;
+			for (int i: indexes) {
+				for (long key: keys) {
+					if (b.keys[i]==key) {
+						indexes[n2++] = i;
+						break;
+					}
+				}
+			}
+			return Arrays.copyOf(indexes, n2);
+		}
+		int[] indexes = new int[count];
+		count = 0;
+		int qx1=r.x, qy1=r.y, qx2=r.x+r.width, qy2=r.y+r.height;
+		for (int[] m: members) {
+			if (m==null)
+				continue;
+			for (int i: m) {
+				if (x1[i]>=qx2 || x2[i]<=qx1 || y1[i]>=qy2 || y2[i]<=qy1)
+					continue;
+				indexes[count++] = i;
+			}
+		}
+		indexes = Arrays.copyOf(indexes, count);
+		Arrays.sort(indexes);
+		return indexes;
+	}
+
+	/* Estimates the number of ROIs query(r) would visit. */
+	private double estimate(Rectangle r) {
+		if (nx==0)
+			return 0;
+		double w = Math.min(r.x+r.width, gx+nx*cellSize) - Math.max(r.x, gx);
+		double h = Math.min(r.y+r.height, gy+ny*cellSize) - Math.max(r.y, gy);
+		if (w<=0 || h<=0)
+			return large.length;
+		return cellItems.length*(w*h)/((double)nx*cellSize*ny*cellSize) + large.length;
+	}
+
+	/* Packs a (c,z,t) position, zero meaning 'all', into a bucket key.
+		Positions that do not fit are stored with key 0, so they are
+		returned at every position and tested by the caller. */
+	private static long key(int c, int z, int t) {
+		if (c<0 || z<0 || t<0 || c>=1<<20 || z>=1<<20 || t>=1<<20)
+			return 0L;
+		return ((long)c<<40) | ((long)z<<20) | t;
+	}
+
+	/* Returns the bucket key of a ROI, following the rules used by
+		ImageCanvas.drawOverlay to decide at which position it is shown. */
+	private static long key(Roi roi, int[] layout) {
+		if (roi instanceof PointRoi)
+			return 0L;
+		int stackSize = layout[1];
+		int c = roi.getCPosition();
+		int z = roi.getZPosition();
+		int t = roi.getTPosition();
+		int position = roi.getPosition();
+		if (layout[0]==1) {
+			if (position>0) {
+				if (layout[2]==stackSize) {
+					c = position;
+					z = t = 0;
+				} else if (layout[3]==stackSize) {
+					z = position;
+					c = t = 0;
+				} else if (layout[4]==stackSize) {
+					t = position;
+					c = z = 0;
+				}
+			}
+			return position==PointRoi.POINTWISE_POSITION?0L:key(c, z, t);
+		}
+		if (position==0 && c==1) {
+			if (z==1)
+				position = t;
+			else if (t==1)
+				position = z;
+		}
+		if (position==0)
+			position = ImageCanvas.sliceNumber(roi.getName());
+		if (position>0 && layout[5]==1)
+			position = 0;
+		return position>0?key(0, position, 0):0L;
+	}
+
+	/* ROI indexes grouped by the stack position at which they are shown. */
+	private class Buckets {
+		int[] layout;
+		long[] keys;
+		HashMap<Long,int[]> map = new HashMap<Long,int[]>();
+
+		Buckets(int[] layout) {
+			this.layout = layout;
+			int n = rois.length;
+			keys = new long[n];
+			HashMap<Long,Integer> ids = new HashMap<Long,Integer>();
+			int[] bucket = new int[n];
+			int[] sizes = new int[16];
+			for (int i=0; i<n; i++) {
+				if (rois[i]==null) {
+					bucket[i] = -1;
+					continue;
+				}
+				keys[i] = key(rois[i], layout);
+				Integer id = ids.get(keys[i]);
+				if (id==null) {
+					id = ids.size();
+					ids.put(keys[i], id);
+					if (id==sizes.length)
+						sizes = Arrays.copyOf(sizes, id*2);
+				}
+				bucket[i] = id;
+				sizes[id]++;
+			}
+			int[][] members = new int[ids.size()][];
+			for (int id=0; id<members.length; id++)
+				members[id] = new int[sizes[id]];
+			Arrays.fill(sizes, 0);
+			for (int i=0; i<n; i++) {
+				int id = bucket[i];
+				if (id>=0)
+					members[id][sizes[id]++] = i;
+			}
+			for (Long key: ids.keySet())
+				map.put(key, members[ids.get(key)]);
+		}
+	}
+
+	/** Returns 'true' if the bounds of 'roi', widened by its
+		line width, intersect 'r'. */
+	static boolean intersects(Roi roi, Rectangle r) {
+		return roi!=null && padded(roi).intersects(r);
+	}
+
+	private static Rectangle padded(Roi roi) {
+		Rectangle r = roi.getBounds();
+		int pad = (int)Math.ceil(roi.getStrokeWidth()/2.0) + 1;
+		r.x -= pad;
+		r.y -= pad;
+		r.width += 2*pad + 1;
+		r.height += 2*pad + 1;
+		return r;
+	}
+
+	private int cells(double length) {
+		return Math.max(1, (int)Math.ceil(length/cellSize));
+	}
+
+	private int cellX(int x) {
+		int cx = (int)Math.floor((x-(double)gx)/cellSize);
+		return cx<0?0:(cx>=nx?nx-1:cx);
+	}
+
+	private int cellY(int y) {
+		int cy = (int)Math.floor((y-(double)gy)/cellSize);
+		return cy<0?0:(cy>=ny?ny-1:cy);
+	}
+
+}
@@ -0,0 +1,219 @@
+package ij.gui;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.*;
+import java.util.Arrays;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.plugin.filter.ThresholdToSelection;
+
+/** Boolean operations on ShapeRois with pixel-aligned outlines, i.e., outlines
+	made of horizontal and vertical segments with integer coordinates, as those of
+	rectangles, ovals, traced and thresholded selections. Such a region is exactly
+	the set of pixels it contains, so the ROIs are rasterized, combined pixel by
+	pixel and traced back to outlines with ThresholdToSelection. The result is the
+	same region java.awt.geom.Area would give, but the time grows with the number
+	of pixels and edges rather than with the complexity of the intermediate areas.
+*/
+class PixelRegion {
+	// Limits the raster size relative to the outline complexity; with fewer
+	// edges per pixel, java.awt.geom.Area is faster. Combining n regions
+	// with Area processes the growing result about n/2 times.
+	private static final int MAX_PIXELS_PER_EDGE = 64;
+	private static final int MIN_PIXELS = 1<<16;
+	private static final int MAX_PIXELS = 1<<28;
+
+	private int[] ex, ey1, ey2, edir;   // vertical edges at ex from ey1 to ey2 (exclusive); direction +1 or -1
+	private int nEdges;
+	private boolean evenOdd;
+	private int xMin=Integer.MAX_VALUE, yMin=Integer.MAX_VALUE, xMax=Integer.MIN_VALUE, yMax=Integer.MIN_VALUE;
+
+	private PixelRegion(boolean evenOdd) {
+		this.evenOdd = evenOdd;
+		ex = new int[16]; ey1 = new int[16]; ey2 = new int[16]; edir = new int[16];
+	}
+
+	/** Returns the vertical edges of the outline of 'roi' in image coordinates,
+		or null if the outline is not pixel-aligned. */
+	static PixelRegion create(ShapeRoi roi) {
+		Shape shape = roi.getShape();
+		if (shape==null)
+			return null;
+		PathIterator pit = shape.getPathIterator(null);
+		PixelRegion region = new PixelRegion(pit.getWindingRule()==PathIterator.WIND_EVEN_ODD);
+		double[] coords = new double[6];
+		int x0=0, y0=0, xs=0, ys=0;
+		boolean open = false;
+		while (!pit.isDone()) {
+			int segType = pit.currentSegment(coords);
+			if (segType==PathIterator.SEG_CLOSE) {
+				if (open && !region.addEdge(x0, y0, xs, ys))
+					return null;
+				x0 = xs; y0 = ys;
+				open = false;
+			} else if (segType==PathIterator.SEG_MOVETO || segType==PathIterator.SEG_LINETO) {
+				double x = coords[0]+roi.x, y = coords[1]+roi.y;
+				if (x!=(int)x || y!=(int)y)
+					return null;
+				if (segType==PathIterator.SEG_MOVETO) {
+					if (open && !region.addEdge(x0, y0, xs, ys))
+						return null;
+					xs = (int)x; ys = (int)y;
+				} else if (!region.addEdge(x0, y0, (int)x, (int)y))
+					return null;
+				x0 = (int)x; y0 = (int)y;
+				open = true;
+			} else
+				return null;   // curved segment
+			pit.next();
+		}
+		if (open && !region.addEdge(x0, y0, xs, ys))
+			return null;
+		return region;
+	}
+
+	private boolean addEdge(int x1, int y1, int x2, int y2) {
+		if (y1==y2)
+			return true;   // horizontal edges do not change the inside of a row
+		if (x1!=x2)
+			return false;
+		if (nEdges==ex.length) {
+			ex = Arrays.copyOf(ex, 2*nEdges);
+			ey1 = Arrays.copyOf(ey1, 2*nEdges);
+			ey2 = Arrays.copyOf(ey2, 2*nEdges);
+			edir = Arrays.copyOf(edir, 2*nEdges);
+		}
+		ex[nEdges] = x1;
+		ey1[nEdges] = Math.min(y1, y2);
+		ey2[nEdges] = Math.max(y1, y2);
+		edir[nEdges] = y2>y1 ? 1 : -1;
+		nEdges++;
+		if (x1<xMin) xMin = x1;
+		if (x1>xMax) xMax = x1;
+		if (y1<yMin) yMin = y1;
+		if (y2<yMin) yMin = y2;
+		if (y1>yMax) yMax = y1;
+		if (y2>yMax) yMax = y2;
+		return true;
+	}
+
+	private Rectangle getBounds() {
+		if (nEdges==0)
+			return new Rectangle();
+		return new Rectangle(xMin, yMin, xMax-xMin, yMax-yMin);
+	}
+
+	/** Applies this region to 'pixels', the raster of 'bounds' in image coordinates:
+		OR sets the pixels inside, AND clears those outside, XOR inverts those
+		inside and NOT clears those inside. */
+	private void paint(byte[] pixels, Rectangle bounds, int op) {
+		int width = bounds.width, height = bounds.height;
+		// bucket the edge crossings by row, as x*2 plus the direction bit
+		int[] rowStart = new int[height+1];
+		for (int i=0; i<nEdges; i++) {
+			int y1 = Math.max(ey1[i], bounds.y), y2 = Math.min(ey2[i], bounds.y+height);
+			for (int y=y1; y<y2; y++)
+				rowStart[y-bounds.y+1]++;
+		}
+		for (int y=0; y<height; y++)
+			rowStart[y+1] += rowStart[y];
+		long[] crossings = new long[rowStart[height]];
+		int[] next = Arrays.copyOf(rowStart, height);
+		for (int i=0; i<nEdges; i++) {
+			int y1 = Math.max(ey1[i], bounds.y), y2 = Math.min(ey2[i], bounds.y+height);
+			long value = 2L*ex[i] + (edir[i]>0?1:0);
+			for (int y=y1; y<y2; y++)
+				crossings[next[y-bounds.y]++] = value;
+		}
+		for (int y=0; y<height; y++) {
+			int start=rowStart[y], end=rowStart[y+1];
+			Arrays.sort(crossings, start, end);
+			int offset = y*width;
+			int winding = 0;
+			int x1 = 0;   // end of the previous inside span
+			for (int i=start; i<end; ) {
+				long x = crossings[i]>>1;
+				boolean inside = evenOdd ? (winding&1)!=0 : winding!=0;
+				for (; i<end && crossings[i]>>1==x; i++)
+					winding += (crossings[i]&1)!=0 ? 1 : -1;
+				boolean inside2 = evenOdd ? (winding&1)!=0 : winding!=0;
+				int xx = (int)Math.max(0, Math.min(width, x-bounds.x));
+				if (inside2 && !inside) {
+					if (op==ShapeRoi.AND)
+						Arrays.fill(pixels, offset+x1, offset+xx, (byte)0);
+					x1 = xx;
+				} else if (inside && !inside2) {
+					fill(pixels, offset+x1, offset+xx, op);
+					x1 = xx;
+				}
+			}
+			if (op==ShapeRoi.AND)
+				Arrays.fill(pixels, offset+x1, offset+width, (byte)0);
+		}
+	}
+
+	private static void fill(byte[] pixels, int from, int to, int op) {
+		switch (op) {
+			case ShapeRoi.OR:
+				Arrays.fill(pixels, from, to, (byte)255);
+				break;
+			case ShapeRoi.XOR:
+				for (int i=from; i<to; i++)
+					pixels[i] = (byte)~pixels[i];
+				break;
+			case ShapeRoi.NOT:
+				Arrays.fill(pixels, from, to, (byte)0);
+				break;
+		}
+	}
+
+	/** Returns the result of applying 'op' to the regions in the order given,
+		as a path in image coordinates, or null if a region is not pixel-aligned
+		or the raster would be too large for the number of edges. */
+	static GeneralPath combine(PixelRegion[] regions, int op) {
+		if (regions[0]==null)
+			return null;
+		Rectangle bounds = regions[0].getBounds();
+		long edges = regions[0].nEdges;
+		for (int i=1; i<regions.length; i++) {
+			if (regions[i]==null)
+				return null;
+			Rectangle r = regions[i].getBounds();
+			if (op==ShapeRoi.AND)
+				bounds = bounds.intersection(r);
+			else if (op!=ShapeRoi.NOT)
+				bounds = bounds.isEmpty() ? r : r.isEmpty() ? bounds : bounds.union(r);
+			edges += regions[i].nEdges;
+		}
+		if (bounds.isEmpty())
+			return new GeneralPath();
+		long pixels = (long)bounds.width*bounds.height;
+		long maxPixels = MAX_PIXELS_PER_EDGE*edges*Math.max(1, regions.length/2);
+		if (pixels>MAX_PIXELS || pixels>Math.max(MIN_PIXELS, maxPixels))
+			return null;
+		byte[] raster = new byte[(int)pixels];
+		regions[0].paint(raster, bounds, ShapeRoi.OR);
+		for (int i=1; i<regions.length; i++)
+			regions[i].paint(raster, bounds, op);
+		ByteProcessor bp = new ByteProcessor(bounds.width, bounds.height, raster);
+		bp.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		GeneralPath path = new ThresholdToSelection().getOutlines(bp);
+		if (path==null)
+			return new GeneralPath();
+		path.transform(AffineTransform.getTranslateInstance(bounds.x, bounds.y));
+		return path;
+	}
+
+	/** Converts 'rois' to PixelRegions, or returns an array with a null
+		element as soon as an outline is not pixel-aligned. */
+	static PixelRegion[] create(ShapeRoi[] rois) {
+		PixelRegion[] regions = new PixelRegion[rois.length];
+		for (int i=0; i<rois.length; i++) {
+			regions[i] = create(rois[i]);
+			if (regions[i]==null)
+				break;
+		}
+		return regions;
+	}
+
+}
@@ -517,6 +517,11 @@ public class PointRoi extends PolygonRoi {
 		return mask;
 	}
 
+	/** Returns null; point selections only have a byte mask. */
+	public SpanMask getSpanMask() {
+		return null;
+	}
+
 	/** Returns true if (x,y) is one of the points in this collection. */
 	public boolean contains(int x, int y) {
 		for (int i=0; i<nPoints; i++) {
@@ -931,6 +931,7 @@ public class PolygonRoi extends Roi {
 		this.ySpline = ySpline;
 		splinePoints = xSpline.length;
 		cachedMask = null;
+		cachedSpanMask = null;
 		// update protected xp and yp arrays for backward compatibility
 		xp = toInt(xpf, xp, nPoints);
 		yp = toInt(ypf, yp, nPoints);
@@ -1077,6 +1078,7 @@ public class PolygonRoi extends Roi {
 		}
 		if (state==MOVING_HANDLE) {
 			cachedMask = null; //mask is no longer valid
+			cachedSpanMask = null;
 			state = NORMAL;
 			updateClipRect();
 			oldX=x; oldY=y;
@@ -1231,6 +1233,15 @@ public class PolygonRoi extends Roi {
 		if (mask!=null && mask.getPixels()!=null
 		&& mask.getWidth()==width && mask.getHeight()==height)
 			return mask;
+		mask = getSpanMask().getMask();
+		cachedMask = mask;
+		return mask;
+	}
+
+	public SpanMask getSpanMask() {
+		SpanMask spanMask = cachedSpanMask;
+		if (spanMask!=null && spanMask.getWidth()==width && spanMask.getHeight()==height)
+			return spanMask;
 		PolygonFiller pf = new PolygonFiller();
 		if (xSpline!=null)
 			pf.setPolygon(xSpline, ySpline, splinePoints, getXBase()-x, getYBase()-y);
@@ -1238,9 +1249,9 @@ public class PolygonRoi extends Roi {
 			pf.setPolygon(xpf, ypf, nPoints, getXBase()-x, getYBase()-y);
 		else
 			pf.setPolygon(xp, yp, nPoints);
-		mask = pf.getMask(width, height);
-		cachedMask = mask;
-		return mask;
+		spanMask = pf.getSpanMask(width, height);
+		cachedSpanMask = spanMask;
+		return spanMask;
 	}
 
 	/** Returns the length of this line selection after
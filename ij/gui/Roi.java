@@ -11,6 +11,7 @@ import ij.macro.Interpreter;
 import ij.io.RoiDecoder;
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
 import java.awt.image.*;
 import java.awt.event.*;
@@ -85,6 +86,8 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 
 	/** Get using getPreviousRoi() and set using setPreviousRoi() */
 	public static Roi previousRoi;
+	static final AtomicInteger changes = new AtomicInteger(); // counts moves and edits of indexed ROIs, used by OverlayIndex
+	volatile boolean indexed; // set by OverlayIndex
 
 	protected int type;
 	protected int xMax, yMax;
@@ -101,6 +104,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 	protected double mag = 1.0;
 	protected double asp_bk;        //saves aspect ratio if resizing takes roi very small
 	protected ImageProcessor cachedMask;
+	protected SpanMask cachedSpanMask;
 	protected Color handleColor = Color.white;
 	protected Color strokeColor;
 	protected Color instanceColor;  //obsolete; replaced by strokeColor
@@ -251,15 +255,24 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 		setImage(imp);
 	}
 
+	/* Counts a move or edit, if this ROI is in an OverlayIndex; other ROIs
+		(new, decoded or not in an overlay) do not invalidate the indexes. */
+	void changed() {
+		if (indexed)
+			changes.incrementAndGet();
+	}
+
 	/** Set the location of the ROI in image coordinates. */
 	public void setLocation(int x, int y) {
 		this.x = x;
 		this.y = y;
+		changed();
 		startX = x; startY = y;
 		oldX = x; oldY = y; oldWidth=0; oldHeight=0;
 		if (bounds!=null) {
 			if (!isInteger(bounds.x) || !isInteger(bounds.y)) {
 				cachedMask = null;
+				cachedSpanMask = null;
 				width  = (int)Math.ceil(bounds.width);
 				height = (int)Math.ceil(bounds.height);
 			}
@@ -277,6 +290,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 		if (bounds!=null) {
 			if (!isInteger(x-bounds.x) || !isInteger(y-bounds.y)) {
 				cachedMask = null;
+				cachedSpanMask = null;
 				width  = (int)Math.ceil(bounds.x + bounds.width) - this.x;	//ensure that all pixels are inside
 				height = (int)Math.ceil(bounds.y + bounds.height) - this.y;
 			}
@@ -284,6 +298,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 			bounds.y = y;
 		} else {
 			cachedMask = null;
+			cachedSpanMask = null;
 			bounds = new Rectangle2D.Double(x, y, width, height);
 		}
 		if (this instanceof PolygonRoi) setIntBounds(bounds);
@@ -306,6 +321,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 	public void setImage(ImagePlus imp) {
 		this.imp = imp;
 		cachedMask = null;
+		cachedSpanMask = null;
 		if (imp==null) {
 			ic = null;
 			clipboard = null;
@@ -518,6 +534,8 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 		this.height = (int)Math.ceil(b.height);
 		bounds = new Rectangle2D.Double(b.x, b.y, b.width, b.height);
 		cachedMask = null;
+		cachedSpanMask = null;
+		changed();
 	}
 
 	/** Sets the integer boundaries x, y, width, height from given sub-pixel
@@ -840,6 +858,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 	public synchronized Object clone() {
 		try {
 			Roi r = (Roi)super.clone();
+			r.indexed = false;
 			r.setImage(null);
 			if (!usingDefaultStroke)
 				r.setStroke(getStroke());
@@ -1184,8 +1203,10 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 	public void nudge(int key) {
 		if (WindowManager.getActiveWindow() instanceof RoiManager)
 			return;
-		if (bounds != null && (!isInteger(bounds.x) || !isInteger(bounds.y)))
+		if (bounds != null && (!isInteger(bounds.x) || !isInteger(bounds.y))) {
 			cachedMask = null;
+			cachedSpanMask = null;
+		}
 		switch(key) {
 			case KeyEvent.VK_UP:
 				this.y--;
@@ -1251,6 +1272,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 		imp.draw(clipX, clipY, clipWidth, clipHeight);
 		oldX = x; oldY = y;
 		cachedMask = null;
+		cachedSpanMask = null;
 		showStatus();
 		notifyListeners(RoiListener.MOVED);
 	}
@@ -1738,6 +1760,19 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 			return null;
 	}
 
+	/** Returns the mask as a run-length encoded SpanMask, which for large
+		selections needs much less memory than the byte mask returned by
+		getMask(). Returns null for rectangular Roi's and for selection
+		types that only provide a byte mask.
+		@see ij.process.ImageProcessor#setSpanMask
+	*/
+	public SpanMask getSpanMask() {
+		if (cornerDiameter>0)
+			return (new ShapeRoi(new RoundRectangle2D.Float(x, y, width, height, cornerDiameter, cornerDiameter))).getSpanMask();
+		else
+			return null;
+	}
+
 	public void startPaste(ImagePlus clipboard) {
 		IJ.showStatus("Pasting...");
 		IJ.wait(10);
@@ -2083,6 +2118,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 			this.stroke = new BasicStroke(strokeWidth, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL);
 		else
 			this.stroke = new BasicStroke(strokeWidth);
+		changed();
 		if (notify)
 			notifyListeners(RoiListener.MODIFIED);
 	}
@@ -2115,6 +2151,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 	/** Sets the Stroke used to draw this ROI. */
 	public void setStroke(BasicStroke stroke) {
 		this.stroke = stroke;
+		changed();
 		if (stroke!=null)
 			usingDefaultStroke = false;
 	}
@@ -2153,6 +2190,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 	/** Sets the name of this ROI. */
 	public void setName(String name) {
 		this.name = name;
+		changed();
 	}
 
 	/** Sets the Paste transfer mode.
@@ -2200,6 +2238,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 		if (n<0) n=0;
 		position = n;
 		channel = slice = frame = 0;
+		changed();
 	}
 
 	/** Returns the stack position (image number) for displaying this ROI,
@@ -2235,6 +2274,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 		if (frame<0) frame=0;
 		this.frame = frame;
 		position = 0;
+		changed();
 	}
 
 	/** Returns 'true' if setPosition(C,Z,T) has been called. */
@@ -2891,6 +2931,7 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 	}
 
 	public void notifyListeners(int id) {
+		changed();
 		if (id==RoiListener.CREATED) {
 			if (listenersNotified)
 				return;
@@ -2905,26 +2946,14 @@ public class Roi extends Object implements Cloneable, java.io.Serializable, Iter
 	}
 
 	public static Roi xor(Roi[] rois) {
-		ShapeRoi s1=null, s2=null;
+		ArrayList<ShapeRoi> shapes = new ArrayList<ShapeRoi>();
 		for (int i=0; i<rois.length; i++) {
 			Roi roi = rois[i];
 			if (roi==null)
 				continue;
-			if (s1==null) {
-				if (roi instanceof ShapeRoi)
-					s1 = (ShapeRoi)roi.clone();
-				else
-					s1 = new ShapeRoi(roi);
-				if (s1==null) return null;
-			} else {
-				if (roi instanceof ShapeRoi)
-					s2 = (ShapeRoi)roi.clone();
-				else
-					s2 = new ShapeRoi(roi);
-				if (s2==null) continue;
-				s1.xor(s2);
-			}
+			shapes.add(roi instanceof ShapeRoi ? (ShapeRoi)roi : new ShapeRoi(roi));
 		}
+		ShapeRoi s1 = ShapeRoi.combine(shapes.toArray(new ShapeRoi[shapes.size()]), ShapeRoi.XOR);
 		return s1!=null?s1.trySimplify():null;
 	}
 
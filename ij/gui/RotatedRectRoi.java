@@ -93,6 +93,7 @@ public class RotatedRectRoi extends PolygonRoi {
 		ypf[2] = (float)(y2-wca);
 		makePolygonRelative();
 		cachedMask = null;
+		cachedSpanMask = null;
 		DefaultRectWidth = rectWidth;
 		showStatus();
 	}
@@ -44,7 +44,7 @@ public class ShapeRoi extends Roi {
 	 */
 	private static final int MAXPOLY = 10; // I hate arbitrary values !!!!
 
-    private static final int OR=0, AND=1, XOR=2, NOT=3;
+	static final int OR=0, AND=1, XOR=2, NOT=3;
 
 	/**The <code>java.awt.Shape</code> encapsulated by this object.*/
 	private Shape shape;
@@ -213,13 +213,91 @@ public class ShapeRoi extends Roi {
 	 */
 	public ShapeRoi not(ShapeRoi sr) {return unaryOp(sr, NOT);}
 
+	/** Returns the union of 'rois', or null if the array is empty.
+	 * Faster than combining the ROIs one by one with or(ShapeRoi)
+	 * if they have pixel-aligned outlines (e.g. rectangles, ovals and
+	 * traced selections).
+	 */
+	public static ShapeRoi union(ShapeRoi[] rois) {return combine(rois, OR);}
+
+	/** Returns the intersection of 'rois', or null if the array is empty.
+	 * Faster than combining the ROIs one by one with and(ShapeRoi)
+	 * if they have pixel-aligned outlines.
+	 */
+	public static ShapeRoi intersection(ShapeRoi[] rois) {return combine(rois, AND);}
+
+	/** Combines 'rois' with the operation 'op' into a new ShapeRoi. If all
+	 * ROIs are pixel-aligned, this is done in one pass on a raster. Otherwise,
+	 * for the commutative operations (OR, AND, XOR), the pixel-aligned ROIs
+	 * are combined on a raster and the others are added to the result with
+	 * a single java.awt.geom.Area, which is converted to a shape at the end.
+	 */
+	static ShapeRoi combine(ShapeRoi[] rois, int op) {
+		if (rois.length==0)
+			return null;
+		ShapeRoi s1 = (ShapeRoi)rois[0].clone();
+		if (rois.length==1)
+			return s1;
+		PixelRegion[] regions = PixelRegion.create(rois);
+		GeneralPath path = PixelRegion.combine(regions, op);
+		if (path!=null) {
+			s1.setResult(path);
+			return s1;
+		}
+		if (op==NOT) {
+			for (int i=1; i<rois.length; i++)
+				s1.unaryOp(rois[i], op);
+			return s1;
+		}
+		ArrayList<PixelRegion> aligned = new ArrayList<PixelRegion>();
+		ArrayList<ShapeRoi> others = new ArrayList<ShapeRoi>();
+		for (int i=0; i<rois.length; i++) {
+			PixelRegion region = regions[i]!=null ? regions[i] : PixelRegion.create(rois[i]);
+			if (region!=null)
+				aligned.add(region);
+			else
+				others.add(rois[i]);
+		}
+		Area area = null;
+		path = aligned.size()>1 ? PixelRegion.combine(aligned.toArray(new PixelRegion[aligned.size()]), op) : null;
+		if (path!=null)
+			area = new Area(path);
+		else {   // the raster would be too large: all ROIs are combined as Areas
+			others.clear();
+			others.addAll(Arrays.asList(rois));
+		}
+		for (ShapeRoi roi : others) {
+			Area a2 = roi.getArea();
+			if (area==null)
+				area = a2;
+			else
+				apply(area, a2, op);
+		}
+		s1.setResult(area);
+		return s1;
+	}
+
 	ShapeRoi unaryOp(ShapeRoi sr, int op) {
+		GeneralPath path = PixelRegion.combine(new PixelRegion[] {PixelRegion.create(this), PixelRegion.create(sr)}, op);
+		if (path!=null) {
+			setResult(path);
+			return this;
+		}
+		Area a1 = getArea();
+		apply(a1, sr.getArea(), op);
+		setResult(a1);
+		return this;
+	}
+
+	/** Returns the area of this ROI in image coordinates. */
+	private Area getArea() {
 		AffineTransform at = new AffineTransform();
 		at.translate(x, y);
-		Area a1 = new Area(at.createTransformedShape(getShape()));
-		at = new AffineTransform();
-		at.translate(sr.x, sr.y);
-		Area a2 = new Area(at.createTransformedShape(sr.getShape()));
+		return new Area(at.createTransformedShape(getShape()));
+	}
+
+	/** Sets 'a1' to the result of 'a1' op 'a2'. */
+	private static void apply(Area a1, Area a2, int op) {
 		try {
 			switch (op) {
 				case OR: a1.add(a2); break;
@@ -228,14 +306,18 @@ public class ShapeRoi extends Roi {
 				case NOT: a1.subtract(a2); break;
 			}
 		} catch(Exception e) {}
-		Rectangle r = a1.getBounds();
-		at = new AffineTransform();
+	}
+
+	/** Sets the shape to the result of an operation, given in image coordinates. */
+	private void setResult(Shape s) {
+		Rectangle r = s.getBounds();
+		AffineTransform at = new AffineTransform();
 		at.translate(-r.x, -r.y);
-		setShape(new GeneralPath(at.createTransformedShape(a1)));
+		setShape(new GeneralPath(at.createTransformedShape(s)));
 		x = r.x;
 		y = r.y;
 		cachedMask = null;
-		return this;
+		cachedSpanMask = null;
 	}
 
 	/**********************************************************************************/
@@ -1052,11 +1134,24 @@ public class ShapeRoi extends Roi {
 		byte[] mask = buffer.getData();
 		cachedMask = new ByteProcessor(width, height, mask, null);
 		cachedMask.setThreshold(255,255,ImageProcessor.NO_LUT_UPDATE);*/
+		mask = getSpanMask().getMask();
+		cachedMask = mask;
+		return mask;
+	}
+
+	/** Returns the mask as a run-length encoded SpanMask, with the
+	 *  same pixels as getMask(). */
+	public SpanMask getSpanMask() {
+		if (shape==null)
+			return null;
+		SpanMask spanMask = cachedSpanMask;
+		if (spanMask!=null && spanMask.getWidth()==width && spanMask.getHeight()==height)
+			return spanMask;
 		FloatPolygon fpoly = getFloatPolygon(FILL_FLATNESS, true, false, false);
 		PolygonFiller pf = new PolygonFiller(fpoly.xpoints, fpoly.ypoints, fpoly.npoints, (float)(getXBase()-x), (float)(getYBase()-y));
-		mask = pf.getMask(width, height);
-		cachedMask = mask;
-        return mask;
+		spanMask = pf.getSpanMask(width, height);
+		cachedSpanMask = spanMask;
+		return spanMask;
 	}
 
 	/**Returns a reference to the Shape object encapsulated by this ShapeRoi. */
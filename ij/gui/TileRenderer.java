@@ -0,0 +1,179 @@
+package ij.gui;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.process.*;
+import ij.util.ThreadUtil;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/** Draws large 16 and 32-bit images, and the levels of an ImagePyramid,
+	in tiles. Only the tiles inside the source rectangle of the ImageCanvas
+	are converted to 8 bits (or RGB), using several threads. The converted
+	tiles are cached until the image is updated, so that scrolling, zooming
+	and drawing selections do not convert the image again.
+*/
+class TileRenderer {
+	static final int TILE_SIZE = 512;
+	static final long MIN_PIXELS = 4096L*4096L;  // smaller images are converted as a whole
+	private static final long MAX_CACHE_BYTES = 128L<<20;
+
+	private final LinkedHashMap<Long,BufferedImage> tiles;
+	private final int maxTiles;
+	private Object pixels;
+	private int width, height;
+	private double min, max, minThreshold, maxThreshold;
+	private ColorModel cm;
+
+	TileRenderer() {
+		maxTiles = (int)(MAX_CACHE_BYTES/(TILE_SIZE*TILE_SIZE));
+		tiles = new LinkedHashMap<Long,BufferedImage>(maxTiles, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Long,BufferedImage> eldest) {
+				return size()>maxTiles;
+			}
+		};
+	}
+
+	/** Returns 'true' if 'imp' is displayed in tiles. */
+	static boolean isTiled(ImagePlus imp) {
+		ImageProcessor ip = imp.getProcessor();
+		return (ip instanceof ShortProcessor || ip instanceof FloatProcessor) && isLarge(imp);
+	}
+
+	/** Returns 'true' if 'imp' is displayed using an ImagePyramid at low magnification. */
+	static boolean isLarge(ImagePlus imp) {
+		ImageProcessor ip = imp.getProcessor();
+		return ip!=null && !imp.isComposite() && (long)ip.getWidth()*ip.getHeight()>=MIN_PIXELS;
+	}
+
+	/** Discards the cached tiles. */
+	void invalidate() {
+		tiles.clear();
+	}
+
+	/** Draws the part of 'ip' inside 'srcRect', scaled to 'dstWidth' x 'dstHeight'. */
+	void draw(Graphics g, ImageProcessor ip, Rectangle srcRect, int dstWidth, int dstHeight) {
+		draw(g, ip, 0, srcRect, dstWidth, dstHeight);
+	}
+
+	/** Draws level 'level' of an ImagePyramid; 'srcRect' is in the coordinates of level 0. */
+	void draw(Graphics g, ImageProcessor ip, int level, Rectangle srcRect, int dstWidth, int dstHeight) {
+		validate(ip);
+		int f = 1<<level;
+		int x1 = srcRect.x/f, y1 = srcRect.y/f;
+		int x2 = (srcRect.x+srcRect.width+f-1)/f, y2 = (srcRect.y+srcRect.height+f-1)/f;
+		Rectangle r = new Rectangle(x1, y1, x2-x1, y2-y1).intersection(new Rectangle(0, 0, width, height));
+		if (r.isEmpty())
+			return;
+		int tx1 = r.x/TILE_SIZE, tx2 = (r.x+r.width-1)/TILE_SIZE;
+		int ty1 = r.y/TILE_SIZE, ty2 = (r.y+r.height-1)/TILE_SIZE;
+		ArrayList<Long> visible = new ArrayList<Long>();
+		for (int ty=ty1; ty<=ty2; ty++)
+			for (int tx=tx1; tx<=tx2; tx++)
+				visible.add(key(tx, ty));
+		// same scale as drawing the whole image, so that the pixels are sampled at the same positions
+		double xScale = (double)dstWidth/srcRect.width;
+		double yScale = (double)dstHeight/srcRect.height;
+		Graphics2D g2 = (Graphics2D)g.create();
+		g2.clipRect(0, 0, dstWidth, dstHeight);
+		// convert and draw in batches, so that the cache limits the memory
+		// needed when many tiles are visible at low magnification
+		int batchSize = Math.max(1, Math.min(maxTiles/2, 4*Prefs.getThreads()));
+		for (int i=0; i<visible.size(); i+=batchSize) {
+			java.util.List<Long> batch = visible.subList(i, Math.min(i+batchSize, visible.size()));
+			Map<Long,BufferedImage> images = getTiles(ip, batch);
+			for (Long key : batch) {
+				int tx = (int)(key>>32), ty = (int)(long)key;
+				AffineTransform at = new AffineTransform(xScale*f, 0.0, 0.0, yScale*f,
+					(tx*TILE_SIZE*f-srcRect.x)*xScale, (ty*TILE_SIZE*f-srcRect.y)*yScale);
+				g2.drawImage(images.get(key), at, null);
+			}
+		}
+		g2.dispose();
+	}
+
+	/** Returns the tiles in 'keys', converting the ones that are not cached in parallel. */
+	private Map<Long,BufferedImage> getTiles(final ImageProcessor ip, java.util.List<Long> keys) {
+		Map<Long,BufferedImage> images = new HashMap<Long,BufferedImage>();
+		final ArrayList<Long> missing = new ArrayList<Long>();
+		for (Long key : keys) {
+			BufferedImage image = tiles.get(key);
+			if (image!=null)
+				images.put(key, image);
+			else
+				missing.add(key);
+		}
+		if (missing.size()==0)
+			return images;
+		final BufferedImage[] converted = new BufferedImage[missing.size()];
+		if (missing.size()==1)
+			converted[0] = convert(ip, missing.get(0));
+		else {
+			Callable[] tasks = new Callable[missing.size()];
+			for (int i=0; i<tasks.length; i++) {
+				final int index = i;
+				tasks[i] = new Callable<BufferedImage>() {
+					public BufferedImage call() {
+						return converted[index] = convert(ip, missing.get(index));
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+		}
+		for (int i=0; i<converted.length; i++) {
+			images.put(missing.get(i), converted[i]);
+			tiles.put(missing.get(i), converted[i]);
+		}
+		return images;
+	}
+
+	private BufferedImage convert(ImageProcessor ip, long key) {
+		int tx = (int)(key>>32), ty = (int)key;
+		Rectangle tile = new Rectangle(tx*TILE_SIZE, ty*TILE_SIZE, TILE_SIZE, TILE_SIZE).intersection(new Rectangle(0, 0, width, height));
+		if (ip instanceof ColorProcessor) {
+			BufferedImage image = new BufferedImage(tile.width, tile.height, BufferedImage.TYPE_INT_RGB);
+			int[] rgb = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			copy(ip.getPixels(), tile, rgb);
+			return image;
+		}
+		byte[] bytes = ip.create8BitImage(tile);
+		if (bytes==null) {   // 8-bit
+			bytes = new byte[tile.width*tile.height];
+			copy(ip.getPixels(), tile, bytes);
+		}
+		DataBuffer db = new DataBufferByte(bytes, bytes.length);
+		WritableRaster raster = Raster.createInterleavedRaster(db, tile.width, tile.height, tile.width, 1, new int[] {0}, null);
+		return new BufferedImage(cm, raster, false, null);
+	}
+
+	private void copy(Object pixels, Rectangle tile, Object dest) {
+		for (int y=0; y<tile.height; y++)
+			System.arraycopy(pixels, (tile.y+y)*width+tile.x, dest, y*tile.width, tile.width);
+	}
+
+	/** Discards the cached tiles if the pixels, display range, threshold or LUT have changed. */
+	private void validate(ImageProcessor ip) {
+		ColorModel cm2 = ip.getCurrentColorModel();
+		double min2 = ip.getMin();  // also computes the display range, if not set yet
+		double max2 = ip.getMax();
+		if (ip.getPixels()!=pixels || ip.getWidth()!=width || ip.getHeight()!=height || min2!=min || max2!=max
+		|| cm2!=cm || ip.getMinThreshold()!=minThreshold || ip.getMaxThreshold()!=maxThreshold) {
+			tiles.clear();
+			pixels = ip.getPixels();
+			width = ip.getWidth();
+			height = ip.getHeight();
+			min = min2;
+			max = max2;
+			minThreshold = ip.getMinThreshold();
+			maxThreshold = ip.getMaxThreshold();
+			cm = cm2;
+		}
+	}
+
+	private static long key(int tx, int ty) {
+		return ((long)tx<<32) | (ty&0xffffffffL);
+	}
+
+}
@@ -120,7 +120,10 @@ public class Opener {
 						imp.show();
 					break;
 				case ROI:
-					IJ.runPlugIn("ij.plugin.RoiReader", path);
+					if (RoiSetDecoder.isRoiSet(path))
+						IJ.runMacro("roiManager(\"Open\", getArgument());", path);
+					else
+						IJ.runPlugIn("ij.plugin.RoiReader", path);
 					break;
 				case JAVA_OR_TEXT: case TEXT:
 					if (IJ.altKeyDown()) { // open in TextWindow if alt key down
@@ -1265,7 +1268,7 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 		}
 	}
 	
-	/** Opens a tab or comma delimited text file. */
+	/** Opens a tab or comma delimited text file or a binary (".ijt") table. */
 	public static void openTable(String path) {
 		String name = "";
 		if (path==null || path.equals("")) {
@@ -1391,13 +1394,17 @@ ImagePlus openJpegOrGifUsingURL(String title, URL url) {
 		// ImageJ, NIH Image, Scion Image for Windows ROI
 		if (b0==73 && b1==111) // "Iout"
 			return ROI;
+
+		// ROI set written by RoiSetEncoder ("Irst")
+		if (b0==73 && b1==114 && b2==115 && b3==116)
+			return ROI;
 			
 		// ObjectJ project
 		if ((b0=='o' && b1=='j' && b2=='j' && b3==0) || name.endsWith(".ojj") )
 			return OJJ;
 
-		// Results table (tab-delimited or comma-separated tabular text)
-		if (name.endsWith(".xls") || name.endsWith(".csv") || name.endsWith(".tsv")) 
+		// Results table (tab-delimited or comma-separated tabular text, or binary)
+		if (name.endsWith(".xls") || name.endsWith(".csv") || name.endsWith(".tsv") || name.endsWith(".ijt")) 
 			return TABLE;
 
 		// AVI
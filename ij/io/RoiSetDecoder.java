@@ -0,0 +1,166 @@
+package ij.io;
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** Reads a ".rois" file written by RoiSetEncoder. The index is read when the
+	file is opened; the ROIs are decoded when getRoi() is called. All offsets
+	are fixed, so the format is suitable for memory mapping, but the file is
+	read into memory so that it can be overwritten or deleted while some of
+	its ROIs have not been decoded yet.
+	@see ij.io.RoiSetEncoder
+*/
+public class RoiSetDecoder {
+	private static final int INDEX_ENTRY_SIZE = 1+4*4+4*4+8+4+4;  // without the name
+	private byte[] data;
+	private boolean compressed;
+	private String[] names;
+	private int[] entries;   // offset of the index entry of each ROI, after the name
+	private long blockOffset = -1;   // file offset of the decompressed block
+	private byte[] block;
+
+	/** Reads the index of the ROI set at 'path'. */
+	public RoiSetDecoder(String path) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(path, "r");
+		try {
+			long length = f.length();
+			if (length>Integer.MAX_VALUE)
+				throw new IOException("ROI set is larger than 2GB");
+			data = new byte[(int)length];
+			f.readFully(data);
+		} finally {
+			f.close();
+		}
+		if (data.length<RoiSetEncoder.HEADER_SIZE+RoiSetEncoder.TRAILER_SIZE
+		|| getInt(0)!=RoiSetEncoder.MAGIC || getInt(data.length-4)!=RoiSetEncoder.MAGIC)
+			throw new IOException("Not an ImageJ ROI set: "+path);
+		if (getShort(4)>RoiSetEncoder.VERSION)
+			throw new IOException("Unsupported ROI set version: "+getShort(4));
+		compressed = (getShort(6)&RoiSetEncoder.COMPRESSED)!=0;
+		int indexEnd = data.length-RoiSetEncoder.TRAILER_SIZE;
+		int count = getInt(indexEnd);
+		long indexOffset = getLong(indexEnd+4);
+		if (count<0 || indexOffset<RoiSetEncoder.HEADER_SIZE || indexOffset>indexEnd
+		|| count>(indexEnd-indexOffset)/(2+INDEX_ENTRY_SIZE))
+			throw new IOException("Corrupt ROI set index: "+path);
+		names = new String[count];
+		entries = new int[count];
+		// the stream ends at the trailer, so all index entries are inside the file
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, (int)indexOffset, indexEnd-(int)indexOffset));
+		int offset = (int)indexOffset;
+		for (int i=0; i<count; i++) {
+			names[i] = in.readUTF();
+			offset += 2 + (getShort(offset)&0xffff);
+			entries[i] = offset;
+			offset += INDEX_ENTRY_SIZE;
+			if (in.skipBytes(INDEX_ENTRY_SIZE)!=INDEX_ENTRY_SIZE)
+				throw new EOFException();
+		}
+	}
+
+	/** Returns 'true' if 'path' is the name of a ".rois" file. */
+	public static boolean isRoiSet(String path) {
+		return path!=null && path.toLowerCase().endsWith(".rois");
+	}
+
+	/** Returns the number of ROIs. */
+	public int size() {
+		return names.length;
+	}
+
+	/** Returns the name of the specified ROI. */
+	public String getName(int index) {
+		return names[index];
+	}
+
+	/** Returns the type of the specified ROI (Roi.RECTANGLE, Roi.POLYGON, etc.). */
+	public int getType(int index) {
+		return data[entries[index]]&0xff;
+	}
+
+	/** Returns the bounds of the specified ROI. */
+	public Rectangle getBounds(int index) {
+		int offset = entries[index] + 1;
+		return new Rectangle(getInt(offset), getInt(offset+4), getInt(offset+8), getInt(offset+12));
+	}
+
+	/** Returns the stack position of the specified ROI, as Roi.getPosition(). */
+	public int getPosition(int index) {
+		return getInt(entries[index]+17);
+	}
+
+	/** Returns the hyperstack position (channel, slice, frame) of the specified ROI. */
+	public int[] getHyperstackPosition(int index) {
+		int offset = entries[index] + 21;
+		return new int[] {getInt(offset), getInt(offset+4), getInt(offset+8)};
+	}
+
+	/** Decodes the specified ROI. Each call returns a new Roi. */
+	public synchronized Roi getRoi(int index) throws IOException {
+		int offset = entries[index] + 33;
+		long recordOffset = getLong(offset);
+		int blockPosition = getInt(offset+8);
+		int length = getInt(offset+12);
+		if (length<0 || recordOffset<RoiSetEncoder.HEADER_SIZE || recordOffset>data.length)
+			throw new IOException("Corrupt ROI set");
+		byte[] bytes;
+		if (compressed) {
+			readBlock(recordOffset);
+			if (blockPosition<0 || (long)blockPosition+length>block.length)
+				throw new IOException("Corrupt ROI set");
+			bytes = new byte[length];
+			System.arraycopy(block, blockPosition, bytes, 0, length);
+		} else {
+			if (recordOffset+length>data.length)
+				throw new IOException("Corrupt ROI set");
+			bytes = new byte[length];
+			System.arraycopy(data, (int)recordOffset, bytes, 0, length);
+		}
+		return new RoiDecoder(bytes, names[index]).getRoi();
+	}
+
+	private void readBlock(long offset) throws IOException {
+		if (offset==blockOffset)
+			return;
+		if (offset+8>data.length)
+			throw new IOException("Corrupt ROI set");
+		int compressedSize = getInt((int)offset);
+		int size = getInt((int)offset+4);
+		if (compressedSize<0 || size<0 || offset+8+compressedSize>data.length)
+			throw new IOException("Corrupt ROI set");
+		Inflater inflater = new Inflater();
+		inflater.setInput(data, (int)offset+8, compressedSize);
+		byte[] block2 = new byte[size];
+		try {
+			int n = 0;
+			while (n<size && !inflater.finished()) {
+				int count = inflater.inflate(block2, n, size-n);
+				if (count==0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Corrupt ROI set");
+				n += count;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt ROI set: "+e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		block = block2;
+		blockOffset = offset;
+	}
+
+	private int getShort(int offset) {
+		return ((data[offset]&0xff)<<8) | (data[offset+1]&0xff);
+	}
+
+	private int getInt(int offset) {
+		return ((data[offset]&0xff)<<24) | ((data[offset+1]&0xff)<<16)
+			| ((data[offset+2]&0xff)<<8) | (data[offset+3]&0xff);
+	}
+
+	private long getLong(int offset) {
+		return ((long)getInt(offset)<<32) | (getInt(offset+4)&0xffffffffL);
+	}
+
+}
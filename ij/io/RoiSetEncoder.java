@@ -0,0 +1,146 @@
+package ij.io;
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.zip.Deflater;
+
+/** Saves a set of ROIs as a single indexed ".rois" file, an alternative to
+	the ZIP archives of ".roi" files written by the ROI Manager. The file is
+	written in one sequential pass. The index at the end of the file has the
+	name, type, bounds and position of each ROI, so RoiSetDecoder can list the
+	ROIs without decoding them. Multi-byte numbers are big-endian.
+	<pre>
+	0-3		"Irst"
+	4-5		version
+	6-7		flags (1: records in deflate-compressed blocks)
+	8-		records: the ROIs in .roi format (see RoiDecoder). If compressed,
+			grouped in blocks: compressed size (int), uncompressed size (int), data
+	index	for each ROI: name (modified UTF-8, as DataOutput.writeUTF),
+			type (byte), x, y, width, height (int), position, c, z and t
+			position (int), file offset of the record or block (long), offset
+			within the uncompressed block (int), record size (int)
+	last 16	number of ROIs (int), index offset (long), "Irst"
+	</pre>
+	@see ij.io.RoiSetDecoder
+*/
+public class RoiSetEncoder {
+	static final int MAGIC = 0x49727374; // "Irst"
+	static final int VERSION = 1;
+	static final int COMPRESSED = 1;
+	static final int HEADER_SIZE = 8;
+	static final int TRAILER_SIZE = 16;
+	static final int BLOCK_SIZE = 1<<16;
+	private String path;
+	private boolean compress = true;
+
+	/** Creates an RoiSetEncoder using the specified path. */
+	public RoiSetEncoder(String path) {
+		this.path = path;
+	}
+
+	/** Specifies whether the ROIs are saved in compressed blocks (the default). */
+	public void setCompression(boolean compress) {
+		this.compress = compress;
+	}
+
+	/** Saves 'rois' as a ROI set, returning 'true' if successful. */
+	public static boolean save(Roi[] rois, String path) {
+		try {
+			new RoiSetEncoder(path).write(rois, null);
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/** Writes 'rois', with the names in 'names' or, if 'names' is null
+		or one of its elements is null, with the ROI names. Null ROIs are
+		skipped. */
+	public void write(Roi[] rois, String[] names) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), BLOCK_SIZE));
+		try {
+			write(rois, names, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void write(Roi[] rois, String[] names, DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(compress?COMPRESSED:0);
+		long position = HEADER_SIZE;
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		DataOutputStream index = new DataOutputStream(indexBytes);
+		ByteArrayOutputStream record = new ByteArrayOutputStream(4096);
+		ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE+4096);
+		Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+		byte[] buffer = compress ? new byte[BLOCK_SIZE] : null;
+		int count = 0;
+		for (int i=0; i<rois.length; i++) {
+			Roi roi = rois[i];
+			if (roi==null)
+				continue;
+			record.reset();
+			new RoiEncoder(record).write(roi);
+			String name = names!=null ? names[i] : null;
+			if (name==null)
+				name = roi.getName();
+			if (name==null)
+				name = "";
+			index.writeUTF(name);
+			index.writeByte(roi.getType());
+			Rectangle r = roi.getBounds();
+			index.writeInt(r.x);
+			index.writeInt(r.y);
+			index.writeInt(r.width);
+			index.writeInt(r.height);
+			index.writeInt(roi.getPosition());
+			index.writeInt(roi.getCPosition());
+			index.writeInt(roi.getZPosition());
+			index.writeInt(roi.getTPosition());
+			index.writeLong(position);
+			if (compress) {
+				index.writeInt(block.size());
+				record.writeTo(block);
+				if (block.size()>=BLOCK_SIZE)
+					position += writeBlock(block, deflater, buffer, out);
+			} else {
+				index.writeInt(0);
+				record.writeTo(out);
+				position += record.size();
+			}
+			index.writeInt(record.size());
+			count++;
+		}
+		if (compress) {
+			if (block.size()>0)
+				position += writeBlock(block, deflater, buffer, out);
+			deflater.end();
+		}
+		index.close();
+		indexBytes.writeTo(out);
+		out.writeInt(count);
+		out.writeLong(position);
+		out.writeInt(MAGIC);
+	}
+
+	/** Writes a compressed block and returns its size in the file. */
+	private long writeBlock(ByteArrayOutputStream block, Deflater deflater, byte[] buffer, DataOutputStream out) throws IOException {
+		byte[] data = block.toByteArray();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length/2);
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			compressed.write(buffer, 0, n);
+		}
+		out.writeInt(compressed.size());
+		out.writeInt(data.length);
+		compressed.writeTo(out);
+		block.reset();
+		return 8 + compressed.size();
+	}
+
+}
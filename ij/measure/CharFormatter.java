@@ -0,0 +1,184 @@
+package ij.measure;
+import java.io.*;
+import java.text.*;
+import java.util.Locale;
+import java.math.RoundingMode;
+
+/** A reusable, growable char buffer that formats numbers the same way as
+	ResultsTable.d2s(), but without creating intermediate String objects
+	for the common cases. Numbers that need scientific notation, have too
+	many digits, or are too close to a rounding tie to be rounded reliably
+	in double arithmetic are formatted with DecimalFormat instances owned
+	by this formatter, so each thread should use its own CharFormatter.
+*/
+final class CharFormatter {
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9};
+	private static final double MAX_FAST = 999999999999d; // beyond this, d2s() uses scientific notation
+
+	private char[] buf;
+	private int length;
+	private DecimalFormat[] df, sf;
+	private DecimalFormatSymbols dfs;
+
+	CharFormatter(int capacity) {
+		buf = new char[Math.max(capacity,16)];
+	}
+
+	int length() {
+		return length;
+	}
+
+	void reset() {
+		length = 0;
+	}
+
+	void writeTo(Writer writer) throws IOException {
+		writer.write(buf, 0, length);
+	}
+
+	void append(char c) {
+		if (length==buf.length)
+			grow(length+1);
+		buf[length++] = c;
+	}
+
+	void append(String s) {
+		int n = s.length();
+		if (length+n>buf.length)
+			grow(length+n);
+		s.getChars(0, n, buf, length);
+		length += n;
+	}
+
+	/** Appends 'n' formatted with 'decimalPlaces' digits to the right of the
+		decimal point, producing the same text as ResultsTable.d2s(n, decimalPlaces). */
+	void append(double n, int decimalPlaces) {
+		if (Double.isNaN(n)||Double.isInfinite(n)) {
+			append(""+n);
+			return;
+		}
+		if (n==Float.MAX_VALUE) { // divide by 0 in FloatProcessor
+			append("3.4e38");
+			return;
+		}
+		double np = n<0.0?-n:n;
+		if (decimalPlaces<0 || decimalPlaces>9 || np>MAX_FAST || (np!=0.0 && np<1.0/Math.pow(10,decimalPlaces))) {
+			appendSlow(n, decimalPlaces);
+			return;
+		}
+		if (np==0.0 && 1.0/n<0.0) { // negative zero
+			appendSlow(n, decimalPlaces);
+			return;
+		}
+		long intPart = (long)np;
+		double frac = np - intPart; // exact for np<2^52
+		long fracPart = 0;
+		long scale = (long)POW10[decimalPlaces];
+		if (decimalPlaces==0) {
+			if (frac>=0.5) // HALF_UP, as in d2s()
+				intPart++;
+		} else {
+			double scaled = frac*POW10[decimalPlaces];
+			fracPart = (long)scaled;
+			double remainder = scaled - fracPart;
+			// DecimalFormat rounds the shortest decimal representation of 'n', which
+			// may differ from the binary value by up to half an ulp
+			double tolerance = Math.max(1e-6, 4.0*Math.ulp(np)*POW10[decimalPlaces]);
+			if (tolerance>0.01 || Math.abs(remainder-0.5)<tolerance) {
+				appendSlow(n, decimalPlaces);
+				return;
+			}
+			if (remainder>0.5) {
+				fracPart++;
+				if (fracPart==scale) {
+					fracPart = 0;
+					intPart++;
+				}
+			}
+		}
+		if (n<0.0)
+			append('-');
+		appendLong(intPart);
+		if (decimalPlaces>0) {
+			append('.');
+			if (length+decimalPlaces>buf.length)
+				grow(length+decimalPlaces);
+			for (int i=length+decimalPlaces-1; i>=length; i--) {
+				buf[i] = (char)('0'+fracPart%10);
+				fracPart /= 10;
+			}
+			length += decimalPlaces;
+		}
+	}
+
+	void appendLong(long n) {
+		if (n<0) {
+			if (n==Long.MIN_VALUE) {
+				append(Long.toString(n));
+				return;
+			}
+			append('-');
+			n = -n;
+		}
+		int digits = 1;
+		for (long p=10; digits<19 && n>=p; p*=10)
+			digits++;
+		if (length+digits>buf.length)
+			grow(length+digits);
+		for (int i=length+digits-1; i>=length; i--) {
+			buf[i] = (char)('0'+n%10);
+			n /= 10;
+		}
+		length += digits;
+	}
+
+	/* Uses this formatter's own DecimalFormat instances, set up
+		exactly as in ResultsTable.d2s(), which are not thread safe. */
+	private void appendSlow(double n, int decimalPlaces) {
+		double np = n<0.0?-n:n;
+		if (dfs==null)
+			dfs = new DecimalFormatSymbols(Locale.US);
+		if ((np!=0.0 && np<1.0/Math.pow(10,decimalPlaces)) || np>MAX_FAST || decimalPlaces<0) {
+			if (decimalPlaces<0) {
+				decimalPlaces = -decimalPlaces;
+				if (decimalPlaces>9) decimalPlaces=9;
+			} else
+				decimalPlaces = 3;
+			if (sf==null)
+				sf = new DecimalFormat[10];
+			if (sf[decimalPlaces]==null)
+				sf[decimalPlaces] = new DecimalFormat(pattern(decimalPlaces)+"E0", dfs);
+			append(sf[decimalPlaces].format(n)); // use scientific notation
+			return;
+		}
+		if (decimalPlaces<0) decimalPlaces = 0;
+		if (decimalPlaces>9) decimalPlaces = 9;
+		if (df==null)
+			df = new DecimalFormat[10];
+		if (df[decimalPlaces]==null) {
+			df[decimalPlaces] = new DecimalFormat(pattern(decimalPlaces), dfs);
+			if (decimalPlaces==0)
+				df[0].setRoundingMode(RoundingMode.HALF_UP);
+		}
+		append(df[decimalPlaces].format(n));
+	}
+
+	private static String pattern(int decimalPlaces) {
+		StringBuilder sb = new StringBuilder(12);
+		sb.append('0');
+		if (decimalPlaces>0) {
+			sb.append('.');
+			for (int i=0; i<decimalPlaces; i++)
+				sb.append('0');
+		}
+		return sb.toString();
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(minCapacity, buf.length*2);
+		char[] buf2 = new char[capacity];
+		System.arraycopy(buf, 0, buf2, 0, length);
+		buf = buf2;
+	}
+
+}
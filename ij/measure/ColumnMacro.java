@@ -0,0 +1,525 @@
+package ij.measure;
+import ij.Prefs;
+import ij.macro.*;
+import ij.util.ThreadUtil;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/** A macro for ResultsTable.applyMacro() that has been compiled for
+	evaluation over whole columns instead of once per row. Only a sequence
+	of numeric assignments ("Ratio=Mean/Area;", "x*=2;") is supported, using
+	numbers, PI, NaN, true, false, column variables, 'row', previously
+	assigned variables, the arithmetic, bitwise, comparison and logical
+	operators and the functions abs, cos, exp, floor, log, round, sin, sqrt,
+	tan, atan, asin, acos, isNaN, minOf, maxOf, pow and atan2. The operators
+	have the same precedence and the functions the same semantics as in the
+	macro Interpreter, so the results are identical. For anything else,
+	compile() returns null and the macro is run by the Interpreter, which
+	also reports syntax errors; this includes statements that are not
+	separated by ';'.
+	<p>
+	Rows are processed in blocks of BLOCK_SIZE, with the blocks distributed
+	among Prefs.getThreads() threads. Nothing is written to the table until
+	all rows have been evaluated; if a row would produce a macro error
+	(e.g., a non-boolean operand of '&&'), evaluate() returns null and the
+	caller reruns the macro with the Interpreter, which reports the error.
+*/
+final class ColumnMacro implements MacroConstants {
+	private static final int BLOCK_SIZE = 4096;
+	private static final int MIN_ROWS_PER_THREAD = 65536;
+
+	private String[] names;          // variable names; columns, then "row", then assigned variables
+	private int nColumns;            // the first nColumns variables are columns
+	private int rowVariable;         // index of the 'row' variable
+	private ArrayList<Statement> statements = new ArrayList<Statement>();
+	private boolean[] read;          // column data needed
+	private boolean[] assigned;
+	private int[] code;
+	private Symbol[] table;
+	private int pc;
+
+	private ColumnMacro(String[] columnNames) {
+		nColumns = columnNames.length;
+		rowVariable = nColumns;
+		names = new String[nColumns+1];
+		System.arraycopy(columnNames, 0, names, 0, nColumns);
+		names[rowVariable] = "row";
+	}
+
+	/** Compiles a tokenized applyMacro() macro, where 'columnNames' are the
+		names of the column variables, as returned by getHeadingsAsVariableNames().
+		Returns null if the macro, or one of the column names, is not supported. */
+	static ColumnMacro compile(Program pgm, String[] columnNames) {
+		if (!isPlainVariables(columnNames))
+			return null;
+		ColumnMacro cm = new ColumnMacro(columnNames);
+		cm.code = pgm.getCode();
+		cm.table = pgm.getSymbolTable();
+		cm.read = new boolean[cm.names.length];
+		cm.assigned = new boolean[cm.names.length];
+		if (!cm.compileStatements())
+			return null;
+		return cm;
+	}
+
+	/* Returns 'true' if all names are tokenized as variables (not as
+		keywords or functions), and none of them is 'row'. */
+	private static boolean isPlainVariables(String[] names) {
+		StringBuilder sb = new StringBuilder(names.length*10);
+		for (int i=0; i<names.length; i++) {
+			if (names[i].equals("row"))
+				return false;
+			sb.append(names[i]);
+			sb.append(' ');
+		}
+		int[] code = new Tokenizer().tokenize(sb.toString()).getCode();
+		for (int i=0; i<names.length; i++) {
+			if ((code[i]&TOK_MASK)!=WORD)
+				return false;
+		}
+		return (code[names.length]&TOK_MASK)==EOF;
+	}
+
+	/** Returns the names of the variables that start with an uppercase letter
+		and are not columns, in the order of their first assignment. These are
+		the columns that applyMacro() adds to the table. */
+	String[] getNewColumns() {
+		ArrayList<String> list = new ArrayList<String>();
+		for (int v=rowVariable+1; v<names.length; v++) {
+			if (Character.isUpperCase(names[v].charAt(0)))
+				list.add(names[v]);
+		}
+		return list.toArray(new String[list.size()]);
+	}
+
+	/** Evaluates the macro for rows 0 to 'rows'-1, where 'columns' are the
+		data arrays of the column variables. Returns the new values of the
+		columns, followed by those of the new columns (as returned by
+		getNewColumns()), with null for columns that are not assigned. Returns
+		null if a row would cause a macro error. */
+	double[][] evaluate(final double[][] columns, final int rows) {
+		final double[][] results = new double[names.length][];
+		int nBlocks = (rows+BLOCK_SIZE-1)/BLOCK_SIZE;
+		for (int v=0; v<names.length; v++) {
+			if (assigned[v] && (v<nColumns || Character.isUpperCase(names[v].charAt(0))))
+				results[v] = new double[rows];
+		}
+		int nThreads = Math.min(Prefs.getThreads(), (rows+MIN_ROWS_PER_THREAD-1)/MIN_ROWS_PER_THREAD);
+		if (nThreads<=1)
+			return evaluate(new Block(), columns, rows, 0, nBlocks, 1, results)?compact(results):null;
+		final boolean[] ok = new boolean[nThreads];
+		Callable[] tasks = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int thread = t;
+			final int threads = nThreads;
+			final int blocks = nBlocks;
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					ok[thread] = evaluate(new Block(), columns, rows, thread, blocks, threads, results);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		for (int t=0; t<nThreads; t++) {
+			if (!ok[t])
+				return null;
+		}
+		return compact(results);
+	}
+
+	/* Removes the entries of 'row' and the lowercase temporary variables. */
+	private double[][] compact(double[][] results) {
+		ArrayList<double[]> list = new ArrayList<double[]>();
+		for (int v=0; v<names.length; v++) {
+			if (v<nColumns || (v>rowVariable && Character.isUpperCase(names[v].charAt(0))))
+				list.add(results[v]);
+		}
+		return list.toArray(new double[list.size()][]);
+	}
+
+	/** Evaluates the macro once, with the specified values of the column
+		variables and 'row'=0, the way ResultsTable.applyMacro() makes a test
+		run with the values of the first row. Returns false on a macro error. */
+	boolean test(double[] values) {
+		Block b = new Block();
+		b.n = 1;
+		for (int v=0; v<nColumns; v++)
+			b.vars[v][0] = values[v];
+		b.vars[rowVariable][0] = 0.0;
+		return b.run();
+	}
+
+	private boolean evaluate(Block b, double[][] columns, int rows, int firstBlock, int nBlocks, int step, double[][] results) {
+		for (int block=firstBlock; block<nBlocks; block+=step) {
+			int row0 = block*BLOCK_SIZE;
+			int n = Math.min(BLOCK_SIZE, rows-row0);
+			b.n = n;
+			for (int v=0; v<nColumns; v++) {
+				if (read[v])
+					System.arraycopy(columns[v], row0, b.vars[v], 0, n);
+			}
+			double[] row = b.vars[rowVariable];
+			for (int i=0; i<n; i++)
+				row[i] = row0+i;
+			if (!b.run())
+				return false;
+			for (int v=0; v<names.length; v++) {
+				if (results[v]!=null)
+					System.arraycopy(b.vars[v], 0, results[v], row0, n);
+			}
+		}
+		return true;
+	}
+
+	/* The rows of a block and the working arrays of one thread. */
+	private class Block {
+		int n;
+		double[][] vars = new double[names.length][BLOCK_SIZE];
+		ArrayList<double[]> temps = new ArrayList<double[]>();
+		int nTemps;
+		boolean error;
+
+		double[] getTemp() {
+			if (nTemps==temps.size())
+				temps.add(new double[BLOCK_SIZE]);
+			return temps.get(nTemps++);
+		}
+
+		void releaseTemp() {
+			nTemps--;
+		}
+
+		boolean run() {
+			error = false;
+			for (int i=0; i<statements.size(); i++) {
+				statements.get(i).exec(this);
+				if (error)
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private boolean compileStatements() {
+		pc = -1;
+		while (true) {
+			int tok = nextToken();
+			if (tok==EOF)
+				return true;
+			if (tok==';') {
+				getToken();
+				continue;
+			}
+			if (tok!=WORD)
+				return false;
+			getToken();
+			int variable = getVariable(tokenString(), true);
+			if (variable==rowVariable)
+				return false;
+			int op = getToken();
+			if (!(op=='='||op==PLUS_EQUAL||op==MINUS_EQUAL||op==MUL_EQUAL||op==DIV_EQUAL))
+				return false;
+			if (op!='=' && variable>=nColumns && !assigned[variable])
+				return false; // would start at 0 and might be undefined in the Interpreter's test run
+			int next = nextToken()==WORD?code[pc+2]&TOK_MASK:0; // a WORD is always followed by a token
+			if (next=='='||next==PLUS_EQUAL||next==MINUS_EQUAL||next==MUL_EQUAL||next==DIV_EQUAL)
+				return false; // chained assignment
+			Node expression = getLogicalExpression();
+			if (expression==null)
+				return false;
+			if (variable<nColumns)
+				read[variable] = true;
+			assigned[variable] = true;
+			statements.add(new Statement(variable, op, expression));
+			tok = nextToken();
+			if (tok==';')
+				getToken();
+			else if (tok!=EOF)
+				return false; // statements must be separated by ';'; anything else is left to the Interpreter
+		}
+	}
+
+	/* Returns the index of a variable, adding it if 'assign' is true and
+		it is a new one. Returns -1 for a variable that is read before
+		it has been assigned. */
+	private int getVariable(String name, boolean assign) {
+		for (int i=0; i<names.length; i++) {
+			if (names[i].equals(name))
+				return i<nColumns||i==rowVariable||assigned[i]||assign?i:-1;
+		}
+		if (!assign)
+			return -1;
+		String[] names2 = new String[names.length+1];
+		System.arraycopy(names, 0, names2, 0, names.length);
+		names2[names.length] = name;
+		names = names2;
+		boolean[] read2 = new boolean[names.length];
+		System.arraycopy(read, 0, read2, 0, read.length);
+		read = read2;
+		boolean[] assigned2 = new boolean[names.length];
+		System.arraycopy(assigned, 0, assigned2, 0, assigned.length);
+		assigned = assigned2;
+		return names.length-1;
+	}
+
+	private Node getLogicalExpression() {
+		Node v1 = getBooleanExpression();
+		int next = nextToken();
+		if (v1==null || !(next==LOGICAL_AND||next==LOGICAL_OR))
+			return v1;
+		getToken();
+		Node v2 = getLogicalExpression();
+		return v2!=null?new Binary(next, v1, v2):null;
+	}
+
+	private Node getBooleanExpression() {
+		Node v1 = getExpression();
+		int next = nextToken();
+		if (v1==null || !(next>=EQ && next<=LTE))
+			return v1;
+		getToken();
+		Node v2 = getExpression();
+		return v2!=null?new Binary(next, v1, v2):null;
+	}
+
+	private Node getExpression() {
+		Node value = getTerm();
+		while (value!=null) {
+			int next = nextToken();
+			if (!(next=='+'||next=='-'))
+				break;
+			getToken();
+			Node v2 = getTerm();
+			value = v2!=null?new Binary(next, value, v2):null;
+		}
+		return value;
+	}
+
+	private Node getTerm() {
+		Node value = getFactor();
+		while (value!=null) {
+			int next = nextToken();
+			if (!(next=='*'||next=='/'||next=='%'||next=='&'||next=='|'||next=='^'||next==SHIFT_RIGHT||next==SHIFT_LEFT))
+				break;
+			getToken();
+			Node v2 = getFactor();
+			value = v2!=null?new Binary(next, value, v2):null;
+		}
+		return value;
+	}
+
+	private Node getFactor() {
+		int tok = getToken();
+		switch (tok) {
+			case NUMBER: return new Constant(table[code[pc]>>TOK_SHIFT].value);
+			case TRUE: return new Constant(1.0);
+			case FALSE: return new Constant(0.0);
+			case PI: return new Constant(Math.PI);
+			case NaN: return new Constant(Double.NaN);
+			case WORD:
+				int next = nextToken();
+				if (next=='['||next=='.'||next==PLUS_PLUS||next==MINUS_MINUS)
+					return null;
+				int variable = getVariable(tokenString(), false);
+				if (variable<0)
+					return null;
+				if (variable<nColumns && !assigned[variable])
+					read[variable] = true;
+				return new VariableValue(variable);
+			case NUMERIC_FUNCTION:
+				return getFunction(table[code[pc]>>TOK_SHIFT].type);
+			case '(':
+				Node value = getLogicalExpression();
+				return getToken()==')'?value:null;
+			case '!': case '-': case '~':
+				Node arg = getFactor();
+				return arg!=null?new Unary(tok, arg):null;
+			default:
+				return null;
+		}
+	}
+
+	private Node getFunction(int type) {
+		switch (type) {
+			case ABS: case COS: case EXP: case FLOOR: case LOG: case ROUND: case SIN:
+			case SQRT: case TAN: case ATAN: case ASIN: case ACOS: case IS_NAN:
+				if (getToken()!='(')
+					return null;
+				Node arg = getExpression();
+				if (arg==null || getToken()!=')')
+					return null;
+				return new Unary(type, arg);
+			case MIN_OF: case MAX_OF: case POW: case ATAN2:
+				if (getToken()!='(')
+					return null;
+				Node arg1 = getExpression();
+				if (arg1==null || getToken()!=',')
+					return null;
+				Node arg2 = getExpression();
+				if (arg2==null || getToken()!=')')
+					return null;
+				return new Binary(type, arg1, arg2);
+			default:
+				return null;
+		}
+	}
+
+	private int getToken() {
+		return code[++pc]&TOK_MASK;
+	}
+
+	private int nextToken() {
+		return code[pc+1]&TOK_MASK;
+	}
+
+	private String tokenString() {
+		return table[code[pc]>>TOK_SHIFT].str;
+	}
+
+	private class Statement {
+		int variable, op;
+		Node expression;
+
+		Statement(int variable, int op, Node expression) {
+			this.variable = variable;
+			this.op = op;
+			this.expression = expression;
+		}
+
+		void exec(Block b) {
+			double[] value = b.getTemp();
+			expression.eval(b, value);
+			double[] v = b.vars[variable];
+			int n = b.n;
+			switch (op) {
+				case '=': System.arraycopy(value, 0, v, 0, n); break;
+				case PLUS_EQUAL: for (int i=0; i<n; i++) v[i] += value[i]; break;
+				case MINUS_EQUAL: for (int i=0; i<n; i++) v[i] -= value[i]; break;
+				case MUL_EQUAL: for (int i=0; i<n; i++) v[i] *= value[i]; break;
+				case DIV_EQUAL: for (int i=0; i<n; i++) v[i] /= value[i]; break;
+			}
+			b.releaseTemp();
+		}
+	}
+
+	private static abstract class Node {
+		/** Writes the values for the rows of block 'b' to 'out'. */
+		abstract void eval(Block b, double[] out);
+	}
+
+	private static class Constant extends Node {
+		double value;
+
+		Constant(double value) {
+			this.value = value;
+		}
+
+		void eval(Block b, double[] out) {
+			for (int i=0; i<b.n; i++)
+				out[i] = value;
+		}
+	}
+
+	private static class VariableValue extends Node {
+		int variable;
+
+		VariableValue(int variable) {
+			this.variable = variable;
+		}
+
+		void eval(Block b, double[] out) {
+			System.arraycopy(b.vars[variable], 0, out, 0, b.n);
+		}
+	}
+
+	/* Unary operators and functions with one argument */
+	private static class Unary extends Node {
+		int op;
+		Node arg;
+
+		Unary(int op, Node arg) {
+			this.op = op;
+			this.arg = arg;
+		}
+
+		void eval(Block b, double[] v) {
+			arg.eval(b, v);
+			int n = b.n;
+			switch (op) {
+				case '-': for (int i=0; i<n; i++) v[i] = -v[i]; break;
+				case '~': for (int i=0; i<n; i++) v[i] = ~(int)v[i]; break;
+				case '!':
+					for (int i=0; i<n; i++) {
+						if (!(v[i]==0.0 || v[i]==1.0))
+							b.error = true; // "Boolean expected"
+						v[i] = v[i]==0.0?1.0:0.0;
+					}
+					break;
+				case ABS: for (int i=0; i<n; i++) v[i] = Math.abs(v[i]); break;
+				case COS: for (int i=0; i<n; i++) v[i] = Math.cos(v[i]); break;
+				case EXP: for (int i=0; i<n; i++) v[i] = Math.exp(v[i]); break;
+				case FLOOR: for (int i=0; i<n; i++) v[i] = Math.floor(v[i]); break;
+				case LOG: for (int i=0; i<n; i++) v[i] = Math.log(v[i]); break;
+				case ROUND: for (int i=0; i<n; i++) v[i] = Math.floor(v[i]+0.5); break;
+				case SIN: for (int i=0; i<n; i++) v[i] = Math.sin(v[i]); break;
+				case SQRT: for (int i=0; i<n; i++) v[i] = Math.sqrt(v[i]); break;
+				case TAN: for (int i=0; i<n; i++) v[i] = Math.tan(v[i]); break;
+				case ATAN: for (int i=0; i<n; i++) v[i] = Math.atan(v[i]); break;
+				case ASIN: for (int i=0; i<n; i++) v[i] = Math.asin(v[i]); break;
+				case ACOS: for (int i=0; i<n; i++) v[i] = Math.acos(v[i]); break;
+				case IS_NAN: for (int i=0; i<n; i++) v[i] = Double.isNaN(v[i])?1:0; break;
+			}
+		}
+	}
+
+	/* Binary operators and functions with two arguments */
+	private static class Binary extends Node {
+		int op;
+		Node arg1, arg2;
+
+		Binary(int op, Node arg1, Node arg2) {
+			this.op = op;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+		}
+
+		void eval(Block b, double[] v) {
+			arg1.eval(b, v);
+			double[] v2 = b.getTemp();
+			arg2.eval(b, v2);
+			int n = b.n;
+			switch (op) {
+				case '+': for (int i=0; i<n; i++) v[i] += v2[i]; break;
+				case '-': for (int i=0; i<n; i++) v[i] -= v2[i]; break;
+				case '*': for (int i=0; i<n; i++) v[i] *= v2[i]; break;
+				case '/': for (int i=0; i<n; i++) v[i] /= v2[i]; break;
+				case '%': for (int i=0; i<n; i++) v[i] %= v2[i]; break;
+				case '&': for (int i=0; i<n; i++) v[i] = (int)v[i]&(int)v2[i]; break;
+				case '|': for (int i=0; i<n; i++) v[i] = (int)v[i]|(int)v2[i]; break;
+				case '^': for (int i=0; i<n; i++) v[i] = (int)v[i]^(int)v2[i]; break;
+				case SHIFT_RIGHT: for (int i=0; i<n; i++) v[i] = (int)v[i]>>(int)v2[i]; break;
+				case SHIFT_LEFT: for (int i=0; i<n; i++) v[i] = (int)v[i]<<(int)v2[i]; break;
+				case EQ: for (int i=0; i<n; i++) v[i] = v[i]==v2[i]?1.0:0.0; break;
+				case NEQ: for (int i=0; i<n; i++) v[i] = v[i]!=v2[i]?1.0:0.0; break;
+				case GT: for (int i=0; i<n; i++) v[i] = v[i]>v2[i]?1.0:0.0; break;
+				case GTE: for (int i=0; i<n; i++) v[i] = v[i]>=v2[i]?1.0:0.0; break;
+				case LT: for (int i=0; i<n; i++) v[i] = v[i]<v2[i]?1.0:0.0; break;
+				case LTE: for (int i=0; i<n; i++) v[i] = v[i]<=v2[i]?1.0:0.0; break;
+				case LOGICAL_AND: case LOGICAL_OR:
+					for (int i=0; i<n; i++) {
+						if (!(v[i]==0.0||v[i]==1.0) || !(v2[i]==0.0||v2[i]==1.0))
+							b.error = true; // "Boolean expression expected"
+						v[i] = op==LOGICAL_AND?(int)v[i]&(int)v2[i]:(int)v[i]|(int)v2[i];
+					}
+					break;
+				case MIN_OF: for (int i=0; i<n; i++) v[i] = Math.min(v[i], v2[i]); break;
+				case MAX_OF: for (int i=0; i<n; i++) v[i] = Math.max(v[i], v2[i]); break;
+				case POW: for (int i=0; i<n; i++) v[i] = Math.pow(v[i], v2[i]); break;
+				case ATAN2: for (int i=0; i<n; i++) v[i] = Math.atan2(v[i], v2[i]); break;
+			}
+			b.releaseTemp();
+		}
+	}
+
+}
@@ -6,6 +6,7 @@ import ij.text.*;
 import ij.process.*;
 import ij.gui.Roi;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import ij.io.*;
 import ij.macro.*;
 import java.awt.*;
@@ -13,6 +14,7 @@ import java.text.*;
 import java.util.*;
 import java.io.*;
 import java.math.RoundingMode;
+import java.util.concurrent.Callable;
 
 
 /** This is a table for storing measurement results and strings as columns of values. 
@@ -29,7 +31,6 @@ public class ResultsTable implements Cloneable {
 	public static final int COLUMN_IN_USE = -2;
 	public static final int TABLE_FULL = -3; // no longer used
 	public static final short AUTO_FORMAT = Short.MIN_VALUE;
-	private static final char commaSubstitute = 0x08B3;
 	
 	public static final int AREA=0, MEAN=1, STD_DEV=2, MODE=3, MIN=4, MAX=5,
 		X_CENTROID=6, Y_CENTROID=7, X_CENTER_OF_MASS=8, Y_CENTER_OF_MASS=9,
@@ -44,16 +45,19 @@ public class ResultsTable implements Cloneable {
 		"Circ.", "Feret", "IntDen", "Median","Skew","Kurt", "%Area", "RawIntDen", "Ch", "Slice", "Frame", 
 		 "FeretX", "FeretY", "FeretAngle", "MinFeret", "AR", "Round", "Solidity", "MinThr", "MaxThr"};
 
+	private static final int ROW_CHUNK = 1<<20; // growth increment for large tables
+	private static final int ROWS_PER_BLOCK = 8192; // rows formatted per task by saveAs()
+
 	private int maxRows = 100; // will be increased as needed
 	private int maxColumns = MAX_COLUMNS; // will be increased as needed
 	private String[] headings = new String[maxColumns];
+	private HashMap<String,Integer> columnIndexes; // heading -> index, rebuilt when null
 	private boolean[] keep = new boolean[maxColumns];
 	private short[] decimalPlaces = new short[maxColumns];
 	private int counter;
 	private double[][] columns = new double[maxColumns][];
 	private String[] rowLabels;
 	private int lastColumn = -1;
-	private	StringBuilder sb;
 	private short precision = 3;
 	private String rowLabelHeading = "";
 	private char delimiter = '\t';
@@ -137,22 +141,35 @@ public class ResultsTable implements Cloneable {
 	public synchronized void incrementCounter() {
 		counter++;
 		if (counter==maxRows) {
-			if (rowLabels!=null) {
-				String[] s = new String[maxRows*2];
-				System.arraycopy(rowLabels, 0, s, 0, maxRows);
-				rowLabels = s;
-			}
-			for (int i=0; i<=lastColumn; i++) {
-				if (columns[i]!=null) {
-					double[] tmp = new double[maxRows*2];
-					if (NaNEmptyCells)
-						Arrays.fill(tmp, maxRows, tmp.length, Double.NaN);
-					System.arraycopy(columns[i], 0, tmp, 0, maxRows);
-					columns[i] = tmp;
-				}
+			int newMaxRows = maxRows<ROW_CHUNK?maxRows*2:(maxRows+maxRows/2+ROW_CHUNK-1)/ROW_CHUNK*ROW_CHUNK;
+			setMaxRows(newMaxRows);
+		}
+	}
+
+	/** Preallocates storage for 'rows' rows, avoiding repeated
+		reallocation of the columns when the final size of a large
+		table is known in advance. Does not change size(). */
+	public synchronized void ensureCapacity(int rows) {
+		if (rows>=maxRows)
+			setMaxRows(rows+1);
+	}
+
+	private void setMaxRows(int newMaxRows) {
+		if (rowLabels!=null) {
+			String[] s = new String[newMaxRows];
+			System.arraycopy(rowLabels, 0, s, 0, maxRows);
+			rowLabels = s;
+		}
+		for (int i=0; i<=lastColumn; i++) {
+			if (columns[i]!=null) {
+				double[] tmp = new double[newMaxRows];
+				if (NaNEmptyCells)
+					Arrays.fill(tmp, maxRows, tmp.length, Double.NaN);
+				System.arraycopy(columns[i], 0, tmp, 0, maxRows);
+				columns[i] = tmp;
 			}
-			maxRows *= 2;
 		}
+		maxRows = newMaxRows;
 	}
 	
 	/** Obsolete; the addValue() method automatically adds columns as needed.
@@ -206,8 +223,10 @@ public class ResultsTable implements Cloneable {
 			columns[column] = new double[maxRows];
 			if (NaNEmptyCells)
 				Arrays.fill(columns[column], Double.NaN);
-			if (headings[column]==null)
+			if (headings[column]==null) {
 				headings[column] = "C"+(column+1);
+				columnIndexes = null;
+			}
 			if (column>lastColumn) lastColumn = column;
 		}
 		columns[column][counter-1] = value;
@@ -392,6 +411,7 @@ public class ResultsTable implements Cloneable {
 			return createTableFromImage(ip);
 		ResultsTable rt = new ResultsTable();
 		Rectangle r = ip.getRoi();
+		rt.ensureCapacity(r.height);
 		for (int y=r.y; y<r.y+r.height; y++) {
 			rt.incrementCounter();
 			rt.addLabel(" ", "Y"+y);
@@ -409,6 +429,7 @@ public class ResultsTable implements Cloneable {
 	public static ResultsTable createTableFromImage(ImageProcessor ip) {
 		ResultsTable rt = new ResultsTable();
 		Rectangle r = ip.getRoi();
+		rt.ensureCapacity(r.height);
 		for (int y=r.y; y<r.y+r.height; y++) {
 			rt.incrementCounter();
 			rt.addLabel(" ", "Y"+y);
@@ -429,13 +450,32 @@ public class ResultsTable implements Cloneable {
 	/** Returns the index of the first column with the given heading.
 		heading. If not found, returns COLUMN_NOT_FOUND. */
 	public int getColumnIndex(String heading) {
-		for (int i=0; i<headings.length; i++) {
-			if (headings[i]==null)
-				return COLUMN_NOT_FOUND;
-			else if (headings[i].equals(heading))
-				return i;
-		}
-		return COLUMN_NOT_FOUND;
+		HashMap<String,Integer> indexes = columnIndexes;
+		if (indexes==null)
+			indexes = updateColumnIndexes();
+		Integer index = indexes.get(heading);
+		return index!=null?index.intValue():COLUMN_NOT_FOUND;
+	}
+
+	/* Rebuilds the heading to column index map. Like the linear search it
+		replaces, only headings up to the first unused column are indexed
+		and the first of duplicate headings wins. */
+	private HashMap<String,Integer> updateColumnIndexes() {
+		String[] headings = this.headings;
+		HashMap<String,Integer> indexes = new HashMap<String,Integer>(headings.length*2);
+		for (int i=0; i<headings.length && headings[i]!=null; i++) {
+			if (!indexes.containsKey(headings[i]))
+				indexes.put(headings[i], Integer.valueOf(i));
+		}
+		columnIndexes = indexes;
+		return indexes;
+	}
+	
+	private void addColumnIndex(String heading, int index) {
+		if (heading!=null && columnIndexes!=null)
+			columnIndexes.put(heading, Integer.valueOf(index));
+		else
+			columnIndexes = null;
 	}
 	
 	/** Sets the heading of the the first available column and
@@ -448,6 +488,10 @@ public class ResultsTable implements Cloneable {
 				if (NaNEmptyCells)
 					Arrays.fill(columns[i], Double.NaN);
 				headings[i] = heading;
+				if (i+1<headings.length && headings[i+1]!=null)
+					columnIndexes = null;  // the headings after the filled slot become reachable
+				else
+					addColumnIndex(heading, i);
 				if (i>lastColumn) lastColumn = i;
 				return i;
 			}
@@ -460,6 +504,7 @@ public class ResultsTable implements Cloneable {
 		if (NaNEmptyCells)
 			Arrays.fill(columns[lastColumn], Double.NaN);
 		headings[lastColumn] = heading;
+		addColumnIndex(heading, lastColumn);
 		return lastColumn;
 	}
 	
@@ -582,8 +627,10 @@ public class ResultsTable implements Cloneable {
 			if (column>lastColumn) lastColumn = column;
 		}
 		columns[column][row] = value;
-		if (headings[column]==null)
+		if (headings[column]==null) {
 			headings[column] = "C"+(column+1);
+			columnIndexes = null;
+		}
 		if ((int)value!=value && !Double.isNaN(value))
 			decimalPlaces[column] = (short)precision;
 	}
@@ -647,6 +694,7 @@ public class ResultsTable implements Cloneable {
 				if (columns[i]!=null && rowLabelHeading.equals(headings[i]))
 					{headings[i]=null; columns[i]=null;}
 			}
+			columnIndexes = null;
 			headingSet = false;
 		}
 		StringBuilder sb = new StringBuilder(200);
@@ -700,10 +748,7 @@ public class ResultsTable implements Cloneable {
 	public String getRowAsString(int row) {
 		if ((row<0) || (row>=counter))
 			throw new IllegalArgumentException("Row out of range: "+row);
-		if (sb==null)
-			sb = new StringBuilder(200);
-		else
-			sb.setLength(0);
+		StringBuilder sb = new StringBuilder(200); // not shared; TextPanel formats rows on the event dispatch thread
 		if (showRowNumbers) {
 			sb.append(Integer.toString(row+baseRowNumber));
 			sb.append(delimiter);
@@ -829,6 +874,44 @@ public class ResultsTable implements Cloneable {
 		}
 	}
 	
+	/* Appends the given row to 'cf', producing the same text as getRowAsString(). */
+	private void appendRow(CharFormatter cf, int row) {
+		if (showRowNumbers) {
+			cf.appendLong(row+baseRowNumber);
+			cf.append(delimiter);
+		}
+		if (rowLabels!=null) {
+			if (rowLabels[row]!=null) {
+				String label = rowLabels[row];
+				if (delimiter==',')
+					label = label.replace(',', ';');
+				cf.append(label);
+			}
+			cf.append(delimiter);
+		}
+		for (int i=0; i<=lastColumn; i++) {
+			if (columns[i]!=null) {
+				double value = columns[i][row];
+				if (Double.isNaN(value) && stringColumns!=null) {
+					String str = getValueAsString(i, row);
+					if (quoteCommas && str!=null && (str.contains(",")||str.equals(""))) {
+						cf.append('"');
+						cf.append(str);
+						cf.append('"');
+					} else
+						cf.append(""+str);
+				} else {
+					int places = decimalPlaces[i];
+					if (places==AUTO_FORMAT)
+						places = (int)value==value && precision>=0?0:precision;
+					cf.append(value, places);
+				}
+				if (i!=lastColumn)
+					cf.append(delimiter);
+			}
+		}
+	}
+
 	private String n(double n) {
 		String s;
 		if ((int)n==n && precision>=0)
@@ -846,6 +929,7 @@ public class ResultsTable implements Cloneable {
 		if ((column<0) || (column>=headings.length))
 			throw new IllegalArgumentException("Column out of range: "+column);
 		headings[column] = heading;
+		columnIndexes = null;
 		if (columns[column]==null) {
 			columns[column] = new double[maxRows];
 			if (NaNEmptyCells)
@@ -859,6 +943,7 @@ public class ResultsTable implements Cloneable {
 	public void setDefaultHeadings() {
 		for(int i=0; i<defaultHeadings.length; i++)
 				headings[i] = defaultHeadings[i];
+		columnIndexes = null;
 		showRowNumbers(true);
 	}
 
@@ -1002,6 +1087,7 @@ public class ResultsTable implements Cloneable {
 			throw new IllegalArgumentException("\""+column+"\" column not found");
 		columns[col] = null;
 		headings[col] = "-";
+		columnIndexes = null;
 		columnDeleted = true;
 	}
 
@@ -1014,6 +1100,7 @@ public class ResultsTable implements Cloneable {
 		if (columnExists(newCol))
 			throw new IllegalArgumentException("\""+newName+"\" column exists");
 		headings[oldCol] = newName;
+		columnIndexes = null;
 	}
 
 	public synchronized void reset() {
@@ -1026,6 +1113,7 @@ public class ResultsTable implements Cloneable {
 			decimalPlaces[i] = AUTO_FORMAT;
 		}
 		lastColumn = -1;
+		columnIndexes = null;
 		rowLabels = null;
 		stringColumns = null;
 		columnDeleted = false;
@@ -1121,12 +1209,14 @@ public class ResultsTable implements Cloneable {
 			tp.setColumnHeadings(tableHeadings);
 			newWindow = tp.getLineCount()==0;
 		}
-		tp.setResultsTable(cloneNeeded?(ResultsTable)this.clone():this);
+		ResultsTable rt2 = cloneNeeded?(ResultsTable)this.clone():this;
+		tp.setResultsTable(rt2);
 		int n = size();
 		if (n>0) {
-			if (tp.getLineCount()>0) tp.clear();
-			for (int i=0; i<n; i++)
-				tp.appendWithoutUpdate(getRowAsString(i));
+			// rows are formatted when displayed, from a copy, so that later
+			// changes (e.g., by macros) do not reach the window until show()
+			// is called again; a cloned rt2 already is such a copy
+			tp.setTableRows(cloneNeeded?rt2:(ResultsTable)this.clone(), n);
 			tp.updateDisplay();
 		}
 		if (newWindow) tp.scrollToTop();
@@ -1158,6 +1248,7 @@ public class ResultsTable implements Cloneable {
 				if (NaNEmptyCells)
 					Arrays.fill(columns[i], Double.NaN);
 				headings[i] = rt2.getColumnHeading(i);
+				columnIndexes = null;
 				if (i>lastColumn) lastColumn = i;
 			} else if (rt2.getColumn(i)==null && columns[i]!=null && !keep[i])
 				columns[i] = null;
@@ -1179,6 +1270,74 @@ public class ResultsTable implements Cloneable {
 		return rowLabels;
 	}
 	
+	String getRowLabelHeading() {
+		return rowLabelHeading;
+	}
+	
+	int getBaseRowNumber() {
+		return baseRowNumber;
+	}
+	
+	int getPrecision() {
+		return precision;
+	}
+	
+	short getDecimalPlaces(int column) {
+		return decimalPlaces[column];
+	}
+	
+	/* Returns the storage array of the specified column, which may be longer than size(). */
+	double[] getColumnData(int column) {
+		return columns[column];
+	}
+	
+	ArrayList getStringColumn(int column) {
+		return stringColumns!=null?(ArrayList)stringColumns.get(Integer.valueOf(column)):null;
+	}
+	
+	/* Used by TableDecoder to size an empty table before adding columns. */
+	synchronized void setSize(int rows) {
+		counter = rows;
+		maxRows = rows + 1;
+	}
+
+	synchronized void setRowLabels(String heading, String[] labels) {
+		if (labels.length<maxRows) {
+			String[] labels2 = new String[maxRows];
+			System.arraycopy(labels, 0, labels2, 0, labels.length);
+			labels = labels2;
+		}
+		rowLabels = labels;
+		rowLabelHeading = heading!=null?heading:"";
+	}
+
+	/* Used by TableDecoder to install a column, using 'data' as its storage array. */
+	@SuppressWarnings("unchecked")  // stringColumns is a raw Hashtable
+	synchronized void setColumn(int column, String heading, double[] data, int digits, ArrayList strings) {
+		while (column>=maxColumns)
+			addColumns();
+		if (data.length<maxRows) {
+			double[] data2 = new double[maxRows];
+			System.arraycopy(data, 0, data2, 0, data.length);
+			data = data2;
+		}
+		columns[column] = data;
+		headings[column] = heading;
+		for (int i=0; i<column; i++) {
+			if (headings[i]==null)
+				headings[i] = "-"; // deleted column
+		}
+		columnIndexes = null;
+		decimalPlaces[column] = (short)digits;
+		keep[column] = true;
+		if (column>lastColumn) lastColumn = column;
+		if (strings!=null) {
+			if (stringColumns==null)
+				stringColumns = new Hashtable();
+			stringColumns.put(Integer.valueOf(column), strings);
+		}
+	}
+	
 	/** Opens a tab or comma delimited text file and returns it 
 	* as a ResultsTable, without requiring a try/catch statement.
 	* Displays a file open dialog if 'path' is empty or null.
@@ -1194,12 +1353,12 @@ public class ResultsTable implements Cloneable {
 		return rt;
 	}
 	
-	/** Opens a tab or comma delimited text file and returns it as a 
-	* ResultsTable. Displays a file open dialog if 'path' is empty or null.
+	/** Opens a tab or comma delimited text file, or a binary table saved
+	* with a ".ijt" extension, and returns it as a ResultsTable.
+	* Displays a file open dialog if 'path' is empty or null.
 	* @see #open2(String)
 	*/
 	public static ResultsTable open(String path) throws IOException {
-		final String lineSeparator =  "\n";
 		if (path==null || path.equals("")) {
 			OpenDialog od = new OpenDialog("Open Table", "");
 			String dir = od.getDirectory();
@@ -1208,133 +1367,14 @@ public class ResultsTable implements Cloneable {
 				return null;
 			path = dir+name;
 		}
-		String text = IJ.openAsString(path);
-		if (text==null)
-			return null;
-		if (text.length()==0)
-			return new ResultsTable();
-		if (text.startsWith("Error:"))
-			throw new IOException("Error opening "+path);
-		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
-		String cellSeparator =  csv?",":"\t";
-		boolean commasReplaced = false;
-		if (csv && text.contains("\"")) {
-			text = replaceQuotedCommas(text);
-			commasReplaced = true;
-		}
-		String commaSubstitute2 = ""+commaSubstitute;
-		String[] lines = text.split(lineSeparator);
-		if (lines.length==0 || (lines.length==1 && lines[0].length()==0))
-			throw new IOException("Table is empty or invalid");
-		String[] headings = lines[0].split(cellSeparator);
-		if (headings.length<1)
-			throw new IOException("This is not a tab or comma delimited text file.");
-		String zeroWidthSpace = "\uFEFF";
-		if (headings[0].startsWith(zeroWidthSpace))
-			headings[0] = headings[0].substring(1, headings[0].length());
-		int numbersInHeadings = 0;
-		for (int i=0; i<headings.length; i++) {
-			if (headings[i].equals("NaN") || !Double.isNaN(Tools.parseDouble(headings[i])))
-				numbersInHeadings++;
-		}
-		boolean allNumericHeadings = numbersInHeadings==headings.length;
-		if (allNumericHeadings) {
-			for (int i=0; i<headings.length; i++)
-				headings[i] = "C"+(i+1);
-		}
-		int firstColumn = headings.length>0&&headings[0].equals(" ")?1:0;
-		for (int i=0; i<headings.length; i++) {
-			headings[i] = headings[i].trim();
-			if (commasReplaced) {
-				if (headings[i].startsWith("\"") && headings[i].endsWith("\""))
-					headings[i] = headings[i].substring(1, headings[i].length()-1);
-			}
-		}
-		int firstRow = allNumericHeadings?0:1;
-		boolean labels = firstColumn==1 && headings[1].equals("Label");
-		int type=getTableType(path, lines, firstRow, cellSeparator);
-		//if (!labels && (type==1||type==2))
-		//	labels = true;
-		int labelsIndex = (type==2)?0:1;
-		if (lines[0].startsWith("\t")) {
-			String[] headings2 = new String[headings.length+1];
-			headings2[0] = " ";
-			for (int i=0; i<headings.length; i++)
-				headings2[i+1] = headings[i];
-			headings = headings2;
-			firstColumn = 1;
-		}
-		ResultsTable rt = new ResultsTable();
-		if (firstRow>=lines.length) { //empty table?
-			for (int i=0; i<headings.length; i++) {
-				if (headings[i]==null) continue;
-				int col = rt.getColumnIndex(headings[i]);
-				if (col==COLUMN_NOT_FOUND)
-					col = rt.getFreeColumn(headings[i]);
-			}
-			return rt;
-		}
-		rt.showRowNumbers(path.contains("Results"));
-		for (int i=firstRow; i<lines.length; i++) {
-			rt.incrementCounter();
-			String[] items = lines[i].split(cellSeparator);
-			for (int j=firstColumn; j<headings.length; j++) {
-				if (j==labelsIndex&&labels)
-					rt.addLabel(headings[labelsIndex], items[labelsIndex]);
-				else {
-					double defaultValue = -Double.MAX_VALUE;
-					double value = j<items.length?Tools.parseDouble(items[j], defaultValue):Double.NaN;
-					if (value==defaultValue) {
-						String item = j<items.length?items[j]:"";
-						if (commasReplaced) {
-							item = item.replaceAll(commaSubstitute2, ",");
-							if (item.startsWith("\"") && item.endsWith("\""))
-								item = item.substring(1, item.length()-1);
-						}
-						rt.addValue(headings[j], item);
-					} else
-						rt.addValue(headings[j], value);
-				}
-			}
-		}
-		return rt;
-	}
-	
-	private static int getTableType(String path, String[] lines, int firstRow, String cellSeparator) {
-		if (lines.length<2) return 0;
-		String[] items=lines[1].split(cellSeparator);
-		int nonNumericCount = 0;
-		int nonNumericIndex = 0;
-		for (int i=0; i<items.length; i++) {
-			if (!items[i].equals("NaN") && Double.isNaN(Tools.parseDouble(items[i]))) {
-				nonNumericCount++;
-				nonNumericIndex = i;
-			}
-		}
-		boolean csv = path.endsWith(".csv");
-		if (nonNumericCount==0)
-			return 0; // assume this is all-numeric table
-		if (nonNumericCount==1 && nonNumericIndex==1)
-			return 1; // assume this is an ImageJ Results table with row numbers and row labels
-		if (nonNumericCount==1 && nonNumericIndex==0)
-			return 2; // assume this is an ImageJ Results table without row numbers and with row labels
-		return 3;
-	}
-	
-	private static String replaceQuotedCommas(String text) {
-		char[] c = text.toCharArray();
-		boolean inQuotes = false;
-		for (int i=0; i<c.length; i++) {
-			if (c[i]=='"')
-				inQuotes = !inQuotes;
-			if (inQuotes && c[i]==',')
-				c[i] = commaSubstitute;
-		}
-		return new String(c);
+		if (path.endsWith(".ijt") || path.endsWith(".IJT"))
+			return TableDecoder.read(path);
+		return TableReader.read(path);
 	}
 	
 	/** Saves this ResultsTable as a tab or comma delimited text file. The table
-	     is saved as a CSV (comma-separated values) file if 'path' ends with ".csv".
+	     is saved as a CSV (comma-separated values) file if 'path' ends with ".csv",
+	     or in binary format if 'path' ends with ".ijt".
 	     Displays a file save dialog if 'path' is empty or null. Does nothing if the
 	     table is empty. Displays an error message and returns 'false' if there is
 	     an error. */
@@ -1366,32 +1406,99 @@ public class ResultsTable implements Cloneable {
 				return;
 			path = sd.getDirectory() + file;
 		}
+		if (path.endsWith(".ijt") || path.endsWith(".IJT")) {
+			saveAsBinary(path, false);
+			return;
+		}
 		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
 		delimiter = csv?',':'\t';
-		PrintWriter pw = null;
-		FileOutputStream fos = new FileOutputStream(path);
-		BufferedOutputStream bos = new BufferedOutputStream(fos);
-		pw = new PrintWriter(bos);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path)), 65536);
 		boolean saveShowRowNumbers = showRowNumbers;
 		if (Prefs.dontSaveRowNumbers)	
 			showRowNumbers = false;
-		if (saveColumnHeaders && !emptyTable) {
-			String headings = getColumnHeadings();
-			pw.println(headings);
+		try {
+			String lineSeparator = System.lineSeparator();
+			if (saveColumnHeaders && !emptyTable) {
+				writer.write(getColumnHeadings());
+				writer.write(lineSeparator);
+			}
+			quoteCommas = csv?true:false;
+			writeRows(writer, lineSeparator);
+		} finally {
+			quoteCommas = false;
+			showRowNumbers = saveShowRowNumbers;
+			delimiter = '\t';
+			writer.close();
 		}
-		quoteCommas = csv?true:false;
-		for (int i=0; i<size(); i++)
-			pw.println(getRowAsString(i));
-		quoteCommas = false;
-		showRowNumbers = saveShowRowNumbers;
-		pw.close();
-		delimiter = '\t';
 		if (renameWhenSaving) {
 			File f = new File(path);
 			title =  f.getName();
 		}
 	}
 	
+	/** Saves this ResultsTable in ImageJ's binary table format, which
+		preserves the full precision of the values and can be reopened
+		much faster than a text file. Columns whose values are all exactly
+		representable as floats are stored as floats. With 'compress' true,
+		columns are compressed if that makes them at least 10% smaller. 
+		The saveAs() method uses this format, uncompressed, if the file
+		name ends with ".ijt".
+	*/
+	public void saveAsBinary(String path, boolean compress) throws IOException {
+		TableEncoder.write(this, path, compress);
+		if (renameWhenSaving) {
+			File f = new File(path);
+			title =  f.getName();
+		}
+	}
+
+	/* Formats the rows into reusable char buffers and writes them to 'writer'.
+		Large tables are formatted in blocks of rows, in parallel, with the
+		blocks written in order as each batch of blocks is finished. */
+	private void writeRows(Writer writer, final String lineSeparator) throws IOException {
+		final int n = size();
+		int nBlocks = (n+ROWS_PER_BLOCK-1)/ROWS_PER_BLOCK;
+		int nThreads = Math.min(Prefs.getThreads(), nBlocks);
+		if (nThreads<=1) {
+			CharFormatter cf = new CharFormatter(65536);
+			for (int row=0; row<n; row++) {
+				appendRow(cf, row);
+				cf.append(lineSeparator);
+				if (cf.length()>=65536) {
+					cf.writeTo(writer);
+					cf.reset();
+				}
+			}
+			cf.writeTo(writer);
+			return;
+		}
+		final CharFormatter[] formatters = new CharFormatter[nThreads];
+		for (int t=0; t<nThreads; t++)
+			formatters[t] = new CharFormatter(ROWS_PER_BLOCK*64);
+		for (int block0=0; block0<nBlocks; block0+=nThreads) {
+			int nTasks = Math.min(nThreads, nBlocks-block0);
+			Callable[] tasks = new Callable[nTasks];
+			for (int t=0; t<nTasks; t++) {
+				final CharFormatter cf = formatters[t];
+				final int row1 = (block0+t)*ROWS_PER_BLOCK;
+				final int row2 = Math.min(row1+ROWS_PER_BLOCK, n);
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						cf.reset();
+						for (int row=row1; row<row2; row++) {
+							appendRow(cf, row);
+							cf.append(lineSeparator);
+						}
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+			for (int t=0; t<nTasks; t++)
+				formatters[t].writeTo(writer);
+		}
+	}
+
 	/** Returns the default headings ("Area","Mean","StdDev", etc.). */
 	public static String[] getDefaultHeadings() {
 		return defaultHeadings;
@@ -1412,6 +1519,7 @@ public class ResultsTable implements Cloneable {
 			rt2.headings = new String[headings.length];
 			for (int i=0; i<=lastColumn; i++)
 				rt2.headings[i] = headings[i];
+			rt2.columnIndexes = null;
 			rt2.columns = new double[columns.length][];
 			for (int i=0; i<=lastColumn; i++) {
 				if (columns[i]!=null) {
@@ -1449,6 +1557,8 @@ public class ResultsTable implements Cloneable {
 	 *  create a new column with this name.
 	 *  The variable 'row' (the row index) is pre-defined.
 	 *  Except for the row label (if existing), currently only supports numeric values, no Strings.
+	 *  Macros that only assign arithmetic expressions are evaluated column by column,
+	 *  using all threads; other macros are run row by row by the macro interpreter.
 	 *  @return false in case of a macro error */
 	public boolean applyMacro(String macro) {
 		String[] columnHeadings = getHeadings();
@@ -1458,6 +1568,8 @@ public class ResultsTable implements Cloneable {
 			columnIndices[i] = getColumnIndex(columnHeadings[i]);
 
 		Program pgm = (new Tokenizer()).tokenize(macro);
+		if (applyMacroToColumns(macro, pgm, columnNames, columnIndices))
+			return true;
 		StringBuilder sb = new StringBuilder(1000);
 		sb.append("var ");
 		for (int i=0; i<columnNames.length; i++) {  // create 'var' statement with 'real' data values, so errors are less likely
@@ -1535,6 +1647,54 @@ public class ResultsTable implements Cloneable {
 		return true;
 	}
 	
+	/* Evaluates simple macros (assignments with arithmetic expressions) column
+	 * by column, using all threads, with the same results as the Interpreter.
+	 * Returns false if the macro must be run by the Interpreter: if it uses the
+	 * row labels or other constructs not supported by ColumnMacro, or if it would
+	 * cause a macro error, which the Interpreter then reports. */
+	private boolean applyMacroToColumns(String macro, Program pgm, String[] columnNames, int[] columnIndices) {
+		if (counter==0)
+			return false;
+		double[][] data = new double[columnNames.length][];
+		double[] firstRow = new double[columnNames.length];
+		for (int i=0; i<columnNames.length; i++) {
+			if (columnIndices[i]<0) {
+				if (macro.indexOf(columnNames[i])>=0)
+					return false;
+				continue;
+			}
+			data[i] = columns[columnIndices[i]];
+			firstRow[i] = Math.abs(data[i][0]); // as in the 'var' statement of the test run
+			if (Double.isInfinite(firstRow[i]))
+				return false;
+		}
+		ColumnMacro cm = ColumnMacro.compile(pgm, columnNames);
+		if (cm==null || !cm.test(firstRow))
+			return false;
+		double[][] results = cm.evaluate(data, counter);
+		if (results==null)
+			return false;
+		String[] newColumns = cm.getNewColumns();
+		for (int i=0; i<newColumns.length; i++)
+			getFreeColumn(newColumns[i]);
+		for (int i=0; i<results.length; i++) {
+			int column = i<columnNames.length?columnIndices[i]:getColumnIndex(newColumns[i-columnNames.length]);
+			if (i<columnNames.length && (column<0 || macro.indexOf(columnNames[i])<0))
+				continue;
+			double[] values = results[i]!=null?results[i]:columns[column];
+			if (values!=columns[column])
+				System.arraycopy(values, 0, columns[column], 0, counter);
+			for (int row=0; row<counter; row++) {
+				double v = values[row];
+				if ((int)v!=v && !Double.isNaN(v)) { // as in setValue()
+					decimalPlaces[column] = precision;
+					break;
+				}
+			}
+		}
+		return true;
+	}
+
 	/** Returns the first index of a given non-null String in a String array, or -1 if not found */
 	private int indexOf(String[] sArray, String s) {
 		for (int i=0; i<sArray.length; i++)
@@ -0,0 +1,275 @@
+package ij.measure;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** Opens ResultsTables saved in the ImageJ binary table format (".ijt").
+	<p>
+	The file is little-endian. It starts with a 32 byte header:
+	<pre>
+	0-3     "IJTB"
+	4-5     version (1)
+	6-7     precision (decimal places)
+	8-11    number of rows
+	12-15   number of columns
+	16      flags: 1=show row numbers, 2=row labels, 4=row numbers start at 0
+	17-23   reserved
+	24-31   offset of the directory
+	</pre>
+	The header is followed by the column data blocks, each starting at a
+	multiple of 8 bytes, and the directory. The directory contains the row
+	label heading, the row label block (if there are row labels) and one
+	entry per column: column index (int), heading, type (byte), decimal
+	places (short), a block reference for the values and a byte that is 1
+	if a block reference for the column's strings follows. A block
+	reference is the offset (long), the stored length (long) and the
+	uncompressed length (long) of the block; stored and uncompressed lengths
+	differ for blocks compressed with java.util.zip.Deflater. Numeric blocks
+	hold 'rows' doubles (type 0) or floats (type 1, used when all values
+	are exactly representable as floats). String blocks hold a count
+	followed by UTF-8 strings, each preceded by its length in bytes, or -1 for
+	a missing string. Headings in the directory use the same string encoding.
+	<p>
+	Uncompressed blocks are read in large chunks and bulk copied into the
+	table columns, so reopening a large table costs little more than reading
+	it from disk. The file is not memory-mapped, since on Windows a mapped
+	file stays locked until the mapping is garbage collected, so a table
+	could not be saved again over the file it was opened from.
+	@see TableEncoder
+*/
+final class TableDecoder {
+	static final int MAGIC = 0x42544A49; // "IJTB", little-endian
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int DOUBLE=0, FLOAT=1;
+	static final int SHOW_ROW_NUMBERS=1, ROW_LABELS=2, ROW_INDEXES=4;
+	private static final int CHUNK_SIZE = 1<<20;  // bytes
+	private static final int MAX_DEFLATE_RATIO = 1032;  // the largest ratio the deflate format allows
+
+	private FileChannel channel;
+	private ByteBuffer directory;
+
+	private TableDecoder(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/** Opens a binary table file as a ResultsTable. */
+	static ResultsTable read(String path) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			return new TableDecoder(raf.getChannel()).read();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private ResultsTable read() throws IOException {
+		if (channel.size()<HEADER_SIZE)
+			throw new IOException("This is not an ImageJ binary table");
+		ByteBuffer header = read(0, HEADER_SIZE);
+		if (header.getInt(0)!=MAGIC)
+			throw new IOException("This is not an ImageJ binary table");
+		if (header.getShort(4)>VERSION)
+			throw new IOException("This binary table requires a newer version of ImageJ");
+		int precision = header.getShort(6);
+		int rows = header.getInt(8);
+		int nColumns = header.getInt(12);
+		int flags = header.get(16);
+		long directoryOffset = header.getLong(24);
+		// every column and the row labels store at least 4 bytes per row, before compression
+		if (rows<0 || rows==Integer.MAX_VALUE || nColumns<0
+		|| ((nColumns>0 || (flags&ROW_LABELS)!=0) && rows*4L>MAX_DEFLATE_RATIO*channel.size()))
+			throw new IOException("Corrupt binary table");
+		directory = read(directoryOffset, channel.size()-directoryOffset);
+		ResultsTable rt = new ResultsTable();
+		rt.setPrecision(precision);
+		if ((flags&ROW_INDEXES)!=0)
+			rt.showRowIndexes(true);
+		else
+			rt.showRowNumbers((flags&SHOW_ROW_NUMBERS)!=0);
+		rt.setSize(rows);
+		String labelHeading = readString(directory);
+		if ((flags&ROW_LABELS)!=0) {
+			ArrayList<String> labels = readStrings(directory);
+			String[] rowLabels = new String[rows+1];
+			for (int i=0; i<labels.size() && i<rows; i++)
+				rowLabels[i] = labels.get(i);
+			rt.setRowLabels(labelHeading, rowLabels);
+		}
+		for (int c=0; c<nColumns; c++) {
+			int index = directory.getInt();
+			String heading = readString(directory);
+			int type = directory.get();
+			int digits = directory.getShort();
+			double[] data = readValues(directory, type, rows);
+			ArrayList strings = null;
+			if (directory.get()!=0)
+				strings = readStrings(directory);
+			rt.setColumn(index, heading, data, digits, strings);
+		}
+		return rt;
+	}
+
+	private double[] readValues(ByteBuffer dir, int type, int rows) throws IOException {
+		long offset = dir.getLong();
+		long length = dir.getLong();
+		long rawLength = dir.getLong();
+		int bytesPerValue = type==FLOAT?4:8;
+		if (rawLength!=(long)rows*bytesPerValue)
+			throw new IOException("Corrupt binary table");
+		checkBlock(offset, length, rawLength);
+		double[] data = new double[rows+1];
+		if (length==rawLength) {
+			int chunk = CHUNK_SIZE/bytesPerValue;
+			ByteBuffer buffer = ByteBuffer.allocate(Math.min(chunk, rows)*bytesPerValue).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i=0; i<rows; i+=chunk) {
+				int n = Math.min(chunk, rows-i);
+				buffer.clear();
+				buffer.limit(n*bytesPerValue);
+				readFully(offset+(long)i*bytesPerValue, buffer);
+				if (type==FLOAT)
+					getFloats(buffer, data, i, n);
+				else
+					buffer.asDoubleBuffer().get(data, i, n);
+			}
+		} else {
+			DataInputStream in = new DataInputStream(inflate(offset));
+			try {
+				byte[] bytes = new byte[65536];
+				for (int i=0; i<rows; i+=bytes.length/bytesPerValue) {
+					int n = Math.min(bytes.length/bytesPerValue, rows-i);
+					in.readFully(bytes, 0, n*bytesPerValue);
+					ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, n*bytesPerValue).order(ByteOrder.LITTLE_ENDIAN);
+					if (type==FLOAT)
+						getFloats(buffer, data, i, n);
+					else
+						buffer.asDoubleBuffer().get(data, i, n);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return data;
+	}
+
+	private static void getFloats(ByteBuffer buffer, double[] data, int offset, int n) {
+		FloatBuffer fb = buffer.asFloatBuffer();
+		float[] floats = new float[Math.min(n, 8192)];
+		for (int i=0; i<n; i+=floats.length) {
+			int n2 = Math.min(floats.length, n-i);
+			fb.get(floats, 0, n2);
+			for (int j=0; j<n2; j++)
+				data[offset+i+j] = floats[j];
+		}
+	}
+
+	private ArrayList<String> readStrings(ByteBuffer dir) throws IOException {
+		long offset = dir.getLong();
+		long length = dir.getLong();
+		long rawLength = dir.getLong();
+		checkBlock(offset, length, rawLength);
+		InputStream is = length==rawLength?new BlockInputStream(offset):inflate(offset);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is, 65536));
+		try {
+			int count = Integer.reverseBytes(in.readInt());
+			if (count<0 || count>(rawLength-4)/4)  // each string has a length
+				throw new IOException("Corrupt binary table");
+			ArrayList<String> list = new ArrayList<String>(count);
+			byte[] bytes = new byte[256];
+			for (int i=0; i<count; i++) {
+				int n = Integer.reverseBytes(in.readInt());
+				if (n<0) {
+					list.add(null);
+					continue;
+				}
+				if (n>bytes.length)
+					bytes = new byte[n];
+				in.readFully(bytes, 0, n);
+				list.add(new String(bytes, 0, n, "UTF-8"));
+			}
+			return list;
+		} finally {
+			in.close();
+		}
+	}
+
+	// rejects blocks that extend past the end of the file or inflate to more than deflate allows
+	private void checkBlock(long offset, long length, long rawLength) throws IOException {
+		if (offset<0 || length<0 || length>channel.size()-offset || rawLength<length
+		|| rawLength>MAX_DEFLATE_RATIO*length)
+			throw new IOException("Corrupt binary table");
+	}
+
+	/* Returns a stream that inflates the block at 'offset'. Closing the
+		stream releases the Inflater's native memory; the file stays open. */
+	private InputStream inflate(long offset) {
+		final Inflater inflater = new Inflater();
+		return new InflaterInputStream(new BlockInputStream(offset), inflater, 65536) {
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+
+	/* Reads the file from 'offset' on, using positional reads, so that
+		it neither moves nor closes the channel. */
+	private class BlockInputStream extends InputStream {
+		private long position;
+
+		BlockInputStream(long offset) {
+			position = offset;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1)<0?-1:b[0]&255;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len==0)
+				return 0;
+			int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (n>0)
+				position += n;
+			return n;
+		}
+	}
+
+	private static String readString(ByteBuffer dir) throws IOException {
+		int n = dir.getInt();
+		if (n<0)
+			return null;
+		byte[] bytes = new byte[n];
+		dir.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private ByteBuffer read(long offset, long length) throws IOException {
+		if (length<0 || length>Integer.MAX_VALUE)
+			throw new IOException("Corrupt binary table");
+		ByteBuffer buffer = ByteBuffer.allocate((int)length).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(offset, buffer);
+		return buffer;
+	}
+
+	// fills 'buffer' with the bytes at 'offset' and flips it
+	private void readFully(long offset, ByteBuffer buffer) throws IOException {
+		if (offset<0 || offset+buffer.remaining()>channel.size())
+			throw new IOException("Corrupt binary table");
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, offset);
+			if (n<0)
+				throw new EOFException("Corrupt binary table");
+			offset += n;
+		}
+		buffer.flip();
+	}
+
+}
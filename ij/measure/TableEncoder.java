@@ -0,0 +1,212 @@
+package ij.measure;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.zip.*;
+
+/** Saves a ResultsTable in the ImageJ binary table format (".ijt"), a
+	columnar format that keeps the full precision of the values. The
+	file is written sequentially, one column at a time. TableDecoder.java
+	has a description of the format.
+	@see TableDecoder
+*/
+final class TableEncoder {
+	private static final int CHUNK = 65536; // bytes converted per write
+	private FileChannel channel;
+	private OutputStream out;
+	private boolean compress;
+	private byte[] bytes = new byte[CHUNK];
+	private ByteArrayOutputStream directory = new ByteArrayOutputStream(4096);
+
+	private TableEncoder(FileChannel channel, boolean compress) {
+		this.channel = channel;
+		this.compress = compress;
+		out = Channels.newOutputStream(channel);
+	}
+
+	/** Saves 'rt' to 'path'. With 'compress' true, blocks are compressed
+		using java.util.zip.Deflater if that makes them at least 10% smaller.
+		Compressed blocks are inflated as a stream when the table is opened,
+		instead of being read in bulk as uncompressed blocks are. */
+	static void write(ResultsTable rt, String path, boolean compress) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "rw");
+		try {
+			raf.setLength(0);
+			new TableEncoder(raf.getChannel(), compress).write(rt);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void write(ResultsTable rt) throws IOException {
+		int rows = rt.size();
+		int lastColumn = rt.getLastColumn();
+		String[] labels = rt.getRowLabels();
+		int nColumns = 0;
+		for (int i=0; i<=lastColumn; i++) {
+			if (rt.columnExists(i))
+				nColumns++;
+		}
+		channel.write(ByteBuffer.allocate(TableDecoder.HEADER_SIZE)); // written again when done
+		writeString(directory, rt.getRowLabelHeading());
+		if (labels!=null) {
+			ArrayList<String> list = new ArrayList<String>(rows);
+			for (int i=0; i<rows; i++)
+				list.add(labels[i]);
+			writeStrings(list);
+		}
+		for (int i=0; i<=lastColumn; i++) {
+			if (!rt.columnExists(i))
+				continue;
+			double[] data = rt.getColumnData(i);
+			int type = isFloat(data, rows)?TableDecoder.FLOAT:TableDecoder.DOUBLE;
+			writeInt(directory, i);
+			writeString(directory, rt.getColumnHeading(i));
+			directory.write(type);
+			writeShort(directory, rt.getDecimalPlaces(i));
+			writeValues(data, rows, type);
+			ArrayList strings = rt.getStringColumn(i);
+			directory.write(strings!=null?1:0);
+			if (strings!=null)
+				writeStrings(strings);
+		}
+		long directoryOffset = align();
+		directory.writeTo(out);
+		out.flush();
+		int flags = 0;
+		if (rt.showRowNumbers())
+			flags |= rt.getBaseRowNumber()==0?TableDecoder.ROW_INDEXES:TableDecoder.SHOW_ROW_NUMBERS;
+		if (labels!=null)
+			flags |= TableDecoder.ROW_LABELS;
+		ByteBuffer header = ByteBuffer.allocate(TableDecoder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(TableDecoder.MAGIC);
+		header.putShort((short)TableDecoder.VERSION);
+		header.putShort((short)rt.getPrecision());
+		header.putInt(rows);
+		header.putInt(nColumns);
+		header.put((byte)flags);
+		header.position(24);
+		header.putLong(directoryOffset);
+		header.flip();
+		channel.write(header, 0);
+	}
+
+	/* Returns 'true' if all values can be stored as floats without loss. */
+	private static boolean isFloat(double[] data, int rows) {
+		for (int i=0; i<rows; i++) {
+			double v = data[i];
+			if ((float)v!=v && !Double.isNaN(v))
+				return false;
+		}
+		return true;
+	}
+
+	private void writeValues(double[] data, int rows, int type) throws IOException {
+		int bytesPerValue = type==TableDecoder.FLOAT?4:8;
+		long rawLength = (long)rows*bytesPerValue;
+		byte[] compressed = null;
+		if (compress && rawLength>=1024 && rawLength<Integer.MAX_VALUE) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream((int)(rawLength/2));
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			DeflaterOutputStream dos = new DeflaterOutputStream(bos, deflater, CHUNK);
+			writeValues(dos, data, rows, bytesPerValue);
+			dos.finish();
+			deflater.end();
+			if (bos.size()<rawLength*0.9)
+				compressed = bos.toByteArray();
+		}
+		long offset = align();
+		if (compressed!=null)
+			out.write(compressed);
+		else
+			writeValues(out, data, rows, bytesPerValue);
+		addBlock(offset, rawLength);
+	}
+
+	private void writeValues(OutputStream os, double[] data, int rows, int bytesPerValue) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		int n = CHUNK/bytesPerValue;
+		for (int i=0; i<rows; i+=n) {
+			int n2 = Math.min(n, rows-i);
+			if (bytesPerValue==4) {
+				buffer.clear();
+				for (int j=0; j<n2; j++)
+					buffer.putFloat((float)data[i+j]);
+			} else
+				buffer.asDoubleBuffer().put(data, i, n2);
+			os.write(bytes, 0, n2*bytesPerValue);
+		}
+	}
+
+	private void writeStrings(ArrayList strings) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(8192);
+		writeInt(raw, strings.size());
+		for (int i=0; i<strings.size(); i++) {
+			String s = (String)strings.get(i);
+			if (s==null)
+				writeInt(raw, -1);
+			else {
+				byte[] b = s.getBytes("UTF-8");
+				writeInt(raw, b.length);
+				raw.write(b);
+			}
+		}
+		ByteArrayOutputStream block = raw;
+		if (compress && raw.size()>=1024) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(raw.size()/2);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			DeflaterOutputStream dos = new DeflaterOutputStream(bos, deflater, CHUNK);
+			raw.writeTo(dos);
+			dos.finish();
+			deflater.end();
+			if (bos.size()<raw.size()*0.9)
+				block = bos;
+		}
+		long offset = align();
+		block.writeTo(out);
+		addBlock(offset, raw.size());
+	}
+
+	/* Adds a reference to the block that ends at the current position to the directory. */
+	private void addBlock(long offset, long rawLength) throws IOException {
+		writeLong(directory, offset);
+		writeLong(directory, channel.position()-offset);
+		writeLong(directory, rawLength);
+	}
+
+	/* Pads the file to a multiple of 8 bytes and returns the position. */
+	private long align() throws IOException {
+		long position = channel.position();
+		int padding = (int)((8-position%8)%8);
+		if (padding>0)
+			channel.write(ByteBuffer.allocate(padding));
+		return channel.position();
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String s) throws IOException {
+		if (s==null) {
+			writeInt(out, -1);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		writeInt(out, b.length);
+		out.write(b);
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int v) {
+		out.write(v&255);
+		out.write((v>>>8)&255);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int v) {
+		for (int i=0; i<4; i++)
+			out.write((v>>>(8*i))&255);
+	}
+
+	private static void writeLong(ByteArrayOutputStream out, long v) {
+		for (int i=0; i<8; i++)
+			out.write((int)(v>>>(8*i))&255);
+	}
+
+}
@@ -0,0 +1,410 @@
+package ij.measure;
+import ij.util.Tools;
+import java.io.*;
+import java.util.ArrayList;
+
+/** Streaming parser for tab or comma delimited text files, used by
+	ResultsTable.open(). The file is read through a char buffer one line
+	at a time, and fields are parsed in place, so numeric cells are decoded
+	without creating String objects. The first lines are kept as a sample
+	that is used to detect the heading row, the table type and the
+	approximate number of rows.
+*/
+final class TableReader {
+	private static final int SAMPLE_LINES = 100;
+	private static final int MAX_ESTIMATED_ROWS = 1<<20; // larger tables grow as rows are added
+	private static final int BUFFER_SIZE = 65536;
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	private static final double NOT_A_NUMBER = -Double.MAX_VALUE;
+
+	private Reader reader;
+	private char[] buf = new char[BUFFER_SIZE];
+	private int pos, limit;
+	private boolean skipLF;
+	private char[] line = new char[256];
+	private int lineLength;
+	private int emptyLines;
+	private char[] heldLine;
+	private boolean linesRead;
+	private char separator;
+	private boolean csv;
+	private int[] fieldStart = new int[64];
+	private int[] fieldEnd = new int[64];
+	private int nFields;
+	private int firstRow;  // the number of heading lines
+
+	private TableReader(Reader reader, boolean csv) {
+		this.reader = reader;
+		this.csv = csv;
+		separator = csv?',':'\t';
+	}
+
+	/** Opens a tab or comma delimited text file as a ResultsTable. */
+	static ResultsTable read(String path) throws IOException {
+		File file = new File(path);
+		if (!file.exists())
+			throw new IOException("Error opening "+path);
+		boolean csv = path.endsWith(".csv") || path.endsWith(".CSV");
+		TableReader tr = new TableReader(new BufferedReader(new FileReader(file), BUFFER_SIZE), csv);
+		try {
+			return tr.read(path, file.length());
+		} finally {
+			tr.reader.close();
+		}
+	}
+
+	private ResultsTable read(String path, long fileLength) throws IOException {
+		ArrayList<String> sample = new ArrayList<String>();
+		long sampleChars = 0;
+		boolean eof = false;
+		while (sample.size()<SAMPLE_LINES) {
+			if (!nextLine()) {
+				eof = true;
+				break;
+			}
+			sample.add(new String(line, 0, lineLength));
+			sampleChars += lineLength + 1;
+		}
+		if (sample.size()==0) {
+			if (linesRead)
+				throw new IOException("Table is empty or invalid");
+			return new ResultsTable();
+		}
+		String[] headings = split(sample.get(0));
+		if (headings.length<1)
+			throw new IOException("This is not a tab or comma delimited text file.");
+		String zeroWidthSpace = "\uFEFF";
+		if (headings[0].startsWith(zeroWidthSpace))
+			headings[0] = headings[0].substring(1, headings[0].length());
+		int numbersInHeadings = 0;
+		for (int i=0; i<headings.length; i++) {
+			if (headings[i].equals("NaN") || !Double.isNaN(Tools.parseDouble(headings[i])))
+				numbersInHeadings++;
+		}
+		boolean allNumericHeadings = numbersInHeadings==headings.length;
+		if (allNumericHeadings) {
+			for (int i=0; i<headings.length; i++)
+				headings[i] = "C"+(i+1);
+		}
+		int firstColumn = headings.length>0&&headings[0].equals(" ")?1:0;
+		for (int i=0; i<headings.length; i++)
+			headings[i] = unquote(headings[i].trim());
+		firstRow = allNumericHeadings?0:1;
+		boolean labels = firstColumn==1 && headings.length>1 && headings[1].equals("Label");
+		int type = getTableType(sample);
+		int labelsIndex = (type==2)?0:1;
+		if (sample.get(0).startsWith("\t")) {
+			String[] headings2 = new String[headings.length+1];
+			headings2[0] = " ";
+			for (int i=0; i<headings.length; i++)
+				headings2[i+1] = headings[i];
+			headings = headings2;
+			firstColumn = 1;
+		}
+		ResultsTable rt = new ResultsTable();
+		if (eof && firstRow>=sample.size()) { //empty table?
+			for (int i=0; i<headings.length; i++) {
+				int col = rt.getColumnIndex(headings[i]);
+				if (col==ResultsTable.COLUMN_NOT_FOUND)
+					col = rt.getFreeColumn(headings[i]);
+			}
+			return rt;
+		}
+		rt.showRowNumbers(path.contains("Results"));
+		if (eof)
+			rt.ensureCapacity(sample.size()-firstRow);
+		else if (sampleChars>0)
+			rt.ensureCapacity((int)Math.min(MAX_ESTIMATED_ROWS, fileLength*sample.size()/sampleChars));
+		int[] columns = null;
+		for (int i=firstRow; i<sample.size(); i++) {
+			String s = sample.get(i);
+			lineLength = s.length();
+			if (lineLength>line.length)
+				line = new char[lineLength];
+			s.getChars(0, lineLength, line, 0);
+			columns = addRow(rt, headings, firstColumn, labels, labelsIndex, columns);
+		}
+		while (nextLine())
+			columns = addRow(rt, headings, firstColumn, labels, labelsIndex, columns);
+		return rt;
+	}
+
+	/* Adds the current line to the table. The first row goes through the
+		heading based methods, which create the columns; later rows use the
+		column indexes returned here. */
+	private int[] addRow(ResultsTable rt, String[] headings, int firstColumn, boolean labels, int labelsIndex, int[] columns) throws IOException {
+		rt.incrementCounter();
+		splitLine();
+		int row = rt.size() - 1;
+		for (int j=firstColumn; j<headings.length; j++) {
+			if (j==labelsIndex&&labels) {
+				if (labelsIndex>=nFields)
+					throw new IOException("Line "+(firstRow+row+1)+" has no \"Label\" field");
+				rt.setLabel(new String(line, fieldStart[labelsIndex], fieldEnd[labelsIndex]-fieldStart[labelsIndex]), row);  // headings[labelsIndex] is "Label"
+			} else {
+				double value = j<nFields?parseDouble(line, fieldStart[j], fieldEnd[j]):Double.NaN;
+				if (value==NOT_A_NUMBER) {
+					String item = j<nFields?unquote(new String(line, fieldStart[j], fieldEnd[j]-fieldStart[j])):"";
+					if (columns==null)
+						rt.addValue(headings[j], item);
+					else {
+						rt.addValue(columns[j], Double.NaN);
+						rt.setValue(columns[j], row, item);
+					}
+				} else {
+					if (columns==null)
+						rt.addValue(headings[j], value);
+					else
+						rt.addValue(columns[j], value);
+				}
+			}
+		}
+		if (columns==null) {
+			columns = new int[headings.length];
+			for (int j=firstColumn; j<headings.length; j++)
+				columns[j] = rt.getColumnIndex(headings[j]);
+		}
+		return columns;
+	}
+
+	/* Reads the next line into 'line', holding back empty lines until a
+		non-empty line follows, so that trailing empty lines are ignored.
+		Returns false at the end of the file. */
+	private boolean nextLine() throws IOException {
+		if (emptyLines==0 && heldLine==null) {
+			while (readLine()) {
+				if (lineLength>0) {
+					if (emptyLines==0)
+						return true;
+					heldLine = new char[lineLength];
+					System.arraycopy(line, 0, heldLine, 0, lineLength);
+					break;
+				}
+				emptyLines++;
+			}
+			if (heldLine==null) {
+				emptyLines = 0;
+				return false;
+			}
+		}
+		if (emptyLines>0) {
+			emptyLines--;
+			lineLength = 0;
+			return true;
+		}
+		lineLength = heldLine.length;
+		System.arraycopy(heldLine, 0, line, 0, lineLength);
+		heldLine = null;
+		return true;
+	}
+
+	/* Reads one physical line, terminated by \n, \r or \r\n, into 'line'. */
+	private boolean readLine() throws IOException {
+		lineLength = 0;
+		boolean any = false;
+		while (true) {
+			if (pos>=limit) {
+				limit = reader.read(buf, 0, buf.length);
+				pos = 0;
+				if (limit<=0) {
+					limit = 0;
+					return any;
+				}
+			}
+			if (skipLF) {
+				skipLF = false;
+				if (buf[pos]=='\n') {
+					pos++;
+					continue;
+				}
+			}
+			any = true;
+			linesRead = true;
+			int start = pos;
+			while (pos<limit && buf[pos]!='\n' && buf[pos]!='\r')
+				pos++;
+			int n = pos - start;
+			if (lineLength+n>line.length) {
+				char[] line2 = new char[Math.max(lineLength+n, line.length*2)];
+				System.arraycopy(line, 0, line2, 0, lineLength);
+				line = line2;
+			}
+			System.arraycopy(buf, start, line, lineLength, n);
+			lineLength += n;
+			if (pos<limit) {
+				if (buf[pos]=='\r')
+					skipLF = true;
+				pos++;
+				return true;
+			}
+		}
+	}
+
+	/* Finds the fields of the current line, with the same result as
+		String.split() (trailing empty fields are removed). In CSV
+		files, commas inside double quotes do not separate fields. */
+	private void splitLine() {
+		nFields = 0;
+		if (lineLength==0) {
+			addField(0, 0);
+			return;
+		}
+		boolean inQuotes = false;
+		int start = 0;
+		for (int i=0; i<lineLength; i++) {
+			char c = line[i];
+			if (csv && c=='"')
+				inQuotes = !inQuotes;
+			else if (c==separator && !inQuotes) {
+				addField(start, i);
+				start = i + 1;
+			}
+		}
+		addField(start, lineLength);
+		while (nFields>0 && fieldEnd[nFields-1]==fieldStart[nFields-1])
+			nFields--;
+	}
+
+	private void addField(int start, int end) {
+		if (nFields==fieldStart.length) {
+			int[] start2 = new int[nFields*2];
+			int[] end2 = new int[nFields*2];
+			System.arraycopy(fieldStart, 0, start2, 0, nFields);
+			System.arraycopy(fieldEnd, 0, end2, 0, nFields);
+			fieldStart = start2;
+			fieldEnd = end2;
+		}
+		fieldStart[nFields] = start;
+		fieldEnd[nFields] = end;
+		nFields++;
+	}
+
+	private String[] split(String s) {
+		lineLength = s.length();
+		if (lineLength>line.length)
+			line = new char[lineLength];
+		s.getChars(0, lineLength, line, 0);
+		splitLine();
+		String[] items = new String[nFields];
+		for (int i=0; i<nFields; i++)
+			items[i] = new String(line, fieldStart[i], fieldEnd[i]-fieldStart[i]);
+		return items;
+	}
+
+	private int getTableType(ArrayList<String> sample) {
+		if (sample.size()<2) return 0;
+		String[] items = split(sample.get(1));
+		int nonNumericCount = 0;
+		int nonNumericIndex = 0;
+		for (int i=0; i<items.length; i++) {
+			if (!items[i].equals("NaN") && Double.isNaN(Tools.parseDouble(items[i]))) {
+				nonNumericCount++;
+				nonNumericIndex = i;
+			}
+		}
+		if (nonNumericCount==0)
+			return 0; // assume this is all-numeric table
+		if (nonNumericCount==1 && nonNumericIndex==1)
+			return 1; // assume this is an ImageJ Results table with row numbers and row labels
+		if (nonNumericCount==1 && nonNumericIndex==0)
+			return 2; // assume this is an ImageJ Results table without row numbers and with row labels
+		return 3;
+	}
+
+	/* Removes the double quotes around a CSV field. */
+	private String unquote(String s) {
+		if (csv && s.length()>1 && s.startsWith("\"") && s.endsWith("\""))
+			s = s.substring(1, s.length()-1);
+		return s;
+	}
+
+	/** Parses the chars from 'start' to 'end' as a double, accepting the
+		same input as Double.parseDouble(). Returns -Double.MAX_VALUE if
+		the text is not a number. Decimal numbers with up to 15 significant
+		digits and exponents up to 22 are converted directly, which is exact;
+		other numbers are passed to Double.parseDouble().
+	*/
+	static double parseDouble(char[] c, int start, int end) {
+		while (start<end && c[start]<=' ')
+			start++;
+		while (end>start && c[end-1]<=' ')
+			end--;
+		if (start==end)
+			return NOT_A_NUMBER;
+		int i = start;
+		boolean negative = false;
+		if (c[i]=='-' || c[i]=='+') {
+			negative = c[i]=='-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		while (i<end && c[i]>='0' && c[i]<='9') {
+			if (mantissa!=0 || c[i]!='0')
+				digits++;
+			mantissa = mantissa*10 + (c[i]-'0');
+			anyDigits = true;
+			if (digits>15) break;
+			i++;
+		}
+		if (digits<=15 && i<end && c[i]=='.') {
+			i++;
+			while (i<end && c[i]>='0' && c[i]<='9') {
+				if (mantissa!=0 || c[i]!='0')
+					digits++;
+				mantissa = mantissa*10 + (c[i]-'0');
+				exponent--;
+				anyDigits = true;
+				if (digits>15) break;
+				i++;
+			}
+		}
+		if (anyDigits && digits<=15 && i<end && (c[i]=='e'||c[i]=='E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i<end && (c[i]=='-' || c[i]=='+')) {
+				negativeExponent = c[i]=='-';
+				i++;
+			}
+			int e = 0;
+			boolean anyExponentDigits = false;
+			while (i<end && c[i]>='0' && c[i]<='9' && e<10000) {
+				e = e*10 + (c[i]-'0');
+				anyExponentDigits = true;
+				i++;
+			}
+			if (!anyExponentDigits)
+				i = -1; // malformed exponent; let Double.parseDouble() decide
+			exponent += negativeExponent?-e:e;
+		}
+		if (i==end && anyDigits && digits<=15) {
+			double value = mantissa;
+			if (exponent<0 && exponent>=-22)
+				value /= POW10[-exponent];
+			else if (exponent>0 && exponent<=22)
+				value *= POW10[exponent];
+			else if (exponent!=0 && mantissa!=0)
+				return slowParseDouble(c, start, end);
+			return negative?-value:value;
+		}
+		int k = c[start]=='-'||c[start]=='+'?start+1:start;
+		if (k<end) {
+			char first = c[k];
+			if ((first>='0'&&first<='9') || first=='.' || first=='N' || first=='I')
+				return slowParseDouble(c, start, end);
+		}
+		return NOT_A_NUMBER;
+	}
+
+	private static double slowParseDouble(char[] c, int start, int end) {
+		try {
+			return Double.parseDouble(new String(c, start, end-start));
+		} catch (NumberFormatException e) {
+			return NOT_A_NUMBER;
+		}
+	}
+
+}
@@ -5,6 +5,10 @@ import ij.gui.*;
 import ij.measure.Calibration;
 import java.awt.*;
 import java.awt.image.*;
+import ij.util.ThreadUtil;
+import ij.util.Tools;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin implements the Image/Transform/Bin command.
  * It reduces the size of an image or stack by binning groups of 
@@ -20,6 +24,7 @@ public class Binner implements PlugIn {
 	private int xshrink=2, yshrink=2, zshrink=1;
 	private int method = AVERAGE;
 	private float maxValue;
+	private static final int MIN_PARALLEL_PIXELS = 1<<20;
 
 	public void run(String arg) {
 		ImagePlus imp = IJ.getImage();
@@ -56,15 +61,9 @@ public class Binner implements PlugIn {
 			else
 				maxValue = 0;
 		}
-		for (int z=1; z<=d; z++) {
-			IJ.showProgress(z, d);
-			ImageProcessor ip = stack.getProcessor(z);
-			if (ip.isInvertedLut()) 
-				ip.invert();
-			ImageProcessor ip2 = shrink(ip, method);
-			if (ip.isInvertedLut()) ip2.invert();
-			stack2.addSlice(stack.getSliceLabel(z), ip2);
-		}
+		ImageProcessor[] slices2 = shrinkSlices(stack, method);
+		for (int z=1; z<=d; z++)
+			stack2.addSlice(stack.getSliceLabel(z), slices2[z-1]);
 		int channels = imp.getNChannels();
 		int slices = imp.getNSlices();
 		int frames = imp.getNFrames();
@@ -106,6 +105,41 @@ public class Binner implements PlugIn {
 		return imp2;
 	}
 	
+	/* Bins the slices of 'stack' in parallel. Each thread bins whole
+		slices; with fewer slices than threads, the rows of each slice are
+		split between the remaining threads. */
+	private ImageProcessor[] shrinkSlices(final ImageStack stack, final int method) {
+		final int d = stack.size();
+		final ImageProcessor[] slices2 = new ImageProcessor[d];
+		final AtomicInteger next = new AtomicInteger(1);
+		final AtomicInteger done = new AtomicInteger();
+		int nThreads = Prefs.getThreads();
+		int nTasks = Math.max(1, Math.min(nThreads, d));
+		final int bandThreads = Math.max(1, nThreads/nTasks);
+		Callable[] tasks = new Callable[nTasks];
+		for (int t=0; t<nTasks; t++) {
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					for (int z=next.getAndIncrement(); z<=d; z=next.getAndIncrement()) {
+						ImageProcessor ip;
+						synchronized(stack) {  // virtual stacks are read one slice at a time
+							ip = stack.getProcessor(z);
+						}
+						if (ip.isInvertedLut()) 
+							ip.invert();
+						ImageProcessor ip2 = shrink(ip, method, bandThreads);
+						if (ip.isInvertedLut()) ip2.invert();
+						slices2[z-1] = ip2;
+						IJ.showProgress(done.incrementAndGet(), d);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		return slices2;
+	}
+
 	private ImageStack shrinkZ(ImageStack stack, int zshrink) {
 		int w = stack.getWidth();
 		int h = stack.getHeight();
@@ -143,57 +177,212 @@ public class Binner implements PlugIn {
 		return shrink(ip, method);
 	}
 
+	/** Returns 'ip' and the levels of its power-of-two pyramid: element n
+		of the array has 1/2^n of the width and height of 'ip' and is binned
+		from element n-1 with the specified method, exactly as with repeated
+		calls of shrink(ip, 2, 2, method). Levels are computed up to 'levels'
+		or until the image is one pixel high or wide. All levels are computed
+		in a single pass over 'ip', with strips of rows processed in parallel.
+		<p>
+		Example:<br>
+		ImageProcessor[] pyramid = new Binner().shrinkLevels(ip, 4, Binner.AVERAGE);
+	*/
+	public ImageProcessor[] shrinkLevels(ImageProcessor ip, int levels, int method) {
+		if (method<0 || method>methods.length)
+			method = AVERAGE;
+		int n = 0;
+		while (n<levels && (ip.getWidth()>>(n+1))>0 && (ip.getHeight()>>(n+1))>0)
+			n++;
+		ImageProcessor[] ips = new ImageProcessor[n+1];
+		ips[0] = ip;
+		if (n==0)
+			return ips;
+		if (ip instanceof ColorProcessor) {
+			ColorProcessor cp = (ColorProcessor)ip;
+			for (int level=1; level<=n; level++)
+				ips[level] = new ColorProcessor(ip.getWidth()>>level, ip.getHeight()>>level);
+			for (int c=1; c<=3; c++) {
+				ImageProcessor[] channels = shrinkLevels(cp.getChannel(c, null), n, method);
+				for (int level=1; level<=n; level++)
+					((ColorProcessor)ips[level]).setChannel(c, (ByteProcessor)channels[level]);
+			}
+			return ips;
+		}
+		xshrink = yshrink = 2;
+		for (int level=1; level<=n; level++)
+			ips[level] = ips[level-1].createProcessor(ips[level-1].getWidth()/2, ips[level-1].getHeight()/2);
+		// Each strip of 2^m input rows yields 2^(m-level) rows of each level up
+		// to m; m is reduced to have enough strips for all threads.
+		final int nThreads = Prefs.getThreads();
+		int m = n;
+		while (m>1 && (ip.getHeight()>>m)<4*nThreads)
+			m--;
+		final int m2 = m;
+		final int nStrips = (ip.getHeight()+(1<<m)-1)>>m;
+		final ImageProcessor[] ips2 = ips;
+		final int method2 = method;
+		final AtomicInteger next = new AtomicInteger();
+		int nTasks = (long)ip.getWidth()*ip.getHeight()<MIN_PARALLEL_PIXELS ? 1 : Math.min(nThreads, nStrips);
+		Callable[] tasks = new Callable[nTasks];
+		for (int t=0; t<nTasks; t++) {
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					for (int strip=next.getAndIncrement(); strip<nStrips; strip=next.getAndIncrement()) {
+						for (int level=1; level<=m2; level++) {
+							int y1 = strip<<(m2-level);
+							int y2 = Math.min(ips2[level].getHeight(), (strip+1)<<(m2-level));
+							shrinkRows(ips2[level-1], ips2[level], method2, y1, y2);
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		if (m<n) {
+			ImageProcessor[] ips3 = shrinkLevels(ips[m], n-m, method);
+			for (int level=m+1; level<=n; level++)
+				ips[level] = ips3[level-m];
+		}
+		return ips;
+	}
+
 	private ImageProcessor shrink(ImageProcessor ip, int method) {
+		return shrink(ip, method, Prefs.getThreads());
+	}
+
+	private ImageProcessor shrink(final ImageProcessor ip, int method, int nThreads) {
 		if (method<0 || method>methods.length)
 			method = AVERAGE;
 		int w = ip.getWidth()/xshrink;
 		int h = ip.getHeight()/yshrink;
-		ImageProcessor ip2 = ip.createProcessor(w, h);
+		final ImageProcessor ip2 = ip.createProcessor(w, h);
 		if (ip instanceof ColorProcessor)
-			return shrinkRGB((ColorProcessor)ip, (ColorProcessor)ip2, method);
-		for (int y=0; y<h; y++) {
-			for (int x=0; x<w; x++) {
-				if (method==AVERAGE)
-					ip2.setf(x, y, getAverage(ip, x, y));
-				else if (method==MEDIAN)
-					ip2.setf(x, y, getMedian(ip, x, y));
-				else if (method==MIN)
-					ip2.setf(x, y, getMin(ip, x, y));
-				else if (method==MAX)
-					ip2.setf(x, y, getMax(ip, x, y));
-				else if (method==SUM)
-					ip2.setf(x, y, getSum(ip, x, y));
-			}
+			return shrinkRGB((ColorProcessor)ip, (ColorProcessor)ip2, method, nThreads);
+		int nBands = Math.min(nThreads, h);
+		if (nBands<=1 || (long)ip.getWidth()*ip.getHeight()<MIN_PARALLEL_PIXELS) {
+			shrinkRows(ip, ip2, method, 0, h);
+			return ip2;
+		}
+		final int method2 = method;
+		int rowsPerBand = (h+nBands-1)/nBands;
+		Callable[] tasks = new Callable[nBands];
+		for (int t=0; t<nBands; t++) {
+			final int y1 = Math.min(h, t*rowsPerBand);
+			final int y2 = Math.min(h, y1+rowsPerBand);
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					shrinkRows(ip, ip2, method2, y1, y2);
+					return null;
+				}
+			};
 		}
+		ThreadUtil.startAndJoin(tasks);
 		return ip2;
 	}
 
-	private ImageProcessor shrinkRGB(ColorProcessor cp, ColorProcessor cp2, int method) {
+	private ImageProcessor shrinkRGB(ColorProcessor cp, ColorProcessor cp2, int method, int nThreads) {
 		ByteProcessor bp = cp.getChannel(1, null);
-		cp2.setChannel(1, (ByteProcessor)shrink(bp, method));
-		cp2.setChannel(2, (ByteProcessor)shrink(cp.getChannel(2,bp), method));
-		cp2.setChannel(3, (ByteProcessor)shrink(cp.getChannel(3,bp), method));
+		cp2.setChannel(1, (ByteProcessor)shrink(bp, method, nThreads));
+		cp2.setChannel(2, (ByteProcessor)shrink(cp.getChannel(2,bp), method, nThreads));
+		cp2.setChannel(3, (ByteProcessor)shrink(cp.getChannel(3,bp), method, nThreads));
 		return cp2;
 	}
 
-	private float getAverage(ImageProcessor ip, int x, int y) {
-		float sum = 0;
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++)
-				sum += ip.getf(x*xshrink+x2, y*yshrink+y2); 
+	/* Bins rows y1 to y2-1 of 'ip2' from the grayscale image 'ip'. The
+		input rows of each output row are converted to float once and
+		the bins are read from this buffer in the original order (row
+		by row), so that float sums are rounded as before. */
+	private void shrinkRows(ImageProcessor ip, ImageProcessor ip2, int method, int y1, int y2) {
+		if (method<AVERAGE || method>SUM)
+			return;
+		int w = ip2.getWidth();
+		int xs = xshrink, ys = yshrink;
+		int rowLength = w*xs;
+		int binSize = xs*ys;
+		float[] rows = new float[ys*rowLength];
+		float[] bin = method==MEDIAN?new float[binSize]:null;
+		boolean integer = ip instanceof ByteProcessor || ip instanceof ShortProcessor;
+		float value, v;
+		for (int y=y1; y<y2; y++) {
+			for (int yb=0; yb<ys; yb++)
+				readRow(ip, y*ys+yb, rows, yb*rowLength, rowLength);
+			for (int x=0; x<w; x++) {
+				int offset = x*xs;
+				switch (method) {
+					case 0: case 4:  // AVERAGE, SUM
+						value = 0f;
+						for (int yb=0; yb<ys; yb++, offset+=rowLength)
+							for (int xb=0; xb<xs; xb++)
+								value += rows[offset+xb];
+						if (method==AVERAGE)
+							value = value/binSize;
+						else if (maxValue>0f && value>maxValue)
+							value = maxValue;
+						break;
+					case 1:  // MEDIAN
+						int p = 0;
+						for (int yb=0; yb<ys; yb++, offset+=rowLength)
+							for (int xb=0; xb<xs; xb++)
+								bin[p++] = rows[offset+xb];
+						value = integer?getMedian(bin):getFloatMedian(bin);
+						break;
+					case 2:  // MIN
+						value = Float.MAX_VALUE;
+						for (int yb=0; yb<ys; yb++, offset+=rowLength)
+							for (int xb=0; xb<xs; xb++) {
+								v = rows[offset+xb];
+								if (v<value) value = v;
+							}
+						break;
+					default:  // MAX
+						value = -Float.MAX_VALUE;
+						for (int yb=0; yb<ys; yb++, offset+=rowLength)
+							for (int xb=0; xb<xs; xb++) {
+								v = rows[offset+xb];
+								if (v>value) value = v;
+							}
+						break;
+				}
+				ip2.setf(x, y, value);
+			}
 		}
-		return (float)(sum/(xshrink*yshrink));
 	}
 
-	private float getMedian(ImageProcessor ip, int x, int y) {
-		int shrinksize = xshrink*yshrink;
-		float[] pixels = new float[shrinksize];
-		int p=0;
-		// fill pixels within local neighborhood
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++)
-				pixels[p++] = ip.getf(x*xshrink+x2, y*yshrink+y2); 
+	/* Reads 'n' pixels of row 'y' of the grayscale image 'ip' into 'row'. */
+	private static void readRow(ImageProcessor ip, int y, float[] row, int offset, int n) {
+		Object pixels = ip.getPixels();
+		int index = y*ip.getWidth();
+		if (pixels instanceof byte[]) {
+			byte[] pixels8 = (byte[])pixels;
+			for (int i=0; i<n; i++)
+				row[offset+i] = pixels8[index+i]&255;
+		} else if (pixels instanceof short[]) {
+			short[] pixels16 = (short[])pixels;
+			for (int i=0; i<n; i++)
+				row[offset+i] = pixels16[index+i]&0xffff;
+		} else if (pixels instanceof float[])
+			System.arraycopy((float[])pixels, index, row, offset, n);
+		else {
+			for (int i=0; i<n; i++)
+				row[offset+i] = ip.getf(index+i);
 		}
+	}
+
+	/* Median of a bin of non-negative integer values. Equivalent to
+		getFloatMedian(), which removes the bin.length/2+1 largest values
+		and returns the largest value left (0 if none is left), but uses
+		selection instead of repeated searches. */
+	private static float getMedian(float[] bin) {
+		int n = bin.length;
+		int rank = n-2-n/2;  // ascending order
+		if (rank<0)
+			return 0f;
+		return Tools.select(bin, 0, n, rank);
+	}
+
+	private static float getFloatMedian(float[] pixels) {
+		int shrinksize = pixels.length;
 		// find median value
 		int halfsize=shrinksize/2;
 		for (int i=0; i<=halfsize; i++) {
@@ -215,43 +404,6 @@ public class Binner implements PlugIn {
 		return max;
 	}
 
-	private float getMin(ImageProcessor ip, int x, int y) {
-		float min = Float.MAX_VALUE;
-		float pixel;
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++) {
-				pixel = ip.getf(x*xshrink+x2, y*yshrink+y2); 
-				if (pixel<min)
-					min = pixel;
-			}
-		}
-		return min;
-	}
-
-	private float getMax(ImageProcessor ip, int x, int y) {
-		float max = -Float.MAX_VALUE;
-		float pixel;
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++) {
-				pixel = ip.getf(x*xshrink+x2, y*yshrink+y2); 
-				if (pixel>max)
-					max = pixel;
-			}
-		}
-		return max;
-	}
-
-	private float getSum(ImageProcessor ip, int x, int y) {
-		float sum = 0;
-		for (int y2=0; y2<yshrink; y2++) {
-			for (int x2=0;  x2<xshrink; x2++)
-				sum += ip.getf(x*xshrink+x2, y*yshrink+y2); 
-		}
-		if (maxValue>0f && sum>maxValue)
-			sum = maxValue;
-		return sum;
-	}
-
 	private boolean showDialog(ImagePlus imp) {
 		boolean stack = imp.getStackSize()>1;
 		if (imp.isComposite() && imp.getNChannels()==imp.getStackSize())
@@ -3,8 +3,6 @@ package ij.plugin;
 import ij.*;
 import ij.process.*;
 import ij.gui.GenericDialog;
-import ij.util.ThreadUtil;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * This plugin implements most of the 3D filters in the Process/Filters submenu.
@@ -120,30 +118,13 @@ public class Filters3D implements PlugIn {
 			else
 				res = ImageStack.create(width, height, depth, stack.getBitDepth());
 			IJ.showStatus("3D filtering...");
-			// PARALLEL 
 			final ImageStack out = res;
-			final AtomicInteger ai = new AtomicInteger(0);
-			final int n_cpus = Prefs.getThreads();
-
-			final int dec = (int) Math.ceil((double) stack.size() / (double) n_cpus);
+			StackProcessor processor = new StackProcessor(stack);
 			for(int fr=0; fr< (depth/nZSlices/nChs); fr++) {
 				for(int ch=0; ch<nChs; ch++) {
 					if( fr>=tmin && fr<tmax && ch>=cmin && ch<cmax) {
-						final int chf=ch;
-						final int frf=fr;
-						ai.set(0);
-						Thread[] threads = ThreadUtil.createThreadArray(n_cpus);
-						for (int ithread = 0; ithread < threads.length; ithread++) {
-							threads[ithread] = new Thread() {
-								public void run() {
-									StackProcessor processor = new StackProcessor(stack);
-									for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) {
-										processor.filter3D(out, nChs, nZSlices, vx, vy, vz, chf, chf+1, dec * k, dec * (k + 1), frf, frf+1, filter);
-									}
-								}
-							};
-						}
-						ThreadUtil.startAndJoin(threads);
+						// the rows are processed in parallel by StackProcessor.filter3D
+						processor.filter3D(out, nChs, nZSlices, vx, vy, vz, ch, ch+1, 0, nZSlices, fr, fr+1, filter);
 					}else {
 						for(int sl=0;sl<nZSlices;sl++) {
 							int index=1+ch+(nChs*sl)+(nChs*nZSlices*fr);
@@ -3,11 +3,19 @@ import ij.*;
 import ij.gui.GenericDialog;
 import ij.process.*;
 import ij.measure.Calibration;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
 
-/** Implements the Image/Stacks/Tools/Grouped Z Project command. */
+/** Implements the Image/Stacks/Tools/Grouped Z Project command. With
+	"Running projection" checked, slice n of the output is the projection
+	of slices n to n+size-1 (a sliding window); for hyperstacks, the window
+	runs over the frames of each channel and z-slice.
+*/
 
 public class GroupedZProjector implements PlugIn {
 	private static int method = ZProjector.AVG_METHOD;
+	private static boolean running;
+	private static final int MIN_PARALLEL_PIXELS = 1<<20;
 	private int groupSize;
 	
 	public void run(String arg) {
@@ -18,11 +26,24 @@ public class GroupedZProjector implements PlugIn {
 			return;
 		}
 		if (imp.isHyperStack()) {
-			new ZProjector().run2(imp, "");
+			if (!showHyperStackDialog(imp))
+				return;
+			if (!running) {
+				new ZProjector().run2(imp, "");
+				return;
+			}
+		} else if (!showDialog(imp))
 			return;
-		}
-		if (!showDialog(imp))
+		if (running) {
+			ImagePlus imp2 = runningZProject(imp, method, groupSize);
+			if (imp2==null) {
+				IJ.error("Z Project", "Running projections require an 8, 16 or 32-bit stack\nand the average, max, min or sum method.");
+				return;
+			}
+			imp2.setCalibration(imp.getCalibration());
+			imp2.show();
 			return;
+		}
 		ImagePlus imp2 = groupZProject(imp, method, groupSize);
 		imp2.setCalibration(imp.getCalibration());
 		Calibration cal = imp2.getCalibration();
@@ -37,11 +58,15 @@ public class GroupedZProjector implements PlugIn {
 		int[] dim = imp.getDimensions();
 		int projectedStackSize = imp.getStackSize()/groupSize;
 		imp.setDimensions(1, groupSize, projectedStackSize);
+		ImageProcessor[] projections = projectGroups(imp, method, groupSize, projectedStackSize);
+		ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+		for (int i=0; i<projectedStackSize; i++)
+			stack.addSlice(null, projections[i]);
 		ZProjector zp = new ZProjector(imp);
 		zp.setMethod(method);
 		zp.setStartSlice(1);
 		zp.setStopSlice(groupSize);
-		zp.doHyperStackProjection(true);
+		zp.setHyperStackProjection(stack, 1, projectedStackSize, 1, groupSize);
 		imp.setDimensions(dim[2], dim[3], dim[4]);
 
 		ImagePlus zProjectorOutput = zp.getProjection();
@@ -57,6 +82,305 @@ public class GroupedZProjector implements PlugIn {
 		return zProjectorOutput;
 	}
 	
+	/* Projects the groups of slices in parallel, in a single pass over the
+		stack. */
+	private ImageProcessor[] projectGroups(ImagePlus imp, int method, int groupSize, int nGroups) {
+		int[] starts = new int[nGroups];
+		int[] stops = new int[nGroups];
+		for (int group=0; group<nGroups; group++) {
+			starts[group] = group*groupSize + 1;
+			stops[group] = (group+1)*groupSize;
+		}
+		ZProjector zp = new ZProjector(imp);
+		zp.setMethod(method);
+		return zp.projectRanges(starts, stops);
+	}
+
+	/** Returns a running (sliding-window) projection of an 8, 16 or 32-bit
+		stack: slice n of the result is the projection of slices n to
+		n+windowSize-1. The AVG_METHOD, SUM_METHOD, MAX_METHOD and MIN_METHOD
+		methods are supported. Sums are updated with the slice that enters and
+		the one that leaves the window, and maxima and minima with a deque of
+		candidate slices for each pixel, so that the time per slice does not
+		depend on 'windowSize'. For 32-bit stacks, infinities are counted
+		instead of summed, the sums are compensated for rounding errors and
+		are recomputed from the window every 'windowSize' slices, so that a
+		large value does not cancel the small ones after it has left the
+		window. As with ZProjector, the result of the SUM_METHOD is 32-bit,
+		NaNs are ignored and the average of a 32-bit stack is computed in
+		double precision. For a hyperstack with several frames, the window
+		runs over the frames of each channel and z-slice, and the result is
+		a hyperstack with the same channels and z-slices and
+		frames-windowSize+1 frames; for a hyperstack with one frame, it runs
+		over the z-slices of each channel. Returns null if the method or
+		image type is not supported, or if the window is longer than the
+		dimension it runs over.
+	*/
+	public ImagePlus runningZProject(ImagePlus imp, int method, int windowSize) {
+		if (method!=ZProjector.AVG_METHOD && method!=ZProjector.SUM_METHOD && method!=ZProjector.MAX_METHOD && method!=ZProjector.MIN_METHOD)
+			return null;
+		ImageStack stack = imp.getStack();
+		int nChannels = imp.getNChannels(), nSlices = imp.getNSlices(), nFrames = imp.getNFrames();
+		boolean overFrames = nFrames>1;
+		int size = overFrames ? nFrames : nSlices;
+		if (imp.getBitDepth()==24 || windowSize<1 || windowSize>size || nChannels*nSlices*nFrames!=stack.size())
+			return null;
+		int nOther = overFrames ? nSlices : 1;  // z-slices of the result, besides the channels
+		int size2 = size - windowSize + 1;
+		ImageStack[][] projections = new ImageStack[nChannels][nOther];
+		for (int c=1; c<=nChannels; c++) {
+			for (int z=1; z<=nOther; z++) {
+				int[] indexes = new int[size];
+				for (int k=1; k<=size; k++)
+					indexes[k-1] = overFrames ? imp.getStackIndex(c, z, k) : imp.getStackIndex(c, k, 1);
+				RunningProjector rp = new RunningProjector(stack, indexes, method, windowSize);
+				if (method==ZProjector.SUM_METHOD && imp.getCalibration().isSigned16Bit())
+					rp.offset = -windowSize*32768f;
+				projections[c-1][z-1] = rp.project(imp.getProcessor());
+			}
+		}
+		ImageStack stack2 = new ImageStack(stack.getWidth(), stack.getHeight());
+		for (int k=1; k<=size2; k++) {  // in hyperstack order: channels, then z-slices, then frames
+			for (int z=0; z<nOther; z++) {
+				for (int c=0; c<nChannels; c++)
+					stack2.addSlice(null, projections[c][z].getProcessor(k));
+			}
+		}
+		String prefix = method==ZProjector.AVG_METHOD ? "AVG" : (method==ZProjector.SUM_METHOD ? "SUM" : (method==ZProjector.MAX_METHOD ? "MAX" : "MIN"));
+		ImagePlus imp2 = new ImagePlus(WindowManager.makeUniqueName("RUN_"+prefix+windowSize+"_"+imp.getTitle()), stack2);
+		if (nChannels>1 || imp.isHyperStack()) {
+			imp2.setDimensions(nChannels, overFrames?nSlices:size2, overFrames?size2:1);
+			if (imp.isComposite()) {
+				imp2 = new CompositeImage(imp2, ((CompositeImage)imp).getMode());
+				((CompositeImage)imp2).setLuts(imp.getLuts());
+			}
+			imp2.setOpenAsHyperStack(true);
+		}
+		return imp2;
+	}
+
+	/* Computes running projections over the stack slices with the given
+		indexes. The slices are read once, in order, and the last
+		windowSize+1 are kept; each new slice is added to the projections
+		of all pixels, in parallel bands of pixels. */
+	private static class RunningProjector {
+		private ImageStack stack;
+		private int[] indexes;
+		private int method, windowSize, len;
+		private boolean floatData;
+		private Object[] window;    // pixels of slice k at window[k%(windowSize+1)]
+		private double[] sums;
+		private double[] errors;    // rounding errors of the sums, for float data
+		private int[] counts;       // non-NaN values in the window, for float data
+		private int[] positiveInfinities, negativeInfinities;  // not included in the sums
+		private int[] deque;        // windowSize slice numbers for each pixel
+		private int[] first, last;  // deque positions: first, and next after last
+		float offset;
+
+		RunningProjector(ImageStack stack, int[] indexes, int method, int windowSize) {
+			this.stack = stack;
+			this.indexes = indexes;
+			this.method = method;
+			this.windowSize = windowSize;
+			len = stack.getWidth()*stack.getHeight();
+			window = new Object[windowSize+1];
+			if (method==ZProjector.AVG_METHOD || method==ZProjector.SUM_METHOD) {
+				sums = new double[len];
+				counts = new int[len];
+			} else {
+				deque = new int[len*windowSize];
+				first = new int[len];
+				last = new int[len];
+			}
+		}
+
+		ImageStack project(ImageProcessor ip) {
+			int size = indexes.length;
+			ImageStack stack2 = new ImageStack(stack.getWidth(), stack.getHeight());
+			Object pixels1 = stack.getPixels(indexes[0]);
+			floatData = pixels1 instanceof float[];
+			if (floatData && sums!=null) {
+				errors = new double[len];
+				positiveInfinities = new int[len];
+				negativeInfinities = new int[len];
+			}
+			boolean sameType = method!=ZProjector.SUM_METHOD;
+			for (int k=0; k<size; k++) {
+				IJ.showProgress(k, size);
+				window[k%(windowSize+1)] = k==0 ? pixels1 : stack.getPixels(indexes[k]);
+				ImageProcessor ip2 = null;
+				if (k>=windowSize-1)
+					ip2 = sameType ? ip.createProcessor(stack.getWidth(), stack.getHeight()) : new FloatProcessor(stack.getWidth(), stack.getHeight());
+				addSlice(k, ip2!=null?ip2.getPixels():null);
+				if (ip2!=null) {
+					ip2.resetMinAndMax();
+					stack2.addSlice(null, ip2);
+				}
+			}
+			IJ.showProgress(1.0);
+			return stack2;
+		}
+
+		// adds slice k (0-based) to the window and writes the projection to 'result', if not null
+		private void addSlice(final int k, final Object result) {
+			int nThreads = len<MIN_PARALLEL_PIXELS ? 1 : Prefs.getThreads();
+			Callable[] tasks = new Callable[nThreads];
+			for (int t=0; t<nThreads; t++) {
+				final int from = (int)((long)len*t/nThreads), to = (int)((long)len*(t+1)/nThreads);
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						if (errors!=null)
+							addFloatSum(k, result, from, to);
+						else if (sums!=null)
+							addSum(k, result, from, to);
+						else
+							addExtremum(k, result, from, to);
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+		}
+
+		private float value(int k, int i) {
+			Object pixels = window[k%(windowSize+1)];
+			if (pixels instanceof byte[])
+				return ((byte[])pixels)[i]&0xff;
+			else if (pixels instanceof short[])
+				return ((short[])pixels)[i]&0xffff;
+			else
+				return ((float[])pixels)[i];
+		}
+
+		// sums of 8 and 16-bit data, which are exact
+		private void addSum(int k, Object result, int from, int to) {
+			for (int i=from; i<to; i++) {
+				sums[i] += value(k, i);
+				if (k>=windowSize)
+					sums[i] -= value(k-windowSize, i);
+				if (result!=null) {
+					float projection;
+					if (method==ZProjector.SUM_METHOD)
+						projection = (float)sums[i] + offset;
+					else
+						projection = (float)sums[i]/(float)windowSize;
+					put(result, i, projection);
+				}
+			}
+		}
+
+		private void addFloatSum(int k, Object result, int from, int to) {
+			boolean resum = (k+1)%windowSize==0;  // the window is slices k-windowSize+1 to k
+			for (int i=from; i<to; i++) {
+				if (resum) {
+					sums[i] = errors[i] = 0.0;
+					counts[i] = positiveInfinities[i] = negativeInfinities[i] = 0;
+					for (int k2=k-windowSize+1; k2<=k; k2++)
+						add(i, value(k2, i), 1);
+				} else {
+					add(i, value(k, i), 1);
+					if (k>=windowSize)
+						add(i, value(k-windowSize, i), -1);
+				}
+				if (result!=null) {
+					double sum;
+					if (positiveInfinities[i]>0)
+						sum = negativeInfinities[i]>0 ? Double.NaN : Double.POSITIVE_INFINITY;
+					else if (negativeInfinities[i]>0)
+						sum = Double.NEGATIVE_INFINITY;
+					else
+						sum = sums[i] + errors[i];
+					put(result, i, method==ZProjector.SUM_METHOD ? (float)sum : (float)(sum/counts[i]));
+				}
+			}
+		}
+
+		// adds (sign 1) or removes (sign -1) a float value to or from the sum of
+		// pixel i, with Neumaier's compensated summation
+		private void add(int i, float v, int sign) {
+			if (Float.isNaN(v))
+				return;
+			counts[i] += sign;
+			if (v==Float.POSITIVE_INFINITY)
+				positiveInfinities[i] += sign;
+			else if (v==Float.NEGATIVE_INFINITY)
+				negativeInfinities[i] += sign;
+			else {
+				double s = sums[i];
+				double x = sign*v;
+				double t = s + x;
+				errors[i] += Math.abs(s)>=Math.abs(x) ? (s-t)+x : (x-t)+s;
+				sums[i] = t;
+			}
+		}
+
+		private void addExtremum(int k, Object result, int from, int to) {
+			boolean max = method==ZProjector.MAX_METHOD;
+			for (int i=from; i<to; i++) {
+				int base = i*windowSize;
+				int f = first[i], l = last[i];   // positions count up; the deque is at base+position%windowSize
+				if (f<l && deque[base+f%windowSize]<=k-windowSize)
+					f++;   // leaves the window
+				float v = value(k, i);
+				if (!Float.isNaN(v)) {
+					while (f<l) {
+						float v2 = value(deque[base+(l-1)%windowSize], i);
+						if (max ? v2<=v : v2>=v)
+							l--;
+						else
+							break;
+					}
+					deque[base+l%windowSize] = k;
+					l++;
+				}
+				if (f>=windowSize && l>=windowSize) {
+					f -= windowSize;
+					l -= windowSize;
+				}
+				first[i] = f;
+				last[i] = l;
+				if (result!=null)
+					put(result, i, f<l ? value(deque[base+f%windowSize], i) : (max ? -Float.MAX_VALUE : Float.MAX_VALUE));
+			}
+		}
+
+		// as ZProjector.makeOutputImage
+		private static void put(Object pixels, int i, float v) {
+			if (pixels instanceof byte[])
+				((byte[])pixels)[i] = (byte)(v+0.5f);
+			else if (pixels instanceof short[])
+				((short[])pixels)[i] = (short)(v+0.5f);
+			else
+				((float[])pixels)[i] = v;
+		}
+
+	}
+
+	/* For hyperstacks, only the running projection is made here; grouped
+		projections are made by ZProjector. */
+	boolean showHyperStackDialog(ImagePlus imp) {
+		boolean overFrames = imp.getNFrames()>1;
+		int size = overFrames ? imp.getNFrames() : imp.getNSlices();
+		GenericDialog gd = new GenericDialog("Z Project");
+		gd.addChoice("Projection method:", ZProjector.METHODS, ZProjector.METHODS[method]);
+		gd.addNumericField("Window size:", Math.min(Math.max(groupSize,2), size), 0);
+		gd.addCheckbox("Running projection (sliding window)", running);
+		gd.setInsets(10,0,0);
+		gd.addMessage("The window runs over the "+(overFrames?"frames":"z-slices")+" of each "
+			+(overFrames?"channel and z-slice":"channel")+".\nWithout a running projection,\nthe hyperstack is projected by Z Project.");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		method = gd.getNextChoiceIndex();
+		groupSize = (int)gd.getNextNumber();
+		running = gd.getNextBoolean();
+		if (running && (groupSize<1 || groupSize>size)) {
+			IJ.error("ZProject", "Window size must be between 1 and "+size+".");
+			return false;
+		}
+		return true;
+	}
+
 	boolean showDialog(ImagePlus imp) {
 		int size = imp.getStackSize();
 		GenericDialog gd = new GenericDialog("Z Project");
@@ -72,11 +396,15 @@ public class GroupedZProjector implements PlugIn {
 		}
 		gd.setInsets(10,0,0);
 		gd.addMessage(factors+"...");
+		gd.addCheckbox("Running projection (sliding window)", running);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return false;
 		method = gd.getNextChoiceIndex();
 		groupSize = (int)gd.getNextNumber();
+		running = gd.getNextBoolean();
+		if (running && groupSize>=1 && groupSize<=size)
+			return true;
 		if (groupSize<1 || groupSize>size || (size%groupSize)!=0) {
 			IJ.error("ZProject", "Group size must divide evenly into the stack size.");
 			return false;
@@ -6,6 +6,10 @@ import ij.plugin.filter.*;
 import ij.measure.Calibration;
 import ij.plugin.frame.Recorder;
 import ij.macro.Interpreter;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin implements the Process/Image Calculator command.
 <pre>
@@ -309,28 +313,48 @@ public class ImageCalculator implements PlugIn {
 	
 	ImagePlus duplicateStack(ImagePlus img1) {
 		Calibration cal = img1.getCalibration();
-		ImageStack stack1 = img1.getStack();
+		final ImageStack stack1 = img1.getStack();
 		int width = stack1.getWidth();
 		int height = stack1.getHeight();
-		int n = stack1.getSize();
-		ImageStack stack2 = img1.createEmptyStack();
-		try {
-			for (int i=1; i<=n; i++) {
-				ImageProcessor ip1 = stack1.getProcessor(i);
-				ip1.resetRoi(); 
-				ImageProcessor ip2 = ip1.crop();
-				if (floatResult) {
-					ip2.setCalibrationTable(cal.getCTable());
-					ip2 = ip2.convertToFloat();
-				} 
-				stack2.addSlice(stack1.getSliceLabel(i), ip2);
-			}
+		final int n = stack1.getSize();
+		final float[] cTable = cal.getCTable();
+		final ImageProcessor[] ips = new ImageProcessor[n];
+		final AtomicInteger next = new AtomicInteger(1);
+		final AtomicBoolean outOfMemory = new AtomicBoolean();
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), n));
+		final int bandThreads = Math.max(1, Prefs.getThreads()/nThreads);  // for each slice
+		Callable[] tasks = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					try {
+						for (int i=next.getAndIncrement(); i<=n && !outOfMemory.get(); i=next.getAndIncrement()) {
+							ImageProcessor ip1;
+							synchronized(stack1) {  // virtual stacks are read one slice at a time
+								ip1 = stack1.getProcessor(i);
+							}
+							ip1.resetRoi(); 
+							ImageProcessor ip2 = ip1.crop();
+							if (floatResult) {
+								TypeConverter tc = new TypeConverter(ip2, false);
+								tc.setThreads(bandThreads);
+								ip2 = tc.convertToFloat(cTable);
+							}
+							ips[i-1] = ip2;
+						}
+					} catch(OutOfMemoryError e) {
+						outOfMemory.set(true);
+					}
+					return null;
+				}
+			};
 		}
-		catch(OutOfMemoryError e) {
-			stack2.trim();
-			stack2 = null;
+		ThreadUtil.startAndJoin(tasks);
+		if (outOfMemory.get())
 			return null;
-		}
+		ImageStack stack2 = img1.createEmptyStack();
+		for (int i=1; i<=n; i++)
+			stack2.addSlice(stack1.getSliceLabel(i), ips[i-1]);
 		ImagePlus img3 = new ImagePlus("Result of "+img1.getTitle(), stack2);
 		img3.setCalibration(cal);
 		if (img3.getStackSize()==n) {
@@ -404,164 +404,21 @@ public class Orthogonal_Views implements PlugIn, MouseListener, MouseMotionListe
 	}
 	
 	void updateXZView(Point p, ImageStack is) {
-		int width= is.getWidth();
-		int size=is.getSize();
-		ImageProcessor ip=is.getProcessor(1);
-		
-		int y=p.y;
-		// XZ
-		if (ip instanceof ShortProcessor) {
-			short[] newpix=new short[width*size];
-			for (int i=0; i<size; i++) { 
-				Object pixels=is.getPixels(i+1);
-				if (flipXZ)
-					System.arraycopy(pixels, width*y, newpix, width*(size-i-1), width);
-				else
-					System.arraycopy(pixels, width*y, newpix, width*i, width);
-			}
-			fp1.setPixels(newpix);
-			return;
-		}
-		
-		if (ip instanceof ByteProcessor) {
-			byte[] newpix=new byte[width*size];
-			for (int i=0;i<size; i++) { 
-				Object pixels=is.getPixels(i+1);
-				if (flipXZ)
-					System.arraycopy(pixels, width*y, newpix, width*(size-i-1), width);
-				else
-					System.arraycopy(pixels, width*y, newpix, width*i, width);
-			}
-			fp1.setPixels(newpix);
-			return;
-		}
-		
-		if (ip instanceof FloatProcessor) {
-			float[] newpix=new float[width*size];
-			for (int i=0; i<size; i++) { 
-				Object pixels=is.getPixels(i+1);
-				if (flipXZ)
-					System.arraycopy(pixels, width*y, newpix, width*(size-i-1), width);
-				else
-					System.arraycopy(pixels, width*y, newpix, width*i, width);
-			}
-			fp1.setPixels(newpix);
-			return;
-		}
-		
-		if (ip instanceof ColorProcessor) {
-			int[] newpix=new int[width*size];
-			for (int i=0;i<size; i++) { 
-				Object pixels=is.getPixels(i+1);
-				if (flipXZ)
-					System.arraycopy(pixels, width*y, newpix, width*(size-i-1), width);
-				else
-					System.arraycopy(pixels, width*y, newpix, width*i, width);
-			}
-			fp1.setPixels(newpix);
-			return;
-		}
-		
+		Object[] planes = {fp1.createProcessor(fp1.getWidth(), fp1.getHeight()).getPixels()};
+		Slicer.reslice(is, true, new int[] {p.y}, 0, is.getWidth(), flipXZ, false, planes, false);
+		fp1.setPixels(planes[0]);
 	}
 	
 	void updateYZView(Point p, ImageStack is) {
-		int width= is.getWidth();
-		int height=is.getHeight();
-		int ds=is.getSize();
-		ImageProcessor ip=is.getProcessor(1);
-		int x=p.x;
-		
-		if (ip instanceof FloatProcessor) {
-			float[] newpix=new float[ds*height];
-			for (int i=0;i<ds; i++) { 
-				float[] pixels= (float[]) is.getPixels(i+1);//toFloatPixels(pixels);
-				for (int j=0;j<height;j++)
-					newpix[(ds-i-1)*height + j] = pixels[x + j* width];
-			}
-			fp2.setPixels(newpix);
-		}
-		
-		if (ip instanceof ByteProcessor) {
-			byte[] newpix=new byte[ds*height];
-			for (int i=0;i<ds; i++) { 
-				byte[] pixels= (byte[]) is.getPixels(i+1);//toFloatPixels(pixels);
-				for (int j=0;j<height;j++)
-					newpix[(ds-i-1)*height + j] = pixels[x + j* width];
-			}
-			fp2.setPixels(newpix);
-		}
-		
-		if (ip instanceof ShortProcessor) {
-			short[] newpix=new short[ds*height];
-			for (int i=0;i<ds; i++) { 
-				short[] pixels= (short[]) is.getPixels(i+1);//toFloatPixels(pixels);
-				for (int j=0;j<height;j++)
-					newpix[(ds-i-1)*height + j] = pixels[x + j* width];
-			}
-			fp2.setPixels(newpix);
-		}
-		
-		if (ip instanceof ColorProcessor) {
-			int[] newpix=new int[ds*height];
-			for (int i=0;i<ds; i++) { 
-				int[] pixels= (int[]) is.getPixels(i+1);//toFloatPixels(pixels);
-				for (int j=0;j<height;j++)
-					newpix[(ds-i-1)*height + j] = pixels[x + j* width];
-			}
-			fp2.setPixels(newpix);
-		}
-		if (!flipXZ)
-			fp2.flipVertical();
-		
+		Object[] planes = {fp2.createProcessor(fp2.getWidth(), fp2.getHeight()).getPixels()};
+		Slicer.reslice(is, false, new int[] {p.x}, 0, is.getHeight(), flipXZ, false, planes, false);
+		fp2.setPixels(planes[0]);
 	}
 	
 	void updateZYView(Point p, ImageStack is) {
-		int width= is.getWidth();
-		int height=is.getHeight();
-		int ds=is.getSize();
-		ImageProcessor ip=is.getProcessor(1);
-		int x=p.x;
-		
-		if (ip instanceof FloatProcessor) {
-			float[] newpix=new float[ds*height];
-			for (int i=0;i<ds; i++) { 
-				float[] pixels= (float[]) is.getPixels(i+1);//toFloatPixels(pixels);
-				for (int y=0;y<height;y++)
-					newpix[i + y*ds] = pixels[x + y* width];
-			}
-			fp2.setPixels(newpix);
-		}
-		
-		if (ip instanceof ByteProcessor) {
-			byte[] newpix=new byte[ds*height];
-			for (int i=0;i<ds; i++) { 
-				byte[] pixels= (byte[]) is.getPixels(i+1);//toFloatPixels(pixels);
-				for (int y=0;y<height;y++)
-					newpix[i + y*ds] = pixels[x + y* width];
-			}
-			fp2.setPixels(newpix);
-		}
-		
-		if (ip instanceof ShortProcessor) {
-			short[] newpix=new short[ds*height];
-			for (int i=0;i<ds; i++) { 
-				short[] pixels= (short[]) is.getPixels(i+1);//toFloatPixels(pixels);
-				for (int y=0;y<height;y++)
-					newpix[i + y*ds] = pixels[x + y* width];
-			}
-			fp2.setPixels(newpix);
-		}
-		
-		if (ip instanceof ColorProcessor) {
-			int[] newpix=new int[ds*height];
-			for (int i=0;i<ds; i++) { 
-				int[] pixels= (int[]) is.getPixels(i+1);//toFloatPixels(pixels);
-				for (int y=0;y<height;y++)
-					newpix[i + y*ds] = pixels[x + y* width];
-			}
-			fp2.setPixels(newpix);
-		}
-		
+		Object[] planes = {fp2.createProcessor(fp2.getWidth(), fp2.getHeight()).getPixels()};
+		Slicer.reslice(is, false, new int[] {p.x}, 0, is.getHeight(), false, true, planes, false);
+		fp2.setPixels(planes[0]);
 	}
 	 
 	/** draws the crosses on the images */
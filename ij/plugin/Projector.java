@@ -4,8 +4,12 @@ import ij.gui.*;
 import ij.process.*;
 import ij.measure.Calibration;
 import ij.macro.Interpreter;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.awt.image.*;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 This plugin creates a sequence of projections of a rotating volume (stack of slices) onto a plane using
@@ -55,12 +59,12 @@ public class Projector implements PlugIn {
 	private ImageStack stack2;
 	private int width, height, imageWidth;
 	private int left, right, top, bottom;
-	private byte[] projArray, opaArray, brightCueArray;
-	private short[] zBuffer, cueZBuffer, countBuffer;
-	private int[] sumBuffer;
+	private int nSlices, xcenter, ycenter, zcenter, projwidth, projheight;
+	private byte[][] slices;
+	private Buffers[] buffers;
 	private boolean isRGB;
 	private String label = "";
-	private boolean done;
+	private volatile boolean done;
 	private boolean batchMode = Interpreter.isBatchMode();
 	private double progressBase=0.0, progressScale=1.0;
 	private boolean showMicroProgress = true;
@@ -101,6 +105,36 @@ public class Projector implements PlugIn {
 		}
 	}
 
+	/* Returns the projections of an 8, 16 or 32-bit stack, as run() does
+		with the specified settings but without the dialog. The other
+		settings keep their defaults. Used by the tests. */
+	ImagePlus project(ImagePlus imp, int method, int axis, double sliceInterval, int angleInc, boolean interpolate) {
+		this.imp = imp;
+		projectionMethod = method;
+		axisOfRotation = axis;
+		this.sliceInterval = sliceInterval;
+		initAngle = 0;
+		totalAngle = 360;
+		this.angleInc = angleInc;
+		this.interpolate = interpolate;
+		isRGB = false;
+		if (interpolate && sliceInterval>1.0) {
+			imp = zScale(imp, false);
+			if (imp==null) return null;
+			this.sliceInterval = 1.0;
+		}
+		return doProjections(imp);
+	}
+
+	/* Sets the opacity and the surface and interior depth-cueing for
+		project(), with the values of the fields, i.e., 100 minus the
+		percentages shown in the dialog for depth-cueing. */
+	void setCueing(int opacity, int depthCueSurf, int depthCueInt) {
+		this.opacity = opacity;
+		this.depthCueSurf = depthCueSurf;
+		this.depthCueInt = depthCueInt;
+	}
+
 	private boolean showDialog() {
 		ImageProcessor ip = imp.getProcessor();
 		if (ip.isThreshold()) {
@@ -260,15 +294,11 @@ public class Projector implements PlugIn {
     	Prefs.useInvertingLut = saveUseInvertingLut;
     }
 
+	/** Renders the projections in parallel: each thread renders whole angles, or,
+		if there are fewer angles than threads, a slab of slices of each angle. */
 	private  ImagePlus doProjections(ImagePlus imp) {
-		int nSlices;				// number of slices in volume
-		int projwidth, projheight;	//dimensions of projection image
-		int xcenter, ycenter, zcenter;	//coordinates of center of volume of rotation
 		int theta;				//current angle of rotation in degrees
 		double thetarad;			//current angle of rotation in radians
-		int sintheta, costheta;		//sine and cosine of current angle
-		int offset;
-		int curval, prevval, nextval, aboveval, belowval;
 		int n, nProjections, angle;
 		boolean minProjSize = true;
 		
@@ -312,6 +342,9 @@ public class Projector implements PlugIn {
 		xcenter = (left + right)/2;          //find center of volume of rotation
 		ycenter = (top + bottom)/2;
 		zcenter = (int)(nSlices*sliceInterval/2.0+0.5);
+		slices = new byte[nSlices][];
+		for (int k=1; k<=nSlices; k++)
+			slices[k-1] = (byte[])stack.getPixels(k);
 
 		projwidth = 0;
 		projheight = 0;
@@ -332,13 +365,13 @@ public class Projector implements PlugIn {
 		}
 		if ((projwidth%2)==1)
 			projwidth++;
-		int projsize = projwidth * projheight;		
+		int projsize = projwidth * projheight;
 		if (projwidth<=0 || projheight<=0) {
 			IJ.error("'projwidth' or 'projheight' <= 0");
 			return null;
 		}
 		try {
-			allocateArrays(nProjections, projwidth, projheight);
+			allocateArrays(nProjections, projwidth, projheight, Math.max(1, Math.min(Prefs.getThreads(), nSlices)));
 		}  catch(OutOfMemoryError e) {
 			Object[] images = stack2.getImageArray();
 			if (images!=null)
@@ -355,90 +388,63 @@ public class Projector implements PlugIn {
 		projections.setCalibration(imp.getCalibration());
 		//projections.show();
 		
-		IJ.resetEscape();
+		final int[] costhetas = new int[nProjections];	//sine and cosine of each angle
+		final int[] sinthetas = new int[nProjections];
 		theta = initAngle;
-		IJ.resetEscape();
 		for (n=0; n<nProjections; n++) {
-			IJ.showStatus(n+"/"+nProjections);
-			showProgress((double)n/nProjections);
 			thetarad = theta * Math.PI/180.0;
-			costheta = (int)(BIGPOWEROF2*Math.cos(thetarad) + 0.5);
-			sintheta = (int)(BIGPOWEROF2*Math.sin(thetarad) + 0.5);
-			
-			projArray = (byte[])stack2.getPixels(n+1);
-			if (projArray==null)
-				break;
-			if ((projectionMethod==nearestPoint) || (opacity>0)) {
-  				for (int i=0; i<projsize; i++)
-					zBuffer[i] = (short)32767;
-			}
-			if ((opacity>0) && (projectionMethod!=nearestPoint)) {
-  				for (int i=0; i<projsize; i++)
-					opaArray[i] = (byte)0;
-			}
-			if ((projectionMethod==brightestPoint) && (depthCueInt<100)) {
-   				for (int i=0; i<projsize; i++)
-					brightCueArray[i] = (byte)0;
- 				for (int i=0; i<projsize; i++)
-					cueZBuffer[i] = (short)0;
-			}
-			if (projectionMethod==meanValue) {
- 				for (int i=0; i<projsize; i++)
-					sumBuffer[i] = 0;
- 				for (int i=0; i<projsize; i++)
-					countBuffer[i] = (short)0;
-			}
-			switch (axisOfRotation) {
-				case xAxis:
-					doOneProjectionX (nSlices, ycenter, zcenter,projwidth, projheight, costheta, sintheta);
-					break;
-				case yAxis:
-					doOneProjectionY (nSlices, xcenter, zcenter,projwidth, projheight, costheta, sintheta);
-					break;
-				case zAxis:
-					doOneProjectionZ (nSlices, xcenter, ycenter, zcenter, projwidth, projheight, costheta, sintheta);
+			costhetas[n] = (int)(BIGPOWEROF2*Math.cos(thetarad) + 0.5);
+			sinthetas[n] = (int)(BIGPOWEROF2*Math.sin(thetarad) + 0.5);
+			theta = (theta + angleInc)%360;
+		}
+		IJ.resetEscape();
+		final int nAngles = nProjections;
+		int nThreads = buffers.length;
+		if (nThreads>1 && nProjections<nThreads) {
+			for (n=0; n<nProjections; n++) {
+				IJ.showStatus(n+"/"+nProjections);
+				showProgress((double)n/nProjections);
+				projectSlabs((byte[])stack2.getPixels(n+1), costhetas[n], sinthetas[n]);
+				finish(buffers[0]);
+				if (IJ.escapePressed()) {
+					abort();
 					break;
-			}
-			
-			if (projectionMethod==meanValue) {
-				int count;
-				for (int i=0; i<projsize; i++) {
-					count = countBuffer[i];
-					if (count!=0)
-						projArray[i] = (byte)(sumBuffer[i]/count);
 				}
 			}
-			if ((opacity>0) && (projectionMethod!=nearestPoint)) {
- 				for (int i=0; i<projsize; i++)
-					projArray[i] = (byte)((opacity*(opaArray[i]&0xff) + (100-opacity)*(projArray[i] &0xff))/100);
-			}
-			if (axisOfRotation==zAxis) {
-  				for (int i=projwidth; i<(projsize-projwidth); i++) {
-					curval = projArray[i]&0xff;
-					prevval = projArray[i-1]&0xff;
-					nextval = projArray[i+1]&0xff;
-					aboveval = projArray[i-projwidth]&0xff;
-					belowval = projArray[i+projwidth]&0xff;
-					if ((curval==0)&&(prevval!=0)&&(nextval!=0)&&(aboveval!=0)&&(belowval!=0))
-						projArray[i] = (byte)((prevval+nextval+aboveval+belowval)/4);
-				}
-			}
-
-			theta = (theta + angleInc)%360;
-			//if (projections.getWindow()==null && IJ.getInstance()!=null && !batchMode)   // is "Projections" window still open?
-			//	{done=true; break;}
-			if (IJ.escapePressed()) {
-				done=true;
-				IJ.beep();
-				IJ.showProgress(1.0);
-				IJ.showStatus("aborted");
-				break;
+		} else {
+			final AtomicInteger next = new AtomicInteger();
+			final AtomicInteger count = new AtomicInteger();
+			Callable[] tasks = new Callable[Math.min(nThreads, nProjections)];
+			for (int t=0; t<tasks.length; t++) {
+				final Buffers b = buffers[t];
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						for (int n=next.getAndIncrement(); n<nAngles && !done; n=next.getAndIncrement()) {
+							b.reset((byte[])stack2.getPixels(n+1));
+							project(b, 1, nSlices, costhetas[n], sinthetas[n]);
+							finish(b);
+							int finished = count.incrementAndGet();
+							IJ.showStatus(finished+"/"+nAngles);
+							showProgress((double)finished/nAngles);
+							if (IJ.escapePressed())
+								abort();
+						}
+						return null;
+					}
+				};
 			}
-			projections.setSlice(n+1);
- 		} //end for all projections
+			ThreadUtil.startAndJoin(tasks);
+		}
+		if (!done)
+			projections.setSlice(nProjections);
+		slices = null;
  		showProgress(1.0);
  
 		if (debugMode) {
+			Buffers b = buffers[0];
+			byte[] projArray=b.projArray, opaArray=b.opaArray, brightCueArray=b.brightCueArray;
+			short[] zBuffer=b.zBuffer, cueZBuffer=b.cueZBuffer, countBuffer=b.countBuffer;
+			int[] sumBuffer = b.sumBuffer;
 			if (projArray!=null) new ImagePlus("projArray", new ByteProcessor(projwidth, projheight, projArray, null)).show();
 			if (opaArray!=null) new ImagePlus("opaArray", new ByteProcessor(projwidth, projheight, opaArray, null)).show();
 			if (brightCueArray!=null) new ImagePlus("brightCueArray", new ByteProcessor(projwidth, projheight, brightCueArray, null)).show();
@@ -458,28 +464,168 @@ public class Projector implements PlugIn {
 	} // doProjection()
 	
 	
-	private void allocateArrays(int nProjections, int projwidth, int projheight) {
+	private void allocateArrays(int nProjections, int projwidth, int projheight, int nBuffers) {
 		int projsize = projwidth*projheight;
 		ColorModel cm = imp.getProcessor().getColorModel();
 		if (isRGB) cm = null;
 		stack2 = new ImageStack(projwidth, projheight, cm);
-		projArray = new byte[projsize];
 		for (int i=0; i<nProjections; i++)
 			stack2.addSlice(null, new byte[projsize]);
-		if ((projectionMethod==nearestPoint) || (opacity > 0))
-			zBuffer = new short[projsize];		
-		if ((opacity>0) && (projectionMethod!=nearestPoint))
- 			opaArray = new byte[projsize];
-		if ((projectionMethod==brightestPoint) && (depthCueInt<100)) {
-			brightCueArray = new byte[projsize];
-			cueZBuffer = new short[projsize];
+		buffers = new Buffers[nBuffers];
+		for (int i=0; i<nBuffers; i++)
+			buffers[i] = new Buffers(projsize);
+	}
+
+	private synchronized void abort() {
+		if (done)
+			return;
+		done = true;
+		IJ.beep();
+		IJ.showProgress(1.0);
+		IJ.showStatus("aborted");
+	}
+
+	/* Renders one angle with each slab of slices in its own buffers, in parallel, and
+		combines the slabs in buffers[0], which render into 'projArray'. */
+	private void projectSlabs(byte[] projArray, final int costheta, final int sintheta) {
+		final int nSlabs = buffers.length;
+		Callable[] tasks = new Callable[nSlabs];
+		for (int t=0; t<nSlabs; t++) {
+			final Buffers b = buffers[t];
+			final int k1 = 1 + (int)((long)t*nSlices/nSlabs);
+			final int k2 = (int)((long)(t+1)*nSlices/nSlabs);
+			b.reset(t==0 ? projArray : null);
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					project(b, k1, k2, costheta, sintheta);
+					return null;
+				}
+			};
 		}
+		ThreadUtil.startAndJoin(tasks);
+		for (int t=1; t<nSlabs; t++)
+			buffers[0].add(buffers[t]);
+	}
+
+	/* Renders slices k1 to k2 at the angle given by 'costheta' and 'sintheta' into 'b'. */
+	private void project(Buffers b, int k1, int k2, int costheta, int sintheta) {
+		switch (axisOfRotation) {
+			case xAxis:
+				doOneProjectionX (b, k1, k2, nSlices, ycenter, zcenter,projwidth, projheight, costheta, sintheta);
+				break;
+			case yAxis:
+				doOneProjectionY (b, k1, k2, nSlices, xcenter, zcenter,projwidth, projheight, costheta, sintheta);
+				break;
+			case zAxis:
+				doOneProjectionZ (b, k1, k2, nSlices, xcenter, ycenter, zcenter, projwidth, projheight, costheta, sintheta);
+				break;
+		}
+	}
+
+	/* Computes the projection in b.projArray from the buffers. */
+	private void finish(Buffers b) {
+		byte[] projArray = b.projArray;
+		int projsize = projArray.length;
+		int curval, prevval, nextval, aboveval, belowval;
 		if (projectionMethod==meanValue) {
-			sumBuffer = new int[projsize];
-			countBuffer = new short[projsize];
+			int count;
+			for (int i=0; i<projsize; i++) {
+				count = b.countBuffer[i];
+				if (count!=0)
+					projArray[i] = (byte)(b.sumBuffer[i]/count);
+			}
+		}
+		if ((opacity>0) && (projectionMethod!=nearestPoint)) {
+			for (int i=0; i<projsize; i++)
+				projArray[i] = (byte)((opacity*(b.opaArray[i]&0xff) + (100-opacity)*(projArray[i] &0xff))/100);
+		}
+		if (axisOfRotation==zAxis) {
+			for (int i=projwidth; i<(projsize-projwidth); i++) {
+				curval = projArray[i]&0xff;
+				prevval = projArray[i-1]&0xff;
+				nextval = projArray[i+1]&0xff;
+				aboveval = projArray[i-projwidth]&0xff;
+				belowval = projArray[i+projwidth]&0xff;
+				if ((curval==0)&&(prevval!=0)&&(nextval!=0)&&(aboveval!=0)&&(belowval!=0))
+					projArray[i] = (byte)((prevval+nextval+aboveval+belowval)/4);
+			}
+		}
+	}
+
+	/* The projection and the buffers used to render one angle. */
+	private class Buffers {
+		byte[] projArray, opaArray, brightCueArray;
+		short[] zBuffer, cueZBuffer, countBuffer;
+		int[] sumBuffer;
+		int projsize;
+
+		Buffers(int projsize) {
+			this.projsize = projsize;
+			if ((projectionMethod==nearestPoint) || (opacity > 0))
+				zBuffer = new short[projsize];
+			if ((opacity>0) && (projectionMethod!=nearestPoint))
+				opaArray = new byte[projsize];
+			if ((projectionMethod==brightestPoint) && (depthCueInt<100)) {
+				brightCueArray = new byte[projsize];
+				cueZBuffer = new short[projsize];
+			}
+			if (projectionMethod==meanValue) {
+				sumBuffer = new int[projsize];
+				countBuffer = new short[projsize];
+			}
+		}
+
+		/* Clears the buffers; renders into 'pixels', or into a
+			cleared array of its own if 'pixels' is null. */
+		void reset(byte[] pixels) {
+			if (pixels!=null)
+				projArray = pixels;
+			else if (projArray==null)
+				projArray = new byte[projsize];
+			else
+				Arrays.fill(projArray, (byte)0);
+			if (zBuffer!=null)
+				Arrays.fill(zBuffer, (short)32767);
+			if (opaArray!=null)
+				Arrays.fill(opaArray, (byte)0);
+			if (brightCueArray!=null) {
+				Arrays.fill(brightCueArray, (byte)0);
+				Arrays.fill(cueZBuffer, (short)0);
+			}
+			if (sumBuffer!=null) {
+				Arrays.fill(sumBuffer, 0);
+				Arrays.fill(countBuffer, (short)0);
+			}
+		}
+
+		/* Adds the rendering of the slices following the ones rendered
+			into this object, with the same result as rendering all in sequence. */
+		void add(Buffers b) {
+			for (int i=0; i<projsize; i++) {
+				if (zBuffer!=null && b.zBuffer[i]<zBuffer[i]) {
+					zBuffer[i] = b.zBuffer[i];
+					if (opaArray!=null)
+						opaArray[i] = b.opaArray[i];
+					else
+						projArray[i] = b.projArray[i];
+				}
+				if (sumBuffer!=null) {
+					sumBuffer[i] += b.sumBuffer[i];
+					countBuffer[i] += b.countBuffer[i];
+				} else if (brightCueArray!=null) {
+					int value = b.brightCueArray[i]&0xff;
+					if (value>(brightCueArray[i]&0xff) || value==(brightCueArray[i]&0xff) && b.cueZBuffer[i]>cueZBuffer[i]) {
+						brightCueArray[i] = b.brightCueArray[i];
+						cueZBuffer[i] = b.cueZBuffer[i];
+						projArray[i] = b.projArray[i];
+					}
+				} else if (projectionMethod==brightestPoint) {
+					if ((b.projArray[i]&0xff)>(projArray[i]&0xff))
+						projArray[i] = b.projArray[i];
+				}
+			}
 		}
 	}
-				
 
 	/**
 	This method projects each pixel of a volume (stack of slices) onto a plane as the volume rotates about the x-axis. Integer
@@ -488,7 +634,7 @@ public class Projector implements PlugIn {
 	This procedure returns various buffers which are actually used by DoProjections() to find the final projected image for the volume
 	of slices at the current angle.
 	*/
-	private void doOneProjectionX (int nSlices, int ycenter, int zcenter, int projwidth, int projheight, int costheta, int sintheta) {
+	private void doOneProjectionX (Buffers b, int k1, int k2, int nSlices, int ycenter, int zcenter, int projwidth, int projheight, int costheta, int sintheta) {
 		int     thispixel;			//current pixel to be projected
 		int    offset, offsetinit;		//precomputed offsets into an image buffer
    		int z;					//z-coordinate of points in current slice before rotation
@@ -503,6 +649,9 @@ public class Projector implements PlugIn {
 		int zsintheta, zcostheta, ysinthetainit, ycosthetainit;
 		byte[] pixels;
 		int projsize = projwidth * projheight;
+		byte[] projArray=b.projArray, opaArray=b.opaArray, brightCueArray=b.brightCueArray;
+		short[] zBuffer=b.zBuffer, cueZBuffer=b.cueZBuffer, countBuffer=b.countBuffer;
+		int[] sumBuffer = b.sumBuffer;
 
 		//find z-coordinates of first and last slices
 		zmax = zcenter + projheight/2;  
@@ -520,8 +669,8 @@ public class Projector implements PlugIn {
 		ysinthetainit = (top - ycenter - 1) * sintheta;
 		offsetinit = ((projheight-bottom+top)/2) * projwidth + (projwidth - right + left)/2 - 1;
 
-		for (int k=1; k<=nSlices; k++) {
-			pixels = (byte[])stack.getPixels(k);
+		for (int k=k1; k<=k2; k++) {
+			pixels = slices[k-1];
 			z = (int)((k-1)*sliceInterval+0.5) - zcenter;
 			zcostheta = z * costheta;
 			zsintheta = z * sintheta;
@@ -588,7 +737,7 @@ public class Projector implements PlugIn {
 	
 
 	/** Projects each pixel of a volume (stack of slices) onto a plane as the volume rotates about the y-axis. */
-	private void  doOneProjectionY (int nSlices, int xcenter, int zcenter, int projwidth, int projheight, int costheta, int sintheta) {
+	private void  doOneProjectionY (Buffers b, int k1, int k2, int nSlices, int xcenter, int zcenter, int projwidth, int projheight, int costheta, int sintheta) {
 		int thispixel;			//current pixel to be projected
 		int offset, offsetinit;		//precomputed offsets into an image buffer
 		int z;					//z-coordinate of points in current slice before rotation
@@ -603,6 +752,9 @@ public class Projector implements PlugIn {
 		int zsintheta, zcostheta, xsinthetainit, xcosthetainit;
 		byte[] pixels;
 		int projsize = projwidth * projheight;
+		byte[] projArray=b.projArray, opaArray=b.opaArray, brightCueArray=b.brightCueArray;
+		short[] zBuffer=b.zBuffer, cueZBuffer=b.cueZBuffer, countBuffer=b.countBuffer;
+		int[] sumBuffer = b.sumBuffer;
 
 		//find z-coordinates of first and last slices
 		zmax = zcenter + projwidth/2;  
@@ -618,8 +770,8 @@ public class Projector implements PlugIn {
 		BrightestPt = (projectionMethod==brightestPoint);
 		xcosthetainit = (left - xcenter - 1) * costheta;
 		xsinthetainit = (left - xcenter - 1) * sintheta;
-		for (int k=1; k<=nSlices; k++) {
- 			pixels = (byte[])stack.getPixels(k);
+		for (int k=k1; k<=k2; k++) {
+ 			pixels = slices[k-1];
 			z = (int)((k-1)*sliceInterval+0.5) - zcenter;
 			zcostheta = z * costheta;
 			zsintheta = z * sintheta;
@@ -682,7 +834,7 @@ public class Projector implements PlugIn {
 	
 
 	/** Projects each pixel of a volume (stack of slices) onto a plane as the volume rotates about the z-axis. */
-	private void doOneProjectionZ (int nSlices, int xcenter, int ycenter, int zcenter, int projwidth, int projheight, int costheta, int sintheta) {
+	private void doOneProjectionZ (Buffers b, int k1, int k2, int nSlices, int xcenter, int ycenter, int zcenter, int projwidth, int projheight, int costheta, int sintheta) {
 		int thispixel;        //current pixel to be projected
 		int offset, offsetinit; //precomputed offsets into an image buffer
 		int z;   //z-coordinate of points in current slice before rotation
@@ -697,6 +849,9 @@ public class Projector implements PlugIn {
 		int xsinthetainit, xcosthetainit, ysinthetainit, ycosthetainit;
   		byte[] pixels;
 		int projsize = projwidth * projheight;
+		byte[] projArray=b.projArray, opaArray=b.opaArray, brightCueArray=b.brightCueArray;
+		short[] zBuffer=b.zBuffer, cueZBuffer=b.cueZBuffer, countBuffer=b.countBuffer;
+		int[] sumBuffer = b.sumBuffer;
 
 		//find z-coordinates of first and last slices
 		//zmax = zcenter + projwidth/2;  
@@ -718,8 +873,8 @@ public class Projector implements PlugIn {
 		ycosthetainit = (top - ycenter - 1) * costheta;
 		ysinthetainit = (top - ycenter - 1) * sintheta;
 		offsetinit = ((projheight-bottom+top)/2) * projwidth + (projwidth - right + left)/2 - 1;
- 		for (int k=1; k<=nSlices; k++) {
-			pixels = (byte[])stack.getPixels(k);
+ 		for (int k=k1; k<=k2; k++) {
+			pixels = slices[k-1];
 			z = (int)((k-1)*sliceInterval+0.5) - zcenter;
 			ycostheta = ycosthetainit;
 			ysintheta = ysinthetainit;
@@ -782,50 +937,60 @@ public class Projector implements PlugIn {
 		//new ImagePlus("f", new FloatProcessor(projwidth,projheight,f,null)).show();
 	} // end doOneProjectionZ()
 
-	private ImagePlus zScale(ImagePlus imp, boolean showProgress) {
+	private ImagePlus zScale(ImagePlus imp, final boolean showProgress) {
 		if (imp.getBitDepth()==16 || imp.getBitDepth()==32)
 			IJ.run(imp, "8-bit", "");
 		IJ.showStatus("Z Scaling...");
-		ImageStack stack1 = imp.getStack();
-		int depth1 = stack1.getSize();
+		final ImageStack stack1 = imp.getStack();
+		final int depth1 = stack1.getSize();
 		ImagePlus imp2 = null;
 		String title = imp.getTitle();
-		ImageProcessor ip = imp.getProcessor();
+		final ImageProcessor ip = imp.getProcessor();
 		ColorModel cm = ip.getColorModel();
-		int width1 = imp.getWidth();
+		final int width1 = imp.getWidth();
 		int height1 = imp.getHeight();
-		Rectangle r = ip.getRoi();
-		int width2 = r.width;
-		int height2 = r.height;
-		int depth2 = (int)(stack1.getSize()*sliceInterval+0.5);
+		final Rectangle r = ip.getRoi();
+		final int width2 = r.width;
+		final int height2 = r.height;
+		final int depth2 = (int)(stack1.getSize()*sliceInterval+0.5);
 		imp2 = NewImage.createImage(title, width2, height2, depth2, isRGB?24:8, NewImage.FILL_BLACK);
 		if (imp2==null || depth2!=imp2.getStackSize()) return null;
-		ImageStack stack2 = imp2.getStack();
-		ImageProcessor xzPlane1 = ip.createProcessor(width2, depth1);
-		xzPlane1.setInterpolate(true);
-		ImageProcessor xzPlane2;		
-		int[] line = new int[width2];
-		for (int y=0; y<height2; y++) {
-			for (int z=0; z<depth1; z++) {
-				if (isRGB)
-					getRGBRow(stack1, r.x, r.y+y, z, width1, width2, line);
-				else
-					getByteRow(stack1, r.x, r.y+y, z, width1, width2, line);
-				xzPlane1.putRow(0, z, line, width2);
-			}
-			//if (y==r.y) new ImagePlus("xzPlane", xzPlane1).show();
-			xzPlane1.setProgressBar(null);
-			xzPlane2 = xzPlane1.resize(width2, depth2);
-			for (int z=0; z<depth2; z++) {
-				xzPlane2.getRow(0, z, line, width2);
-				if (isRGB)
-					putRGBRow(stack2, y, z, width2, line);
-				else
-					putByteRow(stack2, y, z, width2, line);
-			}
-			if (showProgress)
-				IJ.showProgress(y, height2-1);
+		final ImageStack stack2 = imp2.getStack();
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger count = new AtomicInteger();
+		Callable[] tasks = new Callable[stack1.isVirtual() ? 1 : Math.max(1, Math.min(Prefs.getThreads(), height2))];
+		for (int t=0; t<tasks.length; t++) {
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					ImageProcessor xzPlane1 = ip.createProcessor(width2, depth1);
+					xzPlane1.setInterpolate(true);
+					ImageProcessor xzPlane2;
+					int[] line = new int[width2];
+					for (int y=next.getAndIncrement(); y<height2; y=next.getAndIncrement()) {
+						for (int z=0; z<depth1; z++) {
+							if (isRGB)
+								getRGBRow(stack1, r.x, r.y+y, z, width1, width2, line);
+							else
+								getByteRow(stack1, r.x, r.y+y, z, width1, width2, line);
+							xzPlane1.putRow(0, z, line, width2);
+						}
+						xzPlane1.setProgressBar(null);
+						xzPlane2 = xzPlane1.resize(width2, depth2);
+						for (int z=0; z<depth2; z++) {
+							xzPlane2.getRow(0, z, line, width2);
+							if (isRGB)
+								putRGBRow(stack2, y, z, width2, line);
+							else
+								putByteRow(stack2, y, z, width2, line);
+						}
+						if (showProgress)
+							IJ.showProgress(count.getAndIncrement(), height2-1);
+					}
+					return null;
+				}
+			};
 		}
+		ThreadUtil.startAndJoin(tasks);
 		//imp2.show();
 		//imp2.setCalibration(imp.getCalibration());
 		ImageProcessor ip2 = imp2.getProcessor();
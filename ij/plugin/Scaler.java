@@ -4,10 +4,13 @@ import ij.gui.*;
 import ij.process.*;
 import ij.measure.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import ij.plugin.frame.Recorder;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin implements the Image/Scale command. */
 public class Scaler implements PlugIn, TextListener, FocusListener {
@@ -111,23 +114,24 @@ public class Scaler implements PlugIn, TextListener, FocusListener {
 		boolean virtualStack = stack1.isVirtual();
 		double min = imp.getDisplayRangeMin();
 		double max = imp.getDisplayRangeMax();
-		ImageProcessor ip1, ip2;
 		int method = interpolationMethod;
 		if (w==1 || h==1)
 			method = ImageProcessor.NONE;
-		for (int i=1; i<=nSlices; i++) {
-			IJ.showStatus("Scale: " + i + "/" + nSlices);
-			ip1 = stack1.getProcessor(i);
-			String label = stack1.getSliceLabel(i);
-			if (crop) {
-				ip1.setRoi(r);
-				ip1 = ip1.crop();
+		// the slices are read in batches and scaled in parallel
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), nSlices));
+		int batchSize = 2*nThreads;
+		for (int i1=1; i1<=nSlices; i1+=batchSize) {
+			IJ.showStatus("Scale: " + i1 + "/" + nSlices);
+			int n = Math.min(batchSize, nSlices-i1+1);
+			final ImageProcessor[] ips = new ImageProcessor[n];
+			for (int i=0; i<n; i++)
+				ips[i] = stack1.getProcessor(i1+i);
+			scaleSlices(ips, crop?r:null, method, newWidth, newHeight, nThreads);
+			for (int i=0; i<n; i++) {
+				if (ips[i]!=null)
+					stack2.addSlice(stack1.getSliceLabel(i1+i), ips[i]);
 			}
-			ip1.setInterpolationMethod(method);
-			ip2 = ip1.resize(newWidth, newHeight, averageWhenDownsizing);
-			if (ip2!=null)
-				stack2.addSlice(label, ip2);
-			IJ.showProgress(i, nSlices);
+			IJ.showProgress(i1+n-1, nSlices);
 		}
 		imp2.setStack(title, stack2);
 		if (virtualStack)
@@ -167,6 +171,29 @@ public class Scaler implements PlugIn, TextListener, FocusListener {
 		return imp2;
 	}
 
+	/* Replaces each processor in 'ips' by its scaled version, in parallel. */
+	private void scaleSlices(final ImageProcessor[] ips, final Rectangle r, final int method, final int newWidth, final int newHeight, int nThreads) {
+		final AtomicInteger next = new AtomicInteger();
+		Callable[] tasks = new Callable[Math.min(nThreads, ips.length)];
+		for (int t=0; t<tasks.length; t++) {
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					for (int i=next.getAndIncrement(); i<ips.length; i=next.getAndIncrement()) {
+						ImageProcessor ip1 = ips[i];
+						if (r!=null) {
+							ip1.setRoi(r);
+							ip1 = ip1.crop();
+						}
+						ip1.setInterpolationMethod(method);
+						ips[i] = ip1.resize(newWidth, newHeight, averageWhenDownsizing);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+	}
+
 	private void scale(ImagePlus imp) {
 		ImageProcessor ip = imp.getProcessor();
 		if (newWindow) {
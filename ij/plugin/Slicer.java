@@ -4,9 +4,11 @@ import ij.process.*;
 import ij.gui.*;
 import ij.measure.*;
 import ij.util.Tools;
+import ij.util.ThreadUtil;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /** Implements the Image/Stacks/Reslice command. Known shortcomings: 
 	for FREELINE or POLYLINE ROI, spatial calibration is ignored: 
@@ -17,6 +19,9 @@ import java.util.*;
 public class Slicer implements PlugIn, TextListener, ItemListener {
 
 	private static final String[] starts = {"Top", "Left", "Bottom", "Right"};
+	private static final int BLOCK_SIZE = 64;               // rows of a tile transposed at once
+	private static final int MIN_PARALLEL_PIXELS = 1<<16;
+	private static final int MAX_CHUNK_PIXELS = 1<<26;      // resliced before scaling in z
 	private static String startAtS = starts[0];
 	private static boolean rotateS;
 	private static boolean flipS;
@@ -423,6 +428,15 @@ public class Slicer implements PlugIn, TextListener, ItemListener {
 					+"Is the voxel size in Image>Properties correct?.");
 				return null;
 		 }
+		 if (roi.getType()==Roi.RECTANGLE) {
+				int[] positions = getOrthoPositions(imp, x1, y1, x2, y2, xInc, yInc);
+				if (positions!=null) {
+					boolean horizontal = y1==y2;
+					int start = horizontal ? (int)x1 : (int)y1;
+					int length = horizontal ? (int)x2-(int)x1 : (int)y2-(int)y1;
+					return resliceOrtho(imp, positions, horizontal, start, length);
+				}
+		 }
 		 boolean virtualStack = imp.getStack().isVirtual();
 		 String status = null;
 		 ImagePlus imp2 = null;
@@ -455,9 +469,216 @@ public class Slicer implements PlugIn, TextListener, ItemListener {
 		 return new ImagePlus("Reslice of "+imp.getShortTitle(), stack2);
 	}
 
+	/* Returns the rows (Top, Bottom) or columns (Left, Right) of the
+		output slices if getSlice() would read them with getOrthoLine()
+		from inside the image, otherwise null. */
+	private int[] getOrthoPositions(ImagePlus imp, double x1, double y1, double x2, double y2, double xInc, double yInc) {
+		int w = imp.getWidth();
+		int h = imp.getHeight();
+		boolean horizontal = y1==y2;
+		int[] positions = new int[outputSlices];
+		for (int i=0; i<outputSlices; i++) {
+			boolean ortho = (int)x1==x1&&(int)y1==y1&&x1==x2||y1==y2;
+			int ix1=(int)x1, iy1=(int)y1, ix2=(int)x2, iy2=(int)y2;
+			if (!ortho || ix1<0||ix1>w||iy1<0||iy1>h||ix2<0||ix2>w||iy2<0||iy2>h || ix2<ix1 || iy2<iy1 || (ix1==ix2&&iy1==iy2))
+				return null;
+			positions[i] = horizontal ? iy1 : ix1;
+			if (positions[i]>=(horizontal?h:w))
+				return null;
+			x1+=xInc; x2+=xInc; y1+=yInc; y2+=yInc;
+		}
+		return positions;
+	}
+
+	/* Reslices the stack along the rows or columns in 'positions', with
+		the same result as getSlice(), by transposing tiles of the stack in
+		parallel. Virtual stacks are read once, slice by slice. */
+	private ImagePlus resliceOrtho(ImagePlus imp, int[] positions, boolean horizontal, int start, int length) {
+		ImageStack stack = imp.getStack();
+		int stackSize = stack.size();
+		IJ.resetEscape();
+		double zSpacing = inputZSpacing/imp.getCalibration().pixelWidth;
+		final int w1 = rotate?stackSize:length, h1 = rotate?length:stackSize;
+		final int w2 = rotate&&zSpacing!=1.0 ? (int)(stackSize*zSpacing) : w1;
+		final int h2 = !rotate&&zSpacing!=1.0 ? (int)(stackSize*zSpacing) : h1;
+		final ImageProcessor ip = stack.getProcessor(1);
+		final ImageStack stack2 = createOutputStack(imp, w2, h2, ip.getColorModel());
+		if (stack2==null || stack2.getSize()<outputSlices)
+			return null; // out of memory
+		int chunkSize = zSpacing==1.0 ? outputSlices : Math.max(1, MAX_CHUNK_PIXELS/(w1*h1));
+		for (int i1=0; i1<outputSlices; i1+=chunkSize) {
+			final int first = i1;
+			int n = Math.min(outputSlices-i1, chunkSize);
+			final ImageProcessor[] ips = new ImageProcessor[n];
+			Object[] planes = new Object[n];
+			for (int k=0; k<n; k++) {
+				if (zSpacing==1.0)
+					planes[k] = stack2.getPixels(i1+k+1);
+				else {
+					ips[k] = ip.createProcessor(w1, h1);
+					planes[k] = ips[k].getPixels();
+				}
+			}
+			if (!reslice(stack, horizontal, Arrays.copyOfRange(positions,i1,i1+n), start, length, flip, rotate, planes, true)) {
+				IJ.beep();
+				IJ.showProgress(1.0);
+				return null;
+			}
+			if (!rgb && zSpacing==1.0)
+				continue;
+			int nThreads = Math.min(Prefs.getThreads(), n);
+			Callable[] tasks = new Callable[nThreads];
+			for (int t=0; t<nThreads; t++) {
+				final int k1 = n*t/nThreads, k2 = n*(t+1)/nThreads;
+				final Object[] planes2 = planes;
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						for (int k=k1; k<k2; k++) {
+							if (rgb) { // as putRow() and putColumn()
+								int[] pixels = (int[])planes2[k];
+								for (int i=0; i<pixels.length; i++)
+									pixels[i] &= 0xffffff;
+							}
+							if (ips[k]!=null) {
+								ips[k].setInterpolate(true);
+								stack2.setPixels(ips[k].resize(w2, h2).getPixels(), first+k+1);
+							}
+						}
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+		}
+		IJ.showProgress(1.0);
+		return new ImagePlus("Reslice of "+imp.getShortTitle(), stack2);
+	}
+
+	/** Copies, from each slice of 'stack', the row (if 'horizontal') or
+		column at positions[k], pixels 'start' to 'start+length-1', to line z
+		of planes[k], or to column z if 'rotate' is true. The slices are in
+		reverse order if 'flip' is true. The planes are pixel arrays of the
+		type of the stack. Tiles of the stack are transposed in parallel;
+		virtual stacks are read slice by slice, showing the progress if
+		'showProgress' is true. Returns false if the user pressed 'Esc'
+		while reading a virtual stack. */
+	static boolean reslice(final ImageStack stack, final boolean horizontal, final int[] positions, final int start, final int length,
+	final boolean flip, final boolean rotate, final Object[] planes, boolean showProgress) {
+		final int nz = stack.size();
+		final int width = stack.getWidth();
+		final Object[] slices = new Object[nz];
+		int nThreads = Prefs.getThreads();
+		if ((long)nz*length*planes.length<MIN_PARALLEL_PIXELS)
+			nThreads = 1;
+		if (stack.isVirtual()) {
+			nThreads = Math.min(nThreads, planes.length);
+			for (int z=0; z<nz; z++) {
+				slices[z] = stack.getPixels(z+1);
+				final int z1 = z;
+				Callable[] tasks = new Callable[nThreads];
+				for (int t=0; t<nThreads; t++) {
+					final int k1 = planes.length*t/nThreads, k2 = planes.length*(t+1)/nThreads;
+					tasks[t] = new Callable<Void>() {
+						public Void call() {
+							copyLines(slices, z1, z1+1, width, flip, horizontal, positions, start, length, rotate, planes, k1, k2);
+							return null;
+						}
+					};
+				}
+				ThreadUtil.startAndJoin(tasks);
+				slices[z] = null;
+				if (showProgress) {
+					IJ.showProgress(z+1, nz);
+					if (IJ.escapePressed())
+						return false;
+				}
+			}
+			return true;
+		}
+		for (int z=0; z<nz; z++)
+			slices[z] = stack.getPixels(z+1);
+		// threads process either different planes or, if there are few, different slices
+		final boolean byPlane = planes.length>=nThreads;
+		Callable[] tasks = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int n = byPlane ? planes.length : nz;
+			final int i1 = n*t/nThreads, i2 = n*(t+1)/nThreads;
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					int z1 = byPlane ? 0 : i1;
+					int z2 = byPlane ? nz : i2;
+					for (int z=z1; z<z2; z+=BLOCK_SIZE/4)
+						copyLines(slices, z, Math.min(z+BLOCK_SIZE/4, z2), width, flip, horizontal, positions, start, length, rotate,
+							planes, byPlane?i1:0, byPlane?i2:planes.length);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		return true;
+	}
+
+	/* Copies the lines of slices z1 to z2-1 to planes k1 to k2-1. The planes
+		are processed in tiles, so that the lines written for one slice are
+		still in the cache for the next one. */
+	private static void copyLines(Object[] slices, int z1, int z2, int width, boolean flip, boolean horizontal, int[] positions,
+	int start, int length, boolean rotate, Object[] planes, int k1, int k2) {
+		int nz = slices.length;
+		if (horizontal) {
+			for (int k=k1; k<k2; k++) {
+				int offset = positions[k]*width + start;
+				for (int z=z1; z<z2; z++) {
+					int zz = flip ? nz-1-z : z;
+					if (rotate)
+						copy(slices[z], offset, 1, planes[k], zz, nz, length);
+					else
+						System.arraycopy(slices[z], offset, planes[k], zz*length, length);
+				}
+			}
+		} else {  // in tiles of BLOCK_SIZE rows, so that the columns are read from the cache
+			for (int j=0; j<length; j+=BLOCK_SIZE) {
+				int n = Math.min(BLOCK_SIZE, length-j);
+				for (int k=k1; k<k2; k++) {
+					int offset = (start+j)*width + positions[k];
+					for (int z=z1; z<z2; z++) {
+						int zz = flip ? nz-1-z : z;
+						if (rotate)
+							copy(slices[z], offset, width, planes[k], j*nz+zz, nz, n);
+						else
+							copy(slices[z], offset, width, planes[k], zz*length+j, 1, n);
+					}
+				}
+			}
+		}
+	}
+
+	private static void copy(Object src, int srcOffset, int srcStride, Object dst, int dstOffset, int dstStride, int n) {
+		if (src instanceof byte[]) {
+			byte[] s=(byte[])src, d=(byte[])dst;
+			for (int i=0; i<n; i++, srcOffset+=srcStride, dstOffset+=dstStride)
+				d[dstOffset] = s[srcOffset];
+		} else if (src instanceof short[]) {
+			short[] s=(short[])src, d=(short[])dst;
+			for (int i=0; i<n; i++, srcOffset+=srcStride, dstOffset+=dstStride)
+				d[dstOffset] = s[srcOffset];
+		} else if (src instanceof float[]) {
+			float[] s=(float[])src, d=(float[])dst;
+			for (int i=0; i<n; i++, srcOffset+=srcStride, dstOffset+=dstStride)
+				d[dstOffset] = s[srcOffset];
+		} else {
+			int[] s=(int[])src, d=(int[])dst;
+			for (int i=0; i<n; i++, srcOffset+=srcStride, dstOffset+=dstStride)
+				d[dstOffset] = s[srcOffset];
+		}
+	}
+
 	ImageStack createOutputStack(ImagePlus imp, ImageProcessor ip) {
+		 return createOutputStack(imp, ip.getWidth(), ip.getHeight(), ip.getColorModel());
+	}
+
+	private ImageStack createOutputStack(ImagePlus imp, int w2, int h2, java.awt.image.ColorModel cm) {
 		 int bitDepth = imp.getBitDepth();
-		 int w2=ip.getWidth(), h2=ip.getHeight(), d2=outputSlices;
+		 int d2 = outputSlices;
 		 int flags = NewImage.FILL_BLACK + NewImage.CHECK_AVAILABLE_MEMORY;
 		 ImagePlus imp2 = NewImage.createImage("temp", w2, h2, d2, bitDepth, flags);
 		 if (imp2!=null && imp2.getStackSize()==d2)
@@ -466,7 +687,7 @@ public class Slicer implements PlugIn, TextListener, ItemListener {
 				return null;
 		 else {
 				ImageStack stack2 = imp2.getStack();
-				stack2.setColorModel(ip.getColorModel());
+				stack2.setColorModel(cm);
 				return stack2;
 		 }
 	}
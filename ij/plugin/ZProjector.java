@@ -9,6 +9,10 @@ import java.lang.*;
 import java.awt.*; 
 import java.awt.event.*; 
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.util.ThreadUtil;
+import ij.util.Tools;
 
 /** This plugin performs a z-projection of the input stack. Type of
     output image is same as type of input image.
@@ -21,6 +25,11 @@ public class ZProjector implements PlugIn {
     public static final int SUM_METHOD = 3;
 	public static final int SD_METHOD = 4;
 	public static final int MEDIAN_METHOD = 5;
+	private static final int MIN_PIXELS_PER_THREAD = 1<<16;  // pixels times slices
+	private static final long MEDIAN_BUFFER_BYTES = 256L<<20;
+	private static final int MAX_MEDIAN_PASSES = 8;  // over a virtual stack, if memory allows
+	private static final int HISTOGRAM_BYTES = 512;  // per pixel, 256 char counts
+	private static final int MEDIAN_BLOCK_SIZE = 256;  // pixels
 	public static final String[] METHODS = 
 		{"Average Intensity", "Max Intensity", "Min Intensity", "Sum Slices", "Standard Deviation", "Median"}; 
     private static final String METHOD_KEY = "zproject.method";
@@ -29,6 +38,8 @@ public class ZProjector implements PlugIn {
     private static final int BYTE_TYPE  = 0; 
     private static final int SHORT_TYPE = 1; 
     private static final int FLOAT_TYPE = 2;
+    private static final int RGB_TYPE = 3;
+    private static final int[] RGB_SHIFTS = {16, 8, 0};  // of the red, green and blue channels
     
     public static final String lutMessage =
     	"Stacks with inverting LUTs may not project correctly.\n"
@@ -53,6 +64,8 @@ public class ZProjector implements PlugIn {
     private boolean simpleComposite;
     private int increment = 1;
     private int sliceCount;
+    private int maxThreads = Prefs.getThreads();  // lower when projecting several ranges in parallel
+    long medianBufferBytes = MEDIAN_BUFFER_BYTES;
 
     public ZProjector() {
     }
@@ -243,21 +256,11 @@ public class ZProjector implements PlugIn {
 
     private void doRGBProjection(ImageStack stack) {
         boolean clip = method==SUM_METHOD && "true".equals(imp.getProp("ClipWhenSumming"));        	
-        ImageStack[] channels = ChannelSplitter.splitRGB(stack, true);
-        ImagePlus red = new ImagePlus("Red", channels[0]);
-        ImagePlus green = new ImagePlus("Green", channels[1]);
-        ImagePlus blue = new ImagePlus("Blue", channels[2]);
         imp.unlock();
-        ImagePlus saveImp = imp;
-        imp = red;
-		color = "(red)"; doProjection();
-		ImagePlus red2 = projImage;
-        imp = green;
-		color = "(green)"; doProjection();
-		ImagePlus green2 = projImage;
-        imp = blue;
-		color = "(blue)"; doProjection();
-		ImagePlus blue2 = projImage;
+        ImageProcessor[] channels = projectRGB(stack);
+        ImagePlus red2 = new ImagePlus("Red", channels[0]);
+        ImagePlus green2 = new ImagePlus("Green", channels[1]);
+        ImagePlus blue2 = new ImagePlus("Blue", channels[2]);
         int w = red2.getWidth(), h = red2.getHeight(), d = red2.getStackSize();
         if (method==SD_METHOD || (method==SUM_METHOD&&!clip)) {
         	ImageProcessor r = red2.getProcessor();
@@ -283,10 +286,51 @@ public class ZProjector implements PlugIn {
         if (clip)
         	merge.setScaleWhenConverting(false);
         ImageStack stack2 = merge.mergeStacks(w, h, d, red2.getStack(), green2.getStack(), blue2.getStack(), true);
-        imp = saveImp;
         projImage = new ImagePlus(makeTitle(), stack2);
     }
 
+	/** Projects the red, green and blue channels of an RGB stack, reading
+		each slice only once. Returns 8-bit projections, or 32-bit ones for
+		the sum and standard deviation methods, as if the channels had been
+		split into 8-bit stacks and projected. */
+	private ImageProcessor[] projectRGB(ImageStack stack) {
+		if (method<AVG_METHOD || method>MEDIAN_METHOD)
+			method = AVG_METHOD;
+		sliceCount = 0;
+		for (int slice=startSlice; slice<=stopSlice; slice+=increment)
+			sliceCount++;
+		int width = stack.getWidth(), height = stack.getHeight();
+		ImageProcessor[] channels = new ImageProcessor[3];
+		if (method==MEDIAN_METHOD) {
+			for (int c=0; c<3; c++)
+				channels[c] = medianProjection(stack, RGB_SHIFTS[c]).convertToByte(false);
+			return channels;
+		}
+		RayFunction[] rayFuncs = new RayFunction[3];
+		for (int c=0; c<3; c++) {
+			channels[c] = new FloatProcessor(width, height);
+			rayFuncs[c] = getRayFunction(method, (FloatProcessor)channels[c]);
+		}
+		if (stack.isVirtual())
+			projectVirtualStack(stack, rayFuncs, RGB_TYPE);
+		else
+			projectBands(stack, rayFuncs, RGB_TYPE);
+		for (int c=0; c<3; c++) {
+			if (method!=SUM_METHOD)
+				rayFuncs[c].postProcess();
+			if (method==SUM_METHOD || method==SD_METHOD)
+				channels[c].resetMinAndMax();
+			else {
+				float[] pixels = (float[])channels[c].getPixels();
+				byte[] pixels8 = new byte[pixels.length];
+				for (int i=0; i<pixels.length; i++)
+					pixels8[i] = (byte)(pixels[i]+0.5f);
+				channels[c] = new ByteProcessor(width, height, pixels8);
+			}
+		}
+		return channels;
+	}
+
     /** Builds dialog to query users for projection parameters.
 	@param start starting slice to display
 	@param stop last slice */
@@ -346,15 +390,11 @@ public class ZProjector implements PlugIn {
 		}
 
 		// Do the projection
-		int sliceCount = 0;
-		for (int n=startSlice; n<=stopSlice; n+=increment) {
-			if (!isHyperstack) {
-	    		IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
-	    		IJ.showProgress(n-startSlice, stopSlice-startSlice);
-	    	}
-	    	projectSlice(stack.getPixels(n), rayFunc, ptype);
-	    	sliceCount++;
-		}
+		RayFunction[] rayFuncs = {rayFunc};
+		if (stack.isVirtual())
+			projectVirtualStack(stack, rayFuncs, ptype);
+		else
+			projectBands(stack, rayFuncs, ptype);
 
 		// Finish up projection.
 		if (method==SUM_METHOD) {
@@ -427,20 +467,68 @@ public class ZProjector implements PlugIn {
 		}
 		int frames = lastFrame-firstFrame+1;
 		increment = channels;
-		boolean rgb = imp.getBitDepth()==24;
-		for (int frame=firstFrame; frame<=lastFrame; frame++) {
-			IJ.showStatus(""+ (frame-firstFrame) + "/" + (lastFrame-firstFrame));
-			IJ.showProgress(frame-firstFrame, lastFrame-firstFrame);
-			for (int channel=1; channel<=channels; channel++) {
-				startSlice = (frame-1)*channels*slices + (start-1)*channels + channel;
-				stopSlice = (frame-1)*channels*slices + (stop-1)*channels + channel;
-				if (rgb)
-					doHSRGBProjection(imp);
-				else
-					doProjection();
-				stack.addSlice(null, projImage.getProcessor());
+		int[] starts = new int[frames*channels];
+		int[] stops = new int[frames*channels];
+		for (int frame=firstFrame, i=0; frame<=lastFrame; frame++) {
+			for (int channel=1; channel<=channels; channel++, i++) {
+				starts[i] = (frame-1)*channels*slices + (start-1)*channels + channel;
+				stops[i] = (frame-1)*channels*slices + (stop-1)*channels + channel;
 			}
 		}
+		ImageProcessor[] projections = projectRanges(starts, stops);
+		for (int i=0; i<projections.length; i++)
+			stack.addSlice(null, projections[i]);
+		setHyperStackProjection(stack, channels, frames, start, stop);
+        IJ.showProgress(1, 1);
+	}
+
+	/** Projects every 'increment'-th slice from 'start' to 'stop' and
+		returns the projection. */
+	ImageProcessor projectRange(int start, int stop) {
+		startSlice = start;
+		stopSlice = stop;
+		doProjection();
+		return projImage.getProcessor();
+	}
+
+	/** Projects the ranges of slices from starts[i] to stops[i] in
+		parallel, straight from the stack. Each range is projected by a
+		ZProjector of its own, which uses the threads that are left for
+		its bands of pixels. */
+	ImageProcessor[] projectRanges(final int[] starts, final int[] stops) {
+		imp.getStack();  // the ZProjectors only read the stack
+		imp.getProcessor();
+		final int n = starts.length;
+		final ImageProcessor[] projections = new ImageProcessor[n];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		int nTasks = Math.max(1, Math.min(maxThreads, n));
+		final int bandThreads = Math.max(1, maxThreads/nTasks);
+		Callable[] tasks = new Callable[nTasks];
+		for (int t=0; t<nTasks; t++) {
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					for (int i=next.getAndIncrement(); i<n; i=next.getAndIncrement()) {
+						ZProjector zp = new ZProjector(imp);
+						zp.method = method;
+						zp.increment = increment;
+						zp.isHyperstack = true;  // no progress bar for single ranges
+						zp.maxThreads = bandThreads;
+						projections[i] = zp.projectRange(starts[i], stops[i]);
+						IJ.showProgress(done.incrementAndGet(), n);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		return projections;
+	}
+
+	/** Sets the projection to 'stack', the projections of a hyperstack
+		with 'channels' channels and 'frames' frames from slices 'start'
+		to 'stop'. */
+	void setHyperStackProjection(ImageStack stack, int channels, int frames, int start, int stop) {
         projImage = new ImagePlus(makeTitle(), stack);
         projImage.setDimensions(channels, 1, frames);
         if (channels>1) {
@@ -460,7 +548,6 @@ public class ZProjector implements PlugIn {
 			else
 				projImage.setOverlay(projectHyperStackRois(overlay));
 		}
-        IJ.showProgress(1, 1);
 	}
 	
 	//Added by Marcel Boeglin 2013.09.22
@@ -520,16 +607,6 @@ public class ZProjector implements PlugIn {
 		return overlay2;
 	}
 
-	private void doHSRGBProjection(ImagePlus rgbImp) {
-		ImageStack stack = rgbImp.getStack();
-		ImageStack stack2 = new ImageStack(stack.getWidth(), stack.getHeight());
-		for (int i=startSlice; i<=stopSlice; i++)
-			stack2.addSlice(null, stack.getProcessor(i));
-		startSlice = 1;
-		stopSlice = stack2.getSize();
-		doRGBProjection(stack2);
-	}
-
  	private RayFunction getRayFunction(int method, FloatProcessor fp) {
  		switch (method) {
  			case AVG_METHOD: case SUM_METHOD:
@@ -589,19 +666,95 @@ public class ZProjector implements PlugIn {
 	array type. We do this rather than using more general
 	ImageProcessor getPixelValue() and putPixel() methods because
 	direct manipulation of pixel arrays is much more efficient.  */
-	private void projectSlice(Object pixelArray, RayFunction rayFunc, int ptype) {
+	private void projectSlice(Object pixelArray, RayFunction[] rayFuncs, int ptype, int from, int to) {
 		switch(ptype) {
 			case BYTE_TYPE:
-	    		rayFunc.projectSlice((byte[])pixelArray); 
+	    		rayFuncs[0].projectSlice((byte[])pixelArray, from, to); 
 	    		break; 
 			case SHORT_TYPE:
-	    		rayFunc.projectSlice((short[])pixelArray); 
+	    		rayFuncs[0].projectSlice((short[])pixelArray, from, to); 
 	    		break; 
 			case FLOAT_TYPE:
-	    		rayFunc.projectSlice((float[])pixelArray); 
+	    		rayFuncs[0].projectSlice((float[])pixelArray, from, to); 
+	    		break; 
+			case RGB_TYPE:
+				for (int c=0; c<3; c++)
+	    			rayFuncs[c].projectSlice((int[])pixelArray, RGB_SHIFTS[c], from, to); 
 	    		break; 
 		}
     }
+
+	/** Projects the slices in parallel, with each thread projecting all
+		slices in a band of pixels. The result does not depend on the
+		number of threads. */
+	private void projectBands(final ImageStack stack, final RayFunction[] rayFuncs, final int ptype) {
+		final int len = stack.getWidth()*stack.getHeight();
+		int nThreads = (int)Math.max(1, Math.min(maxThreads, (long)len*sliceCount/MIN_PIXELS_PER_THREAD));
+		Callable[] tasks = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int from = (int)((long)len*t/nThreads);
+			final int to = (int)((long)len*(t+1)/nThreads);
+			final boolean showProgress = t==0 && !isHyperstack;
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					for (int n=startSlice; n<=stopSlice; n+=increment) {
+						if (showProgress) {
+							IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
+							IJ.showProgress(n-startSlice, stopSlice-startSlice);
+						}
+						projectSlice(stack.getPixels(n), rayFuncs, ptype, from, to);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+	}
+
+	/** Projects a virtual stack in a single pass. Groups of slices are
+		read in parallel, one slice per thread, then projected in slice
+		order in bands of pixels, as with projectBands(), so the result
+		is the same as for a stack in memory and does not depend on the
+		number of threads. */
+	private void projectVirtualStack(final ImageStack stack, final RayFunction[] rayFuncs, final int ptype) {
+		final int len = stack.getWidth()*stack.getHeight();
+		int nReaders = Math.max(1, Math.min(maxThreads, sliceCount));
+		final Object[] slices = new Object[nReaders];
+		for (int i0=0; i0<sliceCount; i0+=nReaders) {
+			final int first = i0;
+			final int nSlices = Math.min(nReaders, sliceCount-i0);
+			if (!isHyperstack) {
+				int n = startSlice + i0*increment;
+				IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
+				IJ.showProgress(i0, sliceCount);
+			}
+			Callable[] readers = new Callable[nSlices];
+			for (int k=0; k<nSlices; k++) {
+				final int index = k;
+				readers[k] = new Callable<Void>() {
+					public Void call() {
+						slices[index] = stack.getPixels(startSlice + (first+index)*increment);
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(readers);
+			int nThreads = (int)Math.max(1, Math.min(maxThreads, (long)len*nSlices/MIN_PIXELS_PER_THREAD));
+			Callable[] tasks = new Callable[nThreads];
+			for (int t=0; t<nThreads; t++) {
+				final int from = (int)((long)len*t/nThreads);
+				final int to = (int)((long)len*(t+1)/nThreads);
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						for (int k=0; k<nSlices; k++)
+							projectSlice(slices[k], rayFuncs, ptype, from, to);
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+		}
+	}
     
     String makeTitle() {
     	String prefix = "AVG_";
@@ -615,40 +768,341 @@ public class ZProjector implements PlugIn {
     	return WindowManager.makeUniqueName(prefix+imp.getTitle());
     }
 
+	/** Computes the median of each pixel in bands of rows. For each band,
+		the values of all slices are copied into a buffer where the values
+		of a pixel are contiguous, using one thread per range of slices;
+		then the medians are computed in parallel, using histograms for
+		8 and 16-bit images and a selection algorithm otherwise. The band
+		height is limited by the buffer size, so a virtual stack that does
+		not fit into the buffer is read once per band. For deep virtual 8
+		and 16-bit stacks, per-pixel histograms of the bytes of the values
+		are accumulated instead, which take 512 bytes per pixel whatever
+		the number of slices; the slices are read once per band (twice for
+		16 bits, once for the high and once for the low bytes). For virtual
+		stacks, the bands are enlarged, as far as half the free memory
+		allows, so that the stack is read at most MAX_MEDIAN_PASSES times. */
 	ImagePlus doMedianProjection() {
+		ImageProcessor ip2 = medianProjection(imp.getStack(), 0);
+		if (imp.getBitDepth()==8)
+			ip2 = ip2.convertToByte(false);
+		return new ImagePlus(makeTitle(), ip2);
+	}
+
+	/* Returns the median projection as a FloatProcessor; 'shift' selects
+		the channel of RGB stacks. */
+	private ImageProcessor medianProjection(final ImageStack stack, final int shift) {
 		IJ.showStatus("Calculating median...");
-		ImageStack stack = imp.getStack();
-		ImageProcessor[] slices = new ImageProcessor[sliceCount];
-		int index = 0;
-		for (int slice=startSlice; slice<=stopSlice; slice+=increment)
-			slices[index++] = stack.getProcessor(slice);
-		ImageProcessor ip2 = slices[0].duplicate();
+		ImageProcessor first = stack.getProcessor(startSlice);
+		final float[] cTable = first.getCalibrationTable();
+		ImageProcessor ip2 = first.duplicate();
 		ip2 = ip2.convertToFloat();
-		float[] values = new float[sliceCount];
-		int width = ip2.getWidth();
+		final float[] medians = (float[])ip2.getPixels();
+		final int width = ip2.getWidth();
 		int height = ip2.getHeight();
-		int inc = Math.max(height/30, 1);
-		for (int y=0; y<height; y++) {
-			if (y%inc==0) IJ.showProgress(y, height-1);
-			for (int x=0; x<width; x++) {
-				for (int i=0; i<sliceCount; i++)
-				values[i] = slices[i].getPixelValue(x, y);
-				ip2.putPixelValue(x, y, median(values));
+		final int n = sliceCount;
+		final int bitDepth = cTable==null ? (imp.getBitDepth()==24 ? 8 : imp.getBitDepth()) : 32;
+		final boolean virtual = stack.isVirtual();
+		if (virtual && (bitDepth==8 && n>HISTOGRAM_BYTES/4 || bitDepth==16 && n>2*(HISTOGRAM_BYTES+12)/4) && n<65536) {
+			virtualHistogramMedian(stack, shift, bitDepth, medians, width, height);
+			IJ.showProgress(1, 1);
+			return ip2;
+		}
+		int bandHeight = getMedianBandHeight(4L*n, width, height, virtual, 1);
+		final float[] buffer = new float[bandHeight*width*n];
+		final int nThreads = Math.max(1, Math.min(maxThreads, n));
+		for (int y0=0; y0<height; y0+=bandHeight) {
+			IJ.showProgress(y0, height);
+			final int offset = y0*width;
+			final int len = Math.min(bandHeight, height-y0)*width;
+			Callable[] tasks = new Callable[nThreads];
+			for (int t=0; t<nThreads; t++) {
+				final int s1 = n*t/nThreads, s2 = n*(t+1)/nThreads;
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						if (virtual) {  // read each slice only once per band
+							for (int s=s1; s<s2; s++)
+								copyToBuffer(stack.getPixels(startSlice+s*increment), cTable, shift, offset, 0, len, buffer, s, n);
+						} else {  // in blocks of pixels, so that the buffer is written in the cache
+							for (int i=0; i<len; i+=MEDIAN_BLOCK_SIZE) {
+								for (int s=s1; s<s2; s++)
+									copyToBuffer(stack.getPixels(startSlice+s*increment), cTable, shift, offset, i, Math.min(i+MEDIAN_BLOCK_SIZE,len), buffer, s, n);
+							}
+						}
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+			for (int t=0; t<nThreads; t++) {
+				final int from = (int)((long)len*t/nThreads), to = (int)((long)len*(t+1)/nThreads);
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						int[] counts = new int[256];
+						int[] lowCounts = new int[256];
+						for (int i=from; i<to; i++) {
+							switch (bitDepth) {
+								case 8: medians[offset+i] = histogramMedian(buffer, i*n, n, counts); break;
+								case 16: medians[offset+i] = histogramMedian16(buffer, i*n, n, counts, lowCounts); break;
+								default: medians[offset+i] = Tools.median(buffer, i*n, (i+1)*n);
+							}
+						}
+						return null;
+					}
+				};
 			}
+			ThreadUtil.startAndJoin(tasks);
 		}
-		if (imp.getBitDepth()==8)
-			ip2 = ip2.convertToByte(false);
 		IJ.showProgress(1, 1);
-		return new ImagePlus(makeTitle(), ip2);
+		return ip2;
 	}
 
-	float median(float[] a) {
-		Arrays.sort(a);
-		int middle = a.length/2;
-		if ((a.length&1)==0) //even
-			return (a[middle-1] + a[middle])/2f;
+	/* Returns the height of the bands for the median, given the buffer size
+		per pixel, enlarging the buffer for virtual stacks, which are read
+		'reads' times per band, to reduce the number of passes over the stack. */
+	private int getMedianBandHeight(long bytesPerPixel, int width, int height, boolean virtual, int reads) {
+		long rowBytes = bytesPerPixel*width;
+		long bytes = medianBufferBytes;
+		if (virtual) {
+			int bands = Math.max(1, MAX_MEDIAN_PASSES/reads);
+			long minBytes = rowBytes*((height+bands-1)/bands);
+			long free = IJ.maxMemory()-IJ.currentMemory();
+			if (minBytes>bytes)
+				bytes = Math.max(bytes, Math.min(minBytes, free/2));
+		}
+		return (int)Math.max(1, Math.min(height, bytes/rowBytes));
+	}
+
+	/* Adds the values of a slice, for the pixels 'from' to 'to'-1 of a band. */
+	private static abstract class MedianPass {
+		abstract void add(Object pixels, int offset, int from, int to);
+	}
+
+	private static int getValue(Object pixels, int index, int shift) {
+		if (pixels instanceof byte[])
+			return ((byte[])pixels)[index]&0xff;
+		else if (pixels instanceof short[])
+			return ((short[])pixels)[index]&0xffff;
 		else
-			return a[middle];
+			return (((int[])pixels)[index]>>shift)&0xff;
+	}
+
+	/* Reads the slices of a virtual stack once, one slice per thread, and
+		passes them to 'pass' in parallel ranges of the 'len' pixels of the
+		band starting at 'offset'. */
+	private void readBand(final ImageStack stack, final MedianPass pass, final int offset, final int len) {
+		int nReaders = Math.max(1, Math.min(maxThreads, sliceCount));
+		final Object[] slices = new Object[nReaders];
+		for (int i0=0; i0<sliceCount; i0+=nReaders) {
+			final int first = i0;
+			final int nSlices = Math.min(nReaders, sliceCount-i0);
+			Callable[] readers = new Callable[nSlices];
+			for (int k=0; k<nSlices; k++) {
+				final int index = k;
+				readers[k] = new Callable<Void>() {
+					public Void call() {
+						slices[index] = stack.getPixels(startSlice + (first+index)*increment);
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(readers);
+			int nThreads = (int)Math.max(1, Math.min(maxThreads, (long)len*nSlices/MIN_PIXELS_PER_THREAD));
+			Callable[] tasks = new Callable[nThreads];
+			for (int t=0; t<nThreads; t++) {
+				final int from = (int)((long)len*t/nThreads);
+				final int to = (int)((long)len*(t+1)/nThreads);
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						for (int k=0; k<nSlices; k++)
+							pass.add(slices[k], offset, from, to);
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+		}
+	}
+
+	/* Median of a virtual 8 or 16-bit stack (or RGB channel), from histograms
+		of the values of each pixel; for 16 bits, a first pass counts the high
+		bytes and finds the bin of the median, and a second one counts the low
+		bytes of the values in that bin. Gives the same values as
+		histogramMedian() and histogramMedian16(). */
+	private void virtualHistogramMedian(final ImageStack stack, final int shift, int bitDepth, float[] medians, int width, int height) {
+		final int n = sliceCount;
+		final int middle = n/2;
+		final boolean sixteen = bitDepth==16;
+		int bandHeight = getMedianBandHeight(HISTOGRAM_BYTES+(sixteen?12:0), width, height, true, sixteen?2:1);
+		int bandLength = bandHeight*width;
+		final char[] counts = new char[bandLength*256];
+		final int[] bins = sixteen ? new int[bandLength] : null;
+		final int[] ranks = sixteen ? new int[bandLength] : null;
+		final int[] lower = sixteen ? new int[bandLength] : null;  // the highest value below the bin
+		for (int y0=0; y0<height; y0+=bandHeight) {
+			IJ.showProgress(y0, height);
+			int offset = y0*width;
+			int len = Math.min(bandHeight, height-y0)*width;
+			Arrays.fill(counts, 0, len*256, (char)0);
+			readBand(stack, new MedianPass() {
+				void add(Object pixels, int offset, int from, int to) {
+					int bitShift = sixteen ? 8 : 0;
+					for (int i=from; i<to; i++)
+						counts[i*256 + (getValue(pixels, offset+i, shift)>>bitShift)]++;
+				}
+			}, offset, len);
+			if (!sixteen) {
+				for (int i=0; i<len; i++) {
+					int base = i*256;
+					int v = 0, sum = counts[base];
+					while (sum<=middle)
+						sum += counts[base + ++v];
+					float median = v;
+					if ((n&1)==0) {
+						int v2 = v;
+						if (sum-counts[base+v]>=middle) {  // the value below the middle is below v
+							v2 = v - 1;
+							while (counts[base+v2]==0)
+								v2--;
+						}
+						median = (v2 + v)/2f;
+					}
+					medians[offset+i] = median;
+				}
+				continue;
+			}
+			for (int i=0; i<len; i++) {
+				int base = i*256;
+				int bin = 0, below = 0;
+				while (below+counts[base+bin]<=middle)
+					below += counts[base + bin++];
+				bins[i] = bin;
+				ranks[i] = middle - below;
+				lower[i] = 0;
+			}
+			Arrays.fill(counts, 0, len*256, (char)0);
+			readBand(stack, new MedianPass() {
+				void add(Object pixels, int offset, int from, int to) {
+					for (int i=from; i<to; i++) {
+						int value = getValue(pixels, offset+i, shift);
+						int bin = value>>8;
+						if (bin==bins[i])
+							counts[i*256 + (value&0xff)]++;
+						else if (bin<bins[i] && value>lower[i])
+							lower[i] = value;
+					}
+				}
+			}, offset, len);
+			for (int i=0; i<len; i++) {
+				int base = i*256;
+				int rank = ranks[i];
+				int low = 0, sum = counts[base];
+				while (sum<=rank)
+					sum += counts[base + ++low];
+				int v = bins[i]<<8 | low;
+				float median = v;
+				if ((n&1)==0) {
+					int v2 = v;
+					if (rank==0)
+						v2 = lower[i];
+					else if (sum-counts[base+low]>=rank) {
+						int low2 = low - 1;
+						while (counts[base+low2]==0)
+							low2--;
+						v2 = bins[i]<<8 | low2;
+					}
+					median = (v2 + v)/2f;
+				}
+				medians[offset+i] = median;
+			}
+		}
+	}
+
+	// copies the (calibrated) values 'from' to 'to'-1 of a band starting at 'offset' to 'buffer';
+	// 'shift' selects the channel of RGB pixels
+	private static void copyToBuffer(Object pixels, float[] cTable, int shift, int offset, int from, int to, float[] buffer, int slice, int n) {
+		int j = from*n + slice;
+		if (pixels instanceof byte[]) {
+			byte[] bytes = (byte[])pixels;
+			for (int i=offset+from; i<offset+to; i++, j+=n)
+				buffer[j] = cTable!=null ? cTable[bytes[i]&0xff] : bytes[i]&0xff;
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[])pixels;
+			for (int i=offset+from; i<offset+to; i++, j+=n)
+				buffer[j] = cTable!=null ? cTable[shorts[i]&0xffff] : shorts[i]&0xffff;
+		} else if (pixels instanceof int[]) {
+			int[] ints = (int[])pixels;
+			for (int i=offset+from; i<offset+to; i++, j+=n)
+				buffer[j] = (ints[i]>>shift)&0xff;
+		} else {
+			float[] floats = (float[])pixels;
+			for (int i=offset+from; i<offset+to; i++, j+=n)
+				buffer[j] = floats[i];
+		}
+	}
+
+	float median(float[] a) {
+		return Tools.median(a, 0, a.length);
+	}
+
+	// median of the 8-bit values a[offset] to a[offset+n-1]
+	private static float histogramMedian(float[] a, int offset, int n, int[] counts) {
+		Arrays.fill(counts, 0);
+		for (int i=offset; i<offset+n; i++)
+			counts[(int)a[i]]++;
+		int middle = n/2;
+		int v = 0, sum = counts[0];
+		while (sum<=middle)
+			sum += counts[++v];
+		if ((n&1)==0) {
+			int v2 = v;
+			if (sum-counts[v]>=middle) {  // a[middle-1] is below v
+				v2 = v - 1;
+				while (counts[v2]==0)
+					v2--;
+			}
+			return (v2 + v)/2f;
+		} else
+			return v;
+	}
+
+	// median of the 16-bit values a[offset] to a[offset+n-1], using a histogram
+	// of the high bytes and one of the low bytes of the values in the median's bin
+	private static float histogramMedian16(float[] a, int offset, int n, int[] counts, int[] lowCounts) {
+		int end = offset + n;
+		Arrays.fill(counts, 0);
+		for (int i=offset; i<end; i++)
+			counts[(int)a[i]>>8]++;
+		int middle = n/2;
+		int bin = 0, below = 0;
+		while (below+counts[bin]<=middle)
+			below += counts[bin++];
+		Arrays.fill(lowCounts, 0);
+		for (int i=offset; i<end; i++) {
+			int value = (int)a[i];
+			if (value>>8==bin)
+				lowCounts[value&0xff]++;
+		}
+		int rank = middle - below;  // of the median within the bin
+		int low = 0, sum = lowCounts[0];
+		while (sum<=rank)
+			sum += lowCounts[++low];
+		int v = bin<<8 | low;
+		if ((n&1)!=0)
+			return v;
+		int v2 = v;  //even: a[middle-1]
+		if (rank==0) {  // the highest value of the lower bins
+			v2 = 0;
+			for (int i=offset; i<end; i++) {
+				int value = (int)a[i];
+				if (value<v && value>v2) v2 = value;
+			}
+		} else if (sum-lowCounts[low]>=rank) {
+			int low2 = low - 1;
+			while (lowCounts[low2]==0)
+				low2--;
+			v2 = bin<<8 | low2;
+		}
+		return (v2 + v)/2f;
 	}
 
 	// do average projection, ignoring NaNs
@@ -685,11 +1139,14 @@ public class ZProjector implements PlugIn {
 	constructors.
 	*/
     abstract class RayFunction {
-		/** Do actual slice projection for specific data types. */
-		public abstract void projectSlice(byte[] pixels);
-		public abstract void projectSlice(short[] pixels);
-		public abstract void projectSlice(float[] pixels);
-		
+		/** Do actual slice projection for specific data types,
+			for the pixels with indexes 'from' to 'to'-1. */
+		public abstract void projectSlice(byte[] pixels, int from, int to);
+		public abstract void projectSlice(short[] pixels, int from, int to);
+		public abstract void projectSlice(float[] pixels, int from, int to);
+		/** Projects the channel of packed RGB pixels selected by 'shift'. */
+		public abstract void projectSlice(int[] pixels, int shift, int from, int to);
+
 		/** Perform any necessary post processing operations, e.g.
 	    	averging values. */
 		public void postProcess() {}
@@ -711,21 +1168,26 @@ public class ZProjector implements PlugIn {
 	    	this.num = num;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++)
 				fpixels[i] += (pixels[i]&0xff); 
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++)
 				fpixels[i] += pixels[i]&0xffff;
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++)
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++)
 				fpixels[i] += pixels[i]; 
 		}
 
+		public void projectSlice(int[] pixels, int shift, int from, int to) {
+	    	for (int i=from; i<to; i++)
+				fpixels[i] += (pixels[i]>>shift)&0xff; 
+		}
+
 		public void postProcess() {
 			float fnum = num;
 	    	for(int i=0; i<len; i++)
@@ -748,27 +1210,34 @@ public class ZProjector implements PlugIn {
 				fpixels[i] = -Float.MAX_VALUE;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if ((pixels[i]&0xff)>fpixels[i])
 		    		fpixels[i] = (pixels[i]&0xff); 
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if ((pixels[i]&0xffff)>fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for (int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if (!Float.isNaN(pixels[i]) && pixels[i]>fpixels[i])
 		    		fpixels[i] = pixels[i]; 
 	    	}
 		}
-		
+
+		public void projectSlice(int[] pixels, int shift, int from, int to) {
+	    	for (int i=from; i<to; i++) {
+				if (((pixels[i]>>shift)&0xff)>fpixels[i])
+		    		fpixels[i] = (pixels[i]>>shift)&0xff; 
+	    	}
+		}
+
     } // end MaxIntensity
 
      /** Compute min intensity projection. */
@@ -784,27 +1253,34 @@ public class ZProjector implements PlugIn {
 				fpixels[i] = Float.MAX_VALUE;
 		}
 
-		public void projectSlice(byte[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(byte[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if((pixels[i]&0xff)<fpixels[i])
 		    		fpixels[i] = (pixels[i]&0xff); 
 	    	}
 		}
 
-		public void projectSlice(short[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(short[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if((pixels[i]&0xffff)<fpixels[i])
 		    		fpixels[i] = pixels[i]&0xffff;
 	    	}
 		}
 
-		public void projectSlice(float[] pixels) {
-	    	for(int i=0; i<len; i++) {
+		public void projectSlice(float[] pixels, int from, int to) {
+	    	for (int i=from; i<to; i++) {
 				if(pixels[i]<fpixels[i])
 		    		fpixels[i] = pixels[i]; 
 	    	}
 		}
-		
+
+		public void projectSlice(int[] pixels, int shift, int from, int to) {
+	    	for (int i=from; i<to; i++) {
+				if(((pixels[i]>>shift)&0xff)<fpixels[i])
+		    		fpixels[i] = (pixels[i]>>shift)&0xff; 
+	    	}
+		}
+
     } // end MaxIntensity
 
 
@@ -822,33 +1298,42 @@ public class ZProjector implements PlugIn {
 			sum2 = new double[len];
 		}
 	
-		public void projectSlice(byte[] pixels) {
+		public void projectSlice(byte[] pixels, int from, int to) {
 			int v;
-		    for(int i=0; i<len; i++) {
+		    for (int i=from; i<to; i++) {
 		    	v = pixels[i]&0xff;
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void projectSlice(short[] pixels) {
+		public void projectSlice(short[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for (int i=from; i<to; i++) {
 		    	v = pixels[i]&0xffff;
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
-		public void projectSlice(float[] pixels) {
+		public void projectSlice(float[] pixels, int from, int to) {
 			double v;
-		    for(int i=0; i<len; i++) {
+		    for (int i=from; i<to; i++) {
 		    	v = pixels[i];
 				sum[i] += v;
 				sum2[i] += v*v;
 			} 
 		}
 	
+		public void projectSlice(int[] pixels, int shift, int from, int to) {
+			int v;
+		    for (int i=from; i<to; i++) {
+		    	v = (pixels[i]>>shift)&0xff;
+				sum[i] += v;
+				sum2[i] += v*v;
+			} 
+		}
+	
 		public void postProcess() {
 			double stdDev;
 			double n = num;
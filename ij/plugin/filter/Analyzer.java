@@ -24,6 +24,7 @@ public class Analyzer implements PlugInFilter, Measurements {
 	private StringBuffer min,max,mean,sd;
 	private boolean disableReset;
 	private boolean resultsUpdated;
+	private Roi measuredRoi;
 	
 	// Order must agree with order of checkboxes in Set Measurements dialog box
 	private static final int[] list = {AREA,MEAN,STD_DEV,MODE,MIN_MAX,
@@ -284,6 +285,27 @@ public class Analyzer implements PlugInFilter, Measurements {
 			reset();
 		saveResults(stats, roi);
 	}
+
+	/** Measures 'roi' as measure() does when it is the image selection, but
+		uses statistics computed by the caller and leaves the selection of the
+		image unchanged. 'roi' must be an area selection. The results are not
+		displayed. Used by the ROI Manager to measure many ROIs in parallel.
+	*/
+	public void measure(Roi roi, ImageStatistics stats) {
+		String lastHdr = rt.getColumnHeading(ResultsTable.LAST_HEADING);
+		if (lastHdr==null || lastHdr.charAt(0)!='M') {
+			if (!reset()) return;
+		}
+		firstParticle = lastParticle = 0;
+		if (!IJ.isResultsWindow() && IJ.getInstance()!=null)
+			reset();
+		measuredRoi = roi;
+		try {
+			saveResults(stats, roi);
+		} finally {
+			measuredRoi = null;
+		}
+	}
 		
 	/*
 	void showHeadings() {
@@ -820,7 +842,7 @@ public class Analyzer implements PlugInFilter, Measurements {
 			//int len = s.length();
 			//if (len>4 && s.charAt(len-4)=='.' && !Character.isDigit(s.charAt(len-1)))
 			//	s = s.substring(0,len-4); 
-			Roi roi = imp.getRoi();
+			Roi roi = measuredRoi!=null?measuredRoi:imp.getRoi();
 			String roiName = roi!=null?roi.getName():null;
 			if (roiName!=null && !roiName.contains(".")) {
 				if (roiName.length()>30)
@@ -9,7 +9,7 @@ import java.awt.geom.*;
 /** This plugin implements the Image/Rotate/Arbitrarily command. */
 public class Rotator implements ExtendedPlugInFilter, DialogListener {
 	public static final String GRID = "|GRID|";
-	private int flags = DOES_ALL|SUPPORTS_MASKING;
+	private int flags = DOES_ALL|SUPPORTS_MASKING|PARALLELIZE_STACKS;
 	private static double angle = 15.0;
 	private static boolean fillWithBackground;
 	private static boolean enlarge;
@@ -74,7 +74,7 @@ public class Rotator implements ExtendedPlugInFilter, DialogListener {
 		ip.rotate(angle);
 		if (!gd.wasOKed())
 			drawGridLines(gridLines);
-		if (overlay!=null && !imp.getHideOverlay()) {
+		if (overlay!=null && !imp.getHideOverlay()) synchronized(this) {  // slices are rotated in parallel
 			Overlay overlay2 = overlay.rotate(angle, ip.getWidth()/2, ip.getHeight()/2);
 			if (overlay2!=null && overlay2.size()>0)
 				imp.setOverlay(overlay2);
@@ -6,15 +6,21 @@
 package ij.plugin.filter;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.gui.Roi;
 import ij.gui.ShapeRoi;
 import ij.process.*;
+import ij.util.ThreadUtil;
 
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.geom.Area;
 import java.awt.geom.GeneralPath;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ThresholdToSelection implements PlugInFilter {
 	ImagePlus image;
@@ -23,6 +29,8 @@ public class ThresholdToSelection implements PlugInFilter {
 	int w, h;
 	boolean showStatus;
 	final static double PROGRESS_FRACTION_OUTLINING = 0.9;  //fraction of progress bar for the first phase (tracing outlines)
+	final static int BAND_HEIGHT = 512;  //rows per band when tracing with several threads
+	private AtomicInteger progress;
 	
 	public void run(ImageProcessor ip) {
 		showStatus = true;
@@ -47,6 +55,36 @@ public class ThresholdToSelection implements PlugInFilter {
 		return getRoi();
 	}
 
+	/** Returns the outlines of the thresholded pixels of 'ip', in pixel
+		coordinates, as a path with the even-odd winding rule, or null
+		if there are no thresholded pixels. */
+	public GeneralPath getOutlines(ImageProcessor ip) {
+		this.ip = ip;
+		min = (float)ip.getMinThreshold();
+		max = (float)ip.getMaxThreshold();
+		w = ip.getWidth();
+		h = ip.getHeight();
+		return getPath();
+	}
+
+	/** Returns the outlines of the thresholded pixels of 'ip' as a list of
+		polygons in pixel coordinates, without merging them into a ShapeRoi.
+		Outer outlines run counterclockwise and the outlines of holes
+		clockwise; together they enclose the thresholded pixels with the
+		even-odd rule. Returns an empty array if there are no thresholded
+		pixels, or null if interrupted. */
+	public Polygon[] getPolygons(ImageProcessor ip) {
+		this.ip = ip;
+		min = (float)ip.getMinThreshold();
+		max = (float)ip.getMaxThreshold();
+		w = ip.getWidth();
+		h = ip.getHeight();
+		ArrayList<Polygon> polygons = getPolygonList();
+		if (polygons==null)
+			return null;
+		return polygons.toArray(new Polygon[polygons.size()]);
+	}
+
 	final boolean selected(int x, int y) {
 		float v = ip.getf(x,y);
 		return v>=min && v<=max;
@@ -61,6 +99,7 @@ public class ThresholdToSelection implements PlugInFilter {
 	static class Outline {
 		int[] x, y;
 		int first, last, reserved;
+		boolean startsAbove, endsAbove; // the first/last point continues in the band above (multithreaded tracing)
 		final int GROW = 10;  // default extra (spare) space when enlarging arrays (similar performance with 6-20)
 
 		public Outline() {
@@ -90,6 +129,9 @@ public class ThresholdToSelection implements PlugInFilter {
 
 		/** Adds point x, y at the end of the list */
 		public void append(int x, int y) {
+			if (last-first==1 && this.x[first]==x && this.y[first]==y)
+				return;   // a single point from the band above (at a lower right corner)
+			endsAbove = false;
 			if (last-first>=2 && collinear(this.x[last-2], this.y[last-2], this.x[last-1], this.y[last-1], x , y)) {
 				this.x[last-1] = x; //replace previous point
 				this.y[last-1] = y;
@@ -103,6 +145,9 @@ public class ThresholdToSelection implements PlugInFilter {
 
 		/** Adds point x, y at the beginning of the list */
 		public void prepend(int x, int y) {
+			if (last-first==1 && this.x[first]==x && this.y[first]==y)
+				return;
+			startsAbove = false;
 			if (last-first>=2 && collinear(this.x[first+1], this.y[first+1], this.x[first], this.y[first], x , y)) {
 				this.x[first] = x; //replace previous point
 				this.y[first] = y;
@@ -116,6 +161,7 @@ public class ThresholdToSelection implements PlugInFilter {
 
 		/** Merge with another Outline by adding it at the end. Thereafter, the other outline must not be used any more. */
 		public void append(Outline o) {
+			endsAbove = o.endsAbove;
 			int size = last - first;
 			int oSize = o.last - o.first;
 			if (size <= o.first && oSize > reserved - last) { // we don't have enough space in our own array but in that of 'o'
@@ -136,6 +182,7 @@ public class ThresholdToSelection implements PlugInFilter {
 
 		/** Merge with another Outline by adding it at the beginning. Thereafter, the other outline must not be used any more. */
 		public void prepend(Outline o) {
+			startsAbove = o.startsAbove;
 			int size = last - first;
 			int oSize = o.last - o.first;
 			if (size <= o.reserved - o.last && oSize > first) { // we don't have enough space in our own array but in that of 'o'
@@ -209,6 +256,111 @@ public class ThresholdToSelection implements PlugInFilter {
 		}
 	}
 
+	Roi getRoi() {
+		GeneralPath path = getPath();
+		if (path==null)
+			return null;
+		ShapeRoi shape = new ShapeRoi(path);
+		Roi roi = shape!=null ? shape.trySimplify():null; // try to convert to non-composite ROI
+		if (showStatus)
+			IJ.showProgress(1.0);
+		return roi;
+	}
+
+	GeneralPath getPath() {
+		if (showStatus)
+			IJ.showStatus("Converting threshold to selection");
+		ArrayList<Polygon> polygons = getPolygonList();
+		if (polygons==null || polygons.size()==0)
+			return null;
+		if (showStatus) IJ.showStatus("Converting threshold to selection...");
+		GeneralPath path = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
+		int progressInc = Math.max(polygons.size()/10, 1);
+		for (int i = 0; i < polygons.size(); i++) {
+			path.append(polygons.get(i), false);
+			if (Thread.currentThread().isInterrupted()) return null;
+			if (showStatus && i%progressInc==0)
+				IJ.showProgress(PROGRESS_FRACTION_OUTLINING + i*(1.-PROGRESS_FRACTION_OUTLINING)/polygons.size());
+		}
+		return path;
+	}
+
+	/** Returns the outlines as a list of Polygons, or null if interrupted.
+	 *  Tall images are traced in horizontal bands by several threads;
+	 *  the outlines crossing the band borders are then joined. */
+	ArrayList<Polygon> getPolygonList() {
+		progress = new AtomicInteger();
+		final int nBands = h>=2*BAND_HEIGHT ? h/BAND_HEIGHT : 1;
+		if (nBands==1) {
+			ArrayList<Polygon> polygons = new ArrayList<Polygon>();
+			return traceBand(0, h, polygons, null)!=null ? polygons : null;
+		}
+		final ArrayList<ArrayList<Polygon>> polygons = new ArrayList<ArrayList<Polygon>>(nBands);
+		final ArrayList<ArrayList<Outline>> pieces = new ArrayList<ArrayList<Outline>>(nBands);
+		for (int b=0; b<nBands; b++) {
+			polygons.add(new ArrayList<Polygon>());
+			pieces.add(new ArrayList<Outline>());
+		}
+		final AtomicInteger nextBand = new AtomicInteger();
+		final AtomicInteger tracedBands = new AtomicInteger();
+		Callable[] tasks = new Callable[Math.min(Prefs.getThreads(), nBands)];
+		for (int t=0; t<tasks.length; t++) {
+			tasks[t] = new Callable<Boolean>() {
+				public Boolean call() {
+					for (int b=nextBand.getAndIncrement(); b<nBands; b=nextBand.getAndIncrement()) {
+						int y0 = b*h/nBands;
+						int y1 = (b+1)*h/nBands;
+						if (traceBand(y0, y1, polygons.get(b), pieces.get(b))==null)
+							return Boolean.FALSE;
+						tracedBands.incrementAndGet();
+					}
+					return Boolean.TRUE;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		if (Thread.currentThread().isInterrupted())
+			return null;
+		if (tracedBands.get()<nBands)
+			return null; // a thread was interrupted
+		return joinBands(polygons, pieces);
+	}
+
+	/** Joins the outline pieces of all bands at the band borders. A piece
+	 *  ending at point (x,y) of a border continues with the piece starting
+	 *  there, because all outlines have the same orientation. */
+	private ArrayList<Polygon> joinBands(ArrayList<ArrayList<Polygon>> polygons, ArrayList<ArrayList<Outline>> pieces) {
+		HashMap<Long,Outline> starts = new HashMap<Long,Outline>();
+		for (int b=0; b<pieces.size(); b++) {
+			for (Outline o : pieces.get(b)) {
+				starts.put(key(o.x[o.first], o.y[o.first]), o);
+			}
+		}
+		ArrayList<Polygon> result = new ArrayList<Polygon>();
+		for (int b=0; b<pieces.size(); b++) {
+			result.addAll(polygons.get(b));
+			for (Outline o : pieces.get(b)) {
+				if (starts.remove(key(o.x[o.first], o.y[o.first]))==null)
+					continue;  // already joined
+				int x0 = o.x[o.first], y0 = o.y[o.first];
+				while (o.x[o.last-1]!=x0 || o.y[o.last-1]!=y0) {
+					Outline next = starts.remove(key(o.x[o.last-1], o.y[o.last-1]));
+					if (next==null)
+						throw new RuntimeException("assertion failed");
+					o.last--;  // the same point starts 'next'
+					o.append(next);
+				}
+				o.last--;      // the same point as the first one
+				result.add(o.getPolygon());
+			}
+		}
+		return result;
+	}
+
+	private long key(int x, int y) {
+		return (long)y*(w+1) + x;
+	}
+
 	/*
 	 * Construct all outlines simultaneously by traversing the rows from top to bottom.
 	 * The points are added such that for each pair of consecutive points, the inner
@@ -230,19 +382,31 @@ public class ThresholdToSelection implements PlugInFilter {
 	 * would result in disjunct outlines, e.g. a one-pixel-wide line with angle between
 	 * 0 and -90 deg would be converted to many separate rectangular segments).
 	 */
-	Roi getRoi() {
-		if (showStatus)
-			IJ.showStatus("Converting threshold to selection");
+	/** Traces the outlines of the rows from y0 to y1-1. Closed outlines are
+	 *  added to 'polygons'. If the band is not the only one, outlines
+	 *  continuing at the top or bottom border are added to 'pieces'.
+	 *  Returns null if interrupted. */
+	Outline[] traceBand(int y0, int y1, ArrayList<Polygon> polygons, ArrayList<Outline> pieces) {
 		boolean[] prevRow, thisRow;
-		ArrayList polygons = new ArrayList();
 		Outline[] outline;
 		int progressInc = Math.max(h/50, 1);
 
 		prevRow = new boolean[w + 2];
 		thisRow = new boolean[w + 2];
 		outline = new Outline[w + 1];
+		if (y0 > 0) {  // outlines coming from the band above start at its bottom border
+			for (int x = 0; x < w; x++)
+				thisRow[x + 1] = selected(x, y0 - 1);
+			for (int x = 0; x <= w; x++)
+				if (thisRow[x] != thisRow[x + 1]) {
+					outline[x] = new Outline();
+					outline[x].append(x, y0);
+					outline[x].startsAbove = outline[x].endsAbove = true;
+				}
+		}
+		int yEnd = y1 == h ? h : y1 - 1;   // the last band also closes the outlines at the bottom
 
-		for (int y = 0; y <= h; y++) {
+		for (int y = y0; y <= yEnd; y++) {
 			boolean[] b = prevRow; prevRow = thisRow; thisRow = b;
 			int xAfterLowerRightCorner = -1;	   //x at right of 8-connected (not 4-connected) pixels NW-SE
 			Outline oAfterLowerRightCorner = null; //there, continue this outline towards south
@@ -298,15 +462,14 @@ public class ThresholdToSelection implements PlugInFilter {
 							}
 						} else {
 							outline[x].prepend(outline[x + 1]);		// merge
-							for (int x1 = 0; x1 <= w; x1++)
-								if (x1 != x + 1 && outline[x1] == outline[x + 1]) {
-									outline[x1] = outline[x];        // after merging, replace old with merged
-									outline[x + 1] = null;           // no line continues at the right
-									outline[x] = (x == xAfterLowerRightCorner) ? oAfterLowerRightCorner : null;
-									break;
-								}
-							if (outline[x + 1] != null)
-								throw new RuntimeException("assertion failed");							
+							if (outline[x].startsAbove)
+								merged(outline, x, xAfterLowerRightCorner, oAfterLowerRightCorner, pieces);
+							else {
+								int x1 = findOther(outline, x + 1);
+								outline[x1] = outline[x];        // after merging, replace old with merged
+								outline[x + 1] = null;           // no line continues at the right
+								outline[x] = (x == xAfterLowerRightCorner) ? oAfterLowerRightCorner : null;
+							}
 						}
 					}
 					if (!thisRow[x]) {
@@ -369,15 +532,14 @@ public class ThresholdToSelection implements PlugInFilter {
 								outline[x] = null;
 							} else {
 								outline[x].append(outline[x + 1]);         // merge
-								for (int x1 = 0; x1 <= w; x1++)
-									if (x1 != x + 1 && outline[x1] == outline[x + 1]) {
-										outline[x1] = outline[x];        // after merging, replace old with merged
-										outline[x + 1] = null;           // no line continues at the right
-										outline[x] = (x == xAfterLowerRightCorner) ? oAfterLowerRightCorner : null;
-										break;
-									}
-								if (outline[x + 1] != null)
-									throw new RuntimeException("assertion failed");
+								if (outline[x].endsAbove)
+									merged(outline, x, xAfterLowerRightCorner, oAfterLowerRightCorner, pieces);
+								else {
+									int x1 = findOther(outline, x + 1);
+									outline[x1] = outline[x];        // after merging, replace old with merged
+									outline[x + 1] = null;           // no line continues at the right
+									outline[x] = (x == xAfterLowerRightCorner) ? oAfterLowerRightCorner : null;
+								}
 							}
 						}
 					}
@@ -392,27 +554,41 @@ public class ThresholdToSelection implements PlugInFilter {
 			if (y%progressInc==0) {
 				if (Thread.currentThread().isInterrupted()) return null;
 				if (showStatus)
-					IJ.showProgress(y*(PROGRESS_FRACTION_OUTLINING/h));
+					IJ.showProgress(progress.addAndGet(progressInc)*(PROGRESS_FRACTION_OUTLINING/h));
 			}
 		}
-		
-		if (polygons.size()==0)
-			return null;
-		if (showStatus) IJ.showStatus("Converting threshold to selection...");
-		GeneralPath path = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
-		progressInc = Math.max(polygons.size()/10, 1);
-		for (int i = 0; i < polygons.size(); i++) {
-			path.append((Polygon)polygons.get(i), false);
-			if (Thread.currentThread().isInterrupted()) return null;
-			if (showStatus && i%progressInc==0)
-				IJ.showProgress(PROGRESS_FRACTION_OUTLINING + i*(1.-PROGRESS_FRACTION_OUTLINING)/polygons.size());
+		if (pieces != null) {  // outlines continuing in the band below
+			LinkedHashSet<Outline> open = new LinkedHashSet<Outline>();
+			for (int x = 0; x <= w; x++)
+				if (outline[x] != null)
+					open.add(outline[x]);
+			pieces.addAll(open);
 		}
+		return outline;
+	}
 
-		ShapeRoi shape = new ShapeRoi(path);
-		Roi roi = shape!=null ? shape.trySimplify():null; // try to convert to non-composite ROI
-		if (showStatus)
-			IJ.showProgress(1.0);
-		return roi;
+	/** Handles an outline that has been merged at x, x+1 where the outline
+	 *  merged in continues in the band above: The merged outline has no other
+	 *  end in this row; if it also started above, it is a complete piece. */
+	private void merged(Outline[] outline, int x, int xAfterLowerRightCorner, Outline oAfterLowerRightCorner, ArrayList<Outline> pieces) {
+		if (outline[x].startsAbove && outline[x].endsAbove)
+			pieces.add(outline[x]);
+		outline[x + 1] = null;
+		outline[x] = (x == xAfterLowerRightCorner) ? oAfterLowerRightCorner : null;
+	}
+
+	/** Returns the other position where the outline at x ends in the
+	 *  current row. The outlines do not cross,
+	 *  so the search starts next to x. */
+	private int findOther(Outline[] outline, int x) {
+		Outline o = outline[x];
+		for (int d = 1; x - d >= 0 || x + d <= w; d++) {
+			if (x + d <= w && outline[x + d] == o)
+				return x + d;
+			if (x - d >= 0 && outline[x - d] == o)
+				return x - d;
+		}
+		throw new RuntimeException("assertion failed");
 	}
 
 	public int setup(String arg, ImagePlus imp) {
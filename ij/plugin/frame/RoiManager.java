@@ -44,7 +44,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 	private static int colorIndex = 4;
 	private JList list;
 	private DefaultListModel listModel;
-	private ArrayList rois = new ArrayList();
+	private RoiList rois = new RoiList();
 	private boolean canceled;
 	private boolean macro;
 	private boolean ignoreInterrupts;
@@ -703,42 +703,74 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		Roi roi = (Roi)rois.get(index);
 		if (imp==null || roi==null)
 			return false;
-		if (setSlice) {
-			boolean hyperstack = imp.isHyperStack();
-			int position = roi.getPosition();
-			if (hyperstack && roi.hasHyperStackPosition())
-				imp.setPosition(roi.getCPosition(), roi.getZPosition(), roi.getTPosition());
-			else if (hyperstack && imp.getNSlices()==1)
-				imp.setPosition(imp.getChannel(), 1, position);
-			else if (hyperstack)
-				imp.setPosition(imp.getChannel(), position, imp.getChannel());
-			else if (roi.getZPosition()>0 && imp.getNSlices()==imp.getStackSize())
-				imp.setSlice(roi.getZPosition());
-			else if (position>0 && position<=imp.getStackSize())
-				imp.setSlice(position);
-			else if ((roi instanceof PointRoi) && !Prefs.showAllPoints && !((PointRoi)roi).hasPointPosition(imp.getSlice()))
-				imp.setSlice(((PointRoi)roi).getPointPosition(0));
-			else {
-				String label = (String)listModel.getElementAt(index);
-				int n = getSliceNumber(roi, label);
-				if (n>=1 && n<=imp.getStackSize()) {
-					if (hyperstack) {
-						if (imp.getNSlices()>1 && n<=imp.getNSlices())
-							imp.setPosition(imp.getC(),n,imp.getT());
-						else if (imp.getNFrames()>1 && n<=imp.getNFrames())
-							imp.setPosition(imp.getC(),imp.getZ(),n);
-						else
-							imp.setPosition(n);
-					} else
-						imp.setSlice(n);
-				}
-			}
-		}	
+		if (setSlice)
+			setStackPosition(imp, index, true);
 		if (showAllCheckbox.getState() && !restoreCentered && !noUpdateMode) {
 			roi.setImage(null);
 			imp.setRoi(roi);
 			return true;
 		}
+		Roi roi2 = getRestoredRoi(imp, roi);
+		if (noUpdateMode) {
+			imp.setRoi(roi2, false);
+			noUpdateMode = false;
+		} else
+			imp.setRoi(roi2, true);
+		return true;
+	}
+
+	/* Moves 'imp' to the stack position of the ROI with the specified index. */
+	private void setStackPosition(ImagePlus imp, int index, boolean update) {
+		Roi roi = (Roi)rois.get(index);
+		boolean hyperstack = imp.isHyperStack();
+		int position = roi.getPosition();
+		if (hyperstack && roi.hasHyperStackPosition())
+			setImagePosition(imp, roi.getCPosition(), roi.getZPosition(), roi.getTPosition(), update);
+		else if (hyperstack && imp.getNSlices()==1)
+			setImagePosition(imp, imp.getChannel(), 1, position, update);
+		else if (hyperstack)
+			setImagePosition(imp, imp.getChannel(), position, imp.getChannel(), update);
+		else if (roi.getZPosition()>0 && imp.getNSlices()==imp.getStackSize())
+			setImageSlice(imp, roi.getZPosition(), update);
+		else if (position>0 && position<=imp.getStackSize())
+			setImageSlice(imp, position, update);
+		else if ((roi instanceof PointRoi) && !Prefs.showAllPoints && !((PointRoi)roi).hasPointPosition(imp.getSlice()))
+			setImageSlice(imp, ((PointRoi)roi).getPointPosition(0), update);
+		else {
+			String label = (String)listModel.getElementAt(index);
+			int n = getSliceNumber(roi, label);
+			if (n>=1 && n<=imp.getStackSize()) {
+				if (hyperstack) {
+					if (imp.getNSlices()>1 && n<=imp.getNSlices())
+						setImagePosition(imp, imp.getC(), n, imp.getT(), update);
+					else if (imp.getNFrames()>1 && n<=imp.getNFrames())
+						setImagePosition(imp, imp.getC(), imp.getZ(), n, update);
+					else {
+						int[] pos = imp.convertIndexToPosition(n);
+						setImagePosition(imp, pos[0], pos[1], pos[2], update);
+					}
+				} else
+					setImageSlice(imp, n, update);
+			}
+		}
+	}
+
+	private void setImagePosition(ImagePlus imp, int c, int z, int t, boolean update) {
+		if (update)
+			imp.setPosition(c, z, t);
+		else
+			imp.setPositionWithoutUpdate(c, z, t);
+	}
+
+	private void setImageSlice(ImagePlus imp, int n, boolean update) {
+		if (update)
+			imp.setSlice(n);
+		else
+			imp.setSliceWithoutUpdate(n);
+	}
+
+	/* Returns the copy of 'roi' that restore() activates. */
+	private Roi getRestoredRoi(ImagePlus imp, Roi roi) {
 		Roi roi2 = (Roi)roi.clone();
 		Rectangle r = roi2.getBounds();
 		int width= imp.getWidth(), height=imp.getHeight();
@@ -754,12 +786,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			if (roi2.getType()!=Roi.POINT)
 				roi2.setLocation((width-r.width)/2, (height-r.height)/2);
 		}
-		if (noUpdateMode) {
-			imp.setRoi(roi2, false);
-			noUpdateMode = false;
-		} else
-			imp.setRoi(roi2, true);
-		return true;
+		return roi2;
 	}
 
 	private boolean restoreWithoutUpdate(ImagePlus imp, int index) {
@@ -793,7 +820,8 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return slice;
 	}
 
-	/** Opens a single .roi file or a ZIP-compressed set of ROIs.
+	/** Opens a single .roi file, a ZIP-compressed set of ROIs or an
+	 *	indexed ".rois" set, whose ROIs are decoded when first used.
 	 *	Returns 'true' if the operation was succesful.
 	*/
 	public boolean open(String path) {
@@ -820,6 +848,8 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			Recorder.resumeRecording();
 			return ok;
 		}
+		if (RoiSetDecoder.isRoiSet(path))
+			return openRoiSet(path);
 		Opener o = new Opener();
 		if (name==null) name = o.getName(path);
 		Roi roi = o.openRoi(path);
@@ -888,9 +918,29 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return errorMessage==null;
 	}
 
+	/** Opens an indexed ROI set written by RoiSetEncoder. Only the index
+		is read; each ROI is decoded when it is first accessed. */
+	@SuppressWarnings("unchecked")  // listModel and rois are raw
+	boolean openRoiSet(String path) {
+		errorMessage = null;
+		try {
+			RoiSetDecoder decoder = new RoiSetDecoder(path);
+			for (int i=0; i<decoder.size(); i++) {
+				listModel.addElement(decoder.getName(i));
+				rois.add(new LazyRoi(decoder, i));
+			}
+		} catch (IOException e) {
+			errorMessage = e.toString();
+			error(errorMessage);
+		}
+		updateShowAll();
+		return errorMessage==null;
+	}
+
 	/** If one ROI is selected, it is saved as a .roi
 	 * file, if multiple (or no) ROIs are selected,
-	 * they are saved as a .zip ROI set. Returns 
+	 * they are saved as a .zip ROI set, or as an
+	 * indexed ROI set if 'path' ends with ".rois". Returns 
 	 * 'true' if the save operation was succesful.
 	 * @see #setSelectedIndexes
 	*/
@@ -948,11 +998,13 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			String name = sd.getFileName();
 			if (name == null)
 				return false;
-			if (!(name.endsWith(".zip") || name.endsWith(".ZIP")))
+			if (!(name.endsWith(".zip") || name.endsWith(".ZIP") || RoiSetDecoder.isRoiSet(name)))
 				name = name + ".zip";
 			String dir = sd.getDirectory();
 			path = dir+name;
 		}
+		if (RoiSetDecoder.isRoiSet(path))
+			return saveRoiSet(indexes, path);
 		DataOutputStream out = null;
 		IJ.showStatus("Saving "+indexes.length+" ROIs "+" to "+path);
 		long t0 = System.currentTimeMillis();
@@ -1002,6 +1054,35 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return true;
 	}
 
+	/** Saves the specified ROIs as an indexed ROI set, in one sequential write. */
+	boolean saveRoiSet(int[] indexes, String path) {
+		IJ.showStatus("Saving "+indexes.length+" ROIs "+" to "+path);
+		long t0 = System.currentTimeMillis();
+		Roi[] rois2 = new Roi[indexes.length];
+		String[] labels = new String[indexes.length];
+		for (int i=0; i<indexes.length; i++) {
+			rois2[i] = (Roi)rois.get(indexes[i]);
+			labels[i] = (String)listModel.getElementAt(indexes[i]);
+		}
+		errorMessage = null;
+		try {
+			new RoiSetEncoder(path).write(rois2, labels);
+		} catch (IOException e) {
+			errorMessage = ""+e;
+			error(errorMessage);
+			return false;
+		}
+		double time = (System.currentTimeMillis()-t0)/1000.0;
+		IJ.showStatus(IJ.d2s(time,3)+" seconds, "+indexes.length+" ROIs, "+path);
+		if (IJ.recording() && !IJ.isMacro()) {
+			if (Recorder.scriptMode())
+				Recorder.recordCall("rm.save(\""+path+"\");");
+			else
+				Recorder.record("roiManager", "Save", path);
+		}
+		return true;
+	}
+
 	String getUniqueName(String[] names, int index) {
 		String name = names[index];
 		int n = 1;
@@ -1059,12 +1140,14 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			Analyzer.setMeasurements(measurements|Measurements.SLICE);
 		int currentSlice = imp.getCurrentSlice();
 		Analyzer.setMeasurements(measurements&(~Measurements.ADD_TO_OVERLAY));
-		for (int i=0; i<indexes.length; i++) {
-			noUpdateMode = true;
-			if (restore(imp, indexes[i], !allSliceOne))
-				IJ.run(imp, "Measure", "");
-			else
-				break;
+		if (indexes.length==1 || !measureInParallel(imp, indexes, !allSliceOne)) {
+			for (int i=0; i<indexes.length; i++) {
+				noUpdateMode = true;
+				if (restore(imp, indexes[i], !allSliceOne))
+					IJ.run(imp, "Measure", "");
+				else
+					break;
+			}
 		}
 		Analyzer.setMeasurements(measurements);
 		imp.setSlice(currentSlice);
@@ -1076,6 +1159,36 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		return true;
 	}
 
+	/* Measures the specified ROIs as the loop in measure() does, but computes
+		the statistics concurrently without setting the ROIs on the image and
+		displays the results once. Returns false, without measuring, if one
+		of the ROIs is not an area selection or measurements are redirected.
+	*/
+	private boolean measureInParallel(ImagePlus imp, int[] indexes, boolean setSlice) {
+		if (Analyzer.isRedirectImage())
+			return false;
+		int n = indexes.length;
+		Roi[] rois2 = new Roi[n];
+		int[] slices = new int[n];
+		int currentSlice = imp.getCurrentSlice();
+		for (int i=0; i<n; i++) {
+			Roi roi = (Roi)rois.get(indexes[i]);
+			if (roi==null)
+				return false;
+			if (setSlice)
+				setStackPosition(imp, indexes[i], false);
+			slices[i] = imp.getCurrentSlice();
+			rois2[i] = getRestoredRoi(imp, roi);
+			if (!RoiStatistics.isMeasurable(rois2[i])) {
+				imp.setSliceWithoutUpdate(currentSlice);
+				return false;
+			}
+			rois2[i].setImage(imp);
+		}
+		RoiStatistics.measure(imp, rois2, slices);
+		return true;
+	}
+
 	/** This method measures the selected ROIs, or all ROIs if
 	 * none are selected, on all the slices of a stack and returns
 	 * a ResultsTable arranged with one row per slice.
@@ -1155,8 +1268,17 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 				rt = mmResults2;
 			Analyzer analyzer = new Analyzer(imp, measurements2, rt);
 			analyzer.disableReset(true);
+			Roi[] rois2 = getRestoredRois(imp, indexes);
+			RoiStatistics roiStats = rois2!=null?new RoiStatistics(rois2, imp.getWidth(), imp.getHeight()):null;
+			ImageStatistics[] stats = new ImageStatistics[indexes.length];
 			for (int slice=1; slice<=nSlices; slice++) {
 				if (nSlices>1) imp.setSliceWithoutUpdate(slice);
+				if (roiStats!=null) {
+					roiStats.getStatistics(imp.getProcessor(), getAllIndexes(indexes.length), measurements2, imp.getCalibration(), stats);
+					for (int i=0; i<indexes.length; i++)
+						analyzer.measure(rois2[i], stats[i]);
+					continue;
+				}
 				for (int i=0; i<indexes.length; i++) {
 					if (restoreWithoutUpdate(imp, indexes[i]))
 						analyzer.measure();
@@ -1217,6 +1339,19 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			rtMulti = mmResults;
 		rtSys.reset();
 		int currentSlice = imp.getCurrentSlice();
+		RoiStatistics roiStats = null;
+		Roi[] rois2 = null;
+		if (!Analyzer.isRedirectImage() && RoiStatistics.isMeasurable(rois)) {
+			// the image calibration is used when the ROIs are attached to it, as by imp.setRoi()
+			rois2 = new Roi[rois.length];
+			for (int i=0; i<rois.length; i++) {
+				ImagePlus imp2 = rois[i].getImage();
+				rois2[i] = imp2!=null && imp2!=imp?(Roi)rois[i].clone():rois[i];
+				rois2[i].setImage(imp);
+			}
+			roiStats = new RoiStatistics(rois2, imp.getWidth(), imp.getHeight());
+		}
+		ImageStatistics[] stats = new ImageStatistics[rois.length];
 		for (int slice=1; slice<=nSlices; slice++) {
 			int sliceUse = slice;
 			if (nSlices==1) sliceUse = currentSlice;
@@ -1224,16 +1359,23 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			rtMulti.incrementCounter();
 			if ((Analyzer.getMeasurements()&Measurements.LABELS)!=0)
 				rtMulti.addLabel("Label", imp.getTitle());
+			if (roiStats!=null)
+				roiStats.getStatistics(imp.getProcessor(), getAllIndexes(rois.length), Analyzer.getMeasurements(), imp.getCalibration(), stats);
 			int roiIndex = 0;
 			for (int i=0; i<rois.length; i++) {
-				imp.setRoi(rois[i]);
+				Roi roi = rois[i];
+				if (roiStats!=null)
+					aSys.measure(roi=rois2[i], stats[i]);
+				else {
+					imp.setRoi(roi);
+					aSys.measure();
+					roi = imp.getRoi();
+				}
 				roiIndex++;
-				aSys.measure();
 				for (int j=0; j<=rtSys.getLastColumn(); j++){
 					float[] col = rtSys.getColumn(j);
 					String head = rtSys.getColumnHeading(j);
 					String suffix = ""+roiIndex;
-					Roi roi = imp.getRoi();
 					if (roi!=null) {
 						String name = roi.getName();
 						if (name!=null && name.length()>0 && (name.length()<9||!Character.isDigit(name.charAt(0))))
@@ -1687,7 +1829,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			return;
 		}
 		IJ.resetEscape();
-		ShapeRoi s1=null, s2=null;
+		ShapeRoi[] shapes = new ShapeRoi[rois.length];
 		for (int i=0; i<rois.length; i++) {
 			IJ.showProgress(i, rois.length-1);
 			if (IJ.escapePressed()) {
@@ -1697,21 +1839,9 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			Roi roi = rois[i];
 			if (!roi.isArea() && roi.getType()!=Roi.POINT) 
 			 roi = Roi.convertLineToArea(roi);
-			if (s1==null) {
-				if (roi instanceof ShapeRoi)
-					s1 = (ShapeRoi)roi.clone();
-				else
-					s1 = new ShapeRoi(roi);
-				if (s1==null) return;
-			} else {
-				if (roi instanceof ShapeRoi)
-					s2 = (ShapeRoi)roi;
-				else
-					s2 = new ShapeRoi(roi);
-				if (s2==null) continue;
-				s1.or(s2);
-			}
+			shapes[i] = roi instanceof ShapeRoi ? (ShapeRoi)roi : new ShapeRoi(roi);
 		}
+		ShapeRoi s1 = ShapeRoi.union(shapes);
 		if (s1!=null)
 			imp.setRoi(s1.trySimplify());
 	}
@@ -1740,35 +1870,18 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 			return;
 		}
 		int nPointRois = countPointRois(rois);
-		ShapeRoi s1=null;
+		ArrayList<ShapeRoi> shapes = new ArrayList<ShapeRoi>();
 		PointRoi pointRoi = null;
 		for (Roi roi : rois) {
 			if (roi==null)
 				continue;
-			if (s1==null) {
-				if (nPointRois==1 && roi.getType() == Roi.POINT) {
-					pointRoi = (PointRoi)roi;
-					continue;  //PointRoi will be handled at the end
-				}
-				if (roi instanceof ShapeRoi)
-					s1 = (ShapeRoi)roi.clone();
-				else
-					s1 = new ShapeRoi(roi);
-				if (s1==null) continue;
-			} else {
-				if (nPointRois==1 && roi.getType()==Roi.POINT) {
-					pointRoi = (PointRoi)roi;
-					continue;  //PointRoi will be handled at the end
-				}
-				ShapeRoi s2 = null;
-				if (roi instanceof ShapeRoi)
-					s2 = (ShapeRoi)roi.clone();
-				else
-					s2 = new ShapeRoi(roi);
-				if (s2==null) continue;
-				s1.and(s2);
+			if (nPointRois==1 && roi.getType()==Roi.POINT) {
+				pointRoi = (PointRoi)roi;
+				continue;  //PointRoi will be handled at the end
 			}
+			shapes.add(roi instanceof ShapeRoi ? (ShapeRoi)roi : new ShapeRoi(roi));
 		}
+		ShapeRoi s1 = ShapeRoi.intersection(shapes.toArray(new ShapeRoi[shapes.size()]));
 		if (s1==null) return;
 		if (pointRoi!=null)
 			imp.setRoi(pointRoi.containedPoints(s1));
@@ -2002,13 +2115,8 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		if (mode==SHOW_NONE) {
 			removeOverlay(imp);
 			imageID = 0;
-		} else if (getCount()>0) {
-			Roi[] rois = getRoisAsArray();
-			Overlay overlay = newOverlay();
-			for (int i=0; i<rois.length; i++)
-				overlay.add(rois[i]);
-			setOverlay(imp, overlay);
-		}
+		} else if (getCount()>0)
+			setOverlay(imp, getShowAllOverlay());
 	}
 
 	void updateShowAll() {
@@ -2016,26 +2124,52 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 		if (imp==null)
 			return;
 		if (showAllCheckbox.getState()) {
-			if (getCount()>0) {
-				Roi[] rois = getRoisAsArray();
-				Overlay overlay = newOverlay();
-				for (int i=0; i<rois.length; i++)
-					overlay.add(rois[i]);
-				setOverlay(imp, overlay);
-			} else
+			if (getCount()>0)
+				setOverlay(imp, getShowAllOverlay());
+			else
 				removeOverlay(imp);
 		} else
 			removeOverlay(imp);
 	}
 
+	/* ROIs of indexed ROI sets that have not been decoded yet are added
+		as placeholders, which decode them when they are drawn. */
+	private Overlay getShowAllOverlay() {
+		Overlay overlay = newOverlay();
+		for (int i=0; i<getCount(); i++)
+			overlay.add(rois.getOverlayRoi(i));
+		return overlay;
+	}
+
 	int[] getAllIndexes() {
-		int count = getCount();
+		return getAllIndexes(getCount());
+	}
+
+	private static int[] getAllIndexes(int count) {
 		int[] indexes = new int[count];
 		for (int i=0; i<count; i++)
 			indexes[i] = i;
 		return indexes;
 	}
 
+	/* Returns the ROIs with the specified indexes as restore() would activate
+		them, or null if one of them cannot be measured by RoiStatistics. */
+	private Roi[] getRestoredRois(ImagePlus imp, int[] indexes) {
+		if (Analyzer.isRedirectImage())
+			return null;
+		Roi[] rois2 = new Roi[indexes.length];
+		for (int i=0; i<indexes.length; i++) {
+			Roi roi = indexes[i]<rois.size()?(Roi)rois.get(indexes[i]):null;
+			if (roi==null)
+				return null;
+			rois2[i] = getRestoredRoi(imp, roi);
+			if (!RoiStatistics.isMeasurable(rois2[i]))
+				return null;
+			rois2[i].setImage(imp);
+		}
+		return rois2;
+	}
+
 	ImagePlus getImage() {
 		ImagePlus imp = WindowManager.getCurrentImage();
 		if (imp==null) {
@@ -2137,13 +2271,7 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 
 	/** Returns the index of the specified Roi, or -1 if it is not found. */
     public int getRoiIndex(Roi roi) {
-		int n = getCount();
-		for (int i=0; i<n; i++) {
-			Roi roi2 = (Roi)rois.get(i);
-			if (roi==roi2)
-				return i;
-		}
-		return -1;
+		return rois.indexOfRoi(roi);
     }
 
 	/** Returns the index of the first selected ROI or -1 if no ROI is selected. */
@@ -2516,8 +2644,8 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 
 	private boolean save(String name, boolean saveSelected) {
 		errorMessage = null;
-		if (!name.endsWith(".zip") && !name.equals("")) {
-			errorMessage = "Name must end with '.zip'";
+		if (!name.endsWith(".zip") && !RoiSetDecoder.isRoiSet(name) && !name.equals("")) {
+			errorMessage = "Name must end with '.zip' or '.rois'";
 			return error(errorMessage);
 		}
 		if (getCount()==0)
@@ -2981,4 +3109,137 @@ public class RoiManager extends PlugInFrame implements ActionListener, ItemListe
 	}
 
 
+	/** A ROI of an indexed ROI set, decoded when it is first accessed. */
+	private static class LazyRoi {
+		private RoiSetDecoder decoder;
+		private int index;
+		private Roi roi;
+		private UndecodedRoi placeholder;
+
+		LazyRoi(RoiSetDecoder decoder, int index) {
+			this.decoder = decoder;
+			this.index = index;
+		}
+
+		synchronized Roi decode() {
+			if (roi!=null)
+				return roi;
+			try {
+				roi = decoder.getRoi(index);
+			} catch (IOException e) {
+				IJ.log("ROI Manager: "+e.getMessage());
+			}
+			if (roi==null) {  // keep the list consistent
+				roi = new Roi(decoder.getBounds(index));
+				roi.setName(decoder.getName(index));
+			}
+			return roi;
+		}
+
+		/* Returns the decoded ROI or, if it has not been decoded yet, a
+			placeholder with the bounds and position read from the index. */
+		synchronized Roi getOverlayRoi() {
+			if (roi!=null)
+				return roi;
+			if (placeholder==null)
+				placeholder = new UndecodedRoi(this, decoder, index);
+			return placeholder;
+		}
+
+		synchronized boolean holds(Roi roi2) {
+			return roi2!=null && (roi2==roi || roi2==placeholder);
+		}
+	}
+
+	/** The Show All overlay stand-in for a ROI that has not been decoded.
+		It has the bounds, name and position of the ROI, so the overlay can
+		be indexed and filtered by slice; the ROI is decoded when it is drawn
+		or tested for containing a point. */
+	private static class UndecodedRoi extends Roi {
+		private LazyRoi lazyRoi;
+
+		UndecodedRoi(LazyRoi lazyRoi, RoiSetDecoder decoder, int index) {
+			super(decoder.getBounds(index));
+			this.lazyRoi = lazyRoi;
+			setName(decoder.getName(index));
+			int[] position = decoder.getHyperstackPosition(index);
+			if (position[0]>0 || position[1]>0 || position[2]>0)
+				setPosition(position[0], position[1], position[2]);
+			else
+				setPosition(decoder.getPosition(index));
+		}
+
+		public void drawOverlay(Graphics g) {
+			Roi roi = lazyRoi.decode();
+			ImagePlus imp2 = roi.getImage();
+			Color color = roi.getStrokeColor();
+			roi.setImage(getImage());
+			if (color==null && roi.getFillColor()==null)
+				roi.setStrokeColor(getStrokeColor());
+			roi.drawOverlay(g);
+			roi.setStrokeColor(color);
+			roi.setImage(imp2);
+		}
+
+		public boolean contains(int x, int y) {
+			return lazyRoi.decode().contains(x, y);
+		}
+	}
+
+	/** The list of ROIs. LazyRoi elements are decoded by get(), which every
+		other access path of AbstractList (iterators, toArray(), subList(),
+		indexOf(), etc.) goes through. */
+	private static class RoiList extends AbstractList<Object> {
+		private ArrayList<Object> elements = new ArrayList<Object>();
+
+		public synchronized Object get(int index) {
+			Object obj = elements.get(index);
+			if (obj instanceof LazyRoi) {
+				obj = ((LazyRoi)obj).decode();
+				elements.set(index, obj);
+			}
+			return obj;
+		}
+
+		public synchronized Object set(int index, Object obj) {
+			return elements.set(index, obj);
+		}
+
+		public synchronized void add(int index, Object obj) {
+			elements.add(index, obj);
+			modCount++;
+		}
+
+		public synchronized Object remove(int index) {
+			modCount++;
+			return elements.remove(index);
+		}
+
+		public synchronized void clear() {
+			elements.clear();
+			modCount++;
+		}
+
+		public synchronized int size() {
+			return elements.size();
+		}
+
+		/* Returns the ROI to show in the Show All overlay, without decoding it. */
+		synchronized Roi getOverlayRoi(int index) {
+			Object obj = elements.get(index);
+			return obj instanceof LazyRoi ? ((LazyRoi)obj).getOverlayRoi() : (Roi)obj;
+		}
+
+		/* Returns the index of 'roi', or of the ROI that 'roi' stands in
+			for in the overlay, without decoding any ROI. */
+		synchronized int indexOfRoi(Roi roi) {
+			for (int i=0; i<elements.size(); i++) {
+				Object obj = elements.get(i);
+				if (obj==roi || (obj instanceof LazyRoi && ((LazyRoi)obj).holds(roi)))
+					return i;
+			}
+			return -1;
+		}
+	}
+
 }
@@ -0,0 +1,154 @@
+package ij.plugin.frame;
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.plugin.filter.Analyzer;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ImageStatistics;
+import ij.process.SpanMask;
+import ij.util.ThreadUtil;
+
+/** Measures many area ROIs of an image concurrently for the ROI Manager
+	"Measure" and "Multi Measure" commands. The span masks of the ROIs, clipped
+	to the image as ImageProcessor.setRoi(Roi) would, are created once and
+	reused for every slice, and the image selection is not changed. The
+	statistics are the same as those of ImagePlus.getStatistics() with
+	each ROI as the selection.
+*/
+class RoiStatistics {
+	private static final int CHUNK_SIZE = 16;
+	private static final int MIN_ROIS_PER_THREAD = 32;
+
+	private Rectangle[] bounds;
+	private SpanMask[] spanMasks;
+	private ImageProcessor[] masks;   // only used if there is no span mask
+
+	/** Creates the clipped masks of 'rois', which must all be
+		measurable, for an image with the specified size. */
+	RoiStatistics(Roi[] rois, int width, int height) {
+		int n = rois.length;
+		bounds = new Rectangle[n];
+		spanMasks = new SpanMask[n];
+		masks = new ImageProcessor[n];
+		ImageProcessor ip = new ByteProcessor(width, height, null);	// only used to clip the masks
+		for (int i=0; i<n; i++) {
+			ip.setRoi(rois[i]);
+			bounds[i] = ip.getRoi();
+			spanMasks[i] = ip.getSpanMask();
+			if (spanMasks[i]==null)
+				masks[i] = ip.getMask();
+		}
+	}
+
+	/** Returns 'true' if the statistics of 'roi' can be computed here, which
+		requires an area selection that ImagePlus.setRoi() would not discard. */
+	static boolean isMeasurable(Roi roi) {
+		if (roi==null || !roi.isArea() || roi instanceof PointRoi)
+			return false;
+		Rectangle r = roi.getBounds();
+		return r.width!=0 || r.height!=0;
+	}
+
+	/** Returns 'true' if all of 'rois' are measurable. */
+	static boolean isMeasurable(Roi[] rois) {
+		for (Roi roi: rois) {
+			if (!isMeasurable(roi))
+				return false;
+		}
+		return true;
+	}
+
+	/** Computes, using all threads, the statistics of the ROIs with the
+		specified indexes on 'ip' and stores them in 'stats'. */
+	void getStatistics(ImageProcessor ip, final int[] indexes, final int measurements,
+		final Calibration cal, final ImageStatistics[] stats) {
+		final ImageProcessor ip0 = (ImageProcessor)ip.clone();
+		ip0.resetRoi();
+		ip0.setHistogramSize(256);
+		ip0.setHistogramRange(0.0, 0.0);
+		if (cal!=null)
+			cal.getCTable();	// created lazily; do it before the threads start
+		final AtomicInteger next = new AtomicInteger();
+		int nThreads = Math.min(Prefs.getThreads(), (indexes.length+MIN_ROIS_PER_THREAD-1)/MIN_ROIS_PER_THREAD);
+		Callable[] tasks = new Callable[Math.max(nThreads,1)];
+		for (int t=0; t<tasks.length; t++) {
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					ImageProcessor ip2 = (ImageProcessor)ip0.clone();
+					for (int start=next.getAndAdd(CHUNK_SIZE); start<indexes.length; start=next.getAndAdd(CHUNK_SIZE)) {
+						int end = Math.min(start+CHUNK_SIZE, indexes.length);
+						for (int k=start; k<end; k++) {
+							int i = indexes[k];
+							if (spanMasks[i]!=null)
+								ip2.setSpanMask(spanMasks[i]);
+							else
+								ip2.setMask(masks[i]);
+							ip2.setRoi(bounds[i]);
+							stats[i] = ImageStatistics.getStatistics(ip2, measurements, cal);
+						}
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+	}
+
+	/** Measures 'rois', which must all be measurable, on the slices of 'imp'
+		given by 'slices', and adds the rows to the system results table in
+		the order of 'rois', as "Measure" with each ROI as the selection
+		would. The statistics of the ROIs of a slice are computed
+		concurrently. The results are displayed once. */
+	static void measure(ImagePlus imp, Roi[] rois, int[] slices) {
+		int n = rois.length;
+		int measurements = Analyzer.getMeasurements();
+		Calibration cal = imp.getCalibration();
+		RoiStatistics roiStats = new RoiStatistics(rois, imp.getWidth(), imp.getHeight());
+		ImageStatistics[] stats = new ImageStatistics[n];
+		int[] order = sortBySlice(slices);
+		for (int k=0; k<n; ) {
+			int slice = slices[order[k]];
+			int k2 = k;
+			while (k2<n && slices[order[k2]]==slice)
+				k2++;
+			if (slice!=imp.getCurrentSlice())
+				imp.setSliceWithoutUpdate(slice);
+			roiStats.getStatistics(imp.getProcessor(), Arrays.copyOfRange(order,k,k2), measurements, cal, stats);
+			k = k2;
+		}
+		Analyzer analyzer = new Analyzer(imp);
+		for (int i=0; i<n; i++) {
+			if (slices[i]!=imp.getCurrentSlice())
+				imp.setSliceWithoutUpdate(slices[i]);
+			analyzer.measure(rois[i], stats[i]);
+			if (i==0)
+				analyzer.displayResults();
+		}
+		analyzer.updateHeadings();
+	}
+
+	/* Returns the indexes of 'slices' sorted by slice, keeping the
+		original order within each slice. */
+	private static int[] sortBySlice(int[] slices) {
+		int max = 0;
+		for (int slice: slices)
+			max = Math.max(max, slice);
+		int[] start = new int[max+2];
+		for (int slice: slices)
+			start[slice+1]++;
+		for (int s=1; s<start.length; s++)
+			start[s] += start[s-1];
+		int[] order = new int[slices.length];
+		for (int i=0; i<slices.length; i++)
+			order[start[slices[i]]++] = i;
+		return order;
+	}
+
+}
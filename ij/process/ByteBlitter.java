@@ -22,13 +22,11 @@ public class ByteBlitter implements Blitter {
 	}
 	
 	/** Copies the byte image in 'ip' to (x,y) using the specified mode. */
-	public void copyBits(ImageProcessor ip, int xloc, int yloc, int mode) {
+	public void copyBits(ImageProcessor ip, final int xloc, final int yloc, final int mode) {
 		Rectangle r1, r2;
-		int srcIndex, dstIndex;
-		int xSrcBase, ySrcBase;
 		byte[] srcPixels;
 		
-		int srcWidth = ip.getWidth();
+		final int srcWidth = ip.getWidth();
 		int srcHeight = ip.getHeight();
 		r1 = new Rectangle(srcWidth, srcHeight);
 		r1.setLocation(xloc, yloc);
@@ -49,121 +47,94 @@ public class ByteBlitter implements Blitter {
 			ip = ip.convertToByte(true);
 			srcPixels = (byte [])ip.getPixels();
 		}
-		r1 = r1.intersection(r2);
-		xSrcBase = (xloc<0)?-xloc:0;
-		ySrcBase = (yloc<0)?-yloc:0;
-		int src, dst;
-		for (int y=r1.y; y<(r1.y+r1.height); y++) {
-			srcIndex = (y-yloc)*srcWidth + (r1.x-xloc);
-			dstIndex = y * width + r1.x;
-			switch (mode) {
-				case COPY:
-					for (int i=r1.width; --i>=0;)
-						pixels[dstIndex++] = srcPixels[srcIndex++];
-					break;
-				case COPY_INVERTED:
-					for (int i=r1.width; --i>=0;)
-						pixels[dstIndex++] = (byte)(255-srcPixels[srcIndex++]&255);
-					break;
-				case COPY_TRANSPARENT:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&255;
-						if (src==transparent)
-							dst = pixels[dstIndex];
-						else
-							dst = src;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case COPY_ZERO_TRANSPARENT:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&255;
-						if (src==0)
-							dst = pixels[dstIndex];
-						else
-							dst = src;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case ADD:
-					for (int i=r1.width; --i>=0;) {
-						dst = (srcPixels[srcIndex++]&255)+(pixels[dstIndex]&255);
-						if (dst>255) dst = 255;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case AVERAGE:
-					for (int i=r1.width; --i>=0;) {
-						dst = ((srcPixels[srcIndex++]&255)+(pixels[dstIndex]&255))/2;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case SUBTRACT:
-					for (int i=r1.width; --i>=0;) {
-						dst = (pixels[dstIndex]&255)-(srcPixels[srcIndex++]&255);
-						if (dst<0) dst = 0;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case DIFFERENCE:
-					for (int i=r1.width; --i>=0;) {
-						dst = (pixels[dstIndex]&255)-(srcPixels[srcIndex++]&255);
-						if (dst<0) dst = -dst;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case MULTIPLY:
-					for (int i=r1.width; --i>=0;) {
-						dst = (srcPixels[srcIndex++]&255)*(pixels[dstIndex]&255);
-						if (dst>255) dst = 255;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case DIVIDE:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&255;
-						if (src==0)
-							dst = 255;
-						else
-							dst = (pixels[dstIndex]&255)/src;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case AND:
-					for (int i=r1.width; --i>=0;) {
-						dst = srcPixels[srcIndex++]&pixels[dstIndex];
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case OR:
-					for (int i=r1.width; --i>=0;) {
-						dst = srcPixels[srcIndex++]|pixels[dstIndex];
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case XOR:
-					for (int i=r1.width; --i>=0;) {
-						dst = srcPixels[srcIndex++]^pixels[dstIndex];
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case MIN:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&255;
-						dst = pixels[dstIndex]&255;
-						if (src<dst) dst = src;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
-				case MAX:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&255;
-						dst = pixels[dstIndex]&255;
-						if (src>dst) dst = src;
-						pixels[dstIndex++] = (byte)dst;
-					}
-					break;
+		final byte[] srcPixels2 = srcPixels;
+		final Rectangle r = r1.intersection(r2);
+		RowBands rows = new RowBands() {
+			void process(int y1, int y2) {
+				for (int y=y1; y<y2; y++)
+					copyRow(srcPixels2, (y-yloc)*srcWidth + (r.x-xloc), y*width + r.x, r.width, mode);
 			}
+		};
+		if (srcPixels==pixels)  // rows may overlap
+			rows.process(r.y, r.y+r.height);
+		else
+			rows.run(r.y, r.y+r.height, r.width);
+	}
+
+	/* Combines 'n' pixels of 'src' with the destination. */
+	private void copyRow(byte[] src, int srcIndex, int dstIndex, int n, int mode) {
+		byte[] dst = pixels;
+		int s;
+		switch (mode) {
+			case COPY:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = src[srcIndex+i];
+				break;
+			case COPY_INVERTED:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)(255-src[srcIndex+i]);
+				break;
+			case COPY_TRANSPARENT:
+				for (int i=0; i<n; i++) {
+					s = src[srcIndex+i]&255;
+					if (s!=transparent)
+						dst[dstIndex+i] = (byte)s;
+				}
+				break;
+			case COPY_ZERO_TRANSPARENT:
+				for (int i=0; i<n; i++) {
+					s = src[srcIndex+i];
+					if (s!=0)
+						dst[dstIndex+i] = (byte)s;
+				}
+				break;
+			case ADD:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)Math.min((src[srcIndex+i]&255)+(dst[dstIndex+i]&255), 255);
+				break;
+			case AVERAGE:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)(((src[srcIndex+i]&255)+(dst[dstIndex+i]&255))>>1);
+				break;
+			case SUBTRACT:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)Math.max((dst[dstIndex+i]&255)-(src[srcIndex+i]&255), 0);
+				break;
+			case DIFFERENCE:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)Math.abs((dst[dstIndex+i]&255)-(src[srcIndex+i]&255));
+				break;
+			case MULTIPLY:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)Math.min((src[srcIndex+i]&255)*(dst[dstIndex+i]&255), 255);
+				break;
+			case DIVIDE:
+				for (int i=0; i<n; i++) {
+					s = src[srcIndex+i]&255;
+					dst[dstIndex+i] = (byte)(s==0 ? 255 : (dst[dstIndex+i]&255)/s);
+				}
+				break;
+			case AND:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)(src[srcIndex+i]&dst[dstIndex+i]);
+				break;
+			case OR:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)(src[srcIndex+i]|dst[dstIndex+i]);
+				break;
+			case XOR:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)(src[srcIndex+i]^dst[dstIndex+i]);
+				break;
+			case MIN:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)Math.min(src[srcIndex+i]&255, dst[dstIndex+i]&255);
+				break;
+			case MAX:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (byte)Math.max(src[srcIndex+i]&255, dst[dstIndex+i]&255);
+				break;
 		}
 	}
+
 }
@@ -1134,6 +1134,8 @@ public class ByteProcessor extends ImageProcessor {
 	}
 	
 	public int[] getHistogram() {
+		if (spanMask!=null)
+			return getHistogram(spanMask);
 		if (mask!=null)
 			return getHistogram(mask);
 		int[] histogram = new int[256];
@@ -1168,6 +1170,20 @@ public class ByteProcessor extends ImageProcessor {
 		return histogram;
 	}
 
+	private int[] getHistogram(SpanMask spanMask) {
+		int[] rows = spanMask.getRows();
+		int[] spans = spanMask.getSpans();
+		int[] histogram = new int[256];
+		for (int y=0; y<roiHeight; y++) {
+			int offset = (roiY+y)*width + roiX;
+			for (int k=rows[y]; k<rows[y+1]; k+=2) {
+				for (int i=offset+spans[k]; i<offset+spans[k+1]; i++)
+					histogram[pixels[i]&0xff]++;
+			}
+		}
+		return histogram;
+	}
+
 	/** Sets pixels less than 'level1' or greater than
 	 * 'level2' to 0 and all other pixels to 255.
 	*/
@@ -1254,7 +1270,10 @@ public class ByteProcessor extends ImageProcessor {
 		for (int i=0; i<size; i++)
 			fPixels[i] = pixels[i]&0xff;
 		fp.setRoi(getRoi());
-		fp.setMask(mask);
+		if (spanMask!=null)
+			fp.setSpanMask(spanMask);
+		else
+			fp.setMask(mask);
 		fp.setMinAndMax(min, max);
 		fp.setThreshold(minThreshold, maxThreshold, ImageProcessor.NO_LUT_UPDATE);
 		return fp;
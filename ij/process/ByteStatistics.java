@@ -87,15 +87,17 @@ public class ByteStatistics extends ImageStatistics {
 	
 	void getCentroid(ImageProcessor ip, int minThreshold, int maxThreshold) {
 		byte[] pixels = (byte[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
 		boolean limit = minThreshold>0 || maxThreshold<255;
 		double xsum=0, ysum=0;
-		int count=0,i,mi,v;
+		int count=0,i,v;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null||mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					if (limit) {
 						v = pixels[i]&255;
 						if (v>=minThreshold&&v<=maxThreshold) {
@@ -108,8 +110,8 @@ public class ByteStatistics extends ImageStatistics {
 						xsum+=x;
 						ysum+=y;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 		xCentroid = xsum/count+0.5;
@@ -122,14 +124,16 @@ public class ByteStatistics extends ImageStatistics {
 
 	void calculateMoments(ImageProcessor ip,  int minThreshold, int maxThreshold, float[] cTable) {
 		byte[] pixels = (byte[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
-		int v, i, mi;
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
+		int v, i;
 		double dv, dv2, sum1=0.0, sum2=0.0, sum3=0.0, sum4=0.0, xsum=0.0, ysum=0.0;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i]&255;
 					if (v>=minThreshold&&v<=maxThreshold) {
 						dv = ((cTable!=null)?cTable[v]:v)+Double.MIN_VALUE;
@@ -141,8 +145,8 @@ public class ByteStatistics extends ImageStatistics {
 						xsum += x*dv;
 						ysum += y*dv;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 	    double mean2 = mean*mean;
@@ -0,0 +1,179 @@
+package ij.process;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+import java.awt.Rectangle;
+import java.awt.image.IndexColorModel;
+import java.util.concurrent.Callable;
+
+/** Creates the RGB image of a CompositeImage in COMPOSITE mode. The
+	16 and 32-bit channels are converted to 8 bits (indexes into the LUT)
+	and the converted planes are cached, so that a channel is only
+	converted again if its pixels or display range have changed or it
+	has been invalidated, and only inside the region that is composited.
+	The active channels are then combined in a single pass, row by row,
+	using several threads for large regions. The result is the same as
+	with ImageProcessor.updateComposite().
+*/
+public class ChannelCompositor {
+	private static final int MIN_PARALLEL_PIXELS = 1<<20;
+	private byte[][] planes;
+	private Object[] sources;      // pixel arrays the planes were converted from
+	private double[] mins, maxs;   // display ranges the planes were converted with
+	private Rectangle[] current;   // part of each plane that is up to date
+	private int[][] tables;        // LUTs as RGB values
+
+	/** Marks the cached 8-bit version of 'channel' (zero-based), or of
+		all channels if 'channel' is -1, as outdated, e.g., after the
+		pixels have been modified. */
+	public synchronized void invalidate(int channel) {
+		if (current==null)
+			return;
+		for (int c=0; c<current.length; c++) {
+			if (c==channel || channel==-1)
+				current[c] = null;
+		}
+	}
+
+	/** Combines the active channels inside 'r' into 'rgbPixels', an
+		image with the size of the channels. 'mode' is
+		ImageProcessor.SUM_PROJECTION, MAX_PROJECTION or MIN_PROJECTION. */
+	public synchronized void composite(ImageProcessor[] channels, boolean[] active, int mode, int[] rgbPixels, Rectangle r) {
+		int nChannels = channels.length;
+		if (planes==null || planes.length!=nChannels) {
+			planes = new byte[nChannels][];
+			sources = new Object[nChannels];
+			mins = new double[nChannels];
+			maxs = new double[nChannels];
+			current = new Rectangle[nChannels];
+			tables = new int[nChannels][256];
+		}
+		int n = 0;
+		for (int c=0; c<nChannels; c++) {
+			if (active[c])
+				n++;
+		}
+		final byte[][] planes2 = new byte[n][];
+		final int[][] tables2 = new int[n][];
+		int i = 0;
+		for (int c=0; c<nChannels; c++) {
+			if (!active[c])
+				continue;
+			update(c, channels[c], r);
+			planes2[i] = planes[c];
+			tables2[i] = tables[c];
+			i++;
+		}
+		final boolean first = nChannels>0 && active[0];
+		final int width = channels[0].getWidth();
+		compositeRows(planes2, tables2, first, mode, rgbPixels, width, r, r.y, r.y+r.height);
+	}
+
+	private void compositeRows(final byte[][] planes, final int[][] tables, final boolean first, final int mode,
+	final int[] rgbPixels, final int width, final Rectangle r, int y1, int y2) {
+		int nThreads = Prefs.getThreads();
+		if (nThreads<=1 || (long)r.width*r.height*Math.max(planes.length,1)<MIN_PARALLEL_PIXELS) {
+			composite(planes, tables, first, mode, rgbPixels, width, r.x, r.x+r.width, y1, y2);
+			return;
+		}
+		int rowsPerThread = (y2-y1+nThreads-1)/nThreads;
+		Callable[] tasks = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final int ty1 = Math.min(y2, y1+t*rowsPerThread);
+			final int ty2 = Math.min(y2, ty1+rowsPerThread);
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					composite(planes, tables, first, mode, rgbPixels, width, r.x, r.x+r.width, ty1, ty2);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+	}
+
+	/* Composites rows y1 to y2-1. The first plane is that of channel 1
+		if 'first' is true, otherwise the composite starts as black
+		(white for MIN_PROJECTION), as in CompositeImage.updateImage(). */
+	private static void composite(byte[][] planes, int[][] tables, boolean first, int mode,
+	int[] rgbPixels, int width, int x1, int x2, int y1, int y2) {
+		int n = planes.length;
+		int k0 = first ? 1 : 0;
+		int fill = mode==ImageProcessor.MIN_PROJECTION ? 0xffffff : 0;
+		for (int y=y1; y<y2; y++) {
+			int offset = y*width;
+			for (int i=offset+x1; i<offset+x2; i++) {
+				int rgb = first ? tables[0][planes[0][i]&0xff] : fill;
+				int red=rgb&0xff0000, green=rgb&0xff00, blue=rgb&0xff;
+				switch (mode) {
+					case ImageProcessor.MAX_PROJECTION:
+						for (int k=k0; k<n; k++) {
+							int v = tables[k][planes[k][i]&0xff];
+							if ((v&0xff0000)>red) red = v&0xff0000;
+							if ((v&0xff00)>green) green = v&0xff00;
+							if ((v&0xff)>blue) blue = v&0xff;
+						}
+						break;
+					case ImageProcessor.MIN_PROJECTION:
+						for (int k=k0; k<n; k++) {
+							int v = tables[k][planes[k][i]&0xff];
+							if ((v&0xff0000)<red) red = v&0xff0000;
+							if ((v&0xff00)<green) green = v&0xff00;
+							if ((v&0xff)<blue) blue = v&0xff;
+						}
+						break;
+					default:
+						for (int k=k0; k<n; k++) {
+							int v = tables[k][planes[k][i]&0xff];
+							red += v&0xff0000;
+							green += v&0xff00;
+							blue += v&0xff;
+						}
+						if (red>0xff0000) red = 0xff0000;
+						if (green>0xff00) green = 0xff00;
+						if (blue>0xff) blue = 0xff;
+				}
+				rgbPixels[i] = red | green | blue;
+			}
+		}
+	}
+
+	/* Updates the LUT of channel 'c' and, if needed, its 8-bit version inside 'r'. */
+	private void update(int c, ImageProcessor ip, Rectangle r) {
+		IndexColorModel icm = (IndexColorModel)ip.getCurrentColorModel();
+		int mapSize = Math.min(icm.getMapSize(), 256);
+		int[] table = tables[c];
+		for (int i=0; i<mapSize; i++)
+			table[i] = icm.getRGB(i)&0xffffff;
+		for (int i=mapSize; i<256; i++)
+			table[i] = 0;
+		if (ip instanceof ByteProcessor) {  // the display range is in the LUT
+			planes[c] = (byte[])ip.getPixels();
+			return;
+		}
+		Object pixels = ip.getPixels();
+		double min = ip.getMin();
+		double max = ip.getMax();
+		int size = ip.getWidth()*ip.getHeight();
+		if (pixels!=sources[c] || min!=mins[c] || max!=maxs[c] || planes[c]==null || planes[c].length!=size)
+			current[c] = null;
+		if (current[c]!=null && current[c].contains(r))
+			return;
+		if (ip instanceof ShortProcessor || ip instanceof FloatProcessor) {
+			if (planes[c]==null || planes[c].length!=size)
+				planes[c] = new byte[size];
+			int width = ip.getWidth();
+			for (int y=r.y; y<r.y+r.height; y++) {
+				int offset = y*width + r.x;
+				ip.create8BitPixels(offset, r.width, planes[c], offset, false);
+			}
+			if (current[c]==null || (long)r.width*r.height>(long)current[c].width*current[c].height)
+				current[c] = new Rectangle(r);
+		} else {
+			planes[c] = ip.create8BitImage();
+			current[c] = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+		}
+		sources[c] = pixels;
+		mins[c] = min;
+		maxs[c] = max;
+	}
+
+}
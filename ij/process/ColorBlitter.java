@@ -23,12 +23,10 @@ public class ColorBlitter implements Blitter {
 	}
 
 	/** Copies the RGB image in 'ip' to (x,y) using the specified mode. */
-	public void copyBits(ImageProcessor ip, int xloc, int yloc, int mode) {
-		int srcIndex, dstIndex;
-		int xSrcBase, ySrcBase;
+	public void copyBits(ImageProcessor ip, final int xloc, final int yloc, final int mode) {
 		int[] srcPixels;
 		
-		int srcWidth = ip.getWidth();
+		final int srcWidth = ip.getWidth();
 		int srcHeight = ip.getHeight();
 		Rectangle rect1 = new Rectangle(srcWidth, srcHeight);
 		rect1.setLocation(xloc, yloc);
@@ -42,98 +40,146 @@ public class ColorBlitter implements Blitter {
 				cm = ip.getDefaultColorModel();
 			int size = ip.getWidth()*ip.getHeight();
 			srcPixels = new int[size];
-			int v;
 			for (int i=0; i<size; i++)
 				srcPixels[i] = cm.getRGB(pixels8[i]&255);
 		} else
 			srcPixels = (int[])ip.getPixels();
-		rect1 = rect1.intersection(rect2);
-		xSrcBase = (xloc<0)?-xloc:0;
-		ySrcBase = (yloc<0)?-yloc:0;
+		final int[] srcPixels2 = srcPixels;
+		final Rectangle r = rect1.intersection(rect2);
+		RowBands rows = new RowBands() {
+			void process(int y1, int y2) {
+				for (int y=y1; y<y2; y++)
+					copyRow(srcPixels2, (y-yloc)*srcWidth + (r.x-xloc), y*width + r.x, r.width, mode);
+			}
+		};
+		if (srcPixels==pixels)  // rows may overlap
+			rows.process(r.y, r.y+r.height);
+		else
+			rows.run(r.y, r.y+r.height, r.width);
+	}
+
+	/* Combines 'n' pixels of 'src' with the destination, with a
+		separate loop for each mode. */
+	private void copyRow(int[] src, int srcIndex, int dstIndex, int n, int mode) {
+		int[] dst = pixels;
 		int c1, c2, r1, g1, b1, r2, g2, b2;
-		int src, dst;
-		
-		if (mode==COPY||mode==COPY_TRANSPARENT|| mode==COPY_ZERO_TRANSPARENT) {
-			for (int y=rect1.y; y<(rect1.y+rect1.height); y++) {
-				srcIndex = (y-yloc)*srcWidth + (rect1.x-xloc);
-				dstIndex = y * width + rect1.x;
+		switch (mode) {
+			case COPY:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = src[srcIndex+i];
+				break;
+			case COPY_TRANSPARENT: case COPY_ZERO_TRANSPARENT:
 				int trancolor = mode==COPY_ZERO_TRANSPARENT?0:transparent;
-				if (mode==COPY) {
-					for (int i=rect1.width; --i>=0;)
-						pixels[dstIndex++] = srcPixels[srcIndex++];
-				} else {
-					for (int i=rect1.width; --i>=0;) {
-						src = srcPixels[srcIndex++];
-						dst = pixels[dstIndex];
-						pixels[dstIndex++] = (src&0xffffff)==trancolor?dst:src;
-					}
-				} 
-			}
-			return;
-		}
-		
-		for (int y=rect1.y; y<(rect1.y+rect1.height); y++) {
-			srcIndex = (y-yloc)*srcWidth + (rect1.x-xloc);
-			dstIndex = y * width + rect1.x;
-			for (int i=rect1.width; --i>=0;) {
-				c1 = srcPixels[srcIndex++];
-				r1 = (c1&0xff0000)>>16;
-				g1 = (c1&0xff00)>>8;
-				b1 = c1&0xff;
-				c2 = pixels[dstIndex];
-				r2 = (c2&0xff0000)>>16;
-				g2 = (c2&0xff00)>>8;
-				b2 = c2&0xff;
-				switch (mode) {
-					case COPY_INVERTED:
-						break;
-					case ADD:
-							r2=r1+r2; g2=g1+g2; b2=b1+b2;
-							if (r2>255) r2=255; if (g2>255) g2=255; if (b2>255) b2=255;
-						break;
-					case AVERAGE:
-							r2=(r1+r2)/2; g2=(g1+g2)/2; b2=(b1+b2)/2;
-						break;
-					case SUBTRACT:
-							r2=r2-r1; g2=g2-g1; b2=b2-b1;
-							if (r2<0) r2=0; if (g2<0) g2=0; if (b2<0) b2=0;
-						break;
-					case DIFFERENCE:
-							r2=r2-r1; if (r2<0) r2=-r2;
-							g2=g2-g1; if (g2<0) g2=-g2;
-							b2=b2-b1; if (b2<0) b2=-b2;
-						break;
-					case MULTIPLY:
-							r2=r1*r2; g2=g1*g2; b2=b1*b2;
-							if (r2>255) r2=255; if (g2>255) g2=255; if (b2>255) b2=255;
-						break;
-					case DIVIDE:
-							if (r1==0) r2=255; else r2=r2/r1;
-							if (g1==0) g2=255; else g2=g2/g1;
-							if (b1==0) b2=255; else b2=b2/b1;
-						break;
-					case AND:
-						r2=r1&r2; g2=g1&g2; b2=b1&b2;
-						break;
-					case OR:
-						r2=r1|r2; g2=g1|g2; b2=b1|b2;
-						break;
-					case XOR:
-						r2=r1^r2; g2=g1^g2; b2=b1^b2;
-						break;
-					case MIN:
-						if (r1<r2) r2 = r1;
-						if (g1<g2) g2 = g1;
-						if (b1<b2) b2 = b1;
-						break;
-					case MAX:
-						if (r1>r2) r2 = r1;
-						if (g1>g2) g2 = g1;
-						if (b1>b2) b2 = b1;
-						break;
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					if ((c1&0xffffff)!=trancolor)
+						dst[dstIndex+i] = c1;
 				}
-				pixels[dstIndex++] = 0xff000000 + (r2<<16) + (g2<<8) + b2;
-			}
+				break;
+			case ADD:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + (Math.min(r1+r2,255)<<16) + (Math.min(g1+g2,255)<<8) + Math.min(b1+b2,255);
+				}
+				break;
+			case AVERAGE:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + (((r1+r2)>>1)<<16) + (((g1+g2)>>1)<<8) + ((b1+b2)>>1);
+				}
+				break;
+			case SUBTRACT:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + (Math.max(r2-r1,0)<<16) + (Math.max(g2-g1,0)<<8) + Math.max(b2-b1,0);
+				}
+				break;
+			case DIFFERENCE:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + (Math.abs(r2-r1)<<16) + (Math.abs(g2-g1)<<8) + Math.abs(b2-b1);
+				}
+				break;
+			case MULTIPLY:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + (Math.min(r1*r2,255)<<16) + (Math.min(g1*g2,255)<<8) + Math.min(b1*b2,255);
+				}
+				break;
+			case DIVIDE:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + ((r1==0?255:r2/r1)<<16) + ((g1==0?255:g2/g1)<<8) + (b1==0?255:b2/b1);
+				}
+				break;
+			case AND:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + ((r1&r2)<<16) + ((g1&g2)<<8) + (b1&b2);
+				}
+				break;
+			case OR:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + ((r1|r2)<<16) + ((g1|g2)<<8) + (b1|b2);
+				}
+				break;
+			case XOR:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + ((r1^r2)<<16) + ((g1^g2)<<8) + (b1^b2);
+				}
+				break;
+			case MIN:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + (Math.min(r1,r2)<<16) + (Math.min(g1,g2)<<8) + Math.min(b1,b2);
+				}
+				break;
+			case MAX:
+				for (int i=0; i<n; i++) {
+					c1 = src[srcIndex+i];
+					c2 = dst[dstIndex+i];
+					r1 = (c1&0xff0000)>>16; g1 = (c1&0xff00)>>8; b1 = c1&0xff;
+					r2 = (c2&0xff0000)>>16; g2 = (c2&0xff00)>>8; b2 = c2&0xff;
+					dst[dstIndex+i] = 0xff000000 + (Math.max(r1,r2)<<16) + (Math.max(g1,g2)<<8) + Math.max(b1,b2);
+				}
+				break;
+			default:  // COPY_INVERTED
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] |= 0xff000000;
+				break;
 		}
 	}
+
 }
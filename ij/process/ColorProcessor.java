@@ -1255,6 +1255,8 @@ public class ColorProcessor extends ImageProcessor {
 	}
 
 	public int[] getHistogram() {
+		if (spanMask!=null)
+			return getHistogram(spanMask);
 		if (mask!=null)
 			return getHistogram(mask);
 		double rw=rWeight, gw=gWeight, bw=bWeight;
@@ -1277,6 +1279,30 @@ public class ColorProcessor extends ImageProcessor {
 	}
 
 
+	private int[] getHistogram(SpanMask spanMask) {
+		double rw=rWeight, gw=gWeight, bw=bWeight;
+		if (weights!=null)
+			{rw=weights[0]; gw=weights[1]; bw=weights[2];}
+		int[] rows = spanMask.getRows();
+		int[] spans = spanMask.getSpans();
+		int c, r, g, b, v;
+		int[] histogram = new int[256];
+		for (int y=0; y<roiHeight; y++) {
+			int offset = (roiY+y)*width + roiX;
+			for (int k=rows[y]; k<rows[y+1]; k+=2) {
+				for (int i=offset+spans[k]; i<offset+spans[k+1]; i++) {
+					c = pixels[i];
+					r = (c&0xff0000)>>16;
+					g = (c&0xff00)>>8;
+					b = c&0xff;
+					v = (int)(r*rw + g*gw + b*bw + 0.5);
+					histogram[v]++;
+				}
+			}
+		}
+		return histogram;
+	}
+
 	public int[] getHistogram(ImageProcessor mask) {
 		if (mask.getWidth()!=roiWidth||mask.getHeight()!=roiHeight)
 			throw new IllegalArgumentException(maskSizeError(mask));
@@ -1438,7 +1464,10 @@ public class ColorProcessor extends ImageProcessor {
 		for (int i=0; i<size; i++)
 			fPixels[i] = (pixels[i]&byteMask)>>shift;
 		fp.setRoi(getRoi());
-		fp.setMask(mask);
+		if (spanMask!=null)
+			fp.setSpanMask(spanMask);
+		else
+			fp.setMask(mask);
 		fp.setMinAndMax(0, 255);
 		return fp;
 	}
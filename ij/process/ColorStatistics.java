@@ -36,14 +36,16 @@ public class ColorStatistics extends ImageStatistics {
 	}
 
 	void calculateMoments(ImageProcessor ip) {
-		byte[] mask = ip.getMaskArray();
-		int i, mi;
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
+		int i;
 		double v, v2, sum1=0.0, sum2=0.0, sum3=0.0, sum4=0.0, xsum=0.0, ysum=0.0;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = ip.getPixelValue(x, y);
 						v2 = v*v;
 						sum1 += v;
@@ -52,8 +54,8 @@ public class ColorStatistics extends ImageStatistics {
 						sum4 += v2*v2;
 						xsum += x*v;
 						ysum += y*v;
+					i++;
 				}
-				i++;
 			}
 		}
 	    double mean2 = mean*mean;
@@ -76,23 +78,25 @@ public class ColorStatistics extends ImageStatistics {
 		histogram = new int[nBins];
 		double sum = 0;
 		double sum2 = 0;
-		byte[] mask = ip.getMaskArray();
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
 		
 		// Find image min and max
 		int roiMin = Integer.MAX_VALUE;
 		int roiMax = -Integer.MAX_VALUE;
 		for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-			int i = y * width + rx;
-			int mi = my * rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				int i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i];
 					if (v<roiMin)
 						roiMin = v;
 					if (v>roiMax)
 						roiMax = v;
+					i++;
 				}
-				i++;
 			}
 		}
 		min = roiMin; max = roiMax;
@@ -105,10 +109,10 @@ public class ColorStatistics extends ImageStatistics {
 		int index;
 		pixelCount = 0;
 		for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-			int i = y * width + rx;
-			int mi = my * rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				int i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i];
 					pixelCount++;
 					sum += v;
@@ -117,8 +121,8 @@ public class ColorStatistics extends ImageStatistics {
 					if (index>=nBins)
 						index = nBins-1;
 					histogram[index]++;
+					i++;
 				}
-				i++;
 			}
 		}
 		area = pixelCount*pw*ph;
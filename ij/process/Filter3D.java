@@ -0,0 +1,567 @@
+package ij.process;
+import ij.*;
+import ij.util.ThreadUtil;
+import ij.util.Tools;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The 3D mean, median, minimum, maximum, variance and local maximum
+	filters of StackProcessor.filter3D(). The ellipsoid kernel is split
+	into runs along x, one per (y, z) offset. For each output row, the
+	mean and variance are obtained from sums of the input rows that restart
+	at every block of the run width, each window being the sum of the end
+	of one block and the start of the next, minimum and maximum from
+	running minima and maxima (van Herk/Gil-Werman), so each input pixel
+	is read once per run instead of once per kernel element. The 8 and
+	16-bit median uses a histogram that is updated incrementally as the
+	kernel slides along x. The rows are processed in parallel, with
+	primitive buffers that are allocated once per thread. The results are
+	the same as with a per-voxel neighborhood, apart from rounding of the
+	float sums, and a large value only affects the windows that contain
+	it. NaNs and infinities are handled as in ArrayUtil: windows that
+	contain them are not summed but evaluated directly, NaNs are skipped
+	by the minimum and maximum unless they are the first value of the
+	neighborhood.
+*/
+class Filter3D {
+	private ImageStack stack, out;
+	private int filter;
+	private int width, height;
+	private int[] runDy, runDz, runW;  // y and z offset, half width of the kernel runs
+	private int nRuns, maxW;
+
+	Filter3D(ImageStack stack, ImageStack out, int[] ker, float radx, float rady, float radz, int filter) {
+		this.stack = stack;
+		this.out = out;
+		this.filter = filter;
+		width = stack.getWidth();
+		height = stack.getHeight();
+		int vx = (int)Math.ceil(radx);
+		int vy = (int)Math.ceil(rady);
+		int vz = (int)Math.ceil(radz);
+		int n = (2*vy+1)*(2*vz+1);
+		runDy = new int[n];
+		runDz = new int[n];
+		runW = new int[n];
+		int c = 0;
+		for (int k=-vz; k<=vz; k++) {
+			for (int j=-vy; j<=vy; j++) {
+				int w = -1;  // the kernel is symmetric and convex in x
+				for (int i=-vx; i<=vx; i++, c++) {
+					if (ker[c]>0 && i>=0)
+						w = i;
+				}
+				if (w>=0) {
+					runDy[nRuns] = j;
+					runDz[nRuns] = k;
+					runW[nRuns] = w;
+					maxW = Math.max(maxW, w);
+					nRuns++;
+				}
+			}
+		}
+	}
+
+	/** Filters slices zmin to zmax-1 (0-based) of channel c and frame t. */
+	void filter(int nChs, int nZSlices, int c, int t, final int zmin, final int zmax) {
+		final Object[] slices = new Object[nZSlices];
+		final Object[] outSlices = new Object[nZSlices];
+		for (int z=0; z<nZSlices; z++) {
+			int index = 1 + c + nChs*z + nChs*nZSlices*t;
+			slices[z] = stack.getPixels(index);
+			if (z>=zmin && z<zmax)
+				outSlices[z] = out.getPixels(index);
+		}
+		final int nRows = (zmax-zmin)*height;
+		if (nRows<=0)
+			return;
+		final AtomicInteger nextRow = new AtomicInteger();
+		final AtomicInteger rowsDone = new AtomicInteger();
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), nRows));
+		Callable[] tasks = new Callable[nThreads];
+		for (int i=0; i<nThreads; i++) {
+			tasks[i] = new Callable<Void>() {
+				public Void call() {
+					Worker worker = new Worker(slices);
+					for (int row=nextRow.getAndIncrement(); row<nRows; row=nextRow.getAndIncrement()) {
+						int z = zmin + row/height;
+						int y = row%height;
+						worker.filterRow(y, z, outSlices[z]);
+						int done = rowsDone.incrementAndGet();
+						if (zmin==0 && done%height==0)
+							IJ.showProgress(done/height, zmax);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+	}
+
+	/** The buffers of a thread. */
+	private class Worker {
+		private Object[] slices;
+		private float[] row = new float[width];
+		private double[] values1, values2, prefix, prefix2, suffix, suffix2, sum, sum2;
+		private int[] counts, specials, nSpecial;
+		private float[] padded, g, h, result;
+		private double[] values = new double[width];
+		private Object[] rowPixels = new Object[nRuns];
+		private int[] rowOffsets = new int[nRuns];
+		private int[] fine, coarse;
+		private byte[][] runBytes;
+		private short[][] runShorts;
+		private int[] runOffsets, runWidths;
+		private int shift, nValues, median, below;
+		private float[] buffer;
+
+		Worker(Object[] slices) {
+			this.slices = slices;
+			switch (filter) {
+				case StackProcessor.FILTER_MEAN: case StackProcessor.FILTER_VAR:
+					values1 = new double[width];
+					values2 = new double[width];
+					prefix = new double[width];
+					prefix2 = new double[width];
+					suffix = new double[width];
+					suffix2 = new double[width];
+					sum = new double[width];
+					sum2 = new double[width];
+					counts = new int[width];
+					specials = new int[width+1];
+					nSpecial = new int[width];
+					break;
+				case StackProcessor.FILTER_MEDIAN:
+					if (slices[0] instanceof byte[] || slices[0] instanceof short[]) {
+						shift = slices[0] instanceof byte[] ? 4 : 8;
+						fine = new int[slices[0] instanceof byte[] ? 256 : 65536];
+						coarse = new int[fine.length>>shift];
+						runBytes = new byte[nRuns][];
+						runShorts = new short[nRuns][];
+						runOffsets = new int[nRuns];
+						runWidths = new int[nRuns];
+					} else
+						buffer = new float[nRuns*(2*maxW+1)];
+					break;
+				default:
+					padded = new float[width+2*maxW];
+					g = new float[width+2*maxW];
+					h = new float[width+2*maxW];
+					result = new float[width];
+					if (filter==StackProcessor.FILTER_MAXLOCAL) {
+						specials = new int[width+1];
+						nSpecial = new int[width];
+					}
+			}
+		}
+
+		void filterRow(int y, int z, Object outPixels) {
+			for (int r=0; r<nRuns; r++) {
+				int yy = y + runDy[r];
+				int zz = z + runDz[r];
+				if (yy<0 || yy>=height || zz<0 || zz>=slices.length) {
+					rowPixels[r] = null;
+					continue;
+				}
+				rowPixels[r] = slices[zz];
+				rowOffsets[r] = yy*width;
+			}
+			switch (filter) {
+				case StackProcessor.FILTER_MEAN: case StackProcessor.FILTER_VAR:
+					sumRows(filter==StackProcessor.FILTER_VAR);
+					break;
+				case StackProcessor.FILTER_MEDIAN:
+					if (fine!=null)
+						histogramMedianRow();
+					else
+						medianRow();
+					break;
+				case StackProcessor.FILTER_MIN:
+					extremumRow(false);
+					break;
+				case StackProcessor.FILTER_MAX:
+					extremumRow(true);
+					break;
+				case StackProcessor.FILTER_MAXLOCAL:  // as ArrayUtil.isMaximum(), false if there is a NaN
+					extremumRow(true);
+					boolean nans = countNaNs();
+					getRow(slices[z], y*width);
+					for (int x=0; x<width; x++)
+						values[x] = values[x]<=row[x] && !(nans && nSpecial[x]>0) ? row[x] : 0;
+					break;
+			}
+			putRow(outPixels, y*width);
+		}
+
+		// mean or variance from running sums of the rows. The sums restart at
+		// every block of 2w+1 pixels, a window is the suffix sum of one block plus
+		// the prefix sum of the next, so a large value cannot spoil the sums
+		// of the windows that do not contain it. Values that are not finite,
+		// or whose square is not, are left out of the sums and the windows that
+		// contain them are evaluated directly.
+		private void sumRows(boolean variance) {
+			for (int x=0; x<width; x++) {
+				sum[x] = 0.0;
+				sum2[x] = 0.0;
+				counts[x] = 0;
+				nSpecial[x] = 0;
+			}
+			for (int r=0; r<nRuns; r++) {
+				if (rowPixels[r]==null)
+					continue;
+				getRow(rowPixels[r], rowOffsets[r]);
+				int w = runW[r];
+				int size = 2*w + 1;
+				int ns = 0;
+				for (int x=0; x<width; x++) {
+					float v = row[x];
+					float v2 = v*v;  // squared as float, as ArrayUtil.getVariance()
+					specials[x] = ns;
+					if (v2<Float.POSITIVE_INFINITY) {
+						values1[x] = v;
+						values2[x] = v2;
+					} else {
+						values1[x] = 0.0;
+						values2[x] = 0.0;
+						ns++;
+					}
+				}
+				specials[width] = ns;
+				for (int start=0; start<width; start+=size) {
+					int end = Math.min(start+size, width);
+					double s=0.0, s2=0.0;
+					for (int x=start; x<end; x++) {
+						s += values1[x];
+						s2 += values2[x];
+						prefix[x] = s;
+						prefix2[x] = s2;
+					}
+					s = 0.0;
+					s2 = 0.0;
+					for (int x=end-1; x>=start; x--) {
+						s += values1[x];
+						s2 += values2[x];
+						suffix[x] = s;
+						suffix2[x] = s2;
+					}
+				}
+				for (int x=0; x<width; x++) {
+					int x1 = x-w<0 ? 0 : x-w;
+					int x2 = x+w>=width ? width : x+w+1;
+					if (x1/size!=(x2-1)/size) {
+						sum[x] += suffix[x1] + prefix[x2-1];
+						sum2[x] += suffix2[x1] + prefix2[x2-1];
+					} else if (x1%size==0) {  // the window starts a block
+						sum[x] += prefix[x2-1];
+						sum2[x] += prefix2[x2-1];
+					} else {  // the window ends the last, partial block
+						sum[x] += suffix[x1];
+						sum2[x] += suffix2[x1];
+					}
+					counts[x] += x2 - x1;
+					nSpecial[x] += specials[x2] - specials[x1];
+				}
+			}
+			for (int x=0; x<width; x++) {
+				int n = counts[x];
+				if (nSpecial[x]>0)
+					values[x] = sumWindow(x, variance);
+				else if (variance)
+					values[x] = n==1 ? 0.0 : (sum2[x]-sum[x]*sum[x]/n)/(n-1);
+				else
+					values[x] = sum[x]/n;
+			}
+		}
+
+		// mean or variance of the kernel at x, as ArrayUtil
+		private double sumWindow(int x, boolean variance) {
+			double total=0.0, total2=0.0;
+			int n = 0;
+			for (int r=0; r<nRuns; r++) {
+				if (rowPixels[r]==null)
+					continue;
+				int w = runW[r];
+				int x1 = x-w<0 ? 0 : x-w;
+				int x2 = x+w>=width ? width : x+w+1;
+				for (int i=x1; i<x2; i++) {
+					float v = getValue(rowPixels[r], rowOffsets[r]+i);
+					total += v;
+					total2 += v*v;
+				}
+				n += x2 - x1;
+			}
+			if (variance)
+				return n==1 ? 0.0 : (total2-total*total/n)/(n-1);
+			else
+				return total/n;
+		}
+
+		// counts the NaNs of the kernel at each x in 'nSpecial', returns false if there are none
+		private boolean countNaNs() {
+			if (!(slices[0] instanceof float[]))
+				return false;
+			boolean found = false;
+			for (int x=0; x<width; x++)
+				nSpecial[x] = 0;
+			for (int r=0; r<nRuns; r++) {
+				if (rowPixels[r]==null)
+					continue;
+				float[] pixels = (float[])rowPixels[r];
+				int offset = rowOffsets[r];
+				int ns = 0;
+				for (int x=0; x<width; x++) {
+					specials[x] = ns;
+					if (pixels[offset+x]!=pixels[offset+x])
+						ns++;
+				}
+				specials[width] = ns;
+				if (ns==0)
+					continue;
+				found = true;
+				int w = runW[r];
+				for (int x=0; x<width; x++) {
+					int x1 = x-w<0 ? 0 : x-w;
+					int x2 = x+w>=width ? width : x+w+1;
+					nSpecial[x] += specials[x2] - specials[x1];
+				}
+			}
+			return found;
+		}
+
+		// minimum or maximum, from running minima or maxima of the rows. NaNs
+		// are skipped, as by ArrayUtil, unless they are the first value of the
+		// neighborhood, which is then the result.
+		private void extremumRow(boolean max) {
+			float fill = max ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY;
+			boolean first = true;
+			int firstRun = -1;
+			for (int r=0; r<nRuns; r++) {
+				if (rowPixels[r]==null)
+					continue;
+				getRow(rowPixels[r], rowOffsets[r]);
+				if (firstRun<0)
+					firstRun = r;
+				if (rowPixels[r] instanceof float[]) {
+					for (int x=0; x<width; x++)
+						if (row[x]!=row[x]) row[x] = fill;
+				}
+				int w = runW[r];
+				if (w==0)
+					System.arraycopy(row, 0, g, 0, width);
+				else {
+					int len = width + 2*w;
+					int size = 2*w + 1;
+					for (int i=0; i<w; i++) {
+						padded[i] = fill;
+						padded[w+width+i] = fill;
+					}
+					System.arraycopy(row, 0, padded, w, width);
+					for (int i=0; i<len; i++)  // from the start of each block
+						g[i] = i%size==0 ? padded[i] : (max ? Math.max(g[i-1],padded[i]) : Math.min(g[i-1],padded[i]));
+					for (int i=len-1; i>=0; i--)  // to the end of each block
+						h[i] = i%size==size-1 || i==len-1 ? padded[i] : (max ? Math.max(h[i+1],padded[i]) : Math.min(h[i+1],padded[i]));
+					for (int x=0; x<width; x++)  // window padded[x] to padded[x+2w]
+						g[x] = max ? Math.max(h[x],g[x+2*w]) : Math.min(h[x],g[x+2*w]);
+				}
+				if (first) {
+					System.arraycopy(g, 0, result, 0, width);
+					first = false;
+				} else if (max) {
+					for (int x=0; x<width; x++)
+						if (g[x]>result[x]) result[x] = g[x];
+				} else {
+					for (int x=0; x<width; x++)
+						if (g[x]<result[x]) result[x] = g[x];
+				}
+			}
+			for (int x=0; x<width; x++)
+				values[x] = result[x];
+			if (rowPixels[firstRun] instanceof float[]) {
+				int w = runW[firstRun];
+				for (int x=0; x<width; x++) {
+					float v = getValue(rowPixels[firstRun], rowOffsets[firstRun]+(x-w<0 ? 0 : x-w));
+					if (v!=v)
+						values[x] = Float.NaN;
+				}
+			}
+		}
+
+		// 8 and 16-bit median, from a histogram updated as the kernel moves along x
+		private void histogramMedianRow() {
+			int n = 0;  // the runs inside the image
+			for (int r=0; r<nRuns; r++) {
+				if (rowPixels[r]==null)
+					continue;
+				if (rowPixels[r] instanceof byte[])
+					runBytes[n] = (byte[])rowPixels[r];
+				else
+					runShorts[n] = (short[])rowPixels[r];
+				runOffsets[n] = rowOffsets[r];
+				runWidths[n] = runW[r];
+				n++;
+			}
+			boolean bytes = fine.length==256;
+			nValues = 0;
+			median = 0;
+			below = 0;
+			for (int i=0; i<n; i++) {
+				for (int x=0; x<=runWidths[i] && x<width; x++)
+					add(bytes ? runBytes[i][runOffsets[i]+x]&0xff : runShorts[i][runOffsets[i]+x]&0xffff);
+			}
+			for (int x=0; x<width; x++) {
+				if (x>0) {
+					for (int i=0; i<n; i++) {
+						int offset = runOffsets[i];
+						int w = runWidths[i];
+						if (bytes) {
+							byte[] pixels = runBytes[i];
+							if (x-w-1>=0)
+								remove(pixels[offset+x-w-1]&0xff);
+							if (x+w<width)
+								add(pixels[offset+x+w]&0xff);
+						} else {
+							short[] pixels = runShorts[i];
+							if (x-w-1>=0)
+								remove(pixels[offset+x-w-1]&0xffff);
+							if (x+w<width)
+								add(pixels[offset+x+w]&0xffff);
+						}
+					}
+				}
+				values[x] = histogramMedian();
+			}
+			for (int i=0; i<n; i++) {  // empty the histogram
+				for (int x=Math.max(width-1-runWidths[i],0); x<width; x++)
+					remove(bytes ? runBytes[i][runOffsets[i]+x]&0xff : runShorts[i][runOffsets[i]+x]&0xffff);
+			}
+		}
+
+		private void add(int v) {
+			fine[v]++;
+			coarse[v>>shift]++;
+			if (v>>shift<median)
+				below++;
+			nValues++;
+		}
+
+		private void remove(int v) {
+			fine[v]--;
+			coarse[v>>shift]--;
+			if (v>>shift<median)
+				below--;
+			nValues--;
+		}
+
+		// the median, as ArrayUtil.medianSort(); 'median' is the coarse bin of the
+		// previous median and 'below' the number of values in the lower bins
+		private double histogramMedian() {
+			int k = nValues/2;
+			while (below>k)
+				below -= coarse[--median];
+			while (below+coarse[median]<=k)
+				below += coarse[median++];
+			int rank = k - below;
+			int v = median<<shift;
+			int sum = fine[v];
+			while (sum<=rank)
+				sum += fine[++v];
+			if ((nValues&1)==1)
+				return v;
+			int v2 = v;  // the value with rank k-1
+			if (rank==0) {  // highest value of the lower bins
+				int bin = median - 1;
+				while (coarse[bin]==0)
+					bin--;
+				v2 = ((bin+1)<<shift) - 1;
+				while (fine[v2]==0)
+					v2--;
+			} else if (sum-fine[v]>=rank) {
+				v2 = v - 1;
+				while (fine[v2]==0)
+					v2--;
+			}
+			return 0.5f*((float)v2 + (float)v);
+		}
+
+		// 32-bit median, by selection from the values of the kernel
+		private void medianRow() {
+			for (int x=0; x<width; x++) {
+				int n = 0;
+				for (int r=0; r<nRuns; r++) {
+					if (rowPixels[r]==null)
+						continue;
+					int w = runW[r];
+					int x1 = x-w<0 ? 0 : x-w;
+					int x2 = x+w>=width ? width : x+w+1;
+					Object pixels = rowPixels[r];
+					int offset = rowOffsets[r];
+					if (pixels instanceof float[])
+						System.arraycopy((float[])pixels, offset+x1, buffer, n, x2-x1);
+					else {
+						for (int i=x1; i<x2; i++)
+							buffer[n+i-x1] = (float)((int[])pixels)[offset+i];
+					}
+					n += x2 - x1;
+				}
+				values[x] = Tools.median(buffer, 0, n);  // as ArrayUtil.medianSort()
+			}
+		}
+
+		private float getValue(Object pixels, int index) {
+			if (pixels instanceof byte[])
+				return ((byte[])pixels)[index]&0xff;
+			else if (pixels instanceof short[])
+				return ((short[])pixels)[index]&0xffff;
+			else if (pixels instanceof float[])
+				return ((float[])pixels)[index];
+			else
+				return ((int[])pixels)[index];
+		}
+
+		private void getRow(Object pixels, int offset) {
+			if (pixels instanceof byte[]) {
+				byte[] bytes = (byte[])pixels;
+				for (int x=0; x<width; x++)
+					row[x] = bytes[offset+x]&0xff;
+			} else if (pixels instanceof short[]) {
+				short[] shorts = (short[])pixels;
+				for (int x=0; x<width; x++)
+					row[x] = shorts[offset+x]&0xffff;
+			} else if (pixels instanceof float[])
+				System.arraycopy((float[])pixels, offset, row, 0, width);
+			else {
+				int[] ints = (int[])pixels;
+				for (int x=0; x<width; x++)
+					row[x] = ints[offset+x];
+			}
+		}
+
+		// writes 'values' as ImageStack.setVoxel()
+		private void putRow(Object pixels, int offset) {
+			if (pixels instanceof byte[]) {
+				byte[] bytes = (byte[])pixels;
+				for (int x=0; x<width; x++) {
+					double value = values[x];
+					if (value>255.0) value = 255.0; else if (value<0.0) value = 0.0;
+					bytes[offset+x] = (byte)(value+0.5);
+				}
+			} else if (pixels instanceof short[]) {
+				short[] shorts = (short[])pixels;
+				for (int x=0; x<width; x++) {
+					double value = values[x];
+					if (value>65535.0) value = 65535.0; else if (value<0.0) value = 0.0;
+					shorts[offset+x] = (short)(value+0.5);
+				}
+			} else if (pixels instanceof float[]) {
+				float[] floats = (float[])pixels;
+				for (int x=0; x<width; x++)
+					floats[offset+x] = (float)values[x];
+			} else {
+				int[] ints = (int[])pixels;
+				for (int x=0; x<width; x++)
+					ints[offset+x] = (int)values[x];
+			}
+		}
+	}
+
+}
@@ -28,114 +28,130 @@ public class FloatBlitter implements Blitter {
 	public void setTransparentColor(Color c) {
 	}
 
-	/** Copies the float image in 'ip' to (x,y) using the specified mode. */
-	public void copyBits(ImageProcessor ip, int xloc, int yloc, int mode) {
+	/** Copies the float image in 'ip' to (x,y) using the specified mode.
+		Uncalibrated 8-bit and 16-bit images are read directly, one row at a
+		time, without first converting them to float. */
+	public void copyBits(ImageProcessor ip, final int xloc, final int yloc, final int mode) {
 		Rectangle r1, r2;
-		int srcIndex, dstIndex;
-		int xSrcBase, ySrcBase;
-		float[] srcPixels;
 		
-		if (!(ip instanceof FloatProcessor))
+		boolean direct = (ip instanceof ByteProcessor || ip instanceof ShortProcessor) && ip.getCalibrationTable()==null;
+		if (!(ip instanceof FloatProcessor || direct))
 			ip = ip.convertToFloat();
-		int srcWidth = ip.getWidth();
+		final int srcWidth = ip.getWidth();
 		int srcHeight = ip.getHeight();
 		r1 = new Rectangle(srcWidth, srcHeight);
 		r1.setLocation(xloc, yloc);
 		r2 = new Rectangle(width, height);
 		if (!r1.intersects(r2))
 			return;
-		srcPixels = (float [])ip.getPixels();
-		r1 = r1.intersection(r2);
-		xSrcBase = (xloc<0)?-xloc:0;
-		ySrcBase = (yloc<0)?-yloc:0;
-		boolean useDBZValue = !Float.isInfinite(divideByZeroValue);
-		float src, dst;
-		for (int y=r1.y; y<(r1.y+r1.height); y++) {
-			srcIndex = (y-yloc)*srcWidth + (r1.x-xloc);
-			dstIndex = y * width + r1.x;
-			switch (mode) {
-				case COPY: case COPY_INVERTED: case COPY_TRANSPARENT:
-					for (int i=r1.width; --i>=0;)
-						pixels[dstIndex++] = srcPixels[srcIndex++];
-					break;
-				case COPY_ZERO_TRANSPARENT:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++];
-						if (src==0f)
-							dst = pixels[dstIndex];
-						else
-							dst = src;
-						pixels[dstIndex++] = dst;
-					}
-					break;
-				case ADD:
-					for (int i=r1.width; --i>=0; srcIndex++, dstIndex++)
-						pixels[dstIndex] = srcPixels[srcIndex]+pixels[dstIndex];
-					break;
-				case AVERAGE:
-					for (int i=r1.width; --i>=0;) {
-						dst =(srcPixels[srcIndex++]+pixels[dstIndex])/2;
-						pixels[dstIndex++] = dst;
-					}
-					break;
-				case DIFFERENCE:
-					for (int i=r1.width; --i>=0; srcIndex++, dstIndex++) {
-						dst = pixels[dstIndex]-srcPixels[srcIndex];
-						pixels[dstIndex] = dst<0?-dst:dst;
-					}
-					break;
-				case SUBTRACT:
-					for (int i=r1.width; --i>=0; srcIndex++, dstIndex++)
-						pixels[dstIndex] = pixels[dstIndex]-srcPixels[srcIndex];
-					break;
-				case MULTIPLY:
-					for (int i=r1.width; --i>=0; srcIndex++, dstIndex++)
-						pixels[dstIndex] = srcPixels[srcIndex]*pixels[dstIndex];
-					break;
-				case DIVIDE:
-					for (int i=r1.width; --i>=0; srcIndex++, dstIndex++) {
-							src = srcPixels[srcIndex];
-							if (useDBZValue && src==0.0)
-								pixels[dstIndex] = divideByZeroValue;
-							else
-								pixels[dstIndex] = pixels[dstIndex]/src;
+		final Object srcPixels = ip.getPixels();
+		final Rectangle r = r1.intersection(r2);
+		final boolean useDBZValue = !Float.isInfinite(divideByZeroValue);
+		RowBands rows = new RowBands() {
+			void process(int y1, int y2) {
+				float[] row = srcPixels instanceof float[] ? null : new float[r.width];
+				for (int y=y1; y<y2; y++) {
+					int srcIndex = (y-yloc)*srcWidth + (r.x-xloc);
+					int dstIndex = y*width + r.x;
+					if (row==null)
+						copyRow((float[])srcPixels, srcIndex, dstIndex, r.width, mode, useDBZValue);
+					else {
+						if (srcPixels instanceof byte[]) {
+							byte[] pixels8 = (byte[])srcPixels;
+							for (int i=0; i<r.width; i++)
+								row[i] = pixels8[srcIndex+i]&255;
+						} else {
+							short[] pixels16 = (short[])srcPixels;
+							for (int i=0; i<r.width; i++)
+								row[i] = pixels16[srcIndex+i]&0xffff;
 						}
-					break;
-				case AND:
-					for (int i=r1.width; --i>=0;) {
-						dst = (int)srcPixels[srcIndex++]&(int)pixels[dstIndex];
-						pixels[dstIndex++] = dst;
-					}
-					break;
-				case OR:
-					for (int i=r1.width; --i>=0;) {
-						dst = (int)srcPixels[srcIndex++]|(int)pixels[dstIndex];
-						pixels[dstIndex++] = dst;
-					}
-					break;
-				case XOR:
-					for (int i=r1.width; --i>=0;) {
-						dst = (int)srcPixels[srcIndex++]^(int)pixels[dstIndex];
-						pixels[dstIndex++] = dst;
-					}
-					break;
-				case MIN:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++];
-						dst = pixels[dstIndex];
-						if (src<dst) dst = src;
-						pixels[dstIndex++] = dst;
+						copyRow(row, 0, dstIndex, r.width, mode, useDBZValue);
 					}
-					break;
-				case MAX:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++];
-						dst = pixels[dstIndex];
-						if (src>dst) dst = src;
-						pixels[dstIndex++] = dst;
-					}
-					break;
+				}
 			}
+		};
+		if (srcPixels==pixels)  // rows may overlap
+			rows.process(r.y, r.y+r.height);
+		else
+			rows.run(r.y, r.y+r.height, r.width);
+	}
+
+	/* Combines 'n' pixels of 'src' with the destination. */
+	private void copyRow(float[] src, int srcIndex, int dstIndex, int n, int mode, boolean useDBZValue) {
+		float[] dst = pixels;
+		float s, d;
+		switch (mode) {
+			case COPY: case COPY_INVERTED: case COPY_TRANSPARENT:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = src[srcIndex+i];
+				break;
+			case COPY_ZERO_TRANSPARENT:
+				for (int i=0; i<n; i++) {
+					s = src[srcIndex+i];
+					if (s!=0f)
+						dst[dstIndex+i] = s;
+				}
+				break;
+			case ADD:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = src[srcIndex+i]+dst[dstIndex+i];
+				break;
+			case AVERAGE:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (src[srcIndex+i]+dst[dstIndex+i])/2;
+				break;
+			case DIFFERENCE:
+				for (int i=0; i<n; i++) {
+					d = dst[dstIndex+i]-src[srcIndex+i];
+					dst[dstIndex+i] = d<0?-d:d;
+				}
+				break;
+			case SUBTRACT:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = dst[dstIndex+i]-src[srcIndex+i];
+				break;
+			case MULTIPLY:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = src[srcIndex+i]*dst[dstIndex+i];
+				break;
+			case DIVIDE:
+				if (useDBZValue) {
+					for (int i=0; i<n; i++) {
+						s = src[srcIndex+i];
+						dst[dstIndex+i] = s==0f ? divideByZeroValue : dst[dstIndex+i]/s;
+					}
+				} else {
+					for (int i=0; i<n; i++)
+						dst[dstIndex+i] = dst[dstIndex+i]/src[srcIndex+i];
+				}
+				break;
+			case AND:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (int)src[srcIndex+i]&(int)dst[dstIndex+i];
+				break;
+			case OR:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (int)src[srcIndex+i]|(int)dst[dstIndex+i];
+				break;
+			case XOR:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (int)src[srcIndex+i]^(int)dst[dstIndex+i];
+				break;
+			case MIN:
+				for (int i=0; i<n; i++) {
+					s = src[srcIndex+i];
+					d = dst[dstIndex+i];
+					dst[dstIndex+i] = s<d ? s : d;
+				}
+				break;
+			case MAX:
+				for (int i=0; i<n; i++) {
+					s = src[srcIndex+i];
+					d = dst[dstIndex+i];
+					dst[dstIndex+i] = s>d ? s : d;
+				}
+				break;
 		}
 	}
+
 }
@@ -164,47 +164,71 @@ public class FloatProcessor extends ImageProcessor {
 			create8BitImage(thresholding&&lutUpdateMode==RED_LUT);
 		if (cm==null)
 			makeDefaultColorModel();
-		if (thresholding) {
-			int size = width*height;
-			double value;
-			if (lutUpdateMode==BLACK_AND_WHITE_LUT) {
-				for (int i=0; i<size; i++) {
-					value = pixels[i];
-					if (value>=minThreshold && value<=maxThreshold)
-						pixels8[i] = (byte)255;
-					else
-						pixels8[i] = (byte)0;
-				}
-			} else { // threshold red
-				for (int i=0; i<size; i++) {
-					value = pixels[i];
-					if (value>=minThreshold && value<=maxThreshold)
-						pixels8[i] = (byte)255;
-				}
-			}
-		}
+		if (thresholding)
+			showThreshold(0, width*height, pixels8, 0);
 		return createBufferedImage();
 	}
-		
+
+	/** Returns the pixels inside 'r' scaled to 8 bits as by createImage(),
+		including the threshold, if shown. Used for displaying large
+		images in tiles; may be called by several threads at once. */
+	@Override
+	public byte[] create8BitImage(Rectangle r) {
+		if (!minMaxSet)
+			findMinAndMax();
+		boolean thresholding = minThreshold!=NO_THRESHOLD && lutUpdateMode<NO_LUT_UPDATE;
+		byte[] bytes = new byte[r.width*r.height];
+		for (int y=0; y<r.height; y++) {
+			int offset = (r.y+y)*width + r.x;
+			create8BitPixels(offset, r.width, bytes, y*r.width, thresholding&&lutUpdateMode==RED_LUT);
+			if (thresholding)
+				showThreshold(offset, r.width, bytes, y*r.width);
+		}
+		return bytes;
+	}
+
 	// creates 8-bit image by linearly scaling from float to 8-bits
 	private byte[] create8BitImage(boolean thresholding) {
 		int size = width*height;
 		if (pixels8==null)
 			pixels8 = new byte[size];
+		create8BitPixels(0, size, pixels8, 0, thresholding);
+		return pixels8;
+	}
+
+	void create8BitPixels(int offset, int n, byte[] pixels8, int offset8, boolean thresholding) {
 		double value;
 		int ivalue;
 		double min2 = getMin();
 		double max2 = getMax();
 		double scale = 255.0/(max2-min2);
 		int maxValue = thresholding?254:255;
-		for (int i=0; i<size; i++) {
-			value = pixels[i]-min2;
+		for (int i=0; i<n; i++) {
+			value = pixels[offset+i]-min2;
 			if (value<0.0) value=0.0;
 			ivalue = (int)(value*scale+0.5);
 			if (ivalue>maxValue) ivalue = maxValue;
-			pixels8[i] = (byte)ivalue;
+			pixels8[offset8+i] = (byte)ivalue;
+		}
+	}
+
+	private void showThreshold(int offset, int n, byte[] pixels8, int offset8) {
+		double value;
+		if (lutUpdateMode==BLACK_AND_WHITE_LUT) {
+			for (int i=0; i<n; i++) {
+				value = pixels[offset+i];
+				if (value>=minThreshold && value<=maxThreshold)
+					pixels8[offset8+i] = (byte)255;
+				else
+					pixels8[offset8+i] = (byte)0;
+			}
+		} else { // threshold red
+			for (int i=0; i<n; i++) {
+				value = pixels[offset+i];
+				if (value>=minThreshold && value<=maxThreshold)
+					pixels8[offset8+i] = (byte)255;
+			}
 		}
-		return pixels8;
 	}
 	
 	@Override
@@ -437,7 +461,6 @@ public class FloatProcessor extends ImageProcessor {
 	/** Copies the image contained in 'ip' to (xloc, yloc) using one of
 		the transfer modes defined in the Blitter interface. */
 	public void copyBits(ImageProcessor ip, int xloc, int yloc, int mode) {
-		ip = ip.convertToFloat();
 		new FloatBlitter(this).copyBits(ip, xloc, yloc, mode);
 	}
 
@@ -55,16 +55,18 @@ public class FloatStatistics extends ImageStatistics {
 		histogram = new int[nBins];
 		double sum = 0;
 		double sum2 = 0;
-		byte[] mask = ip.getMaskArray();
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
 		
 		// Find image min and max
 		double roiMin = Double.MAX_VALUE;
 		double roiMax = -Double.MAX_VALUE;
 		for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-			int i = y * width + rx;
-			int mi = my * rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				int i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i];
 					if (v>=minThreshold && v<=maxThreshold) {
 						if (v<roiMin)
@@ -72,8 +74,8 @@ public class FloatStatistics extends ImageStatistics {
 						if (v>roiMax)
 							roiMax = v;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 		min = roiMin; max = roiMax;
@@ -93,10 +95,10 @@ public class FloatStatistics extends ImageStatistics {
 		int index;
 		pixelCount = 0;
 		for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-			int i = y * width + rx;
-			int mi = my * rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				int i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i];
 					if (v>=minThreshold && v<=maxThreshold && v>=histMin && v<=histMax) {
 						pixelCount++;
@@ -107,8 +109,8 @@ public class FloatStatistics extends ImageStatistics {
 							index = nBins-1;
 						histogram[index]++;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 		area = pixelCount*pw*ph;
@@ -134,14 +136,16 @@ public class FloatStatistics extends ImageStatistics {
 
 	void calculateMoments(ImageProcessor ip, double minThreshold, double maxThreshold) {
 		float[] pixels = (float[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
-		int i, mi;
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
+		int i;
 		double v, v2, sum1=0.0, sum2=0.0, sum3=0.0, sum4=0.0, xsum=0.0, ysum=0.0;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i]+Double.MIN_VALUE;
 					if (v>=minThreshold && v<=maxThreshold) {
 						v2 = v*v;
@@ -152,8 +156,8 @@ public class FloatStatistics extends ImageStatistics {
 						xsum += x*v;
 						ysum += y*v;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 	    double mean2 = mean*mean;
@@ -171,22 +175,24 @@ public class FloatStatistics extends ImageStatistics {
 
 	void getCentroid(ImageProcessor ip, double minThreshold, double maxThreshold) {
 		float[] pixels = (float[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
 		double count=0.0, xsum=0.0, ysum=0.0, v;
-		int i, mi;
+		int i;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null||mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i];
 					if (v>=minThreshold && v<=maxThreshold) {
 						count++;
 						xsum+=x;
 						ysum+=y;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 		xCentroid = xsum/count+0.5;
@@ -205,21 +211,23 @@ public class FloatStatistics extends ImageStatistics {
 		float v;
 		float[] pixels = (float[])ip.getPixels();
 		boolean noThresh = t1==ImageProcessor.NO_THRESHOLD;
-		byte[] mask = ip.getMaskArray();
-		int i, mi;
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
+		int i;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null||mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i];
 					total++;
 					if (noThresh) {
 						if (v!=0f) sum++;
 					} else if (v>=t1 && v<=t2)
 						sum++;
+					i++;
 				}
-				i++;
 			}
 		}
 		areaFraction = sum*100.0/total;
@@ -232,15 +240,17 @@ public class FloatStatistics extends ImageStatistics {
 		}
 		float[] pixels = (float[])ip.getPixels();
 		float[] pixels2 = new float[pixelCount];
-		byte[] mask = ip.getMaskArray();
-		int i, mi;
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
+		int i;
 		float v;
 		int count = 0;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null||mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					v = pixels[i];
 					if (v>=minThreshold && v<=maxThreshold) {
 						if (count==pixels2.length) {
@@ -249,8 +259,8 @@ public class FloatStatistics extends ImageStatistics {
 						}
 						pixels2[count++] = v;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 		Arrays.sort(pixels2);
@@ -119,32 +119,19 @@ public class ImageConverter {
 		imp.updateAndDraw();
 	}
 	
-	private static void convertStack(ImagePlus imp, boolean eightBitConversion, double min, double max) {
-		int nSlices = imp.getStackSize();
+	private static void convertStack(ImagePlus imp, final boolean eightBitConversion, final double min, final double max) {
 		int width = imp.getWidth();
 		int height = imp.getHeight();
 		ImageStack stack1 = imp.getStack();
 		ImageStack stack2 = new ImageStack(width, height);
-		String label;
-	    int inc = nSlices/20;
-	    if (inc<1) inc = 1;
-	    ImageProcessor ip1, ip2;
-		for(int i=1; i<=nSlices; i++) {
-			label = stack1.getSliceLabel(1);
-			ip1 = stack1.getProcessor(1);
-			ip1.setMinAndMax(min, max);
-			if (eightBitConversion)
-				ip2 = ip1.convertToByte(true);
-			else
-				ip2 = ip1.convertToShort(true);
-			stack1.deleteSlice(1);
-			stack2.addSlice(label, ip2);
-			if ((i%inc)==0) {
-				IJ.showProgress((double)i/nSlices);
-				IJ.showStatus("Converting to 16-bits: "+i+"/"+nSlices);
+		String status = eightBitConversion?"Converting to 8-bits: ":"Converting to 16-bits: ";
+		StackConverter.convert(stack1, stack2, true, status, new StackConverter.SliceConverter() {
+			ImageProcessor convert(ImageProcessor ip1, int n, int nThreads) {
+				ip1.setMinAndMax(min, max);
+				TypeConverter tc = StackConverter.typeConverter(ip1, true, nThreads);
+				return eightBitConversion?tc.convertToByte():tc.convertToShort();
 			}
-		}
-		IJ.showProgress(1.0);
+		});
 		imp.setStack(null, stack2);
 		ImageConverter.record();
 	}
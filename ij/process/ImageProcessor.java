@@ -87,6 +87,7 @@ public abstract class ImageProcessor implements Cloneable {
 	protected int xMin, xMax, yMin, yMax;
 	boolean snapshotCopyMode;
 	ImageProcessor mask;
+	SpanMask spanMask;   // replaces 'mask' until getMask() is called
 	protected ColorModel baseCM; // base color model
 	protected ColorModel cm;
 	protected byte[] rLUT1, gLUT1, bLUT1; // base LUT
@@ -861,6 +862,7 @@ public abstract class ImageProcessor implements Cloneable {
 				roiX=0; roiY=0; roiWidth=0; roiHeight=0;
 				xMin=0; xMax=0; yMin=0; yMax=0;
 				mask=null;
+				spanMask=null;
 				return;
 			}
 			if (mask!=null && mask.getWidth()==rwidth && mask.getHeight()==rheight) {
@@ -871,12 +873,16 @@ public abstract class ImageProcessor implements Cloneable {
 				if (mask!=null)
 					mask = mask.crop();
 			}
+			if (spanMask!=null && spanMask.getWidth()==rwidth && spanMask.getHeight()==rheight)
+				spanMask = spanMask.crop(r2.x-x, r2.y-y, r2.width, r2.height);
 			roiX=r2.x; roiY=r2.y; roiWidth=r2.width; roiHeight=r2.height;
 		} else {
 			roiX=x; roiY=y; roiWidth=rwidth; roiHeight=rheight;
 		}
 		if (mask!=null && (mask.getWidth()!=roiWidth||mask.getHeight()!=roiHeight))
 			mask = null;
+		if (spanMask!=null && (spanMask.getWidth()!=roiWidth||spanMask.getHeight()!=roiHeight))
+			spanMask = null;
 		//setup limits for 3x3 filters
 		xMin = Math.max(roiX, 1);
 		xMax = Math.min(roiX + roiWidth - 1, width - 2);
@@ -906,7 +912,11 @@ public abstract class ImageProcessor implements Cloneable {
 				Polygon p = roi.getPolygon();
 				setRoi(p.xpoints[0], p.ypoints[0], 1, 1);
 			} else {
-				setMask(roi.getMask());
+				SpanMask spans = roi.getSpanMask();
+				if (spans!=null)
+					setSpanMask(spans);
+				else
+					setMask(roi.getMask());
 				setRoi(roi.getBounds());
 			}
 		}
@@ -939,8 +949,7 @@ public abstract class ImageProcessor implements Cloneable {
 		}
 		PolygonFiller pf = new PolygonFiller();
 		pf.setPolygon(roi.xpoints, roi.ypoints, roi.npoints);
-		ImageProcessor mask = pf.getMask(bounds.width, bounds.height);
-		setMask(mask);
+		setSpanMask(pf.getSpanMask(bounds.width, bounds.height));
 		setRoi(bounds);
 		for (int i=0; i<roi.npoints; i++) {
 			roi.xpoints[i] += bounds.x;
@@ -953,6 +962,7 @@ public abstract class ImageProcessor implements Cloneable {
 		roiX=0; roiY=0; roiWidth=width; roiHeight=height;
 		xMin=1; xMax=width-2; yMin=1; yMax=height-2;
 		mask=null;
+		spanMask=null;
 		clipXMin=0; clipXMax=width-1; clipYMin=0; clipYMax=height-1;
 	}
 
@@ -967,19 +977,43 @@ public abstract class ImageProcessor implements Cloneable {
 		a value of zero. */
 	public void setMask(ImageProcessor mask) {
 		this.mask = mask;
+		spanMask = null;
 	}
 
 	/** For images with irregular ROIs, returns a mask, otherwise,
 		returns null. Pixels outside the mask have a value of zero. */
 	public ImageProcessor getMask() {
+		if (spanMask!=null) {
+			mask = spanMask.getMask();
+			spanMask = null;	// the caller may modify the mask
+		}
 		return mask;
 	}
 
 	/** Returns a reference to the mask pixel array, or null if there is no mask. */
 	public byte[] getMaskArray() {
+		ImageProcessor mask = getMask();
 		return mask!=null?(byte[])mask.getPixels():null;
 	}
 
+	/** Defines a run-length encoded mask that limits processing to an
+		irregular ROI. It has to be the size of the ROI, which should be set
+		after this call. Statistics and fill(Roi) use the spans directly;
+		a byte mask is only created if getMask() is called.
+		@see ij.gui.Roi#getSpanMask
+	*/
+	public void setSpanMask(SpanMask spanMask) {
+		this.spanMask = spanMask;
+		mask = null;
+	}
+
+	/** Returns the run-length encoded mask set by setSpanMask() or
+		setRoi(Roi), or null if there is none or if getMask() has been
+		called since. */
+	public SpanMask getSpanMask() {
+		return spanMask;
+	}
+
 	/** Assigns a progress bar to this processor. Set 'pb' to
 		null to disable the progress bar. */
 	public void setProgressBar(ProgressBar pb) {
@@ -1394,6 +1428,7 @@ public abstract class ImageProcessor implements Cloneable {
 			roiX=0; roiY=0; roiWidth=width; roiHeight=height;
 			xMin=1; xMax=width-2; yMin=1; yMax=height-2;
 			mask=null;
+			spanMask=null;
 		}
 	}
 
@@ -1744,14 +1779,32 @@ public abstract class ImageProcessor implements Cloneable {
 				roi.drawPixels(this);
 			return;
 		}
-		ImageProcessor m = getMask();
+		ImageProcessor m = mask;
+		SpanMask s = spanMask;
 		Rectangle r = getRoi();
 		setRoi(roi);
-		fill(getMask());
-		setMask(m);
+		if (spanMask!=null)
+			fill(spanMask);
+		else
+			fill(getMask());
+		mask = m;
+		spanMask = s;
 		setRoi(r);
 	}
 
+	/* Fills the spans of a mask that has the size of the ROI. */
+	private void fill(SpanMask spans) {
+		int[] rows = spans.getRows();
+		int[] xs = spans.getSpans();
+		int rx=roiX, ry=roiY;
+		for (int y=0; y<spans.getHeight(); y++) {
+			for (int i=rows[y]; i<rows[y+1]; i+=2) {
+				setRoi(rx+xs[i], ry+y, xs[i+1]-xs[i], 1);
+				fill();
+			}
+		}
+	}
+
 	/** Fills outside an Roi. */
 	public void fillOutside(Roi roi) {
 		if (roi==null || !roi.isArea()) return;
@@ -2220,6 +2273,14 @@ public abstract class ImageProcessor implements Cloneable {
 	/** Returns a copy of this image is the form of an AWT Image. */
 	public abstract Image createImage();
 
+	/** For 16 and 32-bit images, returns the pixels inside 'r' as indexes
+		into the LUT, scaled from the display range as they are displayed
+		by createImage(). Returns null for 8-bit and RGB images, which are
+		displayed without conversion. */
+	public byte[] create8BitImage(Rectangle r) {
+		return null;
+	}
+
 	/** Returns this image as a BufferedImage. */
 	public BufferedImage getBufferedImage() {
 		BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
@@ -2809,6 +2870,10 @@ public abstract class ImageProcessor implements Cloneable {
 	private byte[] bytes;
 	private int[] reds, greens, blues;
 
+	// converts 'n' pixels starting at 'offset' as create8BitImage(); implemented by
+	// ShortProcessor and FloatProcessor and used by create8BitImage(Rectangle) and ChannelCompositor
+	void create8BitPixels(int offset, int n, byte[] pixels8, int offset8, boolean thresholding) {}
+
 	void updateLutBytes() {
 		IndexColorModel icm = (IndexColorModel)cm;
 		int mapSize = icm.getMapSize();
@@ -0,0 +1,153 @@
+package ij.process;
+import ij.plugin.Binner;
+
+/** Power-of-two downsampled copies ("levels") of a large image, used by
+	ImageCanvas to draw the image at low magnification. Level n has 1/2^n
+	of the width and height of the image and is averaged from level n-1,
+	as with Image&gt;Transform&gt;Bin. The levels are computed on demand by
+	a background thread. After invalidate(), the previous levels remain
+	available until they have been computed again. A pyramid belongs to
+	the pixel array of the image when it was created; see isPyramidOf().
+*/
+public class ImagePyramid {
+	/** Levels smaller than this (width and height) are not computed. */
+	public static final int MIN_SIZE = 64;
+
+	private ImageProcessor ip;
+	private Object pixels;
+	private ImageProcessor[] levels;
+	private int[] levelGeneration;
+	private int generation;
+	private int buildLevel, buildGeneration = -1;   // of the running background thread
+
+	/** Creates a pyramid of 'ip'; levels are not computed yet. */
+	public ImagePyramid(ImageProcessor ip) {
+		this.ip = ip;
+		pixels = ip.getPixels();
+		int n = 1;
+		while (Math.min(ip.getWidth(), ip.getHeight())>>n >= MIN_SIZE)
+			n++;
+		levels = new ImageProcessor[n];
+		levels[0] = ip;
+		levelGeneration = new int[n];
+	}
+
+	/** Returns the image of level 0. */
+	public ImageProcessor getProcessor() {
+		return ip;
+	}
+
+	/** Returns 'true' if this is the pyramid of 'ip' and its current pixels.
+		Returns 'false' after ip.setPixels(), e.g., when ImagePlus.setSlice()
+		has put the pixels of another slice into the same processor; the
+		levels are then those of the previous pixels. */
+	public boolean isPyramidOf(ImageProcessor ip) {
+		return ip==this.ip && ip.getPixels()==pixels;
+	}
+
+	/** Returns the number of levels, including level 0. */
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/** Returns the level for drawing at 'magnification', i.e., the
+		coarsest level with at least one pixel per screen pixel. */
+	public int getLevel(double magnification) {
+		int level = 0;
+		while (magnification<=0.5 && level<levels.length-1) {
+			magnification *= 2.0;
+			level++;
+		}
+		return level;
+	}
+
+	/** Returns the specified level with the display range, LUT and
+		threshold of the image, or null if it has not been computed yet. */
+	public synchronized ImageProcessor getLevelProcessor(int level) {
+		ImageProcessor ip2 = levels[level];
+		if (ip2!=null && level>0)
+			setDisplay(ip2);
+		return ip2;
+	}
+
+	/** Returns 'true' if the specified level has been computed since
+		the last invalidate(). */
+	public synchronized boolean isCurrent(int level) {
+		return level==0 || (levels[level]!=null && levelGeneration[level]==generation);
+	}
+
+	/** Marks all levels as outdated, to be called when the pixels have changed. */
+	public synchronized void invalidate() {
+		generation++;
+	}
+
+	/** Computes the levels up to 'level' that are not current in a
+		background thread. When done, runs 'done' (e.g., a repaint) unless
+		the pyramid has been invalidated in the meanwhile. */
+	public synchronized void build(final int level, final Runnable done) {
+		if (isCurrent(level) || (buildGeneration==generation && buildLevel>=level))
+			return;
+		final int gen = generation;
+		buildLevel = level;
+		buildGeneration = gen;
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				if (compute(level, gen) && done!=null)
+					done.run();
+			}
+		}, "Pyramid");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Computes the levels up to 'level' in the calling thread. */
+	public void compute(int level) {
+		int gen;
+		synchronized(this) {
+			gen = generation;
+		}
+		compute(level, gen);
+	}
+
+	private boolean compute(int level, int gen) {
+		ImageProcessor previous = ip;
+		int first = 1;
+		synchronized(this) {
+			if (gen!=generation)
+				return false;
+			while (first<=level && levels[first]!=null && levelGeneration[first]==gen)
+				previous = levels[first++];
+		}
+		if (first<=level) {
+			// all missing levels in one pass
+			ImageProcessor[] ips = new Binner().shrinkLevels(previous, level-first+1, Binner.AVERAGE);
+			synchronized(this) {
+				if (gen!=generation || ip.getPixels()!=pixels)  // invalidated, or pixels swapped in the meanwhile
+					return false;
+				for (int n=first; n<=level && n-first+1<ips.length; n++) {
+					levels[n] = ips[n-first+1];
+					levelGeneration[n] = gen;
+				}
+			}
+		}
+		synchronized(this) {
+			if (buildGeneration==gen)
+				buildGeneration = -1;
+		}
+		return true;
+	}
+
+	private void setDisplay(ImageProcessor ip2) {
+		if (ip2 instanceof ColorProcessor)
+			return;
+		if (!(ip2 instanceof ByteProcessor) && (ip2.getMin()!=ip.getMin() || ip2.getMax()!=ip.getMax()))
+			ip2.setMinAndMax(ip.getMin(), ip.getMax());
+		ip2.cm = ip.getCurrentColorModel();
+		ip2.baseCM = ip.baseCM;
+		ip2.minThreshold = ip.minThreshold;
+		ip2.maxThreshold = ip.maxThreshold;
+		ip2.lutUpdateMode = ip.lutUpdateMode;
+	}
+
+}
@@ -185,13 +185,15 @@ public class ImageStatistics implements Measurements {
 	}
 	
 	void getCentroid(ImageProcessor ip) {
-		byte[] mask = ip.getMaskArray();
-		int count=0, mi;
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
+		int count=0;
 		double xsum=0.0, ysum=0.0;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null||mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					count++;
 					xsum += x;
 					ysum += y;
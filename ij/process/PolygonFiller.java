@@ -170,20 +170,39 @@ public class PolygonFiller {
 	/** Fills the ByteProcessor with 255 inside the polygon */
 	public void fillByteProcessorMask(ByteProcessor mask) {
 		int width = mask.getWidth();
-		int height = mask.getHeight();
+		SpanMask spanMask = getSpanMask(width, mask.getHeight());
 		byte[] pixels = (byte[])mask.getPixels();
+		int[] rows = spanMask.getRows();
+		int[] spans = spanMask.getSpans();
+		for (int y=0; y<spanMask.getHeight(); y++) {
+			int offset = y*width;
+			for (int i=rows[y]; i<rows[y+1]; i+=2) {
+				for (int x=spans[i]; x<spans[i+1]; x++)
+					pixels[offset+x] = -1; // 255 (white)
+			}
+		}
+	}
+
+	/** Returns a run-length encoded mask of the polygon. Unlike getMask(),
+		the memory needed depends on the height and the number of edges,
+		not on the area. */
+	public SpanMask getSpanMask(int width, int height) {
 		allocateArrays(n);
 		buildEdgeTable();
 		//printEdges();
-		int x1, x2, offset, index;
+		int x1, x2;
+		int[] rows = new int[height+1];
+		SpanMask.SpanBuffer spans = new SpanMask.SpanBuffer(height);
 		int yStart = yMin>0 ? yMin : 0;
 		if (yMin != 0)
 			shiftXValuesAndActivate(yStart);
 		//IJ.log("yMin="+yMin+" yStart="+yStart+" nActive="+activeEdges);
-		for (int y=yStart; y<Math.min(height, yMax+1); y++) {
+		int yEnd = Math.min(height, yMax+1);
+		for (int y=yStart; y<yEnd; y++) {
+			rows[y] = spans.size();
 			removeInactiveEdges(y);
 			activateEdges(y);
-			offset = y*width;
+			int lastX2 = -1;
 			for (int i=0; i<activeEdges; i+=2) {
 				x1 = (int)(ex[aedge[i]]+0.5);
 				if (x1<0) x1=0;
@@ -191,11 +210,21 @@ public class PolygonFiller {
 				x2 = (int)(ex[aedge[i+1]]+0.5);
 				if (x2<0) x2=0;
 				if (x2>width) x2 = width;
-				for (int x=x1; x<x2; x++)
-					pixels[offset+x] = -1; // 255 (white)
+				if (x2<=x1)
+					continue;
+				if (x1<=lastX2) { // overlapping or touching spans (self-intersecting polygons) are merged
+					if (x2>lastX2)
+						spans.setLast(lastX2 = x2);
+				} else {
+					spans.add(x1, x2);
+					lastX2 = x2;
+				}
 			}
 			updateXCoordinates();
 		}
+		for (int y=Math.max(yStart,yEnd); y<=height; y++)
+			rows[y] = spans.size();
+		return new SpanMask(width, height, rows, spans.toArray());
 	}
 
 	/** Shifts the x coordinates of all edges according to their slopes
@@ -0,0 +1,37 @@
+package ij.process;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+
+/** Processes the rows of an image in bands, on several threads if there
+	are enough pixels. Used by the Blitters, whose per-mode row loops are
+	simple enough for the JIT compiler to vectorize them. */
+abstract class RowBands {
+	static final int MIN_PARALLEL_PIXELS = 1<<20;
+
+	/** Processes rows y1 to y2-1. */
+	abstract void process(int y1, int y2);
+
+	/** Processes rows y1 to y2-1 of 'width' pixels each. */
+	void run(int y1, int y2, int width) {
+		int nBands = Math.min(Prefs.getThreads(), y2-y1);
+		if (nBands<=1 || (long)width*(y2-y1)<MIN_PARALLEL_PIXELS) {
+			process(y1, y2);
+			return;
+		}
+		int rowsPerBand = (y2-y1+nBands-1)/nBands;
+		Callable[] tasks = new Callable[nBands];
+		for (int t=0; t<nBands; t++) {
+			final int by1 = Math.min(y2, y1+t*rowsPerBand);
+			final int by2 = Math.min(y2, by1+rowsPerBand);
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					process(by1, by2);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+	}
+
+}
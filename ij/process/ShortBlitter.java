@@ -20,126 +20,92 @@ public class ShortBlitter implements Blitter {
 	}
 
 	/** Copies the 16-bit image in 'ip' to (x,y) using the specified mode. */
-	public void copyBits(ImageProcessor ip, int xloc, int yloc, int mode) {
+	public void copyBits(ImageProcessor ip, final int xloc, final int yloc, final int mode) {
 		Rectangle r1, r2;
-		int srcIndex, dstIndex;
-		int xSrcBase, ySrcBase;
-		short[] srcPixels;
-		
-		int srcWidth = ip.getWidth();
+		final int srcWidth = ip.getWidth();
 		int srcHeight = ip.getHeight();
 		r1 = new Rectangle(srcWidth, srcHeight);
 		r1.setLocation(xloc, yloc);
 		r2 = new Rectangle(width, height);
 		if (!r1.intersects(r2))
 			return;
-		srcPixels = (short [])ip.getPixels();
-//new ij.ImagePlus("srcPixels", new ShortProcessor(srcWidth, srcHeight, srcPixels, null)).show();
-		r1 = r1.intersection(r2);
-		xSrcBase = (xloc<0)?-xloc:0;
-		ySrcBase = (yloc<0)?-yloc:0;
-		int src, dst;
-		for (int y=r1.y; y<(r1.y+r1.height); y++) {
-			srcIndex = (y-yloc)*srcWidth + (r1.x-xloc);
-			dstIndex = y * width + r1.x;
-			switch (mode) {
-				case COPY: case COPY_INVERTED: case COPY_TRANSPARENT:
-					for (int i=r1.width; --i>=0;)
-						pixels[dstIndex++] = srcPixels[srcIndex++];
-					break;
-				case COPY_ZERO_TRANSPARENT:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&0xffff;
-						if (src==0)
-							dst = pixels[dstIndex];
-						else
-							dst = src;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case ADD:
-					for (int i=r1.width; --i>=0;) {
-						dst = (srcPixels[srcIndex++]&0xffff)+(pixels[dstIndex]&0xffff);
-						if (dst<0) dst = 0;
-						if (dst>65535) dst = 65535;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case AVERAGE:
-					for (int i=r1.width; --i>=0;) {
-						dst = ((srcPixels[srcIndex++]&0xffff)+(pixels[dstIndex]&0xffff))/2;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case DIFFERENCE:
-					for (int i=r1.width; --i>=0;) {
-						dst = (pixels[dstIndex]&0xffff)-(srcPixels[srcIndex++]&0xffff);
-						if (dst<0) dst = -dst;
-						if (dst>65535) dst = 65535;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case SUBTRACT:
-					for (int i=r1.width; --i>=0;) {
-						dst = (pixels[dstIndex]&0xffff)-(srcPixels[srcIndex++]&0xffff);
-						if (dst<0) dst = 0;
-						if (dst>65535) dst = 65535;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case MULTIPLY:
-					for (int i=r1.width; --i>=0;) {
-						dst = (srcPixels[srcIndex++]&0xffff)*(pixels[dstIndex]&0xffff);
-						if (dst<0) dst = 0;
-						if (dst>65535) dst = 65535;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case DIVIDE:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&0xffff;
-						if (src==0)
-							dst = 65535;
-						else
-							dst = (pixels[dstIndex]&0xffff)/src;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case AND:
-					for (int i=r1.width; --i>=0;) {
-						dst = srcPixels[srcIndex++]&pixels[dstIndex]&0xffff;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case OR:
-					for (int i=r1.width; --i>=0;) {
-						dst = srcPixels[srcIndex++]|pixels[dstIndex];
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case XOR:
-					for (int i=r1.width; --i>=0;) {
-						dst = srcPixels[srcIndex++]^pixels[dstIndex];
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case MIN:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&0xffff;
-						dst = pixels[dstIndex]&0xffff;
-						if (src<dst) dst = src;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
-				case MAX:
-					for (int i=r1.width; --i>=0;) {
-						src = srcPixels[srcIndex++]&0xffff;
-						dst = pixels[dstIndex]&0xffff;
-						if (src>dst) dst = src;
-						pixels[dstIndex++] = (short)dst;
-					}
-					break;
+		final short[] srcPixels = (short [])ip.getPixels();
+		final Rectangle r = r1.intersection(r2);
+		RowBands rows = new RowBands() {
+			void process(int y1, int y2) {
+				for (int y=y1; y<y2; y++)
+					copyRow(srcPixels, (y-yloc)*srcWidth + (r.x-xloc), y*width + r.x, r.width, mode);
 			}
+		};
+		if (srcPixels==pixels)  // rows may overlap
+			rows.process(r.y, r.y+r.height);
+		else
+			rows.run(r.y, r.y+r.height, r.width);
+	}
+
+	/* Combines 'n' pixels of 'src' with the destination. */
+	private void copyRow(short[] src, int srcIndex, int dstIndex, int n, int mode) {
+		short[] dst = pixels;
+		int s, d;
+		switch (mode) {
+			case COPY: case COPY_INVERTED: case COPY_TRANSPARENT:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = src[srcIndex+i];
+				break;
+			case COPY_ZERO_TRANSPARENT:
+				for (int i=0; i<n; i++) {
+					s = src[srcIndex+i];
+					if (s!=0)
+						dst[dstIndex+i] = (short)s;
+				}
+				break;
+			case ADD:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)Math.min((src[srcIndex+i]&0xffff)+(dst[dstIndex+i]&0xffff), 65535);
+				break;
+			case AVERAGE:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)(((src[srcIndex+i]&0xffff)+(dst[dstIndex+i]&0xffff))>>1);
+				break;
+			case DIFFERENCE:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)Math.abs((dst[dstIndex+i]&0xffff)-(src[srcIndex+i]&0xffff));
+				break;
+			case SUBTRACT:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)Math.max((dst[dstIndex+i]&0xffff)-(src[srcIndex+i]&0xffff), 0);
+				break;
+			case MULTIPLY:  // products that overflow to negative values are set to 0
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)Math.min(Math.max((src[srcIndex+i]&0xffff)*(dst[dstIndex+i]&0xffff), 0), 65535);
+				break;
+			case DIVIDE:
+				for (int i=0; i<n; i++) {
+					s = src[srcIndex+i]&0xffff;
+					dst[dstIndex+i] = (short)(s==0 ? 65535 : (dst[dstIndex+i]&0xffff)/s);
+				}
+				break;
+			case AND:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)(src[srcIndex+i]&dst[dstIndex+i]);
+				break;
+			case OR:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)(src[srcIndex+i]|dst[dstIndex+i]);
+				break;
+			case XOR:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)(src[srcIndex+i]^dst[dstIndex+i]);
+				break;
+			case MIN:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)Math.min(src[srcIndex+i]&0xffff, dst[dstIndex+i]&0xffff);
+				break;
+			case MAX:
+				for (int i=0; i<n; i++)
+					dst[dstIndex+i] = (short)Math.max(src[srcIndex+i]&0xffff, dst[dstIndex+i]&0xffff);
+				break;
 		}
 	}
+
 }
@@ -97,35 +97,39 @@ public class ShortProcessor extends ImageProcessor {
 			create8BitImage(thresholding&&lutUpdateMode==RED_LUT);
 		if (cm==null)
 			makeDefaultColorModel();
-		if (thresholding) {
-			int t1 = (int)minThreshold;
-			int t2 = (int)maxThreshold;
-			int size = width*height;
-			int value;
-			if (lutUpdateMode==BLACK_AND_WHITE_LUT) {
-				for (int i=0; i<size; i++) {
-					value = (pixels[i]&0xffff);
-					if (value>=t1 && value<=t2)
-						pixels8[i] = (byte)255;
-					else
-						pixels8[i] = (byte)0;
-				}
-			} else { // threshold red
-				for (int i=0; i<size; i++) {
-					value = (pixels[i]&0xffff);
-					if (value>=t1 && value<=t2)
-						pixels8[i] = (byte)255;
-				}
-			}
-		}
+		if (thresholding)
+			showThreshold(0, width*height, pixels8, 0);
 		return createBufferedImage();
 	}
-	
+
+	/** Returns the pixels inside 'r' scaled to 8 bits as by createImage(),
+		including the threshold, if shown. Used for displaying large
+		images in tiles; may be called by several threads at once. */
+	@Override
+	public byte[] create8BitImage(Rectangle r) {
+		if (!minMaxSet)
+			findMinAndMax();
+		boolean thresholding = minThreshold!=NO_THRESHOLD && lutUpdateMode<NO_LUT_UPDATE;
+		byte[] bytes = new byte[r.width*r.height];
+		for (int y=0; y<r.height; y++) {
+			int offset = (r.y+y)*width + r.x;
+			create8BitPixels(offset, r.width, bytes, y*r.width, thresholding&&lutUpdateMode==RED_LUT);
+			if (thresholding)
+				showThreshold(offset, r.width, bytes, y*r.width);
+		}
+		return bytes;
+	}
+
 	// create 8-bit image by linearly scaling from 16-bits to 8-bits
 	private byte[] create8BitImage(boolean thresholding) {
 		int size = width*height;
 		if (pixels8==null)
 			pixels8 = new byte[size];
+		create8BitPixels(0, size, pixels8, 0, thresholding);
+		return pixels8;
+	}
+
+	void create8BitPixels(int offset, int n, byte[] pixels8, int offset8, boolean thresholding) {
 		int value;
 		int min2=(int)getMin(), max2=(int)getMax();
 		int maxValue = 255;
@@ -134,14 +138,34 @@ public class ShortProcessor extends ImageProcessor {
 			maxValue = 254;
 			scale = 255.0/(max2-min2+1);
 		}
-		for (int i=0; i<size; i++) {
-			value = (pixels[i]&0xffff)-min2;
+		for (int i=0; i<n; i++) {
+			value = (pixels[offset+i]&0xffff)-min2;
 			if (value<0) value = 0;
 			value = (int)(value*scale+0.5);
 			if (value>maxValue) value = maxValue;
-			pixels8[i] = (byte)value;
+			pixels8[offset8+i] = (byte)value;
+		}
+	}
+
+	private void showThreshold(int offset, int n, byte[] pixels8, int offset8) {
+		int t1 = (int)minThreshold;
+		int t2 = (int)maxThreshold;
+		int value;
+		if (lutUpdateMode==BLACK_AND_WHITE_LUT) {
+			for (int i=0; i<n; i++) {
+				value = (pixels[offset+i]&0xffff);
+				if (value>=t1 && value<=t2)
+					pixels8[offset8+i] = (byte)255;
+				else
+					pixels8[offset8+i] = (byte)0;
+			}
+		} else { // threshold red
+			for (int i=0; i<n; i++) {
+				value = (pixels[offset+i]&0xffff);
+				if (value>=t1 && value<=t2)
+					pixels8[offset8+i] = (byte)255;
+			}
 		}
-		return pixels8;
 	}
 
 	@Override
@@ -1031,6 +1055,8 @@ public class ShortProcessor extends ImageProcessor {
 	/** Returns 65,536 bin histogram of the current ROI, which
 		can be non-rectangular. */
 	public int[] getHistogram() {
+		if (spanMask!=null)
+			return getHistogram(spanMask, 65536);
 		if (mask!=null)
 			return getHistogram(mask);
 		int roiX=this.roiX, roiY=this.roiY;
@@ -1067,6 +1093,8 @@ public class ShortProcessor extends ImageProcessor {
 		images or selections, computations using these histograms 
 		are faster compared to 65536 element histograms. */
 	int[] getHistogram2() {
+		if (spanMask!=null)
+			return getHistogram(spanMask, 0);
 		if (mask!=null)
 			return getHistogram2(mask);
 		int roiX=this.roiX, roiY=this.roiY;
@@ -1092,6 +1120,38 @@ public class ShortProcessor extends ImageProcessor {
 		return histogram;
 	}
 
+	/* Returns the histogram of the pixels in the spans. If 'size' is zero,
+		the size is maxof(max+1,256), with 'max' the maximum of the ROI
+		bounding rectangle, as with getHistogram2(mask). */
+	private int[] getHistogram(SpanMask spanMask, int size) {
+		int roiX=this.roiX, roiY=this.roiY;
+		int roiWidth=this.roiWidth, roiHeight=this.roiHeight;
+		if (size==0) {
+			int max = 0;
+			int value;
+			for (int y=roiY; y<(roiY+roiHeight); y++) {
+				int index = y*width + roiX;
+				for (int i=0; i<roiWidth; i++) {
+					value = pixels[index++]&0xffff;
+					if (value>max)
+						max = value;
+				}
+			}
+			size = Math.max(max+1, 256);
+		}
+		int[] rows = spanMask.getRows();
+		int[] spans = spanMask.getSpans();
+		int[] histogram = new int[size];
+		for (int y=0; y<roiHeight; y++) {
+			int offset = (roiY+y)*width + roiX;
+			for (int k=rows[y]; k<rows[y+1]; k+=2) {
+				for (int i=offset+spans[k]; i<offset+spans[k+1]; i++)
+					histogram[pixels[i]&0xffff]++;
+			}
+		}
+		return histogram;
+	}
+
 	private int[] getHistogram2(ImageProcessor mask) {
 		if (mask.getWidth()!=roiWidth||mask.getHeight()!=roiHeight)
 			throw new IllegalArgumentException(maskSizeError(mask));
@@ -1227,7 +1287,10 @@ public class ShortProcessor extends ImageProcessor {
 		for (int i=0; i<size; i++)
 			fPixels[i] = pixels[i]&0xffff;
 		fp.setRoi(getRoi());
-		fp.setMask(mask);
+		if (spanMask!=null)
+			fp.setSpanMask(spanMask);
+		else
+			fp.setMask(mask);
 		fp.setMinAndMax(getMin(), getMax());
 		fp.setThreshold(minThreshold, maxThreshold, ImageProcessor.NO_LUT_UPDATE);
 		return fp;
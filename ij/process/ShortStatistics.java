@@ -135,15 +135,17 @@ public class ShortStatistics extends ImageStatistics {
 
 	void getCentroid(ImageProcessor ip, int minThreshold, int maxThreshold) {
 		short[] pixels = (short[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
 		boolean limit = minThreshold>0 || maxThreshold<65535;
-		int count=0, i, mi, v;
+		int count=0, i, v;
 		double xsum=0.0, ysum=0.0;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null||mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					if (limit) {
 						v = pixels[i]&0xffff;
 						if (v>=minThreshold&&v<=maxThreshold) {
@@ -156,8 +158,8 @@ public class ShortStatistics extends ImageStatistics {
 						xsum+=x;
 						ysum+=y;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 		xCentroid = xsum/count+0.5;
@@ -170,14 +172,16 @@ public class ShortStatistics extends ImageStatistics {
 
 	void calculateMoments(ImageProcessor ip,  int minThreshold, int maxThreshold, float[] cTable) {
 		short[] pixels = (short[])ip.getPixels();
-		byte[] mask = ip.getMaskArray();
-		int i, mi, iv;
+		SpanMask spanMask = ip.getSpanMask();
+		byte[] mask = spanMask==null?ip.getMaskArray():null;
+		int[] xs = new int[rw+2];
+		int i, iv;
 		double v, v2, sum1=0.0, sum2=0.0, sum3=0.0, sum4=0.0, xsum=0.0, ysum=0.0;
 		for (int y=ry,my=0; y<(ry+rh); y++,my++) {
-			i = y*width + rx;
-			mi = my*rw;
-			for (int x=rx; x<(rx+rw); x++) {
-				if (mask==null || mask[mi++]!=0) {
+			int n = SpanMask.getRow(spanMask, mask, rw, my, xs);
+			for (int k=0; k<n; k+=2) {
+				i = y*width + rx + xs[k];
+				for (int x=rx+xs[k]; x<rx+xs[k+1]; x++) {
 					iv = pixels[i]&0xffff;
 					if (iv>=minThreshold&&iv<=maxThreshold) {
 						v = cTable!=null?cTable[iv]:iv;
@@ -189,8 +193,8 @@ public class ShortStatistics extends ImageStatistics {
 						xsum += x*v;
 						ysum += y*v;
 					}
+					i++;
 				}
-				i++;
 			}
 		}
 	    double mean2 = mean*mean;
@@ -0,0 +1,214 @@
+package ij.process;
+
+/** A run-length encoded mask that stores, for each row, the horizontal spans
+	of pixels inside a selection. It is the compact equivalent of the byte mask
+	returned by ImageProcessor.getMask(); a large, sparse selection needs a few
+	kilobytes instead of one byte per pixel of its bounding rectangle.
+	SpanMasks are immutable and may be shared by several ROIs and processors.
+	@see ij.gui.Roi#getSpanMask
+	@see ImageProcessor#setSpanMask
+*/
+public class SpanMask {
+	private int width, height;
+	private int[] rows;    // the spans of row y are at spans[rows[y]] to spans[rows[y+1]-1]
+	private int[] spans;   // start (inclusive) and end (exclusive) x of each span
+	private ImageProcessor mask;
+
+	/** Creates a SpanMask with the specified size. 'rows' has height+1 entries;
+		the spans of row y are the (start, end) pairs, with end exclusive and in
+		increasing order, from spans[rows[y]] to spans[rows[y+1]-1]. */
+	public SpanMask(int width, int height, int[] rows, int[] spans) {
+		if (rows.length<height+1)
+			throw new IllegalArgumentException("rows.length<height+1");
+		this.width = width;
+		this.height = height;
+		this.rows = rows;
+		this.spans = spans;
+	}
+
+	/** Creates a SpanMask from a byte mask (non-zero pixels are inside),
+		or returns null if 'mask' is null. */
+	public static SpanMask create(ImageProcessor mask) {
+		if (mask==null)
+			return null;
+		int width = mask.getWidth();
+		int height = mask.getHeight();
+		byte[] pixels = (byte[])mask.getPixels();
+		int[] rows = new int[height+1];
+		int[] xs = new int[width+2];
+		SpanBuffer buffer = new SpanBuffer(height);
+		for (int y=0; y<height; y++) {
+			rows[y] = buffer.size();
+			buffer.add(xs, getRow(null, pixels, width, y, xs));
+		}
+		rows[height] = buffer.size();
+		SpanMask spanMask = new SpanMask(width, height, rows, buffer.toArray());
+		spanMask.mask = mask;
+		return spanMask;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Returns a reference to the array with the index of the first
+		span value of each row (height+1 entries). */
+	public int[] getRows() {
+		return rows;
+	}
+
+	/** Returns a reference to the array of (start, end) span values. */
+	public int[] getSpans() {
+		return spans;
+	}
+
+	/** Returns the number of spans. */
+	public int getSpanCount() {
+		return rows[height]/2;
+	}
+
+	/** Returns the number of pixels inside the mask. */
+	public int getPixelCount() {
+		int count = 0;
+		for (int i=0; i<rows[height]; i+=2)
+			count += spans[i+1] - spans[i];
+		return count;
+	}
+
+	/** Returns 'true' if the pixel (x,y) is inside the mask. */
+	public boolean contains(int x, int y) {
+		if (y<0 || y>=height)
+			return false;
+		for (int i=rows[y]; i<rows[y+1]; i+=2) {
+			if (x<spans[i])
+				return false;
+			if (x<spans[i+1])
+				return true;
+		}
+		return false;
+	}
+
+	/** Returns the part of this mask inside the specified rectangle,
+		which must be within the mask. */
+	public SpanMask crop(int x, int y, int width, int height) {
+		if (x==0 && y==0 && width==this.width && height==this.height)
+			return this;
+		int[] rows2 = new int[height+1];
+		SpanBuffer buffer = new SpanBuffer(height);
+		int[] xs = new int[2];
+		for (int y2=0; y2<height; y2++) {
+			rows2[y2] = buffer.size();
+			for (int i=rows[y+y2]; i<rows[y+y2+1]; i+=2) {
+				xs[0] = Math.max(spans[i], x) - x;
+				xs[1] = Math.min(spans[i+1], x+width) - x;
+				if (xs[1]>xs[0])
+					buffer.add(xs, 2);
+			}
+		}
+		rows2[height] = buffer.size();
+		return new SpanMask(width, height, rows2, buffer.toArray());
+	}
+
+	/** Returns this mask as a ByteProcessor with the inside pixels set
+		to 255. The byte mask is created on the first call and shared;
+		it should not be modified. */
+	public synchronized ImageProcessor getMask() {
+		if (mask==null || mask.getPixels()==null) {
+			ByteProcessor bp = new ByteProcessor(width, height);
+			byte[] pixels = (byte[])bp.getPixels();
+			for (int y=0; y<height; y++) {
+				int offset = y*width;
+				for (int i=rows[y]; i<rows[y+1]; i+=2) {
+					for (int x=spans[i]; x<spans[i+1]; x++)
+						pixels[offset+x] = -1; // 255 (white)
+				}
+			}
+			mask = bp;
+		}
+		return mask;
+	}
+
+	/** Stores the spans of row 'y' of a 'width' wide mask in 'xs', which
+		must have at least width+2 elements, and returns the number of values
+		stored. The spans are taken from 'spanMask' if it is not null,
+		otherwise from the byte mask 'mask'. If both are null, the row
+		is a single span. Used by the statistics classes. */
+	static int getRow(SpanMask spanMask, byte[] mask, int width, int y, int[] xs) {
+		if (spanMask!=null) {
+			int start = spanMask.rows[y];
+			int n = spanMask.rows[y+1] - start;
+			System.arraycopy(spanMask.spans, start, xs, 0, n);
+			return n;
+		}
+		if (mask==null) {
+			xs[0] = 0;
+			xs[1] = width;
+			return 2;
+		}
+		int n = 0;
+		int offset = y*width;
+		int x = 0;
+		while (x<width) {
+			while (x<width && mask[offset+x]==0)
+				x++;
+			if (x==width)
+				break;
+			xs[n++] = x;
+			while (x<width && mask[offset+x]!=0)
+				x++;
+			xs[n++] = x;
+		}
+		return n;
+	}
+
+	/** A growable list of span values. */
+	static class SpanBuffer {
+		private int[] values;
+		private int size;
+
+		SpanBuffer(int capacity) {
+			values = new int[Math.max(2*capacity, 16)];
+		}
+
+		void add(int x1, int x2) {
+			if (size+2>values.length)
+				grow(size+2);
+			values[size++] = x1;
+			values[size++] = x2;
+		}
+
+		void setLast(int x2) {
+			values[size-1] = x2;
+		}
+
+		void add(int[] xs, int n) {
+			if (size+n>values.length)
+				grow(size+n);
+			System.arraycopy(xs, 0, values, size, n);
+			size += n;
+		}
+
+		private void grow(int minSize) {
+			int[] values2 = new int[Math.max(2*values.length, minSize)];
+			System.arraycopy(values, 0, values2, 0, size);
+			values = values2;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int[] toArray() {
+			if (size==values.length)
+				return values;
+			int[] values2 = new int[size];
+			System.arraycopy(values, 0, values2, 0, size);
+			return values2;
+		}
+	}
+
+}
@@ -6,6 +6,9 @@ import ij.*;
 import ij.gui.*;
 import ij.measure.*;
 import ij.plugin.*;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This class does stack type conversions. */
 public class StackConverter {
@@ -50,30 +53,20 @@ public class StackConverter {
 		}
 		
 		ImageStack stack2 = new ImageStack(width, height);
-		Image img;
-		String label;
-		double min = ip.getMin();
-		double max = ip.getMax();
-	    int inc = nSlices/20;
-	    if (inc<1) inc = 1;
-	    LUT[] luts = composite?((CompositeImage)imp).getLuts():null;
-		boolean scale = ImageConverter.getDoScaling();
-		for(int i=1; i<=nSlices; i++) {
-			label = stack1.getSliceLabel(1);
-			ip = stack1.getProcessor(1);
-			stack1.deleteSlice(1);
-			if (luts!=null) {
-				int index = (i-1)%luts.length;
-				min = luts[index].min;
-				max = luts[index].max;
+		final double min = ip.getMin();
+		final double max = ip.getMax();
+	    final LUT[] luts = composite?((CompositeImage)imp).getLuts():null;
+		final boolean scale = ImageConverter.getDoScaling();
+		convert(stack1, stack2, true, "Converting to 8-bits: ", new SliceConverter() {
+			ImageProcessor convert(ImageProcessor ip, int n, int nThreads) {
+				if (luts!=null) {
+					int index = (n-1)%luts.length;
+					ip.setMinAndMax(luts[index].min, luts[index].max);
+				} else
+					ip.setMinAndMax(min, max);
+				return typeConverter(ip, scale, nThreads).convertToByte();
 			}
-			ip.setMinAndMax(min, max);
-			stack2.addSlice(label, ip.convertToByte(scale));
-			if ((i%inc)==0) {
-				IJ.showProgress((double)i/nSlices);
-				IJ.showStatus("Converting to 8-bits: "+i+"/"+nSlices);
-			}
-		}
+		});
 		imp.setStack(null, stack2);
 		imp.setCalibration(imp.getCalibration()); //update calibration
 		if (composite && luts!=null) {
@@ -99,26 +92,15 @@ public class StackConverter {
 			return;
 		}
 		ImageStack stack2 = new ImageStack(width, height);
-		ImageProcessor ip;
-		Image img;
-		String label;
-	    int inc = nSlices/20;
-	    if (inc<1) inc = 1;
-		for (int i=1; i<=nSlices; i++) {
-			label = stack1.getSliceLabel(1);
-			ip = stack1.getProcessor(1);
-			stack1.deleteSlice(1);
-			if (ip instanceof ByteProcessor)
-				ip = new ColorProcessor(ip.createImage());
-			boolean scale = ImageConverter.getDoScaling();
-			stack2.addSlice(label, ip.convertToByte(scale));
-			if ((i%inc)==0) {
-				IJ.showProgress((double)i/nSlices);
-				IJ.showStatus("Converting to 8-bits: "+i+"/"+nSlices);
+		final boolean scale = ImageConverter.getDoScaling();
+		convert(stack1, stack2, true, "Converting to 8-bits: ", new SliceConverter() {
+			ImageProcessor convert(ImageProcessor ip, int n, int nThreads) {
+				if (ip instanceof ByteProcessor)
+					ip = new ColorProcessor(ip.createImage());
+				return typeConverter(ip, scale, nThreads).convertToByte();
 			}
-		}
+		});
 		imp.setStack(null, stack2);
-		IJ.showProgress(1.0);
 	}
 
 	/** Converts this Stack to 16-bit grayscale. */	
@@ -132,37 +114,26 @@ public class StackConverter {
 			return;
 		}
 		ImageProcessor ip = imp.getProcessor();
-		double min = ip.getMin();
-		double max = ip.getMax();
+		final double min = ip.getMin();
+		final double max = ip.getMax();
 		ImageStack stack1 = imp.getStack();
 		ImageStack stack2 = new ImageStack(width, height);
 		int channels = imp.getNChannels();
 	    LUT[] luts = channels>1?imp.getLuts():null;
 	    if (luts!=null && luts.length!=channels)
 	    	luts = null;
-		String label;
-	    int inc = nSlices/20;
-	    if (inc<1) inc = 1;
-	    boolean scale = type==ImagePlus.GRAY32 && ImageConverter.getDoScaling();
-	    ImageProcessor ip1, ip2;
-		for (int i=1; i<=nSlices; i++) {
-			label = stack1.getSliceLabel(1);
-			ip1 = stack1.getProcessor(1);
-			if (luts!=null) {
-				int index = (i-1)%luts.length;
-				min = luts[index].min;
-				max = luts[index].max;
+	    final LUT[] luts2 = luts;
+	    final boolean scale = type==ImagePlus.GRAY32 && ImageConverter.getDoScaling();
+		convert(stack1, stack2, true, "Converting to 16-bits: ", new SliceConverter() {
+			ImageProcessor convert(ImageProcessor ip1, int n, int nThreads) {
+				if (luts2!=null) {
+					int index = (n-1)%luts2.length;
+					ip1.setMinAndMax(luts2[index].min, luts2[index].max);
+				} else
+					ip1.setMinAndMax(min, max);
+				return typeConverter(ip1, scale, nThreads).convertToShort();
 			}
-			ip1.setMinAndMax(min, max);
-			ip2 = ip1.convertToShort(scale);
-			stack1.deleteSlice(1);
-			stack2.addSlice(label, ip2);
-			if ((i%inc)==0) {
-				IJ.showProgress((double)i/nSlices);
-				IJ.showStatus("Converting to 16-bits: "+i+"/"+nSlices);
-			}
-		}
-		IJ.showProgress(1.0);
+		});
 		imp.setStack(null, stack2);
 		if (imp.isComposite() && luts!=null) {
 			if (scale) {
@@ -185,10 +156,6 @@ public class StackConverter {
 			throw new IllegalArgumentException("Unsupported conversion");
 		ImageStack stack1 = imp.getStack();
 		ImageStack stack2 = new ImageStack(width, height);
-		String label;
-	    int inc = nSlices/20;
-	    if (inc<1) inc = 1;
-	    ImageProcessor ip1, ip2;
 	    Calibration cal = imp.getCalibration();
 	    double min = imp.getDisplayRangeMin();
 		double max = imp.getDisplayRangeMax();
@@ -196,19 +163,13 @@ public class StackConverter {
 	    LUT[] luts = imp.getLuts();
 	    if ((luts!=null && luts.length!=channels) || cal.calibrated())
 	    	luts = null;
-		for(int i=1; i<=nSlices; i++) {
-			label = stack1.getSliceLabel(1);
-			ip1 = stack1.getProcessor(1);
-			ip1.setCalibrationTable(cal.getCTable());
-			ip2 = ip1.convertToFloat();
-			stack1.deleteSlice(1);
-			stack2.addSlice(label, ip2);
-			if ((i%inc)==0) {
-				IJ.showProgress((double)i/nSlices);
-				IJ.showStatus("Converting to 32-bits: "+i+"/"+nSlices);
+	    final float[] cTable = cal.getCTable();
+		convert(stack1, stack2, true, "Converting to 32-bits: ", new SliceConverter() {
+			ImageProcessor convert(ImageProcessor ip1, int n, int nThreads) {
+				ip1.setCalibrationTable(cTable);
+				return typeConverter(ip1, false, nThreads).convertToFloat(cTable);
 			}
-		}
-		IJ.showProgress(1.0);
+		});
 		imp.setStack(null, stack2);
 		imp.setCalibration(imp.getCalibration()); //update calibration
 		if (type==ImagePlus.COLOR_RGB) {
@@ -237,22 +198,11 @@ public class StackConverter {
 			return;
 		}
 		ImageStack stack2 = new ImageStack(width, height);
-		String label;
-	    int inc = nSlices/20;
-	    if (inc<1) inc = 1;
-	    ImageProcessor ip1, ip2;
-	    Calibration cal = imp.getCalibration();
-		for(int i=1; i<=nSlices; i++) {
-			label = stack1.getSliceLabel(i);
-			ip1 = stack1.getProcessor(i);
-			ip2 = ip1.convertToRGB();
-			stack2.addSlice(label, ip2);
-			if ((i%inc)==0) {
-				IJ.showProgress((double)i/nSlices);
-				IJ.showStatus("Converting to RGB: "+i+"/"+nSlices);
+		convert(stack1, stack2, false, "Converting to RGB: ", new SliceConverter() {
+			ImageProcessor convert(ImageProcessor ip1, int n, int nThreads) {
+				return typeConverter(ip1, true, nThreads).convertToRGB();
 			}
-		}
-		IJ.showProgress(1.0);
+		});
 		imp.setStack(null, stack2);
 		imp.setDimensions(1, z, t);
 		imp.setCalibration(imp.getCalibration()); //update calibration
@@ -361,4 +311,58 @@ public class StackConverter {
 		imp.setTypeToColor256();
 	}	
 
+	/* Converts one slice; 'n' is the number of the slice in the original
+		stack and 'nThreads' the number of threads the conversion may use. */
+	static abstract class SliceConverter {
+		abstract ImageProcessor convert(ImageProcessor ip, int n, int nThreads);
+	}
+
+	static TypeConverter typeConverter(ImageProcessor ip, boolean doScaling, int nThreads) {
+		TypeConverter tc = new TypeConverter(ip, doScaling);
+		tc.nThreads = nThreads;
+		return tc;
+	}
+
+	/* Adds the slices of 'stack1', converted by 'converter', to 'stack2'. The
+		slices are read in batches and converted in parallel. If 'delete' is true,
+		they are deleted from 'stack1' as they are read, so that the memory needed
+		is limited, also with virtual stacks, which are read one slice at a time.
+		Batches with fewer slices than threads are also converted in bands of rows. */
+	static void convert(ImageStack stack1, ImageStack stack2, boolean delete, String status, final SliceConverter converter) {
+		int nSlices = stack1.size();
+		int nThreads = Math.max(1, Prefs.getThreads());
+		int batchSize = 2*nThreads;
+		for (int i1=1; i1<=nSlices; i1+=batchSize) {
+			final int n = Math.min(batchSize, nSlices-i1+1);
+			final ImageProcessor[] ips = new ImageProcessor[n];
+			String[] labels = new String[n];
+			for (int i=0; i<n; i++) {
+				int index = delete ? 1 : i1+i;
+				labels[i] = stack1.getSliceLabel(index);
+				ips[i] = stack1.getProcessor(index);
+				if (delete)
+					stack1.deleteSlice(1);
+			}
+			final int first = i1;
+			final AtomicInteger next = new AtomicInteger();
+			Callable[] tasks = new Callable[Math.min(nThreads, n)];
+			final int bandThreads = nThreads/tasks.length;
+			for (int t=0; t<tasks.length; t++) {
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						for (int i=next.getAndIncrement(); i<n; i=next.getAndIncrement())
+							ips[i] = converter.convert(ips[i], first+i, bandThreads);
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+			for (int i=0; i<n; i++)
+				stack2.addSlice(labels[i], ips[i]);
+			IJ.showProgress((double)(i1+n-1)/nSlices);
+			IJ.showStatus(status+(i1+n-1)+"/"+nSlices);
+		}
+		IJ.showProgress(1.0);
+	}
+
 }
@@ -3,8 +3,10 @@ import java.awt.*;
 import ij.*;
 import ij.process.*;
 import ij.macro.Interpreter;
-import ij.util.ArrayUtil;
 import ij.plugin.Filters3D;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -20,6 +22,9 @@ public class StackProcessor {
 	int[] table;
 	double fillValue;
 	float[] voxels;
+	private int newWidth, newHeight;
+	private boolean averageWhenDownsizing;
+	private Rectangle cropRect;
 	    
     /** Constructs a StackProcessor from a stack. */
     public StackProcessor(ImageStack stack) {
@@ -38,10 +43,11 @@ public class StackProcessor {
    }
 	
 	static final int FLIPH=0, FLIPV=1, SCALE=2, INVERT=3, APPLY_TABLE=4, SCALE_WITH_FILL=5;
+	private static final int RESIZE=6, CROP=7, ROTATE_RIGHT=8, ROTATE_LEFT=9;
 	
-	void process(int command) {
+	void process(final int command) {
 	    String s = "";
- 	   	ImageProcessor ip2 = stack.getProcessor(1);
+ 	   	final ImageProcessor ip2 = stack.getProcessor(1);
     	switch (command) {
     		case FLIPH: case FLIPV: s="Flip: "; break;
     		case SCALE: s="Scale: "; break;
@@ -53,23 +59,110 @@ public class StackProcessor {
     		ip = ip2;
  	   	ip2.setRoi(this.ip.getRoi());
 	    ip2.setInterpolate(this.ip.getInterpolate());
-	    for (int i=1; i<=nSlices; i++) {
-    		showStatus(s,i,nSlices);
-	    	ip2.setPixels(stack.getPixels(i));
-	    	if (nSlices==1 && i==1 && command==SCALE)
-	    		ip2.snapshot();
-	    	switch (command) {
-	    		case FLIPH: ip2.flipHorizontal(); break;
-	    		case FLIPV: ip2.flipVertical(); break;
-	    		case SCALE: case SCALE_WITH_FILL: ip2.scale(xScale, yScale); break;
-	    		case INVERT: ip2.invert(); break;
-	    		case APPLY_TABLE: ip2.applyTable(table); break;
-	    	}
-			IJ.showProgress((double)i/nSlices);
+	    ip2.getMin();  // the fill value of scale(), from slice 1 for all threads
+	    showStatus(s,1,nSlices);
+	    // the slices are processed in parallel, each thread with its own copy of ip2
+	    final AtomicInteger next = new AtomicInteger(1);
+	    final AtomicInteger done = new AtomicInteger();
+	    int nThreads = Math.max(1, Math.min(Prefs.getThreads(), nSlices));
+	    Callable[] tasks = new Callable[nThreads];
+	    for (int t=0; t<nThreads; t++) {
+	    	final ImageProcessor ip3 = t==0 ? ip2 : copyOf(ip2);
+	    	tasks[t] = new Callable<Void>() {
+	    		public Void call() {
+	    			for (int i=next.getAndIncrement(); i<=nSlices; i=next.getAndIncrement()) {
+	    				ip3.setPixels(stack.getPixels(i));
+	    				if (nSlices==1 && i==1 && command==SCALE)
+	    					ip3.snapshot();
+	    				switch (command) {
+	    					case FLIPH: ip3.flipHorizontal(); break;
+	    					case FLIPV: ip3.flipVertical(); break;
+	    					case SCALE: case SCALE_WITH_FILL: ip3.scale(xScale, yScale); break;
+	    					case INVERT: ip3.invert(); break;
+	    					case APPLY_TABLE: ip3.applyTable(table); break;
+	    				}
+	    				IJ.showProgress((double)done.incrementAndGet()/nSlices);
+	    			}
+	    			return null;
+	    		}
+	    	};
 	    }
+	    ThreadUtil.startAndJoin(tasks);
 		IJ.showProgress(1.0);
 	}
 
+	/* Returns a shallow copy of 'ip', with the same settings but without
+		the snapshot, so that another thread can use it with other pixels. */
+	private static ImageProcessor copyOf(ImageProcessor ip) {
+		ImageProcessor ip2 = (ImageProcessor)ip.clone();
+		ip2.setSnapshotPixels(null);
+		return ip2;
+	}
+
+	/* Creates 'stack2' by applying 'command' (RESIZE, CROP, ROTATE_RIGHT or
+		ROTATE_LEFT) to the slices in parallel. The slices of the original stack
+		are read and deleted in batches, to limit the memory needed, also with
+		virtual stacks. Returns false if there was not enough memory. */
+	private boolean transform(final int command, ImageStack stack2, String status) {
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), nSlices));
+		int batchSize = 2*nThreads;
+		final ImageProcessor[] ips = new ImageProcessor[nThreads];
+		for (int t=0; t<nThreads && ip!=null; t++)
+			ips[t] = t==0 ? ip : copyOf(ip);
+		final AtomicBoolean outOfMemory = new AtomicBoolean();
+		for (int i1=1; i1<=nSlices; i1+=batchSize) {
+			final int n = Math.min(batchSize, nSlices-i1+1);
+			showStatus(status, i1, nSlices);
+			final Object[] slices = new Object[n];
+			String[] labels = new String[n];
+			for (int i=0; i<n; i++) {
+				slices[i] = command==CROP ? stack.getProcessor(1) : stack.getPixels(1);
+				labels[i] = stack.getSliceLabel(1);
+				stack.deleteSlice(1);
+			}
+			final ImageProcessor[] results = new ImageProcessor[n];
+			final AtomicInteger next = new AtomicInteger();
+			Callable[] tasks = new Callable[Math.min(nThreads, n)];
+			for (int t=0; t<tasks.length; t++) {
+				final ImageProcessor ip3 = ips[t];
+				tasks[t] = new Callable<Void>() {
+					public Void call() {
+						try {
+							for (int i=next.getAndIncrement(); i<n && !outOfMemory.get(); i=next.getAndIncrement()) {
+								if (command==CROP) {
+									ImageProcessor ip1 = (ImageProcessor)slices[i];
+									ip1.setRoi(cropRect);
+									results[i] = ip1.crop();
+									continue;
+								}
+								ip3.setPixels(slices[i]);
+								switch (command) {
+									case RESIZE: results[i] = ip3.resize(newWidth, newHeight, averageWhenDownsizing); break;
+									case ROTATE_RIGHT: results[i] = ip3.rotateRight(); break;
+									case ROTATE_LEFT: results[i] = ip3.rotateLeft(); break;
+								}
+							}
+						} catch(OutOfMemoryError e) {
+							outOfMemory.set(true);
+						}
+						return null;
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(tasks);
+			for (int i=0; i<n; i++) {
+				slices[i] = null;
+				if (results[i]!=null)
+					stack2.addSlice(labels[i], results[i]);
+			}
+			if (outOfMemory.get())
+				return false;
+			if (command!=ROTATE_RIGHT && command!=ROTATE_LEFT || !Interpreter.isBatchMode())
+				IJ.showProgress((double)(i1+n-1)/nSlices);
+		}
+		return true;
+	}
+
 	public void invert() {
 		process(INVERT);
 	}
@@ -109,21 +202,14 @@ public class StackProcessor {
 
 	public ImageStack resize(int newWidth, int newHeight, boolean averageWhenDownsizing) {
 	    ImageStack stack2 = new ImageStack(newWidth, newHeight);
- 		ImageProcessor ip2;
- 		Rectangle roi = ip!=null?ip.getRoi():null;
     	if (ip==null)
     		ip = stack.getProcessor(1).duplicate();
+    	this.newWidth = newWidth;
+    	this.newHeight = newHeight;
+    	this.averageWhenDownsizing = averageWhenDownsizing;
 		try {
-	    	for (int i=1; i<=nSlices; i++) {
-    			showStatus("Resize: ",i,nSlices);
-	    		ip.setPixels(stack.getPixels(1));
-	    		String label = stack.getSliceLabel(1);
-	    		stack.deleteSlice(1);
-				ip2 = ip.resize(newWidth, newHeight, averageWhenDownsizing);
-				if (ip2!=null)
-					stack2.addSlice(label, ip2);
-				IJ.showProgress((double)i/nSlices);
-	    	}
+			if (!transform(RESIZE, stack2, "Resize: "))
+				throw new OutOfMemoryError();
 			IJ.showProgress(1.0);
 		} catch(OutOfMemoryError o) {
 			while(stack.size()>1)
@@ -137,39 +223,19 @@ public class StackProcessor {
 	/** Crops the stack to the specified rectangle. */
 	public ImageStack crop(int x, int y, int width, int height) {
 	    ImageStack stack2 = new ImageStack(width, height);
- 		ImageProcessor ip2;
-		for (int i=1; i<=nSlices; i++) {
-			ImageProcessor ip1 = stack.getProcessor(1);
-			ip1.setRoi(x, y, width, height);
-			String label = stack.getSliceLabel(1);
-			stack.deleteSlice(1);
-			ip2 = ip1.crop();
-			stack2.addSlice(label, ip2);
-			IJ.showProgress((double)i/nSlices);
-		}
+	    cropRect = new Rectangle(x, y, width, height);
+	    if (!transform(CROP, stack2, "Crop: "))
+	    	throw new OutOfMemoryError();
 		IJ.showProgress(1.0);
 		return stack2;
 	}
 
 	ImageStack rotate90Degrees(boolean clockwise) {
  	    ImageStack stack2 = new ImageStack(stack.getHeight(), stack.getWidth());
- 		ImageProcessor ip2;
     	if (ip==null)
     		ip = stack.getProcessor(1).duplicate();
-    	for (int i=1; i<=nSlices; i++) {
-    		showStatus("Rotate: ",i,nSlices);
-    		ip.setPixels(stack.getPixels(1));
-    		String label = stack.getSliceLabel(1);
-    		stack.deleteSlice(1);
-			if (clockwise)
-				ip2 = ip.rotateRight();
-			else
-				ip2 = ip.rotateLeft();
-			if (ip2!=null)
-				stack2.addSlice(label, ip2);
-			if (!Interpreter.isBatchMode())
-				IJ.showProgress((double)i/nSlices);
-    	}
+    	if (!transform(clockwise?ROTATE_RIGHT:ROTATE_LEFT, stack2, "Rotate: "))
+    		throw new OutOfMemoryError();
 		if (!Interpreter.isBatchMode())
 			IJ.showProgress(1.0);
 		return stack2;
@@ -191,17 +257,36 @@ public class StackProcessor {
  		copyBits(null, src, xloc, yloc, mode);
  	}
 
- 	private void copyBits(ImageProcessor srcIp, ImageStack srcStack, int xloc, int yloc, int mode) {
-	    int inc = nSlices/20;
-	    if (inc<1) inc = 1;
-	    boolean stackSource = srcIp==null;
-	    for (int i=1; i<=nSlices; i++) {
-	    	if (stackSource)
-	    		srcIp = srcStack.getProcessor(i);
- 	    	ImageProcessor dstIp = stack.getProcessor(i);
-	    	dstIp.copyBits(srcIp, xloc, yloc, mode);
-			if ((i%inc) == 0) IJ.showProgress((double)i/nSlices);
+ 	private void copyBits(ImageProcessor srcIp, final ImageStack srcStack, final int xloc, final int yloc, final int mode) {
+	    final boolean stackSource = srcIp==null;
+	    final ImageProcessor srcIp2 = srcIp;
+	    final AtomicInteger next = new AtomicInteger(1);
+	    final AtomicInteger done = new AtomicInteger();
+	    final int inc = Math.max(1, nSlices/20);
+	    int nThreads = Math.max(1, Math.min(Prefs.getThreads(), nSlices));
+	    if ((long)stack.getWidth()*stack.getHeight()>=RowBands.MIN_PARALLEL_PIXELS)
+	    	nThreads = 1;  // large slices are blitted in parallel bands of rows
+	    Callable[] tasks = new Callable[nThreads];
+	    for (int t=0; t<nThreads; t++) {
+	    	tasks[t] = new Callable<Void>() {
+	    		public Void call() {
+	    			for (int i=next.getAndIncrement(); i<=nSlices; i=next.getAndIncrement()) {
+	    				ImageProcessor src = srcIp2;
+	    				if (stackSource) {
+	    					synchronized(srcStack) {
+	    						src = srcStack.getProcessor(i);
+	    					}
+	    				}
+	    				ImageProcessor dstIp = stack.getProcessor(i);
+	    				dstIp.copyBits(src, xloc, yloc, mode);
+	    				int n = done.incrementAndGet();
+	    				if ((n%inc) == 0) IJ.showProgress((double)n/nSlices);
+	    			}
+	    			return null;
+	    		}
+	    	};
 	    }
+	    ThreadUtil.startAndJoin(tasks);
 		IJ.showProgress(1.0);
  	}
  	
@@ -296,9 +381,6 @@ public class StackProcessor {
      */
     public void filter3D(ImageStack out, int nChs, int nZSlices, float radx, float rady, float radz, int cmin, int cmax, int zmin, int zmax, int tmin, int tmax, int filter) {
         int[] ker = this.createKernelEllipsoid(radx, rady, radz);
-        int nb = 0;
-        for (int i=0; i<ker.length; i++)
-            nb += ker[i];
         if(nZSlices>stack.getSize())nZSlices=stack.getSize();
         if (zmin<0) zmin = 0;
         if (zmax>nZSlices) zmax = nZSlices;
@@ -306,87 +388,11 @@ public class StackProcessor {
         if (cmax>nChs) cmax=nChs;
         if (tmin<0) tmin=0;
         if(tmax>(stack.getSize()/nChs/nZSlices))tmax=stack.getSize()/nChs/nZSlices;
-        int sizex = stack.getWidth();
-        int sizey = stack.getHeight();
-        double value;
-        
+        Filter3D filter3D = new Filter3D(stack, out, ker, radx, rady, radz, filter);
         for (int t=tmin; t<tmax; t++) {
-        	for (int c=cmin; c<cmax; c++) {
-		        for (int z=zmin; z<zmax; z++) {
-		            if (zmin==0) IJ.showProgress(z+1, zmax);
-		        	int stackIndex = c+(nChs*z)+(nChs*nZSlices*t);
-		            for (int y=0; y<sizey; y++) {
-		                for (int x=0; x<sizex; x++) {
-		                    ArrayUtil tab = getNeighborhood(c, t, nChs, nZSlices, ker, nb, x, y, z, radx, rady, radz);
-		                    switch (filter) {
-								case FILTER_MEAN:
-									out.setVoxel(x, y, stackIndex, tab.getMean()); break;
-								case FILTER_MEDIAN:
-									out.setVoxel(x, y, stackIndex, tab.medianSort()); break;
-								case FILTER_MIN:
-									out.setVoxel(x, y, stackIndex, tab.getMinimum()); break;
-								case FILTER_MAX:
-									out.setVoxel(x, y, stackIndex, tab.getMaximum()); break;
-								case FILTER_VAR:
-									out.setVoxel(x, y, stackIndex, tab.getVariance()); break;
-								case FILTER_MAXLOCAL:
-									value = stack.getVoxel(x, y, stackIndex);
-									if (tab.isMaximum(value))
-										out.setVoxel(x, y, stackIndex, value);
-									else
-										out.setVoxel(x, y, stackIndex, 0);
-									break;
-		                    } //switch
-		                }  //x
-		            } //y
-		        } //z
-        	}
-        }
-    }
-
-    /**
-     * Gets the neighboring attribute of the Image3D with a kernel as a array
-     * adapted for hyperstack.  For a hyperstack, include imp, ch and fr.
-     * ch and fr are 1-based
-     *
-     * @param ch channel of the hyperstack (0-based)
-     * @param fr frame of the hyperstack (0-based)
-     * @param nChs Number of channels in the hyperstack
-     * @param nZSlices number of slices of the hyperstack
-     * @param ker The kernel array (>0 ok)
-     * @param nbval The number of non-zero values
-     * @param x Coordinate x of the pixel
-     * @param y Coordinate y of the pixel
-     * @param z Coordinate z of the pixel (0-based z-slice)
-     * @param radx Radius x of the neighboring
-     * @param radz Radius y of the neighboring
-     * @param rady Radius z of the neighboring
-     * @return The values of the nieghbor pixels inside an array
-     */
-    private ArrayUtil getNeighborhood(int ch, int fr, int nChs, int nZSlices, int[] ker, int nbval, int x, int y, int z, float radx, float rady, float radz) {
-        ArrayUtil pix = new ArrayUtil(nbval);
-        int vx = (int) Math.ceil(radx);
-        int vy = (int) Math.ceil(rady);
-        int vz = (int) Math.ceil(radz);
-        int index = 0;
-        int c = 0;
-        int sizex = stack.getWidth();
-        int sizey = stack.getHeight();
-        int sizez = nZSlices;
-        for (int k = z - vz; k <= z + vz; k++) {
-			int sliceIndex= ch + (nChs * k) + (nChs * nZSlices * fr);
-            for (int j = y - vy; j <= y + vy; j++) {
-                for (int i = x - vx; i <= x + vx; i++) {
-					if (ker[c]>0 && i>=0 && j>=0 && k>=0 && i<sizex && j<sizey && k<sizez) {
-						pix.putValue(index, (float)stack.getVoxel(i, j, sliceIndex));
-						index++;
-					}
-                    c++;
-                }
-            }
+        	for (int c=cmin; c<cmax; c++)
+        		filter3D.filter(nChs, nZSlices, c, t, zmin, zmax);
         }
-        pix.setSize(index);
-        return pix;
     }
     
  }
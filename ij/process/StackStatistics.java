@@ -3,7 +3,10 @@ import ij.*;
 import ij.gui.*;
 import ij.measure.*;
 import ij.plugin.filter.Analyzer;
+import ij.util.ThreadUtil;
 import java.awt.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
  
 /** Statistics, including the histogram, of a stack. */
 public class StackStatistics extends ImageStatistics {
@@ -77,32 +80,10 @@ public class StackStatistics extends ImageStatistics {
         boolean fixedRange = histMin!=0 || histMax!=0.0;
         
         // calculate min and max
-		double roiMin = Double.MAX_VALUE;
-		double roiMax = -Double.MAX_VALUE;
-		for (int slice=1; slice<=size; slice++) {
-			IJ.showStatus("Calculating stack histogram...");
-			IJ.showProgress(slice/2, size);
-			ip = stack.getProcessor(slice);
-			//ip.setCalibrationTable(cTable);
-			for (int y=ry, my=0; y<(ry+rh); y++, my++) {
-				int i = y * width + rx;
-				int mi = my * rw;
-				for (int x=rx; x<(rx+rw); x++) {
-					if (mask==null || mask[mi++]!=0) {
-						v = ip.getPixelValue(x,y);
-						if (v>=minThreshold && v<=maxThreshold) {
-							if (v<roiMin)
-								roiMin = v;
-							if (v>roiMax)
-								roiMax = v;
-						}
-					}
-					i++;
-				}
-			}
-		 }
-		min = roiMin;
-		max = roiMax;
+		IJ.showStatus("Calculating stack histogram...");
+		double[] minAndMax = getMinAndMax(stack, new Rectangle(rx, ry, rw, rh), mask, minThreshold, maxThreshold);
+		min = minAndMax[0];
+		max = minAndMax[1];
 		if (fixedRange) {
 			if (min<histMin) min = histMin;
 			if (max>histMax) max = histMax;
@@ -172,15 +153,7 @@ public class StackStatistics extends ImageStatistics {
 		ImageStack stack = imp.getStack();
 		Roi roi = imp.getRoi();
 		longHistogram = new long[256];
-		int n = stack.size();
-		for (int slice=1; slice<=n; slice++) {
-			IJ.showProgress(slice, n);
-			ip = stack.getProcessor(slice);
-			if (roi!=null) ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			for (int i=0; i<256; i++)
-				longHistogram[i] += hist[i];
-		}
+		sumHistograms(stack, roi, longHistogram, false);
 		pw=1.0; ph=1.0;
 		getRawStatistics(longHistogram, minThreshold, maxThreshold);
 		getRawMinAndMax(longHistogram, minThreshold, maxThreshold);
@@ -190,6 +163,99 @@ public class StackStatistics extends ImageStatistics {
 		IJ.showProgress(1.0);
 	}
 	
+	/* Adds the histograms of the slices, inside 'roi', to 'hist'. The slices are
+		processed in parallel, with a partial histogram for each thread; slices of
+		virtual stacks are read one at a time. */
+	private static void sumHistograms(final ImageStack stack, final Roi roi, long[] hist, final boolean showStatus) {
+		final int n = stack.size();
+		final int nBins = hist.length;
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), n));
+		final long[][] partials = new long[nThreads][];
+		final AtomicInteger next = new AtomicInteger(1);
+		final AtomicInteger count = new AtomicInteger();
+		Callable[] tasks = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final long[] partial = partials[t] = t==0 ? hist : new long[nBins];
+			final Roi roi2 = roi!=null && t>0 ? (Roi)roi.clone() : roi;
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					for (int slice=next.getAndIncrement(); slice<=n; slice=next.getAndIncrement()) {
+						ImageProcessor ip;
+						synchronized(stack) {
+							ip = stack.getProcessor(slice);
+						}
+						if (roi2!=null) ip.setRoi(roi2);
+						int[] h = ip.getHistogram();
+						for (int i=0; i<nBins; i++)
+							partial[i] += h[i];
+						int done = count.incrementAndGet();
+						IJ.showProgress(done, n);
+						if (showStatus)
+							IJ.showStatus(done+"/"+n);
+					}
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		for (int t=1; t<nThreads; t++) {
+			for (int i=0; i<nBins; i++)
+				hist[i] += partials[t][i];
+		}
+	}
+
+	/* Returns the minimum and maximum of the values inside 'r' and 'mask' that are
+		within the threshold limits, using a minimum and maximum for each thread. */
+	private static double[] getMinAndMax(final ImageStack stack, final Rectangle r, final byte[] mask, final double minThreshold, final double maxThreshold) {
+		final int size = stack.size();
+		int nThreads = Math.max(1, Math.min(Prefs.getThreads(), size));
+		final double[][] minAndMax = new double[nThreads][];
+		final AtomicInteger next = new AtomicInteger(1);
+		final AtomicInteger count = new AtomicInteger();
+		Callable[] tasks = new Callable[nThreads];
+		for (int t=0; t<nThreads; t++) {
+			final double[] result = minAndMax[t] = new double[] {Double.MAX_VALUE, -Double.MAX_VALUE};
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					double v;
+					double roiMin=result[0], roiMax=result[1];
+					for (int slice=next.getAndIncrement(); slice<=size; slice=next.getAndIncrement()) {
+						IJ.showProgress(count.incrementAndGet()/2, size);
+						ImageProcessor ip;
+						synchronized(stack) {
+							ip = stack.getProcessor(slice);
+						}
+						for (int y=r.y, my=0; y<(r.y+r.height); y++, my++) {
+							int mi = my * r.width;
+							for (int x=r.x; x<(r.x+r.width); x++) {
+								if (mask==null || mask[mi++]!=0) {
+									v = ip.getPixelValue(x,y);
+									if (v>=minThreshold && v<=maxThreshold) {
+										if (v<roiMin)
+											roiMin = v;
+										if (v>roiMax)
+											roiMax = v;
+									}
+								}
+							}
+						}
+					}
+					result[0] = roiMin;
+					result[1] = roiMax;
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+		for (int t=1; t<nThreads; t++) {
+			if (minAndMax[t][0]<minAndMax[0][0])
+				minAndMax[0][0] = minAndMax[t][0];
+			if (minAndMax[t][1]>minAndMax[0][1])
+				minAndMax[0][1] = minAndMax[t][1];
+		}
+		return minAndMax[0];
+	}
+
 	private void copyHistogram(int nbins) {
 		histogram = new int[nbins];
 		for (int i=0; i<nbins; i++) {
@@ -254,16 +320,7 @@ public class StackStatistics extends ImageStatistics {
 		ImageStack stack = imp.getStack();
 		Roi roi = imp.getRoi();
 		long[] hist16 = new long[65536];
-		int n = stack.size();
-		for (int slice=1; slice<=n; slice++) {
-			IJ.showProgress(slice, n);
-			IJ.showStatus(slice+"/"+n);
-			ip = stack.getProcessor(slice);
-			if (roi!=null) ip.setRoi(roi);
-			int[] hist = ip.getHistogram();
-			for (int i=0; i<65536; i++)
-				hist16[i] += hist[i];
-		}
+		sumHistograms(stack, roi, hist16, true);
 		pw=1.0; ph=1.0;
 		getRaw16BitMinAndMax(hist16, minThreshold, maxThreshold);
 		get16BitStatistics(hist16, (int)min, (int)max);
@@ -4,15 +4,19 @@ import java.awt.image.*;
 import ij.*;
 import ij.gui.*;
 import ij.measure.*;
+import ij.util.ThreadUtil;
+import java.util.concurrent.Callable;
 
 /** This class converts an ImageProcessor to another data type. */
 public class TypeConverter {
 
 	private static final int BYTE=0, SHORT=1, FLOAT=2, RGB=3;
+	private static final int MIN_PARALLEL_PIXELS = 1<<20;
 	private ImageProcessor ip;
 	private int type;
 	boolean doScaling = true;
 	int width, height;
+	int nThreads = Prefs.getThreads();  // for converting large images in bands of rows
 
 	public TypeConverter(ImageProcessor ip, boolean doScaling) {
 		this.ip = ip;
@@ -29,6 +33,13 @@ public class TypeConverter {
 		height = ip.getHeight();
 	}
 
+	/** Sets the number of threads used to convert large images in bands
+		of rows. The default is Prefs.getThreads(); callers that convert
+		several images in parallel should divide the threads between them. */
+	public void setThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
 	/** Converts processor to a ByteProcessor. */
 	public ImageProcessor convertToByte() {
 		switch (type) {
@@ -48,26 +59,35 @@ public class TypeConverter {
 	/** Converts a ShortProcessor to a ByteProcessor. */
 	ByteProcessor convertShortToByte() {
 		int size = width*height;
-		short[] pixels16 = (short[])ip.getPixels();
-		byte[] pixels8 = new byte[size];
+		final short[] pixels16 = (short[])ip.getPixels();
+		final byte[] pixels8 = new byte[size];
 		if (doScaling) {
-			int value, min=(int)ip.getMin(), max=(int)ip.getMax();
-			double scale = 256.0/(max-min+1);
-			for (int i=0; i<size; i++) {
-				value = (pixels16[i]&0xffff)-min;
-				if (value<0) value = 0;
-				value = (int)(value*scale+0.5);
-				if (value>255) value = 255;
-				pixels8[i] = (byte)value;
-			}
+			final int min=(int)ip.getMin(), max=(int)ip.getMax();
+			final double scale = 256.0/(max-min+1);
+			convert(new PixelConverter() {
+				void convert(int from, int to) {
+					int value;
+					for (int i=from; i<to; i++) {
+						value = (pixels16[i]&0xffff)-min;
+						if (value<0) value = 0;
+						value = (int)(value*scale+0.5);
+						if (value>255) value = 255;
+						pixels8[i] = (byte)value;
+					}
+				}
+			});
 			return new ByteProcessor(width, height, pixels8, ip.getCurrentColorModel());
 		} else {
-			int value;
-			for (int i=0; i<size; i++) {
-				value = pixels16[i]&0xffff;
-				if (value>255) value = 255;
-				pixels8[i] = (byte)value;
-			}
+			convert(new PixelConverter() {
+				void convert(int from, int to) {
+					int value;
+					for (int i=from; i<to; i++) {
+						value = pixels16[i]&0xffff;
+						if (value>255) value = 255;
+						pixels8[i] = (byte)value;
+					}
+				}
+			});
 			return new ByteProcessor(width, height, pixels8, ip.getColorModel());
 		}
 	}
@@ -99,20 +119,24 @@ public class TypeConverter {
 			bp.setColorModel(ip.getColorModel());
 			return bp;
 		}
-		int[] pixels32 = (int[])ip.getPixels();
+		final int[] pixels32 = (int[])ip.getPixels();
 		double[] w = ColorProcessor.getWeightingFactors();
 		if (((ColorProcessor)ip).getRGBWeights()!=null)
 			w = ((ColorProcessor)ip).getRGBWeights();
-		double rw=w[0], gw=w[1], bw=w[2];
-		byte[] pixels8 = new byte[width*height];
-		int c, r, g, b;
-		for (int i=0; i < width*height; i++) {
-			c = pixels32[i];
-			r = (c&0xff0000)>>16;
-			g = (c&0xff00)>>8;
-			b = c&0xff;
-			pixels8[i] = (byte)(r*rw + g*gw + b*bw + 0.5);
-		}
+		final double rw=w[0], gw=w[1], bw=w[2];
+		final byte[] pixels8 = new byte[width*height];
+		convert(new PixelConverter() {
+			void convert(int from, int to) {
+				int c, r, g, b;
+				for (int i=from; i<to; i++) {
+					c = pixels32[i];
+					r = (c&0xff0000)>>16;
+					g = (c&0xff00)>>8;
+					b = c&0xff;
+					pixels8[i] = (byte)(r*rw + g*gw + b*bw + 0.5);
+				}
+			}
+		});
 		return new ByteProcessor(width, height, pixels8, null);
 	}
 	
@@ -121,20 +145,24 @@ public class TypeConverter {
 		g=r/3+g/3+b/3. Call ColorProcessor.setRGBWeights() 
 		to do weighted conversions. */
 	FloatProcessor convertRGBToFloat() {
-		int[] pixels = (int[])ip.getPixels();
+		final int[] pixels = (int[])ip.getPixels();
 		double[] w = ColorProcessor.getWeightingFactors();
 		if (((ColorProcessor)ip).getRGBWeights()!=null)
 			w = ((ColorProcessor)ip).getRGBWeights();
-		double rw=w[0], gw=w[1], bw=w[2];
-		float[] pixels32 = new float[width*height];
-		int c, r, g, b;
-		for (int i=0; i < width*height; i++) {
-			c = pixels[i];
-			r = (c&0xff0000)>>16;
-			g = (c&0xff00)>>8;
-			b = c&0xff;
-			pixels32[i] = (float)(r*rw + g*gw + b*bw);
-		}
+		final double rw=w[0], gw=w[1], bw=w[2];
+		final float[] pixels32 = new float[width*height];
+		convert(new PixelConverter() {
+			void convert(int from, int to) {
+				int c, r, g, b;
+				for (int i=from; i<to; i++) {
+					c = pixels[i];
+					r = (c&0xff0000)>>16;
+					g = (c&0xff00)>>8;
+					b = c&0xff;
+					pixels32[i] = (float)(r*rw + g*gw + b*bw);
+				}
+			}
+		});
 		return new FloatProcessor(width, height, pixels32);
 	}
 
@@ -157,34 +185,42 @@ public class TypeConverter {
 
 	/** Converts a ByteProcessor to a ShortProcessor. */
 	ShortProcessor convertByteToShort() {
-		byte[] pixels8 = (byte[])ip.getPixels();
-		short[] pixels16 = new short[width * height];
-		for (int i=0,j=0; i<width*height; i++)
-			pixels16[i] = (short)(pixels8[i]&0xff);
+		final byte[] pixels8 = (byte[])ip.getPixels();
+		final short[] pixels16 = new short[width * height];
+		convert(new PixelConverter() {
+			void convert(int from, int to) {
+				for (int i=from; i<to; i++)
+					pixels16[i] = (short)(pixels8[i]&0xff);
+			}
+		});
 	    return new ShortProcessor(width, height, pixels16, ip.getColorModel());
 	}
 
 	/** Converts a FloatProcessor to a ShortProcessor. */
 	ShortProcessor convertFloatToShort() {
-		float[] pixels32 = (float[])ip.getPixels();
-		short[] pixels16 = new short[width*height];
-		double min = ip.getMin();
+		final float[] pixels32 = (float[])ip.getPixels();
+		final short[] pixels16 = new short[width*height];
+		final double min = ip.getMin();
 		double max = ip.getMax();
-		double scale;
+		final double scale;
 		if ((max-min)==0.0)
 			scale = 1.0;
 		else
 			scale = 65535.0/(max-min);
-		double value;
-		for (int i=0,j=0; i<width*height; i++) {
-			if (doScaling)
-				value = (pixels32[i]-min)*scale;
-			else
-				value = pixels32[i];
-			if (value<0.0) value = 0.0;
-			if (value>65535.0) value = 65535.0;
-			pixels16[i] = (short)(value+0.5);
-		}
+		convert(new PixelConverter() {
+			void convert(int from, int to) {
+				double value;
+				for (int i=from; i<to; i++) {
+					if (doScaling)
+						value = (pixels32[i]-min)*scale;
+					else
+						value = pixels32[i];
+					if (value<0.0) value = 0.0;
+					if (value>65535.0) value = 65535.0;
+					pixels16[i] = (short)(value+0.5);
+				}
+			}
+		});
 	    return new ShortProcessor(width, height, pixels16, ip.getColorModel());
 	}
 
@@ -209,17 +245,20 @@ public class TypeConverter {
 	 * @see ImageProcessor.setCalibrationTable
 	 */
 	FloatProcessor convertByteToFloat(float[] cTable) {
-		int n = width*height;
-		byte[] pixels8 = (byte[])ip.getPixels();
-		float[] pixels32 = new float[n];
-		int value;
-		if (cTable!=null && cTable.length==256) {
-			for (int i=0; i<n; i++)
-				pixels32[i] = cTable[pixels8[i]&255];
-		} else {
-			for (int i=0; i<n; i++)
-				pixels32[i] = pixels8[i]&255;
-		}
+		final byte[] pixels8 = (byte[])ip.getPixels();
+		final float[] pixels32 = new float[width*height];
+		final float[] table = cTable!=null && cTable.length==256 ? cTable : null;
+		convert(new PixelConverter() {
+			void convert(int from, int to) {
+				if (table!=null) {
+					for (int i=from; i<to; i++)
+						pixels32[i] = table[pixels8[i]&255];
+				} else {
+					for (int i=from; i<to; i++)
+						pixels32[i] = pixels8[i]&255;
+				}
+			}
+		});
 	    ColorModel cm = ip.getColorModel();
 	    return new FloatProcessor(width, height, pixels32, cm);
 	}
@@ -229,16 +268,20 @@ public class TypeConverter {
 		@see ImageProcessor.setCalibrationTable
 	 */
 	FloatProcessor convertShortToFloat(float[] cTable) {
-		short[] pixels16 = (short[])ip.getPixels();
-		float[] pixels32 = new float[width*height];
-		int value;
-		if (cTable!=null && cTable.length==65536)
-			for (int i=0; i<width*height; i++)
-				pixels32[i] = cTable[pixels16[i]&0xffff];
-		else {
-			for (int i=0; i<width*height; i++)
-				pixels32[i] = pixels16[i]&0xffff;
-		}
+		final short[] pixels16 = (short[])ip.getPixels();
+		final float[] pixels32 = new float[width*height];
+		final float[] table = cTable!=null && cTable.length==65536 ? cTable : null;
+		convert(new PixelConverter() {
+			void convert(int from, int to) {
+				if (table!=null)
+					for (int i=from; i<to; i++)
+						pixels32[i] = table[pixels16[i]&0xffff];
+				else {
+					for (int i=from; i<to; i++)
+						pixels32[i] = pixels16[i]&0xffff;
+				}
+			}
+		});
 	    ColorModel cm = ip.getColorModel();
 	    FloatProcessor fp = new FloatProcessor(width, height, pixels32, cm);
 	    return fp;
@@ -249,9 +292,38 @@ public class TypeConverter {
 		if (type==RGB)
 			return ip;
 		else {
-			ImageProcessor ip2 = ip.convertToByte(doScaling);
+			ImageProcessor ip2 = convertToByte();
 			return new ColorProcessor(ip2.createImage());
 		}
 	}
 
+	/* Converts the pixels with indexes 'from' to 'to'-1. */
+	private static abstract class PixelConverter {
+		abstract void convert(int from, int to);
+	}
+
+	/* Runs 'converter' on all pixels, in bands of rows on
+		several threads if the image is large. */
+	private void convert(final PixelConverter converter) {
+		int size = width*height;
+		int nBands = Math.min(nThreads, height);
+		if (nBands<=1 || size<MIN_PARALLEL_PIXELS) {
+			converter.convert(0, size);
+			return;
+		}
+		int rowsPerBand = (height+nBands-1)/nBands;
+		Callable[] tasks = new Callable[nBands];
+		for (int t=0; t<nBands; t++) {
+			final int from = Math.min(height, t*rowsPerBand)*width;
+			final int to = Math.min(height, (t+1)*rowsPerBand)*width;
+			tasks[t] = new Callable<Void>() {
+				public Void call() {
+					converter.convert(from, to);
+					return null;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(tasks);
+	}
+
 }
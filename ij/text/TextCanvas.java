@@ -60,6 +60,7 @@ class TextCanvas extends Canvas {
 		}
 		tp.iFirstRow=j;
 		y=tp.iRowHeight+1;
+		boolean widened = false;
 		for (;y<iHeight && j<tp.iRowCount; j++,y+=tp.iRowHeight) {
 			int x=-tp.iX;
 			for (int i=0;i<tp.iColCount;i++) {
@@ -77,13 +78,26 @@ class TextCanvas extends Canvas {
 				}
 				gImage.setColor(t);
 				char[] chars = tp.getChars(i,j);
-				if (chars!=null)
+				if (chars!=null) {
 					gImage.drawChars(chars,0,chars.length,x+2,y+tp.iRowHeight-5);
+					if (tp.iColCount>1 && !tp.columnsManuallyAdjusted) {
+						// column widths are estimated from a sample of rows; widen if needed
+						int w2 = fMetrics.charsWidth(chars,0,chars.length)+15;
+						if (w2>tp.iColWidth[i]) {
+							tp.iColWidth[i] = w2;
+							widened = true;
+						}
+					}
+				}
 				x+=w;
 			}
 		}
 		if (iImage!=null)
 			g.drawImage(iImage,0,0,null);
+		if (widened) {
+			tp.adjustHScroll();
+			repaint();
+		}
 	}
   
  	void makeImage(int iWidth, int iHeight) {
@@ -143,6 +157,14 @@ class TextCanvas extends Canvas {
 			if (chars!=null)
 				w = Math.max(w,fMetrics.charsWidth(chars,0,chars.length));
 		}
+		if (tp.iRowCount>2*maxRows) { // sample the rest of the table
+			int step = tp.iRowCount/maxRows;
+			for (int row=maxRows+step/2; row<tp.iRowCount; row+=step) {
+				char[] chars = tp.getChars(column,row);
+				if (chars!=null)
+					w = Math.max(w,fMetrics.charsWidth(chars,0,chars.length));
+			}
+		}
 		//System.out.println("calcAutoWidth: "+column+"  "+tp.iRowCount);
 		char[] chars = tp.iRowCount>0?tp.getChars(column, tp.iRowCount-1):null;
 		if (chars!=null)
@@ -26,12 +26,17 @@ public class TextPanel extends Panel implements AdjustmentListener,
 	ActionListener, MouseWheelListener, Runnable {
 
 	static final int DOUBLE_CLICK_THRESHOLD = 650;
+	static final int LINE_CACHE_SIZE = 512; // power of 2
 	// height / width
 	int iGridWidth,iGridHeight;
 	int iX,iY;
 	// data
 	String[] sColHead;
 	Vector vData;
+	ResultsTable tableRows;  // source of the first nTableRows lines, or null
+	int nTableRows;
+	char[][] lineCache;
+	int[] lineCacheRows;
 	int[] iColWidth;
 	int iColCount,iRowCount;
 	int iRowHeight,iFirstRow;
@@ -232,6 +237,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 	}
 
 	public void updateDisplay() {
+		lineCache = null;
 		iY=iRowHeight*(iRowCount+1);
 		adjustVScroll();
 		if (iColCount>1 && iRowCount<=10 && !columnsManuallyAdjusted)
@@ -239,6 +245,52 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		tc.repaint();
 	}
 
+	/** Displays the first 'count' rows of 'rt', replacing the lines of
+		this TextPanel. The rows are not converted to text lines; only the
+		rows that are displayed, copied or saved are formatted, using
+		ResultsTable.getRowAsString(). Lines added later are appended
+		after these rows. 'rt' must not be modified afterwards;
+		ResultsTable.show() passes a copy. */
+	public synchronized void setTableRows(ResultsTable rt, int count) {
+		if (vData==null)
+			setColumnHeadings("");
+		vData.removeAllElements();
+		tableRows = count>0?rt:null;
+		nTableRows = tableRows!=null?count:0;
+		lineCache = null;
+		iRowCount = nTableRows;
+	}
+
+	/* Returns the specified line, formatting it if it is a table row. */
+	synchronized char[] getLineChars(int row) {
+		if (row>=nTableRows)
+			return (char[])vData.elementAt(row-nTableRows);
+		if (lineCache==null) {
+			lineCache = new char[LINE_CACHE_SIZE][];
+			lineCacheRows = new int[LINE_CACHE_SIZE];
+		}
+		int index = row&(LINE_CACHE_SIZE-1);
+		if (lineCache[index]!=null && lineCacheRows[index]==row)
+			return lineCache[index];
+		char[] chars = row<tableRows.size()?tableRows.getRowAsString(row).toCharArray():new char[0];
+		lineCache[index] = chars;
+		lineCacheRows[index] = row;
+		return chars;
+	}
+
+	/* Converts the table rows into stored lines, so they can be edited or deleted. */
+	synchronized void storeTableRows() {
+		if (nTableRows==0)
+			return;
+		Vector<char[]> v = new Vector<char[]>(iRowCount);
+		for (int i=0; i<iRowCount; i++)
+			v.addElement(getLineChars(i));
+		vData = v;
+		tableRows = null;
+		nTableRows = 0;
+		lineCache = null;
+	}
+
 	String getCell(int column, int row) {
 		if (column<0||column>=iColCount||row<0||row>=iRowCount)
 			return null;
@@ -248,9 +300,9 @@ public class TextPanel extends Panel implements AdjustmentListener,
 	synchronized char[] getChars(int column, int row) {
 		if (vData==null)
 			return null;
-		if (row>=vData.size())
+		if (row<0 || row>=iRowCount)
 			return null;
-		char[] chars = row>=0&&row<vData.size()?(char[])(vData.elementAt(row)):null;
+		char[] chars = getLineChars(row);
 		if (chars==null || chars.length==0)
 			return null;
 		
@@ -348,7 +400,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		boolean doubleClick = System.currentTimeMillis()-mouseDownTime<=DOUBLE_CLICK_THRESHOLD;
 		mouseDownTime = System.currentTimeMillis();
 		if (doubleClick) {
-			char[] chars = (char[])(vData.elementAt(selStart));
+			char[] chars = getLineChars(selStart);
 			String s = new String(chars);
 			if (overlayList) {
 				String owner = title.substring(20, title.length());
@@ -616,7 +668,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			return;
 		boolean found = false;
 		for (int i=first; i<iRowCount; i++) {
-			String line = new String((char[])(vData.elementAt(i)));
+			String line = new String(getLineChars(i));
 			if (line.contains(s)) {
 				setSelection(i, i);
 				found = true;
@@ -714,7 +766,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
      	int r=(y/iRowHeight)-1+iFirstRow;
      	int lineWidth = iGridWidth;
 		if (iColCount==1 && tc.fMetrics!=null && r>=0 && r<iRowCount) {
-			char[] chars = (char[])vData.elementAt(r);
+			char[] chars = getLineChars(r);
 			lineWidth = Math.max(tc.fMetrics.charsWidth(chars,0,chars.length), iGridWidth);
 		}
       	if (r>=0 && r<iRowCount && x<lineWidth) {
@@ -785,7 +837,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			sb.append('\n');
 		}
 		for (int i=selStart; i<=selEnd; i++) {
-			char[] chars = (char[])(vData.elementAt(i));
+			char[] chars = getLineChars(i);
 			String s = new String(chars);
 			if (s.endsWith("\t"))
 				s = s.substring(0, s.length()-1);
@@ -860,6 +912,8 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		int first=selStart, last=selEnd, rows=iRowCount;
 		if (selStart==0 && selEnd==(iRowCount-1)) {
 			vData.removeAllElements();
+			tableRows = null;
+			nTableRows = 0;
 			iRowCount = 0;
 			if (rt!=null) {
 				if (IJ.isResultsWindow() && IJ.getTextPanel()==this) {
@@ -872,9 +926,16 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			int rowCount = iRowCount;
 			boolean atEnd = rowCount-selEnd<8;
 			int count = selEnd-selStart+1;
-			for (int i=0; i<count; i++) {
-				vData.removeElementAt(selStart);
-				iRowCount--;
+			if (rt!=null && rowCount==rt.size() && selEnd<nTableRows) {
+				nTableRows -= count; // the rows are deleted from rt and redisplayed below
+				iRowCount -= count;
+				lineCache = null;
+			} else {
+				storeTableRows();
+				for (int i=0; i<count; i++) {
+					vData.removeElementAt(selStart);
+					iRowCount--;
+				}
 			}
 			if (rt!=null && rowCount==rt.size()) {
 				for (int i=0; i<count; i++)
@@ -898,6 +959,8 @@ public class TextPanel extends Panel implements AdjustmentListener,
 	public synchronized void clear() {
 		if (vData==null) return;
 		vData.removeAllElements();
+		tableRows = null;
+		nTableRows = 0;
 		iRowCount = 0;
 		selStart=-1; selEnd=-1; selOrigin=-1; selLine=-1;
 		adjustVScroll();
@@ -992,7 +1055,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 			pw.println(labels2);
 		}
 		for (int i=0; i<iRowCount; i++) {
-			char[] chars = (char[])(vData.elementAt(i));
+			char[] chars = getLineChars(i);
 			String s = new String(chars);
 			if (s.endsWith("\t"))
 				s = s.substring(0, s.length()-1);
@@ -1085,7 +1148,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		}
 		for (int i=0; i<iRowCount; i++) {
 			if (vData==null) break;
-			char[] chars = (char[])(vData.elementAt(i));
+			char[] chars = getLineChars(i);
 			sb.append(chars);
 			sb.append('\n');
 		}
@@ -1107,7 +1170,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 	public String getLine(int index) {
 		if (index<0 || index>=iRowCount)
 			throw new IllegalArgumentException("index out of range: "+index);
-		return new String((char[])(vData.elementAt(index)));
+		return new String(getLineChars(index));
 	}
 
 	/** Replaces the contents of the specified line, where 'index'
@@ -1117,6 +1180,7 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		if (index<0 || index>=iRowCount)
 			throw new IllegalArgumentException("index out of range: "+index);
 		if (vData!=null) {
+			storeTableRows();
 			vData.setElementAt(s.toCharArray(), index);
 			tc.repaint();
 		}
@@ -1202,6 +1266,9 @@ public class TextPanel extends Panel implements AdjustmentListener,
 		if (vData!=null)
 			vData.removeAllElements();
 		vData = null;
+		tableRows = null;
+		nTableRows = 0;
+		lineCache = null;
 	}
 	
 	private void sort() {
@@ -318,6 +318,67 @@ import java.security.MessageDigest;
 		return indexes2;
 	}
 
+	/** Returns the median of a[from] to a[to-1], reordering them. As with
+		sorting, NaNs count as the highest values. The range is given as in
+		java.util.Arrays.sort(float[], int, int). */
+	public static float median(float[] a, int from, int to) {
+		int n = to - from;
+		int end = to;
+		for (int i=from; i<end; i++) {  // move NaNs to the end
+			if (Float.isNaN(a[i])) {
+				end--;
+				float v = a[i]; a[i] = a[end]; a[end] = v;
+				i--;
+			}
+		}
+		int middle = from + n/2;
+		if (middle>=end)
+			return Float.NaN;
+		float v = select(a, from, end, middle);
+		if ((n&1)==0) {  //even: also need the highest value below 'middle'
+			float v2 = a[from];
+			for (int i=from+1; i<middle; i++)
+				if (a[i]>v2) v2 = a[i];
+			return (v2 + v)/2f;
+		} else
+			return v;
+	}
+
+	/** Returns the value that would be at a[k] if a[from] to a[to-1]
+		were sorted, moving smaller values to the left of k and larger
+		values to the right (quickselect). The values must not be NaN. */
+	public static float select(float[] a, int from, int to, int k) {
+		int left = from, right = to-1;
+		while (right>left) {
+			int mid = (left+right)>>>1;  // median of three as pivot
+			if (a[mid]<a[left]) swap(a, mid, left);
+			if (a[right]<a[left]) swap(a, right, left);
+			if (a[right]<a[mid]) swap(a, right, mid);
+			float pivot = a[mid];
+			int i = left, j = right;
+			while (i<=j) {
+				while (a[i]<pivot) i++;
+				while (a[j]>pivot) j--;
+				if (i<=j) {
+					swap(a, i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k<=j)
+				right = j;
+			else if (k>=i)
+				left = i;
+			else
+				break;
+		}
+		return a[k];
+	}
+
+	private static void swap(float[] a, int i, int j) {
+		float v = a[i]; a[i] = a[j]; a[j] = v;
+	}
+
 	/** Returns an array linearly resampled to a different length. */
 	public static double[] resampleArray(double[] y1, int len2) {
 		int len1 = y1.length;
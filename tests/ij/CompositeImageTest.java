@@ -14,6 +14,7 @@ import ij.process.ColorProcessor;
 import ij.process.DataConstants;
 import ij.process.ImageProcessor;
 import ij.process.LUT;
+import ij.process.ShortProcessor;
 
 import java.awt.Color;
 import java.awt.image.IndexColorModel;
@@ -1079,4 +1080,36 @@ public class CompositeImageTest {
 		assertFalse(ci.hasCustomLuts());
 	}
 
+	// helper method: the RGB image of a 16-bit composite, with the display range of channel 2 set
+	private int[] compositePixels(CompositeImage img, double max2, boolean channelOnly) {
+		img.setC(2);
+		img.getProcessor().setMinAndMax(0, max2);
+		img.singleChannel = channelOnly;
+		img.updateImage();
+		return (int[])new ColorProcessor(img.getImage()).getPixels();
+	}
+
+	@Test
+	public void testUpdateImageCachedChannels() {
+		st = new ImageStack(40,30);
+		for (int c = 0; c < 3; c++) {
+			ImageProcessor ip2 = new ShortProcessor(40,30);
+			for (int i = 0; i < 40*30; i++)
+				ip2.set(i, (i*(c+3))%1000);
+			st.addSlice(ip2);
+		}
+		for (String projection : new String[] {null, "Max", "Min"}) {
+			ci = new CompositeImage(new ImagePlus("cached",st.duplicate()), CompositeImage.COMPOSITE);
+			ci.setProp("CompositeProjection", projection);
+			compositePixels(ci, 900, false);
+			int[] pixels = compositePixels(ci, 500, true);  // only the display range of channel 2 changed
+			CompositeImage ci2 = new CompositeImage(new ImagePlus("new",st.duplicate()), CompositeImage.COMPOSITE);
+			ci2.setProp("CompositeProjection", projection);
+			assertArrayEquals(compositePixels(ci2, 500, false), pixels);
+			ci.getStack().getProcessor(3).invert();  // modified in place
+			ci2.getStack().getProcessor(3).invert();
+			assertArrayEquals(compositePixels(ci2, 500, false), compositePixels(ci, 500, false));
+		}
+	}
+
 }
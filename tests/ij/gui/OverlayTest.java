@@ -2,7 +2,11 @@ package ij.gui;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import ij.IJInfo;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
 
 import java.awt.Rectangle;
 
@@ -166,6 +170,85 @@ public class OverlayTest {
 		assertEquals(roi,rois[0]);
 	}
 
+	@Test
+	public void testIndexAt() {
+		// large enough to be spatially indexed
+		o = new Overlay();
+		for (int y = 0; y < 40; y++)
+			for (int x = 0; x < 40; x++)
+				o.add(new Roi(new Rectangle(x*10,y*10,5,5)));
+		o.add(new Roi(new Rectangle(0,0,400,400)));
+		assertEquals(1600,o.indexAt(2,2));
+		assertEquals(1600,o.indexAt(397,397));
+		o.remove(1600);
+		assertEquals(0,o.indexAt(2,2));
+		assertEquals(41,o.indexAt(12,12));
+		assertEquals(-1,o.indexAt(7,7));
+
+		// moved and added ROIs are found
+		o.get(41).setLocation(1000,1000);
+		assertEquals(-1,o.indexAt(12,12));
+		assertEquals(41,o.indexAt(1002,1002));
+		o.add(new Roi(new Rectangle(6,6,3,3)));
+		assertEquals(1600,o.indexAt(7,7));
+		o.translate(100,0);
+		assertEquals(0,o.indexAt(102,2));
+		assertEquals(-1,o.indexAt(2,2));
+	}
+
+	@Test
+	public void testChangesOfOtherRois() {
+		// only edits of indexed ROIs make the index check the overlay again
+		o = new Overlay();
+		for (int i = 0; i < 1600; i++)
+			o.add(new Roi(new Rectangle((i%40)*10,(i/40)*10,5,5)));
+		assertEquals(41,o.indexAt(12,12));
+		int changes = Roi.changes.get();
+		Roi roi = new Roi(1,2,3,4);
+		roi.setName("new");
+		roi.setLocation(20,30);
+		roi.setPosition(3);
+		Roi copy = (Roi)o.get(41).clone();
+		copy.setLocation(500,500);
+		assertEquals(changes,Roi.changes.get());
+		o.get(41).setName("edited");
+		assertTrue(Roi.changes.get()!=changes);
+		o.get(41).setLocation(1000,1000);
+		assertEquals(-1,o.indexAt(12,12));
+		assertEquals(41,o.indexAt(1002,1002));
+	}
+
+	@Test
+	public void testGetIndexesAtPosition() {
+		ImageStack stack = new ImageStack(100,100);
+		for (int i = 0; i < 6; i++)
+			stack.addSlice(new ByteProcessor(100,100));
+		ImagePlus imp = new ImagePlus("", stack);
+		imp.setDimensions(1,2,3);
+		imp.setOpenAsHyperStack(true);
+		o = new Overlay();
+		for (int i = 0; i < 1200; i++) {
+			Roi roi = new Roi(new Rectangle(i%90,i%90,5,5));
+			if (i%4 == 0)
+				roi.setPosition(0,2,0);
+			else if (i%4 != 1)
+				roi.setPosition(1,1+i%2,1+i%3);
+			o.add(roi);
+		}
+		imp.setPositionWithoutUpdate(1,2,3);
+		Rectangle all = new Rectangle(0,0,100,100);
+		int[] indexes = o.getIndexes(all, imp);
+		assertEquals(700,indexes.length);
+		for (int i = 0; i < indexes.length; i++) {
+			Roi roi = o.get(indexes[i]);
+			assertTrue(roi.getZPosition()==0 || roi.getZPosition()==2);
+			assertTrue(roi.getTPosition()==0 || roi.getTPosition()==3);
+		}
+		o.get(1).setPosition(1,1,1);
+		assertEquals(699,o.getIndexes(all, imp).length);
+		assertEquals(1200,o.getIndexes(all).length);
+	}
+
 	@Test
 	public void testToString() {
 	}
@@ -12,7 +12,9 @@ import ij.process.ImageProcessor;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.Shape;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Arc2D;
+import java.awt.geom.Area;
 import java.awt.geom.CubicCurve2D;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
@@ -495,6 +497,60 @@ public class ShapeRoiTest {
 		basicTests(roi,type,ox,oy,w,h);
 	}
 	
+	@Test
+	public void testUnionAndIntersection() {
+		// pixel-aligned ROIs are combined on a raster, others with java.awt.geom.Area
+		Roi[][] cases = {
+			{new Roi(0,0,10,10), new OvalRoi(5,3,12,9), new Roi(20,20,4,4)},
+			{new OvalRoi(0,0,20,20), new Roi(5,5,20,3), new PolygonRoi(new int[] {0,25,12}, new int[] {0,0,25}, 3, Roi.POLYGON)},
+			{new PolygonRoi(new int[] {0,25,12}, new int[] {0,0,25}, 3, Roi.POLYGON), new Roi(2,2,20,20), new OvalRoi(4,1,15,22),
+				new PolygonRoi(new int[] {3,30,3}, new int[] {1,12,20}, 3, Roi.POLYGON), new Roi(1,0,30,24)},
+			// too large for a raster: all ROIs are combined as Areas
+			{new Roi(0,0,10,10), new PolygonRoi(new int[] {0,25,12}, new int[] {0,0,25}, 3, Roi.POLYGON), new Roi(9000,9000,3,3)}
+		};
+		for (Roi[] rois : cases) {
+			ShapeRoi[] shapes = new ShapeRoi[rois.length];
+			for (int i=0; i<rois.length; i++)
+				shapes[i] = new ShapeRoi(rois[i]);
+			combineTest(combineAreas(shapes, true), ShapeRoi.union(shapes));
+			combineTest(combineAreas(shapes, false), ShapeRoi.intersection(shapes));
+		}
+		assertEquals(0, ShapeRoi.intersection(new ShapeRoi[] {new ShapeRoi(new Roi(0,0,4,4)), new ShapeRoi(new Roi(4,0,4,4))}).getBounds().width);
+		assertNull(ShapeRoi.union(new ShapeRoi[0]));
+	}
+
+	// the union or intersection, combined with java.awt.geom.Area as a reference
+	private Area combineAreas(ShapeRoi[] shapes, boolean union) {
+		Area area = null;
+		for (ShapeRoi shape : shapes) {
+			Rectangle r = shape.getBounds();
+			Area a = new Area(AffineTransform.getTranslateInstance(r.x, r.y).createTransformedShape(shape.getShape()));
+			if (area==null)
+				area = a;
+			else if (union)
+				area.add(a);
+			else
+				area.intersect(a);
+		}
+		return area;
+	}
+
+	private void combineTest(Area exp, ShapeRoi roi)
+	{
+		if (exp.isEmpty())
+			assertEquals(0, roi.getBounds().width);
+		else
+			maskTest(new ShapeRoi(exp), roi);
+	}
+
+	private void maskTest(Roi exp, Roi roi)
+	{
+		assertEquals(exp.getBounds(), roi.getBounds());
+		ImageProcessor expMask = exp.getMask();
+		if (expMask!=null)
+			assertArrayEquals((byte[])expMask.getPixels(), (byte[])roi.getMask().getPixels());
+	}
+
 	@Test
 	public void testGetRois() {
 
@@ -0,0 +1,151 @@
+package ij.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import ij.gui.Line;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RoiSetEncoder} and {@link RoiSetDecoder}.
+ */
+public class RoiSetEncoderTest {
+
+	private Roi[] makeRois(int n) {
+		Roi[] rois = new Roi[n];
+		for (int i=0; i<n; i++) {
+			int x = (i*37)%500, y = (i*91)%500;
+			switch (i%4) {
+				case 0: rois[i] = new Roi(x, y, 10, 20); break;
+				case 1: rois[i] = new OvalRoi(x, y, 15, 9); break;
+				case 2: rois[i] = new PolygonRoi(new int[] {x,x+30,x+5}, new int[] {y,y+2,y+40}, 3, Roi.POLYGON); break;
+				default: rois[i] = new Line(x, y, x+5.5, y+7.25);
+			}
+			rois[i].setPosition(1+i%5);
+		}
+		rois[3] = new ShapeRoi(new OvalRoi(0,0,30,30)).not(new ShapeRoi(new Roi(10,10,5,5)));
+		rois[5].setName("named");
+		return rois;
+	}
+
+	private void roundTrip(boolean compress) throws IOException {
+		Roi[] rois = makeRois(3000);  // several compressed blocks
+		String[] names = new String[rois.length];
+		names[7] = "label";
+		File file = File.createTempFile("RoiSetEncoderTest", ".rois");
+		try {
+			RoiSetEncoder encoder = new RoiSetEncoder(file.getPath());
+			encoder.setCompression(compress);
+			encoder.write(rois, names);
+			RoiSetDecoder decoder = new RoiSetDecoder(file.getPath());
+			assertEquals(rois.length, decoder.size());
+			assertEquals("named", decoder.getName(5));
+			assertEquals("label", decoder.getName(7));
+			assertEquals("", decoder.getName(8));
+			for (int i=rois.length-1; i>=0; i-=7) {  // random access
+				assertEquals(rois[i].getBounds(), decoder.getBounds(i));
+				assertEquals(rois[i].getType(), decoder.getType(i));
+				assertEquals(rois[i].getPosition(), decoder.getPosition(i));
+				Roi roi = decoder.getRoi(i);
+				assertArrayEquals(RoiEncoder.saveAsByteArray(rois[i]), RoiEncoder.saveAsByteArray(roi));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testCompressed() throws IOException {
+		roundTrip(true);
+	}
+
+	@Test
+	public void testUncompressed() throws IOException {
+		roundTrip(false);
+	}
+
+	// writes 'data' with 'size' bytes at 'offset' replaced by 'value' and checks that it cannot be read
+	private void assertCorrupt(byte[] data, int offset, int size, long value) throws IOException {
+		byte[] data2 = data.clone();
+		for (int i=size-1; i>=0; i--, value>>=8)
+			data2[offset+i] = (byte)value;
+		File file = File.createTempFile("RoiSetEncoderTest", ".rois");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(data2);
+			out.close();
+			new RoiSetDecoder(file.getPath()).getRoi(0);
+			fail("corrupt ROI set read, offset "+offset+", value "+value);
+		} catch (IOException e) {
+			// expected
+		} finally {
+			file.delete();
+		}
+	}
+
+	private void corruptIndex(boolean compress) throws IOException {
+		File file = File.createTempFile("RoiSetEncoderTest", ".rois");
+		byte[] data;
+		try {
+			RoiSetEncoder encoder = new RoiSetEncoder(file.getPath());
+			encoder.setCompression(compress);
+			encoder.write(makeRois(6), new String[6]);
+			RandomAccessFile f = new RandomAccessFile(file, "r");
+			data = new byte[(int)f.length()];
+			f.readFully(data);
+			f.close();
+		} finally {
+			file.delete();
+		}
+		int trailer = data.length-RoiSetEncoder.TRAILER_SIZE;
+		assertCorrupt(data, trailer, 4, Integer.MAX_VALUE);  // number of ROIs
+		assertCorrupt(data, trailer+4, 8, trailer+1);        // index offset
+		int entry = (int)ByteBuffer.wrap(data).getLong(trailer+4) + 2;  // first ROI, without a name
+		assertCorrupt(data, entry+33, 8, Long.MAX_VALUE);    // record offset
+		assertCorrupt(data, entry+33, 8, -1);
+		assertCorrupt(data, entry+33, 8, data.length-4);
+		assertCorrupt(data, entry+45, 4, -1);                // record size
+		assertCorrupt(data, entry+45, 4, Integer.MAX_VALUE);
+		if (compress)
+			assertCorrupt(data, entry+41, 4, -1);            // offset within the block
+	}
+
+	@Test
+	public void testCorruptIndex() throws IOException {
+		corruptIndex(true);
+		corruptIndex(false);
+	}
+
+	@Test
+	public void testIsRoiSet() {
+		assertTrue(RoiSetDecoder.isRoiSet("/tmp/RoiSet.rois"));
+		assertFalse(RoiSetDecoder.isRoiSet("/tmp/RoiSet.zip"));
+		assertFalse(RoiSetDecoder.isRoiSet(null));
+	}
+
+	@Test(expected=IOException.class)
+	public void testNotRoiSet() throws IOException {
+		File file = File.createTempFile("RoiSetEncoderTest", ".rois");
+		try {
+			RoiEncoder.save(new Roi(new Rectangle(1,2,3,4)), file.getPath());
+			new RoiSetDecoder(file.getPath());
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -9,6 +9,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import ij.Assert;
 import ij.IJInfo;
+import ij.macro.Tokenizer;
 import ij.plugin.filter.Analyzer;
 import ij.process.DataConstants;
 
@@ -587,6 +588,52 @@ public class ResultsTableTest {
 		assertEquals(2,r.getColumnIndex("TheZeppo"));
 	}
 
+	@Test
+	public void testGetColumnIndexAfterRenameAndDelete() {
+		r = n();
+		r.incrementCounter();
+		r.addValue("Buffy",1);
+		r.addValue("TheZeppo",2);
+		r.addValue("Willow",3);
+		r.renameColumn("TheZeppo","Xander");
+		assertEquals(ResultsTable.COLUMN_NOT_FOUND,r.getColumnIndex("TheZeppo"));
+		assertEquals(1,r.getColumnIndex("Xander"));
+		r.deleteColumn("Buffy");
+		assertEquals(ResultsTable.COLUMN_NOT_FOUND,r.getColumnIndex("Buffy"));
+		assertEquals(2,r.getColumnIndex("Willow"));
+		r.addValue("Giles",4);
+		assertEquals(3,r.getColumnIndex("Giles"));
+		r.reset();
+		assertEquals(ResultsTable.COLUMN_NOT_FOUND,r.getColumnIndex("Willow"));
+	}
+
+	@Test
+	public void testGetColumnIndexAfterFillingGap() {
+		r = n();
+		r.incrementCounter();
+		r.setHeading(2,"D");
+		assertEquals(ResultsTable.COLUMN_NOT_FOUND,r.getColumnIndex("D"));
+		r.getFreeColumn("A");
+		assertEquals(0,r.getColumnIndex("A"));
+		assertEquals(ResultsTable.COLUMN_NOT_FOUND,r.getColumnIndex("D"));
+		r.getFreeColumn("B");
+		assertEquals(1,r.getColumnIndex("B"));
+		assertEquals(2,r.getColumnIndex("D"));
+	}
+
+	@Test
+	public void testEnsureCapacity() {
+		r = n();
+		r.ensureCapacity(5000);
+		assertEquals(0,r.getCounter());
+		for (int i = 0; i < 5000; i++) {
+			r.incrementCounter();
+			r.addValue("Value",i);
+		}
+		for (int i = 0; i < 5000; i++)
+			assertEquals(i,r.getValue("Value",i),Assert.DOUBLE_TOL);
+	}
+
 	@Test
 	public void testGetFreeColumn() {
 
@@ -1497,6 +1544,129 @@ public class ResultsTableTest {
 	}
 	*/
 
+	@Test
+	public void testSaveAndOpenLargeTable() throws IOException {
+		String path = System.getProperty("java.io.tmpdir") + "IJRTTlarge.csv";
+		r = n();
+		for (int i = 0; i < 20000; i++) {
+			r.incrementCounter();
+			r.addValue("Index", i);
+			r.addValue("Half", i/2.0);
+			r.addValue("Name", (i%3==0)?"a,b":"c");
+		}
+		r.saveAs(path);
+		ResultsTable r2 = ResultsTable.open(path);
+		assertEquals(20000,r2.size());
+		for (int i = 0; i < 20000; i++) {
+			assertEquals(i,r2.getValue("Index",i),Assert.DOUBLE_TOL);
+			assertEquals(i/2.0,r2.getValue("Half",i),Assert.DOUBLE_TOL);
+			assertEquals((i%3==0)?"a,b":"c",r2.getStringValue("Name",i));
+		}
+		new java.io.File(path).delete();
+	}
+
+	@Test
+	public void testOpenMissingLabel() throws IOException {
+		String path = System.getProperty("java.io.tmpdir") + "IJRTTlabels.txt";
+		java.io.FileWriter writer = new java.io.FileWriter(path);
+		writer.write(" \tLabel\tA\n1\tx\t2\n2\n");
+		writer.close();
+		try {
+			ResultsTable.open(path);
+			fail();
+		} catch (IOException e) {
+			assertEquals("Line 3 has no \"Label\" field", e.getMessage());
+		} finally {
+			new java.io.File(path).delete();
+		}
+	}
+
+	@Test
+	public void testSaveAndOpenBinary() throws IOException {
+		String path = System.getProperty("java.io.tmpdir") + "IJRTTbinary.ijt";
+		r = n();
+		for (int i = 0; i < 1000; i++) {
+			r.incrementCounter();
+			r.addLabel("L"+i);
+			r.addValue("Exact", i/3.0);
+			r.addValue("Float", i/4.0);
+			r.addValue("Name", (i%2==0)?"even":"odd");
+		}
+		for (boolean compress : new boolean[] {false, true}) {
+			r.saveAsBinary(path, compress);
+			ResultsTable r2 = ResultsTable.open(path);
+			assertEquals(r.size(),r2.size());
+			assertEquals(r.getColumnHeadings(),r2.getColumnHeadings());
+			for (int i = 0; i < 1000; i++) {
+				assertEquals(i/3.0,r2.getValue("Exact",i),0.0);
+				assertEquals(i/4.0,r2.getValue("Float",i),0.0);
+				assertEquals((i%2==0)?"even":"odd",r2.getStringValue("Name",i));
+				assertEquals("L"+i,r2.getLabel(i));
+			}
+		}
+		new java.io.File(path).delete();
+	}
+
+	@Test
+	public void testOpenCorruptBinary() throws IOException {
+		String path = System.getProperty("java.io.tmpdir") + "IJRTTcorrupt.ijt";
+		ResultsTable values = n(), labels = n();  // a numeric column, and row labels only
+		for (int i = 0; i < 1000; i++) {
+			values.incrementCounter();
+			values.addValue("A", i);
+			labels.incrementCounter();
+			labels.addLabel("L"+i);
+		}
+		try {
+			for (ResultsTable rt : new ResultsTable[] {values, labels}) {
+				for (int rows : new int[] {-1, 100000000, Integer.MAX_VALUE}) {
+					rt.saveAsBinary(path, rt==labels);
+					java.io.RandomAccessFile raf = new java.io.RandomAccessFile(path, "rw");
+					raf.seek(8);
+					raf.writeInt(Integer.reverseBytes(rows));
+					raf.close();
+					try {
+						ResultsTable.open(path);
+						fail("rows="+rows);
+					} catch (IOException e) {
+						assertEquals("Corrupt binary table", e.getMessage());
+					}
+				}
+			}
+		} finally {
+			new java.io.File(path).delete();
+		}
+	}
+
+	@Test
+	public void testApplyMacro() {
+		r = n();
+		for (int i = 0; i < 10000; i++) {
+			r.incrementCounter();
+			r.addLabel("L"+i);
+			r.addValue("Area", i);
+			r.addValue("Mean Gray", i/4.0);
+		}
+		assertTrue(r.applyMacro("t = Mean_Gray*2; Area += 1; Ratio = t/Area; Odd = row%2==1 && true;"));
+		assertTrue(r.applyMacro("Len = lengthOf(Label);")); // row labels: run by the Interpreter
+		assertEquals("Area\tMean Gray\tRatio\tOdd\tLen", r.getColumnHeadings().substring(r.getColumnHeadings().indexOf("Area")));
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i+1,r.getValue("Area",i),0.0);
+			assertEquals((i/4.0*2)/(i+1),r.getValue("Ratio",i),0.0);
+			assertEquals(i%2,r.getValue("Odd",i),0.0);
+			assertEquals(("L"+i).length(),r.getValue("Len",i),0.0);
+		}
+	}
+
+	@Test
+	public void testColumnMacroStatements() {  // statements not separated by ';' are left to the Interpreter
+		String[] columns = {"Area"};
+		assertNotNull(ColumnMacro.compile(new Tokenizer().tokenize("A = Area*2; B = 3;"), columns));
+		assertNotNull(ColumnMacro.compile(new Tokenizer().tokenize("A = Area*2"), columns));
+		assertNull(ColumnMacro.compile(new Tokenizer().tokenize("A = Area*2 B = 3"), columns));
+		assertNull(ColumnMacro.compile(new Tokenizer().tokenize("A = (Area) B = 3;"), columns));
+	}
+
 	@Test
 	public void testClone() {
 		ResultsTable c;
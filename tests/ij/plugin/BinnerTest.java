@@ -0,0 +1,129 @@
+package ij.plugin;
+
+import static ij.process.TestImages.assertPixelsEqual;
+import static ij.process.TestImages.createStack;
+import static ij.process.TestImages.fill;
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Binner}.
+ */
+public class BinnerTest {
+
+	private static ImageProcessor shrink(ImageProcessor ip, int method, int nThreads) {
+		int threads = Prefs.getThreads();
+		Prefs.setThreads(nThreads);
+		try {
+			return new Binner().shrink(ip, 2, 2, method);
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	// a stack with an inverted LUT if 'inverted'; Binner inverts the slices in place, so each call creates a new one
+	private static ImageStack stack(int width, int height, int depth, int bitDepth, boolean inverted) {
+		ImageStack stack = createStack(width, height, depth, bitDepth, 7);
+		if (inverted) {
+			ImageProcessor ip = stack.getProcessor(1).duplicate();
+			ip.invertLut();
+			stack.setColorModel(ip.getColorModel());
+		}
+		return stack;
+	}
+
+	@Test
+	public void testMedian() {  // selection (integer images) and search (float images) agree
+		ImageProcessor ip = new ShortProcessor(3, 3, new short[] {9, 1, 8, 2, 7, 3, 6, 4, 5}, null);
+		assertEquals(4.0, new Binner().shrink(ip, 3, 3, Binner.MEDIAN).getf(0), 0.0);
+		ip = new FloatProcessor(3, 3, new float[] {9, 1, 8, 2, 7, 3, 6, 4, 5});
+		assertEquals(4.0, new Binner().shrink(ip, 3, 3, Binner.MEDIAN).getf(0), 0.0);
+	}
+
+	@Test
+	public void testShrinkLevels() {
+		ImageProcessor[] ips = {new ByteProcessor(301, 203), new ShortProcessor(301, 203),
+			new FloatProcessor(301, 203), new ColorProcessor(301, 203)};
+		for (ImageProcessor ip : ips) {
+			fill(ip, 5);
+			for (int method=Binner.AVERAGE; method<=Binner.SUM; method++) {
+				ImageProcessor[] levels = new Binner().shrinkLevels(ip, 20, method);
+				assertEquals(8, levels.length);  // 203/2^7 = 1
+				ImageProcessor previous = ip;
+				for (int level=1; level<levels.length; level++) {
+					previous = new Binner().shrink(previous, 2, 2, method);
+					assertEquals(previous.getWidth(), levels[level].getWidth());
+					assertEquals(previous.getHeight(), levels[level].getHeight());
+					for (int i=0; i<previous.getPixelCount(); i++)
+						assertEquals(previous.getf(i), levels[level].getf(i), 0.0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testParallel() {  // large enough for strips of rows (shrinkLevels) and bands of rows (shrink)
+		int width = 1031, height = 1029;
+		ImageProcessor[] ips = {new ByteProcessor(width, height), new ShortProcessor(width, height),
+			new FloatProcessor(width, height), new ColorProcessor(width, height)};
+		int threads = Prefs.getThreads();
+		for (ImageProcessor ip : ips) {
+			fill(ip, 6);
+			for (int method=Binner.AVERAGE; method<=Binner.SUM; method++) {
+				ImageProcessor expected = shrink(ip, method, 1);
+				assertPixelsEqual(expected.getPixels(), shrink(ip, method, 3).getPixels());
+				Prefs.setThreads(4);
+				ImageProcessor[] levels;
+				try {
+					levels = new Binner().shrinkLevels(ip, 5, method);
+				} finally {
+					Prefs.setThreads(threads);
+				}
+				assertEquals(6, levels.length);
+				for (int level=1; level<levels.length; level++) {
+					assertPixelsEqual(expected.getPixels(), levels[level].getPixels());
+					expected = shrink(expected, method, 1);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testStack() {  // whole slices in parallel, and bands of rows when there are fewer slices than threads
+		int[][] sizes = {{301, 203, 5}, {1031, 1029, 2}};
+		int threads = Prefs.getThreads();
+		for (int[] size : sizes) {
+			for (int bitDepth : new int[] {8, 32}) {
+				boolean inverted = bitDepth==8;
+				for (int method=Binner.AVERAGE; method<=Binner.MAX; method++) {
+					ImageStack stack = stack(size[0], size[1], size[2], bitDepth, inverted);
+					Prefs.setThreads(4);
+					ImageStack stack2;
+					try {
+						stack2 = new Binner().shrink(new ImagePlus("", stack), 2, 2, 1, method).getStack();
+					} finally {
+						Prefs.setThreads(threads);
+					}
+					assertEquals(size[2], stack2.size());
+					stack = stack(size[0], size[1], size[2], bitDepth, inverted);
+					for (int z=1; z<=size[2]; z++) {
+						ImageProcessor ip = stack.getProcessor(z);
+						assertEquals(inverted, ip.isInvertedLut());
+						if (inverted)
+							ip.invert();
+						ImageProcessor expected = shrink(ip, method, 1);
+						if (inverted)
+							expected.invert();
+						assertPixelsEqual(expected.getPixels(), stack2.getPixels(z));
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package ij.plugin;
+
+import static ij.process.TestImages.createStack;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link GroupedZProjector}, compared with ZProjector.
+ */
+public class GroupedZProjectorTest {
+
+	@Test
+	public void testRunningZProject() {
+		int[] methods = {ZProjector.AVG_METHOD, ZProjector.SUM_METHOD, ZProjector.MAX_METHOD, ZProjector.MIN_METHOD};
+		for (int bitDepth=8; bitDepth<=32; bitDepth*=2) {
+			ImagePlus imp = new ImagePlus("stack", createStack(17, 11, 20, bitDepth, 3));
+			for (int method : methods) {
+				for (int windowSize : new int[] {1, 4, 20}) {
+					ImagePlus imp2 = new GroupedZProjector().runningZProject(imp, method, windowSize);
+					assertEquals(imp.getStackSize()-windowSize+1, imp2.getStackSize());
+					for (int n=1; n<=imp2.getStackSize(); n++) {
+						ZProjector zp = new ZProjector(imp);
+						zp.setMethod(method);
+						zp.setStartSlice(n);
+						zp.setStopSlice(n+windowSize-1);
+						zp.doProjection();
+						ImageProcessor expected = zp.getProjection().getProcessor();
+						ImageProcessor actual = imp2.getStack().getProcessor(n);
+						for (int i=0; i<expected.getPixelCount(); i++)
+							assertEquals(expected.getf(i), actual.getf(i), bitDepth==32 ? 1e-2 : 1e-4);  // ZProjector sums floats of about 1000 in float
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRunningSpecialValues() {  // infinities, and large values that leave the window
+		float[][] values = {{1f, Float.POSITIVE_INFINITY, 2f, 3f, 4f, 5f}, {1f, 1e30f, 2f, 3f, 4f, 5f},
+			{1e30f, 1f, 2f, 3f, 4f, 5f, 6f, 7f, 8f}, {Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY, Float.NaN, -1e30f, 1f, 2f, 3f}};
+		for (float[] v : values) {
+			ImageStack stack = new ImageStack(1, 1);
+			for (int z=0; z<v.length; z++)
+				stack.addSlice(new FloatProcessor(1, 1, new float[] {v[z]}));
+			ImagePlus imp = new ImagePlus("stack", stack);
+			for (int method : new int[] {ZProjector.AVG_METHOD, ZProjector.SUM_METHOD}) {
+				for (int windowSize=1; windowSize<=4; windowSize++) {
+					ImagePlus imp2 = new GroupedZProjector().runningZProject(imp, method, windowSize);
+					for (int n=1; n<=imp2.getStackSize(); n++) {
+						double expected = 0.0;
+						int count = 0;
+						for (int z=n-1; z<n-1+windowSize; z++) {
+							if (!Float.isNaN(v[z])) {
+								expected += v[z];
+								count++;
+							}
+						}
+						if (method==ZProjector.AVG_METHOD)
+							expected /= count;
+						float actual = imp2.getStack().getProcessor(n).getf(0);
+						assertEquals(Float.valueOf((float)expected), Float.valueOf(actual));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRunningHyperStack() {  // the window runs over the frames of each channel and z-slice
+		ImagePlus imp = new ImagePlus("hyperstack", createStack(13, 9, 2*3*7, 16, 5));
+		imp.setDimensions(2, 3, 7);
+		imp.setOpenAsHyperStack(true);
+		for (int method : new int[] {ZProjector.AVG_METHOD, ZProjector.MAX_METHOD}) {
+			ImagePlus imp2 = new GroupedZProjector().runningZProject(imp, method, 3);
+			assertEquals(2, imp2.getNChannels());
+			assertEquals(3, imp2.getNSlices());
+			assertEquals(5, imp2.getNFrames());
+			assertTrue(imp2.isHyperStack());
+			for (int c=1; c<=2; c++) {
+				for (int z=1; z<=3; z++) {
+					for (int t=1; t<=5; t++) {
+						ImageProcessor ip = imp2.getStack().getProcessor(imp2.getStackIndex(c, z, t));
+						for (int i=0; i<ip.getPixelCount(); i++) {
+							float expected = 0f;
+							for (int t2=t; t2<t+3; t2++) {
+								float v = imp.getStack().getProcessor(imp.getStackIndex(c, z, t2)).getf(i);
+								expected = method==ZProjector.MAX_METHOD ? Math.max(expected, v) : expected+v;
+							}
+							if (method==ZProjector.AVG_METHOD)
+								expected = (int)(expected/3f+0.5f);
+							assertEquals(expected, ip.getf(i), 0.0);
+						}
+					}
+				}
+			}
+		}
+		imp.setDimensions(2, 21, 1);  // a single frame: the window runs over the z-slices of each channel
+		ImagePlus imp2 = new GroupedZProjector().runningZProject(imp, ZProjector.MIN_METHOD, 4);
+		assertEquals(2, imp2.getNChannels());
+		assertEquals(18, imp2.getNSlices());
+		for (int c=1; c<=2; c++) {
+			for (int z=1; z<=18; z++) {
+				ImageProcessor ip = imp2.getStack().getProcessor(imp2.getStackIndex(c, z, 1));
+				for (int i=0; i<ip.getPixelCount(); i++) {
+					float expected = Float.MAX_VALUE;
+					for (int z2=z; z2<z+4; z2++)
+						expected = Math.min(expected, imp.getStack().getProcessor(imp.getStackIndex(c, z2, 1)).getf(i));
+					assertEquals(expected, ip.getf(i), 0.0);
+				}
+			}
+		}
+		assertNull(new GroupedZProjector().runningZProject(imp, ZProjector.MIN_METHOD, 22));
+	}
+
+	@Test
+	public void testGroupZProject() {
+		ImagePlus imp = new ImagePlus("stack", createStack(17, 11, 20, 16, 3));
+		ImagePlus imp2 = new GroupedZProjector().groupZProject(imp, ZProjector.MAX_METHOD, 5);
+		assertEquals(4, imp2.getStackSize());
+		for (int group=0; group<4; group++) {
+			ImageProcessor ip = imp2.getStack().getProcessor(group+1);
+			for (int i=0; i<ip.getPixelCount(); i++) {
+				float max = 0f;
+				for (int z=group*5+1; z<=group*5+5; z++)
+					max = Math.max(max, imp.getStack().getProcessor(z).getf(i));
+				assertEquals(max, ip.getf(i), 0.0);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package ij.plugin;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ImageProcessor;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Projector}. The projections are rendered in parallel,
+ * so they are compared, for each axis and method, with and without
+ * interpolation, with partial opacity and with other depth-cueing settings,
+ * at 1 and 4 threads, with checksums of the stacks rendered by the serial
+ * version.
+ */
+public class ProjectorTest {
+	private static final String[] AXES = {"x", "y", "z"};
+	private static final String[] METHODS = {"nearest", "brightest", "mean"};
+
+	/* CRC32 of the projections made by the serial renderer, for each axis,
+		method and interpolation setting, in the order of the loops of
+		testProjections(). */
+	private static final long[] CHECKSUMS = {
+		2571111553L, 3902917855L, 3930620920L, 2622014796L, 914479844L, 318491732L,
+		217528225L, 294766626L, 4100720564L, 4220093271L, 2422629205L, 1008087229L,
+		2248015228L, 60789668L, 3201528840L, 4117958966L, 2135491164L, 166175832L
+	};
+
+	/* Opacity, surface and interior depth-cueing (as the Projector fields,
+		i.e., 100 minus the dialog percentages) of testCueing(). The defaults
+		are 0, 0 and 50. */
+	private static final int[][] CUEING = {{40, 0, 50}, {0, 100, 100}, {30, 60, 20}};
+
+	/* CRC32 of the projections made by the serial renderer with the CUEING
+		settings, for each setting, axis and method, without interpolation. */
+	private static final long[] CUEING_CHECKSUMS = {
+		2571111553L, 3205877086L, 2784053278L, 217528225L, 2127797861L, 3732539988L,
+		2248015228L, 288125549L, 3078321678L, 2602213453L, 1878428591L, 914479844L,
+		1181479321L, 3721860618L, 2422629205L, 4054061422L, 1569247196L, 2135491164L,
+		2040726346L, 939811267L, 2698043645L, 536295107L, 2746368715L, 1662439113L,
+		2711701328L, 2676447194L, 3972512037L
+	};
+
+	/* A small 8-bit volume: a bright ball and a dimmer block in noise. */
+	private ImagePlus makeVolume() {
+		Random random = new Random(4);
+		ImageStack stack = ImageStack.create(23, 17, 9, 8);
+		for (int z=0; z<stack.size(); z++) {
+			ImageProcessor ip = stack.getProcessor(z+1);
+			for (int y=0; y<ip.getHeight(); y++) {
+				for (int x=0; x<ip.getWidth(); x++) {
+					int dx=x-12, dy=y-8, dz=z-4;
+					int value = random.nextInt(40);
+					if (dx*dx+dy*dy+4*dz*dz<36)
+						value = 200 + random.nextInt(56);
+					else if (x>=2 && x<7 && y>=10 && y<15 && z>=1 && z<4)
+						value = 120;
+					ip.set(x, y, value);
+				}
+			}
+		}
+		return new ImagePlus("volume", stack);
+	}
+
+	private static long checksum(ImageStack stack) {
+		CRC32 crc = new CRC32();
+		for (int i=1; i<=stack.size(); i++)
+			crc.update((byte[])stack.getPixels(i));
+		return crc.getValue();
+	}
+
+	private ImageStack project(int axis, int method, boolean interpolate, int nThreads) {
+		return project(axis, method, interpolate, null, nThreads);
+	}
+
+	private ImageStack project(int axis, int method, boolean interpolate, int[] cueing, int nThreads) {
+		int threads = Prefs.getThreads();
+		Prefs.setThreads(nThreads);
+		try {
+			Projector projector = new Projector();
+			if (cueing!=null)
+				projector.setCueing(cueing[0], cueing[1], cueing[2]);
+			return projector.project(makeVolume(), method, axis, 2.0, 30, interpolate).getStack();
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	@Test
+	public void testProjections() {
+		int i = 0;
+		for (int axis=0; axis<AXES.length; axis++) {
+			for (int method=0; method<METHODS.length; method++) {
+				for (int interpolate=0; interpolate<2; interpolate++, i++) {
+					String name = AXES[axis]+"-axis, "+METHODS[method]+(interpolate==1?", interpolated":"");
+					ImageStack stack1 = project(axis, method, interpolate==1, 1);
+					assertEquals(name, 12, stack1.size());
+					assertEquals(name, CHECKSUMS[i], checksum(stack1));
+					assertEquals(name, CHECKSUMS[i], checksum(project(axis, method, interpolate==1, 4)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCueing() {  // nearest point ignores the opacity
+		int i = 0;
+		for (int[] cueing : CUEING) {
+			for (int axis=0; axis<AXES.length; axis++) {
+				for (int method=0; method<METHODS.length; method++, i++) {
+					String name = AXES[axis]+"-axis, "+METHODS[method]+", opacity "+cueing[0]
+						+", depth-cueing "+cueing[1]+"/"+cueing[2];
+					assertEquals(name, CUEING_CHECKSUMS[i], checksum(project(axis, method, false, cueing, 1)));
+					assertEquals(name, CUEING_CHECKSUMS[i], checksum(project(axis, method, false, cueing, 4)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSlabs() {  // fewer angles than threads: each angle is split into slabs of slices
+		for (int axis=0; axis<AXES.length; axis++) {
+			for (int method=0; method<METHODS.length; method++) {
+				int threads = Prefs.getThreads();
+				try {
+					Prefs.setThreads(1);
+					ImageStack stack1 = new Projector().project(makeVolume(), method, axis, 2.0, 180, false).getStack();
+					Prefs.setThreads(4);
+					ImageStack stack4 = new Projector().project(makeVolume(), method, axis, 2.0, 180, false).getStack();
+					assertEquals(AXES[axis]+"-axis, "+METHODS[method], checksum(stack1), checksum(stack4));
+				} finally {
+					Prefs.setThreads(threads);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+package ij.plugin;
+
+import static ij.process.TestImages.assertPixelsEqual;
+import static ij.process.TestImages.createStack;
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.OvalRoi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Scaler}. Stacks are cropped and scaled in parallel,
+ * the results are compared with the slices scaled one at a time.
+ */
+public class ScalerTest {
+
+	private void checkResize(int bitDepth, String options, int method, int nThreads) {
+		ImageStack stack = createStack(31, 19, 6, bitDepth, bitDepth);
+		ImagePlus imp = new ImagePlus("stack", stack);
+		imp.setRoi(new OvalRoi(2, 3, 23, 14));
+		Rectangle r = imp.getProcessor().getRoi();
+		Prefs.setThreads(nThreads);
+		ImageStack stack2 = Scaler.resize(imp, 17, 29, 1, options).getStack();
+		assertEquals(stack.size(), stack2.size());
+		for (int i=1; i<=stack.size(); i++) {
+			ImageProcessor ip = stack.getProcessor(i);
+			ip.setRoi(r);
+			ip = ip.crop();
+			ip.setInterpolationMethod(method);
+			assertPixelsEqual(ip.resize(17, 29, true).getPixels(), stack2.getPixels(i));
+		}
+	}
+
+	@Test
+	public void testResizeStack() {
+		int threads = Prefs.getThreads();
+		try {
+			for (int bitDepth : new int[] {8, 16, 24, 32}) {
+				for (int nThreads : new int[] {1, 4}) {
+					checkResize(bitDepth, "bilinear", ImageProcessor.BILINEAR, nThreads);
+					checkResize(bitDepth, "bicubic", ImageProcessor.BICUBIC, nThreads);
+					checkResize(bitDepth, "none", ImageProcessor.NONE, nThreads);
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+}
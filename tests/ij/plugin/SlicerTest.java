@@ -0,0 +1,57 @@
+package ij.plugin;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImageStack;
+import ij.Prefs;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Slicer}.
+ */
+public class SlicerTest {
+
+	private ImageStack makeStack() {
+		ImageStack stack = ImageStack.create(300, 250, 40, 16);
+		for (int z=0; z<stack.size(); z++)
+			for (int y=0; y<stack.getHeight(); y++)
+				for (int x=0; x<stack.getWidth(); x++)
+					stack.setVoxel(x, y, z, x+7*y+13*z);
+		return stack;
+	}
+
+	private void check(ImageStack stack, boolean horizontal, boolean flip, boolean rotate) {
+		int[] positions = {3, 4, 100, 249};
+		int start = 10, length = 230;
+		int nz = stack.size();
+		Object[] planes = new Object[positions.length];
+		for (int k=0; k<planes.length; k++)
+			planes[k] = new short[length*nz];
+		Slicer.reslice(stack, horizontal, positions, start, length, flip, rotate, planes, false);
+		for (int k=0; k<planes.length; k++) {
+			short[] plane = (short[])planes[k];
+			for (int z=0; z<nz; z++) {
+				for (int j=0; j<length; j++) {
+					int zz = flip ? nz-1-z : z;
+					double expected = horizontal ? stack.getVoxel(start+j, positions[k], z) : stack.getVoxel(positions[k], start+j, z);
+					int index = rotate ? j*nz+zz : zz*length+j;
+					assertEquals(expected, plane[index]&0xffff, 0.0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testReslice() {
+		int threads = Prefs.getThreads();
+		Prefs.setThreads(3);
+		try {
+			ImageStack stack = makeStack();
+			for (int i=0; i<8; i++)
+				check(stack, (i&1)!=0, (i&2)!=0, (i&4)!=0);
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+package ij.plugin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.VirtualStack;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ZProjector}.
+ */
+public class ZProjectorTest {
+	private static final String[] METHODS = {"avg", "max", "min", "sum", "sd", "median"};
+
+	private ImagePlus makeStack(int bitDepth, int depth) {
+		return makeStack(bitDepth, 37, 23, depth);
+	}
+
+	private ImagePlus makeStack(int bitDepth, int width, int height, int depth) {
+		Random random = new Random(depth);
+		ImageStack stack = ImageStack.create(width, height, depth, bitDepth);
+		for (int z=1; z<=depth; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i=0; i<width*height; i++) {
+				if (bitDepth==8)
+					ip.setf(i, random.nextInt(256));
+				else
+					ip.setf(i, bitDepth==32 && random.nextInt(10)==0 ? Float.NaN : random.nextInt(70000)%65536);
+			}
+		}
+		return new ImagePlus("stack", stack);
+	}
+
+	private ImageStack makeRGBStack(int depth) {
+		Random random = new Random(depth);
+		ImageStack stack = new ImageStack(37, 23);
+		for (int z=0; z<depth; z++) {
+			ImageProcessor ip = new ColorProcessor(37, 23);
+			for (int i=0; i<37*23; i++)
+				ip.set(i, random.nextInt());
+			stack.addSlice(ip);
+		}
+		return stack;
+	}
+
+	private static float[] getFloats(ImageProcessor ip) {
+		return (float[])ip.convertToFloat().getPixels();
+	}
+
+	private static int[] bits(float[] a) {
+		int[] bits = new int[a.length];
+		for (int i=0; i<a.length; i++)
+			bits[i] = Float.floatToIntBits(a[i]);
+		return bits;
+	}
+
+	private void testMedian(int bitDepth, int depth) {
+		ImagePlus imp = makeStack(bitDepth, depth);
+		ImageProcessor median = ZProjector.run(imp, "median").getProcessor();
+		float[] values = new float[depth];
+		for (int i=0; i<37*23; i++) {
+			for (int z=0; z<depth; z++)
+				values[z] = imp.getStack().getProcessor(z+1).getf(i);
+			Arrays.sort(values);
+			int middle = depth/2;
+			float expected = (depth&1)==0 ? (values[middle-1]+values[middle])/2f : values[middle];
+			if (bitDepth==8)
+				expected = (int)(expected+0.5f);  // the projection is 8-bit
+			assertEquals(expected, median.getf(i), 0.0);
+		}
+	}
+
+	@Test
+	public void testMedian() {
+		int threads = Prefs.getThreads();
+		Prefs.setThreads(3);
+		try {
+			for (int depth=1; depth<=8; depth++) {
+				testMedian(8, depth);   // histogram
+				testMedian(16, depth);  // two-level histogram
+				testMedian(32, depth);  // selection
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	@Test
+	public void testIndependentOfThreads() {
+		int threads = Prefs.getThreads();
+		try {
+			for (int bitDepth=8; bitDepth<=32; bitDepth*=2) {
+				ImagePlus imp = makeStack(bitDepth, 256, 256, 4);  // large enough for 4 threads
+				for (String method : METHODS) {
+					Prefs.setThreads(1);
+					float[] pixels1 = getFloats(ZProjector.run(imp, method).getProcessor());
+					Prefs.setThreads(4);
+					float[] pixels4 = getFloats(ZProjector.run(imp, method).getProcessor());
+					assertArrayEquals(bits(pixels1), bits(pixels4));
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	private VirtualStack makeVirtual(final ImageStack stack) {
+		return new VirtualStack(stack.getWidth(), stack.getHeight(), null, null) {
+			public ImageProcessor getProcessor(int n) {
+				return stack.getProcessor(n).duplicate();
+			}
+			public Object getPixels(int n) {
+				return getProcessor(n).getPixels();
+			}
+			public int getSize() {
+				return stack.size();
+			}
+		};
+	}
+
+	@Test
+	public void testVirtualStack() {  // projected in a single pass, as a stack in memory
+		int threads = Prefs.getThreads();
+		try {
+			for (int bitDepth=8; bitDepth<=32; bitDepth*=2) {
+				ImageStack stack = makeStack(bitDepth, 9).getStack();
+				VirtualStack virtualStack = makeVirtual(stack);
+				for (String method : METHODS) {
+					float[] expected = getFloats(ZProjector.run(new ImagePlus("stack", stack), method).getProcessor());
+					for (int nThreads=1; nThreads<=4; nThreads++) {
+						Prefs.setThreads(nThreads);
+						float[] actual = getFloats(ZProjector.run(new ImagePlus("virtual", virtualStack), method).getProcessor());
+						assertArrayEquals(bits(expected), bits(actual));
+					}
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	@Test
+	public void testVirtualStackMedian() {  // deep 8 and 16-bit stacks use per-pixel histograms
+		int threads = Prefs.getThreads();
+		try {
+			for (int bitDepth=8; bitDepth<=24; bitDepth+=8) {
+				for (int depth=300; depth<=301; depth++) {  // even and odd
+					ImageStack stack = bitDepth==24 ? makeRGBStack(depth) : makeStack(bitDepth, depth).getStack();
+					float[] expected = getFloats(ZProjector.run(new ImagePlus("stack", stack), "median").getProcessor());
+					final int[] reads = new int[1];
+					final ImageStack stack2 = stack;
+					VirtualStack virtualStack = new VirtualStack(stack.getWidth(), stack.getHeight(), null, null) {
+						public ImageProcessor getProcessor(int n) {
+							return stack2.getProcessor(n).duplicate();
+						}
+						public Object getPixels(int n) {
+							synchronized (reads) {
+								reads[0]++;
+							}
+							return getProcessor(n).getPixels();
+						}
+						public int getSize() {
+							return stack2.size();
+						}
+					};
+					for (int nThreads=1; nThreads<=3; nThreads+=2) {
+						Prefs.setThreads(nThreads);
+						reads[0] = 0;
+						ZProjector zp = new ZProjector(new ImagePlus("virtual", virtualStack));
+						zp.setMethod(ZProjector.MEDIAN_METHOD);
+						zp.medianBufferBytes = 1<<12;  // several bands
+						zp.doProjection();
+						float[] actual = getFloats(zp.getProjection().getProcessor());
+						assertArrayEquals(bits(expected), bits(actual));
+						int passes = bitDepth==24 ? 3*8 : 8;  // 8 bands, or 4 bands read twice for 16 bits
+						assertEquals(passes*depth, reads[0]);
+					}
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	@Test
+	public void testVirtualStackLargeSums() {  // 16-bit sums above 2^24 are rounded as for a stack in memory
+		int threads = Prefs.getThreads();
+		try {
+			Random random = new Random(5);
+			ImageStack stack = ImageStack.create(13, 7, 400, 16);
+			for (int z=1; z<=stack.size(); z++) {
+				ImageProcessor ip = stack.getProcessor(z);
+				for (int i=0; i<13*7; i++)
+					ip.setf(i, 60000+random.nextInt(5536));
+			}
+			VirtualStack virtualStack = makeVirtual(stack);
+			for (String method : new String[] {"avg", "sum", "sd"}) {
+				float[] expected = getFloats(ZProjector.run(new ImagePlus("stack", stack), method).getProcessor());
+				for (int nThreads=1; nThreads<=4; nThreads++) {
+					Prefs.setThreads(nThreads);
+					float[] actual = getFloats(ZProjector.run(new ImagePlus("virtual", virtualStack), method).getProcessor());
+					assertArrayEquals(bits(expected), bits(actual));
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	@Test
+	public void testRGB() {  // channels are projected as if split into 8-bit stacks
+		Random random = new Random(2);
+		ImageStack stack = new ImageStack(37, 23);
+		for (int z=0; z<6; z++) {
+			ImageProcessor ip = new ColorProcessor(37, 23);
+			for (int i=0; i<37*23; i++)
+				ip.set(i, random.nextInt());
+			stack.addSlice(ip);
+		}
+		ImageStack[] channels = ChannelSplitter.splitRGB(stack, true);
+		for (String method : new String[] {"avg", "max", "min", "median"}) {
+			int[] rgb = (int[])ZProjector.run(new ImagePlus("rgb", stack), method).getProcessor().getPixels();
+			for (int c=0; c<3; c++) {
+				ImageProcessor expected = ZProjector.run(new ImagePlus("channel", channels[c]), method).getProcessor();
+				for (int i=0; i<rgb.length; i++)
+					assertEquals(expected.get(i), (rgb[i]>>(16-8*c))&0xff);
+			}
+		}
+	}
+
+	@Test
+	public void testHyperStack() {
+		ImagePlus imp = makeStack(16, 12);
+		imp.setDimensions(2, 3, 2);
+		imp.setOpenAsHyperStack(true);
+		ImagePlus imp2 = ZProjector.run(imp, "max all");
+		assertEquals(4, imp2.getStackSize());
+		for (int t=0; t<2; t++) {
+			for (int c=0; c<2; c++) {
+				ImageProcessor ip = imp2.getStack().getProcessor(t*2+c+1);
+				for (int i=0; i<37*23; i++) {
+					float max = 0f;
+					for (int z=0; z<3; z++)
+						max = Math.max(max, imp.getStack().getProcessor(t*6+z*2+c+1).getf(i));
+					assertEquals(max, ip.getf(i), 0.0);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package ij.plugin.filter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+import java.awt.geom.GeneralPath;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ThresholdToSelection}.
+ */
+public class ThresholdToSelectionTest {
+
+	private ByteProcessor makeMask(int width, int height, long seed) {
+		Random random = new Random(seed);
+		ByteProcessor bp = new ByteProcessor(width, height);
+		for (int i=0; i<width*height; i++)
+			bp.set(i, random.nextInt(3)==0 ? 255 : 0);
+		bp.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		return bp;
+	}
+
+	private void assertMask(ByteProcessor bp, Roi roi) {
+		ByteProcessor mask = new ByteProcessor(bp.getWidth(), bp.getHeight());
+		mask.setValue(255);
+		mask.fill(roi);
+		assertArrayEquals((byte[])bp.getPixels(), (byte[])mask.getPixels());
+	}
+
+	@Test
+	public void testConvert() {
+		// tall enough to be traced in several bands
+		ByteProcessor bp = makeMask(60, 4*ThresholdToSelection.BAND_HEIGHT+7, 1);
+		assertMask(bp, new ThresholdToSelection().convert(bp));
+		bp = makeMask(40, 30, 2);
+		assertMask(bp, new ThresholdToSelection().convert(bp));
+	}
+
+	@Test
+	public void testGetPolygons() {
+		ByteProcessor bp = makeMask(50, 3*ThresholdToSelection.BAND_HEIGHT, 3);
+		Polygon[] polygons = new ThresholdToSelection().getPolygons(bp);
+		GeneralPath path = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
+		for (Polygon polygon : polygons)
+			path.append(polygon, false);
+		assertMask(bp, new ShapeRoi(path));
+		assertEquals(0, new ThresholdToSelection().getPolygons(new ByteProcessor(5, 5)).length);
+		assertNull(new ThresholdToSelection().convert(new ByteProcessor(5, 5)));
+	}
+
+}
@@ -0,0 +1,175 @@
+package ij.plugin.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.measure.Calibration;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.Analyzer;
+import ij.process.ImageProcessor;
+
+import java.awt.GraphicsEnvironment;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link RoiStatistics}. ROIs measured concurrently must give
+ * the same rows, in the same order, as "Measure" with each ROI as the
+ * selection.
+ */
+public class RoiStatisticsTest {
+	private static final int MEASUREMENTS = Measurements.AREA|Measurements.MEAN|Measurements.STD_DEV
+		|Measurements.MODE|Measurements.MIN_MAX|Measurements.CENTROID|Measurements.CENTER_OF_MASS
+		|Measurements.PERIMETER|Measurements.RECT|Measurements.ELLIPSE|Measurements.SHAPE_DESCRIPTORS
+		|Measurements.FERET|Measurements.INTEGRATED_DENSITY|Measurements.MEDIAN|Measurements.SKEWNESS
+		|Measurements.KURTOSIS|Measurements.AREA_FRACTION|Measurements.STACK_POSITION|Measurements.SLICE
+		|Measurements.LABELS;
+	private static final int SLICES = 3;
+	private static final int ROIS_PER_SLICE = 40;  // more than one thread's share
+
+	private int measurements, threads;
+
+	@Before
+	public void setUp() {
+		measurements = Analyzer.getMeasurements();
+		threads = Prefs.getThreads();
+		Analyzer.setMeasurements(MEASUREMENTS);
+		Prefs.setThreads(4);
+	}
+
+	@After
+	public void tearDown() {
+		Analyzer.setMeasurements(measurements);
+		Prefs.setThreads(threads);
+		Analyzer.getResultsTable().reset();
+	}
+
+	/* A calibrated 16-bit stack, with a linear value calibration. */
+	private ImagePlus makeImage() {
+		Random random = new Random(11);
+		ImageStack stack = ImageStack.create(64, 48, SLICES, 16);
+		for (int z=1; z<=SLICES; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i=0; i<ip.getPixelCount(); i++)
+				ip.set(i, random.nextInt(400));
+		}
+		ImagePlus imp = new ImagePlus("stack", stack);
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.25;
+		cal.pixelHeight = 0.5;
+		cal.setUnit("um");
+		cal.setFunction(Calibration.STRAIGHT_LINE, new double[] {-3.0, 0.5}, "gray");
+		return imp;
+	}
+
+	/* Ovals, polygons and composite ROIs, some of them partly outside the image. */
+	private Roi[] makeRois(int[] slices) {
+		Random random = new Random(5);
+		Roi[] rois = new Roi[slices.length];
+		for (int i=0; i<rois.length; i++) {
+			int x = random.nextInt(70)-8, y = random.nextInt(54)-6;
+			switch (i%3) {
+				case 0:
+					rois[i] = new OvalRoi(x, y, 3+random.nextInt(20), 3+random.nextInt(15));
+					break;
+				case 1:
+					int[] xs = new int[5], ys = new int[5];
+					for (int k=0; k<xs.length; k++) {
+						xs[k] = x + random.nextInt(25);
+						ys[k] = y + random.nextInt(20);
+					}
+					rois[i] = new PolygonRoi(xs, ys, xs.length, Roi.POLYGON);
+					break;
+				default:
+					ShapeRoi s1 = new ShapeRoi(new OvalRoi(x, y, 15, 12));
+					ShapeRoi s2 = new ShapeRoi(new Roi(x+10, y+5, 12, 9));
+					ShapeRoi s3 = new ShapeRoi(new OvalRoi(x+4, y+3, 5, 4));
+					rois[i] = s1.or(s2).not(s3);
+			}
+			rois[i].setName("roi"+i);
+			rois[i].setPosition(slices[i]);
+		}
+		return rois;
+	}
+
+	private int[] makeSlices() {
+		int[] slices = new int[SLICES*ROIS_PER_SLICE];
+		for (int i=0; i<slices.length; i++)
+			slices[i] = 1 + (i*7)%SLICES;  // not sorted by slice
+		return slices;
+	}
+
+	/* The rows of the ROIs measured one at a time, as "Measure" does. Without
+		a Results window, Analyzer.displayResults() would keep only the last
+		row, and IJ.run() would need the menus, so measure() is called directly. */
+	private ResultsTable measureSerially(ImagePlus imp, Roi[] rois, int[] slices) {
+		ResultsTable rt = Analyzer.getResultsTable();
+		rt.reset();
+		for (int i=0; i<rois.length; i++) {
+			imp.setSlice(slices[i]);
+			imp.setRoi((Roi)rois[i].clone());
+			new Analyzer(imp).measure();
+		}
+		imp.deleteRoi();
+		return (ResultsTable)rt.clone();
+	}
+
+	private static void assertTablesEqual(ResultsTable expected, ResultsTable actual) {
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.getColumnHeadings(), actual.getColumnHeadings());
+		for (int row=0; row<expected.size(); row++) {
+			assertEquals(expected.getLabel(row), actual.getLabel(row));
+			for (int col=0; col<=expected.getLastColumn(); col++) {
+				if (!expected.columnExists(col))
+					continue;
+				assertEquals("row "+row+", "+expected.getColumnHeading(col),
+					expected.getValueAsDouble(col, row), actual.getValueAsDouble(col, row), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testMeasure() {
+		int[] slices = makeSlices();
+		Roi[] rois = makeRois(slices);
+		ImagePlus imp = makeImage();
+		ResultsTable expected = measureSerially(imp, rois, slices);
+		assertEquals(rois.length, expected.size());
+		Analyzer.getResultsTable().reset();
+		imp.setSlice(1);
+		Roi[] rois2 = new Roi[rois.length];
+		for (int i=0; i<rois.length; i++) {
+			rois2[i] = (Roi)rois[i].clone();
+			rois2[i].setImage(imp);
+		}
+		RoiStatistics.measure(imp, rois2, slices);
+		assertTablesEqual(expected, Analyzer.getResultsTable());
+	}
+
+	@Test
+	public void testRoiManagerMeasure() {
+		assumeFalse(GraphicsEnvironment.isHeadless());  // the ROI Manager is a Frame
+		int[] slices = makeSlices();
+		Roi[] rois = makeRois(slices);
+		ImagePlus imp = makeImage();
+		ResultsTable expected = measureSerially(imp, rois, slices);
+		Analyzer.getResultsTable().reset();
+		RoiManager rm = new RoiManager(false);
+		for (Roi roi : rois)
+			rm.add(imp, roi, -1);
+		imp.setSlice(1);
+		rm.runCommand(imp, "Measure");
+		assertTablesEqual(expected, Analyzer.getResultsTable());
+	}
+
+}
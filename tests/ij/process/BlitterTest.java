@@ -0,0 +1,227 @@
+package ij.process;
+
+import static ij.process.TestImages.assertPixelsEqual;
+import static ij.process.TestImages.fill;
+import static org.junit.Assert.assertEquals;
+import ij.Prefs;
+
+import java.awt.Color;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the Blitters: the transfer modes of each image type,
+ * clipping at the image borders, transparent colors, blits of an image
+ * onto itself, float blits from 8 and 16-bit sources, and blits of large
+ * images in bands of rows.
+ */
+public class BlitterTest {
+
+	private static ImageProcessor blit(ImageProcessor dst, ImageProcessor src, int x, int y, int mode, int nThreads) {
+		int threads = Prefs.getThreads();
+		Prefs.setThreads(nThreads);
+		try {
+			dst = dst.duplicate();
+			dst.copyBits(src, x, y, mode);
+			return dst;
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	// the blit of 'src' into a copy of 'dst' at (x0,y0), one pixel at a time
+	private static ImageProcessor expected(ImageProcessor dst, ImageProcessor src, int x0, int y0, int mode) {
+		dst = dst.duplicate();
+		if (dst instanceof FloatProcessor)
+			src = src.convertToFloat();
+		for (int y=Math.max(y0, 0); y<Math.min(y0+src.getHeight(), dst.getHeight()); y++) {
+			for (int x=Math.max(x0, 0); x<Math.min(x0+src.getWidth(), dst.getWidth()); x++)
+				combine(dst, x, y, src, x-x0, y-y0, mode);
+		}
+		return dst;
+	}
+
+	private static void combine(ImageProcessor dst, int x, int y, ImageProcessor src, int xs, int ys, int mode) {
+		if (dst instanceof FloatProcessor)
+			dst.setf(x, y, transfer(src.getf(xs, ys), dst.getf(x, y), mode));
+		else if (dst instanceof ColorProcessor)
+			dst.set(x, y, transferRGB(src.get(xs, ys), dst.get(x, y), mode));
+		else
+			dst.set(x, y, transfer(src.get(xs, ys), dst.get(x, y), mode, dst instanceof ByteProcessor ? 255 : 65535));
+	}
+
+	private static int transfer(int src, int dst, int mode, int max) {
+		switch (mode) {
+			case Blitter.COPY: return src;
+			case Blitter.COPY_INVERTED: return max==255 ? 255-src : src;
+			case Blitter.COPY_TRANSPARENT: return max==255 && src==255 ? dst : src;
+			case Blitter.COPY_ZERO_TRANSPARENT: return src==0 ? dst : src;
+			case Blitter.ADD: return Math.min(src+dst, max);
+			case Blitter.SUBTRACT: return Math.max(dst-src, 0);
+			case Blitter.MULTIPLY: return Math.min(Math.max(src*dst, 0), max);
+			case Blitter.DIVIDE: return src==0 ? max : dst/src;
+			case Blitter.AND: return src&dst;
+			case Blitter.OR: return src|dst;
+			case Blitter.XOR: return src^dst;
+			case Blitter.MIN: return Math.min(src, dst);
+			case Blitter.MAX: return Math.max(src, dst);
+			case Blitter.AVERAGE: return (src+dst)/2;
+			case Blitter.DIFFERENCE: return Math.abs(dst-src);
+			default: throw new IllegalArgumentException("mode: "+mode);
+		}
+	}
+
+	private static int transferRGB(int src, int dst, int mode) {
+		switch (mode) {
+			case Blitter.COPY: return src;
+			case Blitter.COPY_TRANSPARENT: return (src&0xffffff)==0xffffff ? dst : src;
+			case Blitter.COPY_ZERO_TRANSPARENT: return (src&0xffffff)==0 ? dst : src;
+			case Blitter.COPY_INVERTED: return 0xff000000|dst;
+		}
+		int rgb = 0xff000000;
+		for (int shift=16; shift>=0; shift-=8)
+			rgb |= transfer(src>>shift&255, dst>>shift&255, mode, 255)<<shift;
+		return rgb;
+	}
+
+	private static float transfer(float src, float dst, int mode) {
+		switch (mode) {
+			case Blitter.COPY: case Blitter.COPY_INVERTED: case Blitter.COPY_TRANSPARENT: return src;
+			case Blitter.COPY_ZERO_TRANSPARENT: return src==0f ? dst : src;
+			case Blitter.ADD: return src+dst;
+			case Blitter.SUBTRACT: return dst-src;
+			case Blitter.MULTIPLY: return src*dst;
+			case Blitter.DIVIDE: return src==0f && !Float.isInfinite(FloatBlitter.divideByZeroValue) ? FloatBlitter.divideByZeroValue : dst/src;
+			case Blitter.AND: return (int)src&(int)dst;
+			case Blitter.OR: return (int)src|(int)dst;
+			case Blitter.XOR: return (int)src^(int)dst;
+			case Blitter.MIN: return src<dst ? src : dst;
+			case Blitter.MAX: return src>dst ? src : dst;
+			case Blitter.AVERAGE: return (src+dst)/2;
+			case Blitter.DIFFERENCE: return dst-src<0 ? src-dst : dst-src;
+			default: throw new IllegalArgumentException("mode: "+mode);
+		}
+	}
+
+	@Test
+	public void testTransferModes() {
+		ImageProcessor[] ips = {new ByteProcessor(37, 29), new ShortProcessor(37, 29),
+			new FloatProcessor(37, 29), new ColorProcessor(37, 29)};
+		for (int i=0; i<ips.length; i++) {
+			ImageProcessor dst = fill(ips[i], i);
+			ImageProcessor src = fill(dst.createProcessor(20, 15), 17);
+			src.set(0, 0);  // zero and (for 8 bits) transparent white source pixels
+			src.set(1, 0, dst instanceof ColorProcessor ? 0xffffff : 255);
+			for (int mode=Blitter.COPY; mode<=Blitter.COPY_ZERO_TRANSPARENT; mode++)
+				assertPixelsEqual(expected(dst, src, 6, 4, mode).getPixels(), blit(dst, src, 6, 4, mode, 1).getPixels());
+		}
+	}
+
+	@Test
+	public void testClipping() {
+		int[][] locations = {{-7, -5}, {25, 20}, {-7, 20}, {30, -10}, {-20, -15}, {37, 0}, {0, 29}, {-40, 3}};
+		ImageProcessor[] ips = {fill(new ShortProcessor(37, 29), 1), fill(new ColorProcessor(37, 29), 2)};
+		for (ImageProcessor dst : ips) {
+			ImageProcessor src = fill(dst.createProcessor(20, 15), 3);
+			for (int[] location : locations) {
+				for (int mode : new int[] {Blitter.COPY, Blitter.ADD, Blitter.DIFFERENCE}) {
+					ImageProcessor expected = expected(dst, src, location[0], location[1], mode);
+					assertPixelsEqual(expected.getPixels(), blit(dst, src, location[0], location[1], mode, 1).getPixels());
+				}
+			}
+		}
+		ImageProcessor dst = fill(new ByteProcessor(37, 29), 4);
+		ImageProcessor large = fill(new ByteProcessor(50, 40), 5);  // covers the whole destination
+		assertPixelsEqual(expected(dst, large, -6, -4, Blitter.MAX).getPixels(), blit(dst, large, -6, -4, Blitter.MAX, 1).getPixels());
+	}
+
+	@Test
+	public void testTransparentColor() {
+		ImageProcessor dst = fill(new ByteProcessor(30, 20), 6);
+		ImageProcessor src = fill(new ByteProcessor(30, 20), 7);
+		for (int i=0; i<src.getPixelCount(); i+=3)
+			src.set(i, 100);
+		ImageProcessor dst2 = dst.duplicate();
+		ByteBlitter blitter = new ByteBlitter((ByteProcessor)dst2);
+		blitter.setTransparentColor(new Color(100, 100, 100));
+		blitter.copyBits(src, 0, 0, Blitter.COPY_TRANSPARENT);
+		for (int i=0; i<src.getPixelCount(); i++)
+			assertEquals(src.get(i)==100 ? dst.get(i) : src.get(i), dst2.get(i));
+
+		dst = fill(new ColorProcessor(30, 20), 8);
+		src = fill(new ColorProcessor(30, 20), 9);
+		for (int i=0; i<src.getPixelCount(); i+=3)
+			src.set(i, 0x00ff8040);
+		dst2 = dst.duplicate();
+		ColorBlitter colorBlitter = new ColorBlitter((ColorProcessor)dst2);
+		colorBlitter.setTransparentColor(new Color(0xff, 0x80, 0x40));
+		colorBlitter.copyBits(src, 0, 0, Blitter.COPY_TRANSPARENT);
+		for (int i=0; i<src.getPixelCount(); i++) {
+			int expected = (src.get(i)&0xffffff)==0xff8040 ? dst.get(i) : src.get(i);
+			assertEquals(expected, dst2.get(i));
+		}
+	}
+
+	@Test
+	public void testSelfBlit() {  // the rows overlap, so they are combined in order, on one thread
+		int width = 1030, height = 1025;  // large enough for bands
+		ImageProcessor[] ips = {fill(new ByteProcessor(width, height), 10), fill(new FloatProcessor(width, height), 11)};
+		int[][] locations = {{3, 2}, {-2, -1}};
+		for (ImageProcessor ip : ips) {
+			for (int[] location : locations) {
+				for (int mode : new int[] {Blitter.COPY, Blitter.ADD}) {
+					ImageProcessor expected = ip.duplicate();
+					int x0 = location[0], y0 = location[1];
+					for (int y=Math.max(y0, 0); y<Math.min(y0+height, height); y++) {
+						for (int x=Math.max(x0, 0); x<Math.min(x0+width, width); x++)
+							combine(expected, x, y, expected, x-x0, y-y0, mode);
+					}
+					int threads = Prefs.getThreads();
+					Prefs.setThreads(4);
+					try {
+						ImageProcessor actual = ip.duplicate();
+						actual.copyBits(actual, x0, y0, mode);
+						assertPixelsEqual(expected.getPixels(), actual.getPixels());
+					} finally {
+						Prefs.setThreads(threads);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFloatFromIntegerSources() {  // 8 and 16-bit sources are read without conversion, unless calibrated
+		ImageProcessor dst = fill(new FloatProcessor(40, 30), 12);
+		ImageProcessor calibrated = fill(new ShortProcessor(25, 20), 14);
+		float[] cTable = new float[65536];
+		for (int i=0; i<cTable.length; i++)
+			cTable[i] = -100f + 0.25f*i;
+		calibrated.setCalibrationTable(cTable);
+		ImageProcessor[] sources = {fill(new ByteProcessor(25, 20), 13), fill(new ShortProcessor(25, 20), 13), calibrated};
+		for (ImageProcessor src : sources) {
+			for (int mode : new int[] {Blitter.COPY, Blitter.SUBTRACT, Blitter.DIVIDE, Blitter.AVERAGE}) {
+				Object expected = blit(dst, src.convertToFloat(), 9, 7, mode, 1).getPixels();
+				assertPixelsEqual(expected, blit(dst, src, 9, 7, mode, 1).getPixels());
+			}
+		}
+	}
+
+	@Test
+	public void testBands() {
+		int width = 1031, height = 1029;  // large enough to be blitted in bands
+		ImageProcessor[] ips = {new ByteProcessor(width, height), new ShortProcessor(width, height),
+			new FloatProcessor(width, height), new ColorProcessor(width, height)};
+		for (int i=0; i<ips.length; i++)
+			fill(ips[i], i);
+		for (ImageProcessor dst : ips) {
+			ImageProcessor src = dst instanceof FloatProcessor ? ips[1] : fill(dst.duplicate(), 17);
+			for (int mode : new int[] {Blitter.COPY, Blitter.ADD, Blitter.MULTIPLY, Blitter.DIFFERENCE}) {
+				Object expected = expected(dst, src, 5, -3, mode).getPixels();
+				assertPixelsEqual(expected, blit(dst, src, 5, -3, mode, 1).getPixels());
+				assertPixelsEqual(expected, blit(dst, src, 5, -3, mode, 3).getPixels());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package ij.process;
+
+import static ij.process.TestImages.fill;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for create8BitImage(Rectangle), which converts the tiles of
+ * large 16 and 32-bit images for display. Each tile must have the pixels
+ * of the same region of the image converted by createImage().
+ */
+public class Create8BitImageTest {
+	private static final Rectangle[] TILES = {new Rectangle(0, 0, 64, 48),
+		new Rectangle(17, 30, 250, 123), new Rectangle(301, 190, 99, 60), new Rectangle(0, 0, 400, 250)};
+
+	private static void assertTiles(ImageProcessor ip) {
+		ip.createImage();
+		byte[] pixels8 = ip instanceof ShortProcessor ? ((ShortProcessor)ip).pixels8 : ((FloatProcessor)ip).pixels8;
+		int width = ip.getWidth();
+		for (Rectangle r : TILES) {
+			byte[] tile = ip.create8BitImage(r);
+			assertEquals(r.width*r.height, tile.length);
+			for (int y=0; y<r.height; y++) {
+				for (int x=0; x<r.width; x++)
+					assertEquals(r+" at "+x+","+y, pixels8[(r.y+y)*width+r.x+x], tile[y*r.width+x]);
+			}
+		}
+	}
+
+	private static void testProcessor(ImageProcessor ip, double min, double max, double lower, double upper) {
+		ip.resetMinAndMax();
+		assertTiles(ip);
+		ip.setMinAndMax(min, max);
+		assertTiles(ip);
+		ip.setThreshold(lower, upper, ImageProcessor.RED_LUT);
+		assertTiles(ip);
+		ip.setThreshold(lower, upper, ImageProcessor.BLACK_AND_WHITE_LUT);
+		assertTiles(ip);
+		ip.setThreshold(lower, upper, ImageProcessor.NO_LUT_UPDATE);
+		assertTiles(ip);
+	}
+
+	@Test
+	public void testShortProcessor() {
+		ImageProcessor ip = fill(new ShortProcessor(400, 250), 1);
+		testProcessor(ip, 2000, 50000, 10000, 30000);
+	}
+
+	@Test
+	public void testFloatProcessor() {
+		ImageProcessor ip = fill(new FloatProcessor(400, 250), 2);
+		double min = ip.getMin(), max = ip.getMax();
+		testProcessor(ip, min+0.2*(max-min), max-0.3*(max-min), min+0.4*(max-min), min+0.6*(max-min));
+	}
+
+	@Test
+	public void testOtherTypes() {  // displayed without conversion
+		assertNull(new ByteProcessor(40, 30).create8BitImage(new Rectangle(0, 0, 10, 10)));
+		assertNull(new ColorProcessor(40, 30).create8BitImage(new Rectangle(0, 0, 10, 10)));
+	}
+
+}
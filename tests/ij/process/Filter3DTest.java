@@ -0,0 +1,123 @@
+package ij.process;
+
+import static org.junit.Assert.assertEquals;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.util.ArrayUtil;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link Filter3D}, compared with the neighborhoods of
+ * single voxels.
+ */
+public class Filter3DTest {
+	private static final int[] FILTERS = {StackProcessor.FILTER_MEAN, StackProcessor.FILTER_MEDIAN, StackProcessor.FILTER_MIN,
+		StackProcessor.FILTER_MAX, StackProcessor.FILTER_VAR, StackProcessor.FILTER_MAXLOCAL};
+
+	private ImageStack makeStack(int bitDepth, boolean special) {
+		Random random = new Random(7);
+		ImageStack stack = ImageStack.create(19, 13, 6, bitDepth);
+		float[] specials = {Float.NaN, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 3e20f};
+		for (int z=1; z<=stack.size(); z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i=0; i<ip.getPixelCount(); i++) {
+				if (special && random.nextInt(8)==0)  // about 1/8 NaNs, infinities and values whose square is infinite
+					ip.setf(i, specials[random.nextInt(specials.length)]);
+				else
+					ip.setf(i, bitDepth==32 ? (float)random.nextGaussian() : random.nextInt(bitDepth==8 ? 256 : 3000));
+			}
+		}
+		return stack;
+	}
+
+	private double filterVoxel(ImageStack stack, int x0, int y0, int z0, float rx, float ry, float rz, int filter) {
+		ArrayUtil values = new ArrayUtil(stack.getWidth()*stack.getHeight()*stack.size());
+		int n = 0;
+		for (int z=0; z<stack.size(); z++)
+			for (int y=0; y<stack.getHeight(); y++)
+				for (int x=0; x<stack.getWidth(); x++) {
+					double dx=x-x0, dy=y-y0, dz=z-z0;
+					if ((rx==0 && dx!=0) || (ry==0 && dy!=0) || (rz==0 && dz!=0))
+						continue;
+					if ((rx==0 ? 0 : dx*dx/(rx*rx)) + (ry==0 ? 0 : dy*dy/(ry*ry)) + (rz==0 ? 0 : dz*dz/(rz*rz)) <= 1.0)
+						values.putValue(n++, (float)stack.getVoxel(x, y, z));
+				}
+		values.setSize(n);
+		switch (filter) {
+			case StackProcessor.FILTER_MEAN: return values.getMean();
+			case StackProcessor.FILTER_MIN: return values.getMinimum();
+			case StackProcessor.FILTER_MAX: return values.getMaximum();
+			case StackProcessor.FILTER_VAR: return values.getVariance();
+			case StackProcessor.FILTER_MAXLOCAL:
+				double value = stack.getVoxel(x0, y0, z0);
+				return values.isMaximum(value) ? value : 0;
+			default: return values.medianSort();
+		}
+	}
+
+	private void check(int bitDepth, int filter, float rx, float ry, float rz, boolean special) {
+		ImageStack stack = makeStack(bitDepth, special);
+		ImageStack out = ImageStack.create(stack.getWidth(), stack.getHeight(), stack.size(), filter==StackProcessor.FILTER_VAR ? 32 : bitDepth);
+		ImageStack expected = out.duplicate();
+		new StackProcessor(stack).filter3D(out, rx, ry, rz, 0, stack.size(), filter);
+		for (int z=0; z<stack.size(); z++)
+			for (int y=0; y<stack.getHeight(); y++)
+				for (int x=0; x<stack.getWidth(); x++) {
+					expected.setVoxel(x, y, z, filterVoxel(stack, x, y, z, rx, ry, rz, filter));
+					double value = expected.getVoxel(x, y, z);
+					if (Double.isNaN(value) || Double.isInfinite(value))
+						assertEquals(Double.valueOf(value), Double.valueOf(out.getVoxel(x, y, z)));
+					else
+						assertEquals(value, out.getVoxel(x, y, z), 1e-4);
+				}
+	}
+
+	@Test
+	public void testFilters() {
+		int threads = Prefs.getThreads();
+		Prefs.setThreads(3);
+		try {
+			for (int filter : FILTERS) {
+				for (int bitDepth=8; bitDepth<=32; bitDepth*=2) {
+					check(bitDepth, filter, 2f, 2f, 1f, false);
+					check(bitDepth, filter, 3f, 1.5f, 0f, false);
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	@Test
+	public void testNaNs() {  // NaNs and infinities give the same results as ArrayUtil
+		for (int filter : FILTERS) {
+			check(32, filter, 2f, 2f, 1f, true);
+			check(32, filter, 1f, 1f, 1f, true);
+		}
+	}
+
+	@Test
+	public void testLargeValue() {  // a large value only changes the variance of the windows that contain it
+		Random random = new Random(3);
+		ImageStack stack = ImageStack.create(2000, 3, 3, 32);
+		for (int z=1; z<=stack.size(); z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i=0; i<ip.getPixelCount(); i++)
+				ip.setf(i, (float)(1000+random.nextGaussian()));
+		}
+		stack.setVoxel(10, 1, 1, 1e9);
+		ImageStack out = ImageStack.create(stack.getWidth(), stack.getHeight(), stack.size(), 32);
+		new StackProcessor(stack).filter3D(out, 2f, 1f, 1f, 0, stack.size(), StackProcessor.FILTER_VAR);
+		int[] xs = {0, 7, 9, 12, 13, 100, 1000, 1990, 1999};
+		for (int x : xs) {
+			for (int y=0; y<stack.getHeight(); y++) {
+				double expected = filterVoxel(stack, x, y, 1, 2f, 1f, 1f, StackProcessor.FILTER_VAR);
+				assertEquals(expected, out.getVoxel(x, y, 1), Math.abs(expected)*1e-5 + 1e-3);
+			}
+		}
+	}
+
+}
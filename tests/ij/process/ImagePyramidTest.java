@@ -0,0 +1,52 @@
+package ij.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ImagePyramid}.
+ */
+public class ImagePyramidTest {
+
+	@Test
+	public void testLevels() {
+		ShortProcessor sp = new ShortProcessor(1000, 300);
+		for (int i=0; i<1000*300; i++)
+			sp.set(i, i%1000);
+		sp.setMinAndMax(100, 900);
+		ImagePyramid pyramid = new ImagePyramid(sp);
+		assertEquals(3, pyramid.getLevelCount());  // 300/4 >= MIN_SIZE
+		assertEquals(0, pyramid.getLevel(0.75));
+		assertEquals(1, pyramid.getLevel(0.5));
+		assertEquals(1, pyramid.getLevel(0.3));
+		assertEquals(2, pyramid.getLevel(0.25));
+		assertEquals(2, pyramid.getLevel(0.01));
+		assertNull(pyramid.getLevelProcessor(1));
+		pyramid.compute(2);
+		assertTrue(pyramid.isCurrent(2));
+		ImageProcessor level = pyramid.getLevelProcessor(2);
+		assertEquals(250, level.getWidth());
+		assertEquals(75, level.getHeight());
+		assertEquals(5.5, level.getf(1, 0), 0.5);  // average of 4..7
+		assertEquals(100.0, level.getMin(), 0.0);
+		assertEquals(900.0, level.getMax(), 0.0);
+		pyramid.invalidate();
+		assertFalse(pyramid.isCurrent(1));
+		assertTrue(pyramid.getLevelProcessor(1)!=null);  // until computed again
+	}
+
+	@Test
+	public void testSetPixels() {  // as by ImagePlus.setSlice()
+		ByteProcessor bp = new ByteProcessor(256, 256);
+		ImagePyramid pyramid = new ImagePyramid(bp);
+		assertTrue(pyramid.isPyramidOf(bp));
+		assertFalse(pyramid.isPyramidOf(bp.duplicate()));
+		bp.setPixels(new byte[256*256]);
+		assertFalse(pyramid.isPyramidOf(bp));
+	}
+
+}
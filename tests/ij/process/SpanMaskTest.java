@@ -0,0 +1,89 @@
+package ij.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import ij.gui.OvalRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SpanMask}.
+ */
+public class SpanMaskTest {
+
+	@Test
+	public void testCreate() {
+		assertNull(SpanMask.create(null));
+		ByteProcessor mask = new ByteProcessor(5, 2);
+		mask.set(1, 0, 255);
+		mask.set(2, 0, 255);
+		mask.set(4, 0, 255);
+		SpanMask spans = SpanMask.create(mask);
+		assertArrayEquals(new int[] {0,4,4}, spans.getRows());
+		assertArrayEquals(new int[] {1,3,4,5}, spans.getSpans());
+		assertEquals(2, spans.getSpanCount());
+		assertEquals(3, spans.getPixelCount());
+		assertTrue(spans.contains(2, 0));
+		assertFalse(spans.contains(3, 0));
+		assertFalse(spans.contains(2, 1));
+	}
+
+	@Test
+	public void testCrop() {
+		SpanMask spans = new SpanMask(6, 2, new int[] {0,2,4}, new int[] {1,5,0,6});
+		SpanMask cropped = spans.crop(2, 1, 3, 1);
+		assertEquals(3, cropped.getWidth());
+		assertEquals(1, cropped.getHeight());
+		assertArrayEquals(new int[] {0,3}, cropped.getSpans());
+	}
+
+	@Test
+	public void testRoiSpanMasks() {
+		ShapeRoi ring = new ShapeRoi(new OvalRoi(0,0,40,30)).xor(new ShapeRoi(new OvalRoi(10,8,20,14)));
+		int[] xs = {3, 47, 20, 40, 5};
+		int[] ys = {2, 10, 35, 30, 28};
+		Roi[] rois = {new OvalRoi(3,4,37,21), ring, new PolygonRoi(xs, ys, 5, Roi.POLYGON)};
+		for (Roi roi : rois) {
+			ImageProcessor mask = roi.getMask();
+			SpanMask spans = roi.getSpanMask();
+			assertArrayEquals((byte[])mask.getPixels(), (byte[])spans.getMask().getPixels());
+			assertArrayEquals(spans.getSpans(), SpanMask.create(mask).getSpans());
+		}
+		assertNull(new Roi(1,2,3,4).getSpanMask());
+	}
+
+	@Test
+	public void testStatisticsAndFill() {
+		ByteProcessor bp = new ByteProcessor(50, 40);
+		for (int i=0; i<50*40; i++)
+			bp.set(i, i%251);
+		Roi roi = new OvalRoi(-5,10,30,40);  // partly outside
+		bp.setRoi(roi);
+		assertTrue(bp.getSpanMask()!=null);
+		ImageStatistics stats1 = bp.getStats();
+		ImageProcessor mask = bp.getMask();
+		assertNull(bp.getSpanMask());
+		bp.setMask(mask);
+		ImageStatistics stats2 = bp.getStats();
+		assertEquals(stats2.pixelCount, stats1.pixelCount);
+		assertEquals(stats2.mean, stats1.mean, 0.0);
+		assertArrayEquals(stats2.histogram, stats1.histogram);
+
+		ByteProcessor bp1 = new ByteProcessor(50, 40);
+		bp1.setValue(255);
+		bp1.fill(roi);
+		ByteProcessor bp2 = new ByteProcessor(50, 40);
+		bp2.setValue(255);
+		bp2.setRoi(roi);
+		bp2.fill(bp2.getMask());
+		assertArrayEquals((byte[])bp2.getPixels(), (byte[])bp1.getPixels());
+		assertEquals(stats1.pixelCount, bp1.getStats().histogram[255]);
+	}
+
+}
@@ -0,0 +1,181 @@
+package ij.process;
+
+import static ij.process.TestImages.assertPixelsEqual;
+import static ij.process.TestImages.createStack;
+import static org.junit.Assert.assertEquals;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.OvalRoi;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the stack-wide transforms of {@link StackProcessor}, which
+ * process the slices in parallel. The results are compared with the slices
+ * transformed one at a time, with a single processor, at 1 and 4 threads.
+ */
+public class StackProcessorTest {
+	private static final int[] BIT_DEPTHS = {8, 16, 24, 32};
+	private static final int[] THREADS = {1, 4};
+
+	private ImageStack makeStack(int bitDepth) {
+		return createStack(29, 17, 7, bitDepth, bitDepth);
+	}
+
+	/* A processor with a non-rectangular ROI and bilinear interpolation,
+		as the one of the image that is passed to the StackProcessor. */
+	private ImageProcessor makeProcessor(ImageStack stack) {
+		ImageProcessor ip = stack.getProcessor(1).duplicate();
+		ip.setRoi(new OvalRoi(3, 2, 20, 13));
+		ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+		return ip;
+	}
+
+	/* The slice by slice loop that StackProcessor.process() used before it
+		processed the slices in parallel. */
+	private void processSerially(ImageStack stack, ImageProcessor ip, int command, int[] table) {
+		ImageProcessor ip2 = stack.getProcessor(1);
+		if (command==StackProcessor.SCALE_WITH_FILL)
+			ip2.setBackgroundValue(5);
+		ip2.setRoi(ip.getRoi());
+		ip2.setInterpolate(ip.getInterpolate());
+		for (int i=1; i<=stack.size(); i++) {
+			ip2.setPixels(stack.getPixels(i));
+			switch (command) {
+				case StackProcessor.FLIPH: ip2.flipHorizontal(); break;
+				case StackProcessor.FLIPV: ip2.flipVertical(); break;
+				case StackProcessor.SCALE: case StackProcessor.SCALE_WITH_FILL: ip2.scale(0.7, 1.3); break;
+				case StackProcessor.INVERT: ip2.invert(); break;
+				case StackProcessor.APPLY_TABLE: ip2.applyTable(table); break;
+			}
+		}
+	}
+
+	private void process(ImageStack stack, ImageProcessor ip, int command, int[] table) {
+		StackProcessor sp = new StackProcessor(stack, ip);
+		switch (command) {
+			case StackProcessor.FLIPH: sp.flipHorizontal(); break;
+			case StackProcessor.FLIPV: sp.flipVertical(); break;
+			case StackProcessor.SCALE: sp.scale(0.7, 1.3); break;
+			case StackProcessor.SCALE_WITH_FILL: sp.scale(0.7, 1.3, 5); break;
+			case StackProcessor.INVERT: sp.invert(); break;
+			case StackProcessor.APPLY_TABLE: sp.applyTable(table); break;
+		}
+	}
+
+	private static void assertStacksEqual(ImageStack expected, ImageStack actual) {
+		assertEquals(expected.size(), actual.size());
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for (int i=1; i<=expected.size(); i++) {
+			assertEquals(expected.getSliceLabel(i), actual.getSliceLabel(i));
+			assertPixelsEqual(expected.getPixels(i), actual.getPixels(i));
+		}
+	}
+
+	@Test
+	public void testProcess() {
+		int[] commands = {StackProcessor.FLIPH, StackProcessor.FLIPV, StackProcessor.SCALE,
+			StackProcessor.SCALE_WITH_FILL, StackProcessor.INVERT, StackProcessor.APPLY_TABLE};
+		int threads = Prefs.getThreads();
+		try {
+			for (int bitDepth : BIT_DEPTHS) {
+				int[] table = new int[bitDepth==16 ? 65536 : 256];
+				for (int i=0; i<table.length; i++)
+					table[i] = (i*7)%table.length;
+				for (int command : commands) {
+					if (command==StackProcessor.APPLY_TABLE && bitDepth==32)
+						continue;  // not supported by FloatProcessor
+					ImageStack expected = makeStack(bitDepth);
+					processSerially(expected, makeProcessor(expected), command, table);
+					for (int nThreads : THREADS) {
+						Prefs.setThreads(nThreads);
+						ImageStack stack = makeStack(bitDepth);
+						process(stack, makeProcessor(stack), command, table);
+						assertStacksEqual(expected, stack);
+					}
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	@Test
+	public void testResizeCropRotate() {
+		int threads = Prefs.getThreads();
+		try {
+			for (int bitDepth : BIT_DEPTHS) {
+				for (int command=0; command<5; command++) {
+					ImageStack original = makeStack(bitDepth);
+					for (int i=1; i<=original.size(); i++)
+						original.setSliceLabel("slice"+i, i);
+					ImageStack expected = null;
+					for (int i=1; i<=original.size(); i++) {
+						ImageProcessor slice = original.getProcessor(i).duplicate();
+						slice.setRoi(new OvalRoi(3, 2, 20, 13));
+						slice.setInterpolationMethod(ImageProcessor.BILINEAR);
+						ImageProcessor result = null;
+						switch (command) {
+							case 0: result = slice.resize(13, 31, false); break;
+							case 1: result = slice.resize(13, 8, true); break;
+							case 2: slice.setRoi(4, 3, 11, 9); result = slice.crop(); break;
+							case 3: result = slice.rotateRight(); break;
+							case 4: result = slice.rotateLeft(); break;
+						}
+						if (expected==null)
+							expected = new ImageStack(result.getWidth(), result.getHeight());
+						expected.addSlice(original.getSliceLabel(i), result);
+					}
+					for (int nThreads : THREADS) {
+						Prefs.setThreads(nThreads);
+						ImageStack stack = original.duplicate();
+						StackProcessor sp = new StackProcessor(stack, makeProcessor(stack));
+						ImageStack stack2 = null;
+						switch (command) {
+							case 0: stack2 = sp.resize(13, 31); break;
+							case 1: stack2 = sp.resize(13, 8, true); break;
+							case 2: stack2 = sp.crop(4, 3, 11, 9); break;
+							case 3: stack2 = sp.rotateRight(); break;
+							case 4: stack2 = sp.rotateLeft(); break;
+						}
+						assertStacksEqual(expected, stack2);
+					}
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	@Test
+	public void testCopyBits() {
+		int[] modes = {Blitter.COPY, Blitter.ADD, Blitter.DIFFERENCE, Blitter.MAX};
+		int threads = Prefs.getThreads();
+		try {
+			for (int bitDepth : BIT_DEPTHS) {
+				ImageStack src = createStack(11, 9, 7, bitDepth, 3);
+				for (int mode : modes) {
+					for (int source=0; source<2; source++) {
+						ImageStack expected = makeStack(bitDepth);
+						for (int i=1; i<=expected.size(); i++)
+							expected.getProcessor(i).copyBits(src.getProcessor(source==0 ? 1 : i), 21, -2, mode);
+						for (int nThreads : THREADS) {
+							Prefs.setThreads(nThreads);
+							ImageStack stack = makeStack(bitDepth);
+							StackProcessor sp = new StackProcessor(stack);
+							if (source==0)
+								sp.copyBits(src.getProcessor(1), 21, -2, mode);
+							else
+								sp.copyBits(src, 21, -2, mode);
+							assertStacksEqual(expected, stack);
+						}
+					}
+				}
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+}
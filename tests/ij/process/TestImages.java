@@ -0,0 +1,65 @@
+package ij.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import ij.ImageStack;
+
+import java.util.Random;
+
+/**
+ * Random test images, and exact comparisons of their pixels, for the tests
+ * of the parallel image operations.
+ */
+public final class TestImages {
+
+	private TestImages() {
+		// prevent instantiation of utility class
+	}
+
+	/**
+	 * Fills 'ip' with random values: Gaussian with a standard deviation of
+	 * 1000 for float images, 0-4999 for 16-bit images, and random bytes or
+	 * colors otherwise. Resets the display range.
+	 */
+	public static ImageProcessor fill(ImageProcessor ip, long seed) {
+		fill(ip, new Random(seed));
+		return ip;
+	}
+
+	/** Returns a stack of 'depth' random images; see {@link #fill}. */
+	public static ImageStack createStack(int width, int height, int depth, int bitDepth, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = ImageStack.create(width, height, depth, bitDepth);
+		for (int z=1; z<=depth; z++)
+			fill(stack.getProcessor(z), random);
+		return stack;
+	}
+
+	private static void fill(ImageProcessor ip, Random random) {
+		for (int i=0; i<ip.getPixelCount(); i++)
+			ip.setf(i, ip instanceof FloatProcessor ? (float)(random.nextGaussian()*1000) : random.nextInt(ip instanceof ShortProcessor ? 5000 : 1<<24));
+		ip.resetMinAndMax();
+	}
+
+	/**
+	 * Asserts that two pixel arrays are equal. Float pixels are compared bit
+	 * by bit, so NaNs and infinities must match as well.
+	 */
+	public static void assertPixelsEqual(Object expected, Object actual) {
+		if (expected instanceof byte[])
+			assertArrayEquals((byte[])expected, (byte[])actual);
+		else if (expected instanceof short[])
+			assertArrayEquals((short[])expected, (short[])actual);
+		else if (expected instanceof float[])
+			assertArrayEquals(bits((float[])expected), bits((float[])actual));
+		else
+			assertArrayEquals((int[])expected, (int[])actual);
+	}
+
+	private static int[] bits(float[] a) {
+		int[] bits = new int[a.length];
+		for (int i=0; i<a.length; i++)
+			bits[i] = Float.floatToIntBits(a[i]);
+		return bits;
+	}
+
+}
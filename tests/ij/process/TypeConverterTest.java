@@ -0,0 +1,131 @@
+package ij.process;
+
+import static ij.process.TestImages.assertPixelsEqual;
+import static ij.process.TestImages.fill;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link TypeConverter}: scaling to the display range,
+ * clamping without scaling, calibration tables, RGB weights, and the
+ * conversion of large images in bands of rows.
+ */
+public class TypeConverterTest {
+
+	private static TypeConverter converter(ImageProcessor ip, boolean doScaling, int nThreads) {
+		TypeConverter tc = new TypeConverter(ip, doScaling);
+		tc.nThreads = nThreads;
+		return tc;
+	}
+
+	private static ImageProcessor row(ImageProcessor ip, double... values) {
+		for (int x=0; x<values.length; x++)
+			ip.putPixelValue(x, 0, values[x]);
+		return ip;
+	}
+
+	private static void assertRow(int[] expected, ImageProcessor ip) {
+		for (int x=0; x<expected.length; x++)
+			assertEquals("x="+x, expected[x], ip.get(x, 0));
+	}
+
+	@Test
+	public void testShortToByte() {
+		ImageProcessor ip = row(new ShortProcessor(7, 1), 0, 999, 1000, 1500, 2000, 2001, 65535);
+		ip.setMinAndMax(1000, 2000);  // 256/1001 gray levels per 8-bit level
+		assertRow(new int[] {0, 0, 0, 128, 255, 255, 255}, converter(ip, true, 1).convertToByte());
+		assertRow(new int[] {0, 255, 255, 255, 255, 255, 255}, converter(ip, false, 1).convertToByte());
+		ip = row(new ShortProcessor(4, 1), 0, 17, 255, 256);
+		assertRow(new int[] {0, 17, 255, 255}, converter(ip, false, 1).convertToByte());
+	}
+
+	@Test
+	public void testFloatToShort() {
+		ImageProcessor ip = row(new FloatProcessor(6, 1), -5, 0, 2.4, 2.6, 10, 70000);
+		ip.setMinAndMax(0, 10);
+		assertRow(new int[] {0, 0, 15728, 17039, 65535, 65535}, converter(ip, true, 1).convertToShort());
+		assertRow(new int[] {0, 0, 2, 3, 10, 65535}, converter(ip, false, 1).convertToShort());
+		ip.setMinAndMax(2.0, 2.0);  // an empty display range only shifts the values
+		assertRow(new int[] {0, 0, 0, 1, 8, 65535}, converter(ip, true, 1).convertToShort());
+	}
+
+	@Test
+	public void testCalibrationTable() {
+		ImageProcessor bp = fill(new ByteProcessor(40, 30), 1);
+		float[] cTable8 = new float[256];
+		for (int i=0; i<cTable8.length; i++)
+			cTable8[i] = 255f - 0.5f*i;
+		ImageProcessor fp = converter(bp, false, 1).convertToFloat(cTable8);
+		for (int i=0; i<bp.getPixelCount(); i++)
+			assertEquals(cTable8[bp.get(i)], fp.getf(i), 0f);
+
+		ImageProcessor sp = fill(new ShortProcessor(40, 30), 2);
+		float[] cTable16 = new float[65536];
+		for (int i=0; i<cTable16.length; i++)
+			cTable16[i] = -32768f + i;
+		fp = converter(sp, false, 1).convertToFloat(cTable16);
+		for (int i=0; i<sp.getPixelCount(); i++)
+			assertEquals(cTable16[sp.get(i)], fp.getf(i), 0f);
+
+		// a table of the wrong length is ignored
+		fp = converter(sp, false, 1).convertToFloat(cTable8);
+		for (int i=0; i<sp.getPixelCount(); i++)
+			assertEquals(sp.get(i), fp.getf(i), 0f);
+	}
+
+	@Test
+	public void testRGBWeights() {
+		ColorProcessor cp = new ColorProcessor(3, 1, new int[] {0xffff0000, 0xff00ff00, 0xff204080});
+		assertRow(new int[] {85, 85, 75}, converter(cp, false, 1).convertToByte());  // (r+g+b)/3
+		cp.setRGBWeights(0.299, 0.587, 0.114);
+		assertRow(new int[] {76, 150, 62}, converter(cp, false, 1).convertToByte());
+		ImageProcessor fp = converter(cp, false, 1).convertToFloat(null);
+		assertEquals(0x20*0.299+0x40*0.587+0x80*0.114, fp.getf(2), 1e-4);
+		assertRow(new int[] {76, 150, 62}, converter(cp, false, 1).convertToShort());
+	}
+
+	@Test
+	public void testBands() {
+		int width = 1031, height = 1029;  // large enough to be converted in bands
+		ImageProcessor bp = fill(new ByteProcessor(width, height), 10);
+		ImageProcessor sp = fill(new ShortProcessor(width, height), 11);
+		ImageProcessor fp = fill(new FloatProcessor(width, height), 12);
+		ColorProcessor cp = (ColorProcessor)fill(new ColorProcessor(width, height), 13);
+		cp.setRGBWeights(0.2, 0.5, 0.3);
+		sp.setMinAndMax(100, 40000);
+		float[] cTable = new float[65536];
+		for (int i=0; i<cTable.length; i++)
+			cTable[i] = (float)Math.sqrt(i);
+		for (boolean doScaling : new boolean[] {true, false}) {
+			for (int nThreads=1; nThreads<=3; nThreads+=2) {
+				ImageProcessor[] expected = {
+					converter(bp, doScaling, 1).convertToShort(), converter(bp, doScaling, 1).convertToFloat(null),
+					converter(sp, doScaling, 1).convertToByte(), converter(sp, doScaling, 1).convertToFloat(cTable),
+					converter(fp, doScaling, 1).convertToShort(),
+					converter(cp, doScaling, 1).convertToByte(), converter(cp, doScaling, 1).convertToFloat(null)
+				};
+				ImageProcessor[] actual = {
+					converter(bp, doScaling, nThreads).convertToShort(), converter(bp, doScaling, nThreads).convertToFloat(null),
+					converter(sp, doScaling, nThreads).convertToByte(), converter(sp, doScaling, nThreads).convertToFloat(cTable),
+					converter(fp, doScaling, nThreads).convertToShort(),
+					converter(cp, doScaling, nThreads).convertToByte(), converter(cp, doScaling, nThreads).convertToFloat(null)
+				};
+				for (int i=0; i<expected.length; i++)
+					assertPixelsEqual(expected[i].getPixels(), actual[i].getPixels());
+			}
+		}
+		// the bands give the same values as a pixel by pixel conversion
+		ImageProcessor sp8 = converter(sp, true, 3).convertToByte();
+		for (int i=0; i<sp.getPixelCount(); i+=997) {
+			int value = (int)(Math.max(sp.get(i)-100, 0)*(256.0/39901)+0.5);
+			assertEquals(Math.min(value, 255), sp8.get(i));
+		}
+		ImageProcessor cp32 = converter(cp, false, 3).convertToFloat(null);
+		for (int i=0; i<cp.getPixelCount(); i+=997) {
+			int c = cp.get(i);
+			assertEquals((float)((c>>16&255)*0.2 + (c>>8&255)*0.5 + (c&255)*0.3), cp32.getf(i), 0f);
+		}
+	}
+
+}
@@ -299,4 +299,23 @@ public class ToolsTest {
 		testSplit2("12366a","6",new String[] {"123","a"});
 	}
 
+	@Test
+	public void testMedian() {
+		assertEquals(3.0, Tools.median(new float[] {5f, 1f, 3f, 4f, 2f}, 0, 5), 0.0);
+		assertEquals(2.5, Tools.median(new float[] {4f, 1f, 3f, 2f}, 0, 4), 0.0);
+		assertEquals(5.0, Tools.median(new float[] {Float.NaN, 1f, 3f, 5f, Float.NaN}, 0, 5), 0.0);  // NaNs are sorted last
+		assertEquals(Float.NaN, Tools.median(new float[] {Float.NaN, 1f, Float.NaN}, 0, 3), 0.0);
+		assertEquals(3.0, Tools.median(new float[] {9f, 4f, 1f, 3f, 9f}, 1, 4), 0.0);  // a[1] to a[3]
+	}
+
+	@Test
+	public void testSelect() {
+		float[] a = {7f, 2f, 9f, 4f, 4f, 1f, 8f};
+		assertEquals(4f, Tools.select(a, 0, a.length, 3), 0f);
+		for (int i=0; i<3; i++)
+			assertEquals(true, a[i]<=4f);
+		for (int i=4; i<a.length; i++)
+			assertEquals(true, a[i]>=4f);
+	}
+
 }